@@ -37,6 +37,7 @@ import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.spec.SecretKeySpec;
 
@@ -60,12 +61,14 @@ import org.bimserver.database.RecordIterator;
 import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
 import org.bimserver.database.berkeley.DatabaseInitException;
 import org.bimserver.database.migrations.InconsistentModelsException;
+import org.bimserver.database.migrations.RecordLayoutMigrator;
 import org.bimserver.database.queries.om.Include;
 import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.query.conditions.AttributeCondition;
 import org.bimserver.database.query.conditions.Condition;
 import org.bimserver.database.query.literals.StringLiteral;
+import org.bimserver.database.sealed.SealedRevisionStore;
 import org.bimserver.emf.IfcModelInterface;
 import org.bimserver.emf.MetaDataManager;
 import org.bimserver.emf.PackageMetaData;
@@ -191,6 +194,7 @@ public class BimServer implements BasicServerInfoProvider {
 	private ProtocolBuffersServer protocolBuffersServer;
 	private JsonHandler jsonHandler;
 	private CommandLine commandLine;
+	private RecordLayoutMigrator recordLayoutMigrator;
 	private ServerSettingsCache serverSettingsCache;
 	private ReflectorFactory reflectorFactory;
 	private final EndPointManager endPointManager = new EndPointManager();
@@ -202,6 +206,7 @@ public class BimServer implements BasicServerInfoProvider {
 	private Map<String, WebModulePlugin> webModules = new HashMap<String, WebModulePlugin>();
 	private WebModulePlugin defaultWebModule;
 	private ExecutorService executorService = Executors.newCachedThreadPool();
+	private ExecutorService queryExecutorService;
 	private InternalServicesManager internalServicesManager;
 	private MetaDataManager metaDataManager;
 	private SchemaConverterManager schemaConverterManager = new SchemaConverterManager();
@@ -222,6 +227,15 @@ public class BimServer implements BasicServerInfoProvider {
 	public BimServer(BimServerConfig config) {
 		System.setProperty("org.eclipse.emf.common.util.ReferenceClearingQueue", "false");
 		this.config = config;
+		if (config.getQueryThreads() > 1) {
+			// Shared by all parallel queries, so the amount of query threads does not grow with the amount of concurrent queries
+			AtomicInteger threadCounter = new AtomicInteger();
+			queryExecutorService = Executors.newFixedThreadPool(Math.max(config.getQueryThreads(), Runtime.getRuntime().availableProcessors()), runnable -> {
+				Thread thread = new Thread(runnable, "Query-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 		try {
 			if (config.getHomeDir() != null) {
 				initHomeDir(config);
@@ -673,6 +687,7 @@ public class BimServer implements BasicServerInfoProvider {
 			}
 			Path databaseDir = config.getHomeDir().resolve("database");
 			BerkeleyKeyValueStore keyValueStore = new BerkeleyKeyValueStore(databaseDir, config.getBdbEnvironmentProperties());
+			keyValueStore.setTableCompression(config.getModelTableCompression(), config.getGeometryTableCompression());
 
 			geometryAccellerator = new GeometryAccellerator(this);
 			
@@ -692,13 +707,15 @@ public class BimServer implements BasicServerInfoProvider {
 
 			OldQuery.setPackageMetaDataForDefaultQuery(metaDataManager.getPackageMetaData("store"));
 
-			bimDatabase = new Database(this, packages, keyValueStore, metaDataManager);
+			long databaseStart = System.nanoTime();
+			bimDatabase = createDatabase(packages, keyValueStore);
 			try {
 				bimDatabase.init();
 			} catch (DatabaseRestartRequiredException e) {
 				bimDatabase.close();
 				keyValueStore = new BerkeleyKeyValueStore(databaseDir, config.getBdbEnvironmentProperties());
-				bimDatabase = new Database(this, packages, keyValueStore, metaDataManager);
+				keyValueStore.setTableCompression(config.getModelTableCompression(), config.getGeometryTableCompression());
+				bimDatabase = createDatabase(packages, keyValueStore);
 				try {
 					bimDatabase.init();
 				} catch (InconsistentModelsException e1) {
@@ -711,6 +728,7 @@ public class BimServer implements BasicServerInfoProvider {
 				serverInfoManager.setServerState(ServerState.FATAL_ERROR);
 				serverInfoManager.setErrorMessage("Inconsistent models");
 			}
+			LOGGER.info("Database initialized (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - databaseStart) + " ms)");
 
 			try (DatabaseSession encsession = bimDatabase.createSession(OperationType.POSSIBLY_WRITE)) {
 				byte[] encryptionkeyBytes = null;
@@ -809,6 +827,16 @@ public class BimServer implements BasicServerInfoProvider {
 		}
 	}
 
+	private Database createDatabase(Set<EPackage> packages, KeyValueStore keyValueStore) throws DatabaseInitException {
+		Database database = new Database(this, packages, keyValueStore, metaDataManager);
+		for (OperationType operationType : OperationType.values()) {
+			database.setCommitDurability(operationType, config.getCommitDurability(operationType));
+		}
+		database.setSealedRevisionStore(new SealedRevisionStore(config.getHomeDir().resolve("sealed")));
+		database.setStartupCheckpointFile(config.getHomeDir().resolve("database").resolve("startup.checkpoint"));
+		return database;
+	}
+
 	private void cleanupStaleData() throws BimserverDatabaseException {
 		LOGGER.info("Checking for stale records, this can take some time...");
 		long s = System.nanoTime();
@@ -1127,7 +1155,7 @@ public class BimServer implements BasicServerInfoProvider {
 			}
 
 			int renderEngineProcesses = getServerSettingsCache().getServerSettings().getRenderEngineProcesses();
-			RenderEnginePoolFactory renderEnginePoolFactory = new CommonsPoolingRenderEnginePoolFactory(renderEngineProcesses);
+			RenderEnginePoolFactory renderEnginePoolFactory = new CommonsPoolingRenderEnginePoolFactory(renderEngineProcesses, config.isReuseRenderEngines(), config.getRenderEngineMaxModels(), config.getRenderEngineMaxBytes());
 
 			renderEnginePools = new RenderEnginePools(this, renderEnginePoolFactory);
 			
@@ -1221,6 +1249,11 @@ public class BimServer implements BasicServerInfoProvider {
 				LOGGER.error("", e);
 			}
 			
+			if (config.getBackgroundMigrationRate() > 0) {
+				recordLayoutMigrator = new RecordLayoutMigrator(bimDatabase, config.getBackgroundMigrationRate());
+				recordLayoutMigrator.start();
+			}
+			
 			Integer protocolBuffersPort = getServerSettingsCache().getServerSettings().getProtocolBuffersPort();
 			if (protocolBuffersPort >= 1 && protocolBuffersPort <= 65535) {
 				try {
@@ -1427,6 +1460,19 @@ public class BimServer implements BasicServerInfoProvider {
 	public void stop() {
 		LOGGER.info("Stopping BIMserver");
 		executorService.shutdown();
+		if (queryExecutorService != null) {
+			// Not interrupting, an interrupt during I/O invalidates the Berkeley environment. partitions that are running are finished
+			queryExecutorService.shutdown();
+		}
+		if (jsonHandler != null) {
+			jsonHandler.close();
+		}
+		if (geometryAccellerator != null) {
+			geometryAccellerator.close();
+		}
+		if (recordLayoutMigrator != null) {
+			recordLayoutMigrator.shutdown();
+		}
 		if (bimDatabase != null) {
 			try {
 				bimDatabase.close();
@@ -1564,6 +1610,13 @@ public class BimServer implements BasicServerInfoProvider {
 		return executorService;
 	}
 
+	/**
+	 * @return The executor the partitions of parallel queries are read on, null when BimServerConfig.queryThreads is 1
+	 */
+	public ExecutorService getQueryExecutorService() {
+		return queryExecutorService;
+	}
+
 	public MetaDataManager getMetaDataManager() {
 		return metaDataManager;
 	}
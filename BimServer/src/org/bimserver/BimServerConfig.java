@@ -18,8 +18,13 @@ package org.bimserver;
  *****************************************************************************/
 
 import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Properties;
 
+import org.bimserver.database.CommitDurability;
+import org.bimserver.database.OperationType;
+import org.bimserver.database.berkeley.ValueCompression;
 import org.bimserver.plugins.ResourceFetcher;
 
 public class BimServerConfig {
@@ -34,6 +39,17 @@ public class BimServerConfig {
 	private Environment environment;
 	private String resourceBase;
 	private Properties bdbEnvironmentProperties = null;
+	private int queryThreads = 1;
+	private boolean incrementalGeometry = false;
+	private boolean reuseRenderEngines = true;
+	private int renderEngineMaxModels = 1000;
+	private long renderEngineMaxBytes = 2L * 1024 * 1024 * 1024;
+	private ValueCompression modelTableCompression = ValueCompression.NONE;
+	private ValueCompression geometryTableCompression = ValueCompression.NONE;
+	private final Map<OperationType, CommitDurability> commitDurabilities = new EnumMap<>(OperationType.class);
+	private boolean sealRevisions = false;
+	private int backgroundMigrationRate = 0;
+	private int jsonRequestThreads = 1;
 	
 	public boolean isStartEmbeddedWebServer() {
 		return startEmbeddedWebServer;
@@ -139,6 +155,130 @@ public class BimServerConfig {
 		this.autoMigrate = autoMigrate;
 	}
 
+	public int getQueryThreads() {
+		return queryThreads;
+	}
+
+	/**
+	 * @param queryThreads The amount of threads a single large query (downloads, inverse generation) can use to read partitions of the model in parallel, 1 (the default) means queries are executed sequentially
+	 */
+	public void setQueryThreads(int queryThreads) {
+		this.queryThreads = queryThreads;
+	}
+
+	public boolean isIncrementalGeometry() {
+		return incrementalGeometry;
+	}
+
+	/**
+	 * @param incrementalGeometry When true, geometry of products whose representation did not change since the previous revision of the project is copied instead of tessellated again on streaming checkins, default false
+	 */
+	public void setIncrementalGeometry(boolean incrementalGeometry) {
+		this.incrementalGeometry = incrementalGeometry;
+	}
+
+	public boolean isReuseRenderEngines() {
+		return reuseRenderEngines;
+	}
+
+	/**
+	 * @param reuseRenderEngines When true (the default), render engine instances are kept alive and reused for multiple models instead of being started for every batch
+	 */
+	public void setReuseRenderEngines(boolean reuseRenderEngines) {
+		this.reuseRenderEngines = reuseRenderEngines;
+	}
+
+	public int getRenderEngineMaxModels() {
+		return renderEngineMaxModels;
+	}
+
+	/**
+	 * @param renderEngineMaxModels The amount of models a reused render engine processes before it is replaced by a new instance
+	 */
+	public void setRenderEngineMaxModels(int renderEngineMaxModels) {
+		this.renderEngineMaxModels = renderEngineMaxModels;
+	}
+
+	public long getRenderEngineMaxBytes() {
+		return renderEngineMaxBytes;
+	}
+
+	/**
+	 * @param renderEngineMaxBytes The amount of IFC bytes a reused render engine processes before it is replaced by a new instance
+	 */
+	public void setRenderEngineMaxBytes(long renderEngineMaxBytes) {
+		this.renderEngineMaxBytes = renderEngineMaxBytes;
+	}
+
+	public ValueCompression getModelTableCompression() {
+		return modelTableCompression;
+	}
+
+	/**
+	 * @param modelTableCompression The compression of the values of IFC object tables, existing tables without compression are converted on startup, tables that have a compression keep it
+	 */
+	public void setModelTableCompression(ValueCompression modelTableCompression) {
+		this.modelTableCompression = modelTableCompression;
+	}
+
+	public ValueCompression getGeometryTableCompression() {
+		return geometryTableCompression;
+	}
+
+	/**
+	 * @param geometryTableCompression The compression of the values of geometry tables, existing tables without compression are converted on startup, tables that have a compression keep it
+	 */
+	public void setGeometryTableCompression(ValueCompression geometryTableCompression) {
+		this.geometryTableCompression = geometryTableCompression;
+	}
+
+	public CommitDurability getCommitDurability(OperationType operationType) {
+		return commitDurabilities.getOrDefault(operationType, CommitDurability.GROUP);
+	}
+
+	/**
+	 * @param operationType The type of DatabaseSession this applies to
+	 * @param commitDurability How commits of these sessions are made durable, the default GROUP lets concurrently committing sessions share one sync
+	 */
+	public void setCommitDurability(OperationType operationType, CommitDurability commitDurability) {
+		commitDurabilities.put(operationType, commitDurability);
+	}
+
+	public boolean isSealRevisions() {
+		return sealRevisions;
+	}
+
+	/**
+	 * @param sealRevisions Whether to write a sealed (memory-mapped, read-only) snapshot of a revision after it has been checked in, queries on sealed revisions do not use
+	 *            the key value store. Only streaming checkins seal their revision, revisions created by other checkins (or by branching) are only sealed with the "seal"
+	 *            console command
+	 */
+	public void setSealRevisions(boolean sealRevisions) {
+		this.sealRevisions = sealRevisions;
+	}
+
+	public int getBackgroundMigrationRate() {
+		return backgroundMigrationRate;
+	}
+
+	/**
+	 * @param backgroundMigrationRate The number of records per second that are rewritten in their current layout after a schema change, 0 (default) leaves older records as they are, they are upgraded when read
+	 */
+	public void setBackgroundMigrationRate(int backgroundMigrationRate) {
+		this.backgroundMigrationRate = backgroundMigrationRate;
+	}
+
+	public int getJsonRequestThreads() {
+		return jsonRequestThreads;
+	}
+
+	/**
+	 * @param jsonRequestThreads The amount of threads the requests of JSON multi-requests that ask for it ("concurrent": true) are executed on, 1 (the default) means they are always executed sequentially
+	 */
+	public void setJsonRequestThreads(int jsonRequestThreads) {
+		this.jsonRequestThreads = jsonRequestThreads;
+	}
+
 	public void setResourceBase(String resourceBase) {
 		this.resourceBase = resourceBase;
 	}
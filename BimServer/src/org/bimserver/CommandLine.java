@@ -29,6 +29,7 @@ import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.Database;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.OldQuery;
 import org.bimserver.database.OperationType;
 import org.bimserver.database.actions.DownloadDatabaseAction;
 import org.bimserver.database.migrations.InconsistentModelsException;
@@ -39,6 +40,8 @@ import org.bimserver.models.ifc2x3tc1.IfcSlab;
 import org.bimserver.models.ifc2x3tc1.IfcWall;
 import org.bimserver.models.ifc2x3tc1.IfcWindow;
 import org.bimserver.models.log.AccessMethod;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Revision;
 import org.bimserver.shared.exceptions.UserException;
 import org.bimserver.webservices.authorization.SystemAuthorization;
 import org.slf4j.Logger;
@@ -101,6 +104,18 @@ public class CommandLine extends Thread {
 						} catch (Exception e) {
 							LOGGER.error("", e);
 						}
+					} else if (line.startsWith("seal")) {
+						try {
+							long roid = Long.parseLong(line.substring(4).trim());
+							try (DatabaseSession databaseSession = bimServer.getDatabase().createSession(OperationType.READ_ONLY)) {
+								Revision revision = databaseSession.get(roid, OldQuery.getDefault());
+								for (ConcreteRevision concreteRevision : revision.getConcreteRevisions()) {
+									bimServer.getDatabase().getSealedRevisionStore().seal(databaseSession, concreteRevision);
+								}
+							}
+						} catch (Exception e) {
+							LOGGER.error("", e);
+						}
 					} else if (line.equalsIgnoreCase("dump")) {
 						LOGGER.info("Dumping all thread's track traces...");
 						LOGGER.info("");
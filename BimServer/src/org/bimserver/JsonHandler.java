@@ -18,7 +18,16 @@ package org.bimserver;
  *****************************************************************************/
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -33,6 +42,7 @@ import org.bimserver.shared.exceptions.ServiceException;
 import org.bimserver.shared.exceptions.UserException;
 import org.bimserver.shared.interfaces.PublicInterface;
 import org.bimserver.shared.json.JsonConverter;
+import org.bimserver.shared.json.StreamingJsonConverter;
 import org.bimserver.shared.meta.SMethod;
 import org.bimserver.shared.meta.SParameter;
 import org.bimserver.shared.meta.SService;
@@ -43,27 +53,48 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class JsonHandler {
 	private static final Logger LOGGER = LoggerFactory.getLogger(JsonHandler.class);
 	private final BimServer bimServer;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
 	private final JsonConverter converter;
-	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private final StreamingJsonConverter streamingConverter = new StreamingJsonConverter();
+	
+	// Only there when the server is configured to execute multi-requests concurrently
+	private final ExecutorService requestExecutor;
 
 	public JsonHandler(BimServer bimServer) {
+		this(bimServer, createRequestExecutor(bimServer.getConfig().getJsonRequestThreads()));
+	}
+
+	/**
+	 * @param requestExecutor The executor concurrent multi-requests are executed on, null to always execute them sequentially
+	 */
+	JsonHandler(BimServer bimServer, ExecutorService requestExecutor) {
 		this.bimServer = bimServer;
 		this.converter = new JsonConverter(bimServer.getServicesMap());
+		this.requestExecutor = requestExecutor;
+	}
+
+	private static ExecutorService createRequestExecutor(int nrThreads) {
+		if (nrThreads <= 1) {
+			return null;
+		}
+		AtomicInteger threadCounter = new AtomicInteger();
+		return Executors.newFixedThreadPool(nrThreads, runnable -> {
+			Thread thread = new Thread(runnable, "JsonRequest-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	public void execute(ObjectNode incomingMessage, HttpServletRequest httpRequest, Writer out) {
-		JsonFactory jsonFactory = new JsonFactory();
 		JsonGenerator writer = null;
 		try {
-			writer = jsonFactory.createGenerator(out);
+			writer = JSON_FACTORY.createGenerator(out);
 			writer.writeStartObject();
 			String token = incomingMessage.has("token") ? incomingMessage.get("token").asText() : null;
 			String oAuthCode = incomingMessage.has("oauthcode") ? incomingMessage.get("oauthcode").asText() : null;
@@ -76,7 +107,12 @@ public class JsonHandler {
 				writer.writeFieldName("response");
 				processSingleRequest((ObjectNode) incomingMessage.get("request"), token, oAuthCode, httpRequest, writer);
 			} else if (incomingMessage.has("requests")) {
-				processMultiRequest((ArrayNode) incomingMessage.get("requests"), token, oAuthCode, httpRequest, writer);
+				ArrayNode requests = (ArrayNode) incomingMessage.get("requests");
+				if (requestExecutor != null && requests.size() > 1 && incomingMessage.has("concurrent") && incomingMessage.get("concurrent").asBoolean()) {
+					processMultiRequestConcurrently(requests, token, oAuthCode, httpRequest, writer);
+				} else {
+					processMultiRequest(requests, token, oAuthCode, httpRequest, writer);
+				}
 			}
 		} catch (Throwable throwable) {
 			if (throwable instanceof UserException) {
@@ -110,6 +146,49 @@ public class JsonHandler {
 		out.writeEndArray();
 	}
 
+	/**
+	 * Executes the requests on the request executor, the client has to make sure they do not depend on each other. Every response is written to its own buffer, the
+	 * buffers are written to out in the order of the requests, as soon as all responses before them have been written.
+	 * 
+	 * The token is resolved here, the workers never touch the http request (or its session), which is not safe to use outside of the servlet thread.
+	 */
+	private void processMultiRequestConcurrently(ArrayNode requests, String jsonToken, String oAuthCode, HttpServletRequest httpRequest, JsonGenerator out) throws Exception {
+		String token = resolveToken(httpRequest, jsonToken, oAuthCode);
+		List<Future<String>> futures = new ArrayList<>(requests.size());
+		for (int r = 0; r < requests.size(); r++) {
+			ObjectNode request = (ObjectNode) requests.get(r);
+			futures.add(requestExecutor.submit(() -> {
+				StringWriter response = new StringWriter();
+				try (JsonGenerator responseWriter = JSON_FACTORY.createGenerator(response)) {
+					try {
+						processSingleRequest(request, token, null, null, responseWriter);
+					} catch (Exception e) {
+						handleThrowable(responseWriter, e);
+					}
+				}
+				return response.toString();
+			}));
+		}
+		out.writeFieldName("responses");
+		out.writeStartArray();
+		try {
+			for (Future<String> future : futures) {
+				try {
+					out.writeRawValue(future.get());
+				} catch (ExecutionException e) {
+					handleThrowable(out, e.getCause());
+				}
+			}
+		} finally {
+			// Only does something when writing failed or this thread was interrupted, requests that are already running are not interrupted because that
+			// would invalidate the Berkeley environment when it happens during I/O
+			for (Future<String> future : futures) {
+				future.cancel(false);
+			}
+		}
+		out.writeEndArray();
+	}
+
 	private void processSingleRequest(ObjectNode request, String jsonToken, String oAuthCode, HttpServletRequest httpRequest, JsonGenerator writer) throws Exception {
 		long s = System.nanoTime();
 		if (!request.has("interface")) {
@@ -169,25 +248,8 @@ public class JsonHandler {
 				recording.finish();
 			}
 
-			// When we have managed to get here, no exceptions have been thrown.
-			// We
-			// can safely assume further serialization to JSON won't fail. So
-			// now we
-			// can start streaming
 			if (writer != null) {
-				if (result == null) {
-					writer.writeStartObject();
-					writer.writeFieldName("result");
-					writer.writeStartObject();
-					writer.writeEndObject();
-					writer.writeEndObject();
-				} else {
-					writer.writeStartObject();
-					writer.writeFieldName("result");
-					JsonNode jsonResult = converter.toJson(result);
-					OBJECT_MAPPER.writeValue(writer, jsonResult);
-					writer.writeEndObject();
-				}
+				writeResult(result, writer);
 			}
 			long e = System.nanoTime();
 			LOGGER.debug(interfaceName + "." + methodName + " " + ((e - s) / 1000000) + "ms");
@@ -196,6 +258,34 @@ public class JsonHandler {
 		}
 	}
 
+	/**
+	 * Nothing has been written for the request before this is called, so when this throws, the exception can still be written as the response. Once streaming has started
+	 * only I/O errors on the writer itself can occur: unsupported types are found beforehand, and results containing data (of which reading can fail halfway) are buffered first
+	 */
+	void writeResult(Object result, JsonGenerator writer) throws IOException {
+		if (result == null) {
+			writer.writeStartObject();
+			writer.writeFieldName("result");
+			writer.writeStartObject();
+			writer.writeEndObject();
+			writer.writeEndObject();
+		} else if (streamingConverter.containsDataHandler(result)) {
+			StringWriter buffer = new StringWriter();
+			try (JsonGenerator bufferWriter = JSON_FACTORY.createGenerator(buffer)) {
+				streamingConverter.toJson(result, bufferWriter);
+			}
+			writer.writeStartObject();
+			writer.writeFieldName("result");
+			writer.writeRawValue(buffer.toString());
+			writer.writeEndObject();
+		} else {
+			writer.writeStartObject();
+			writer.writeFieldName("result");
+			streamingConverter.toJson(result, writer);
+			writer.writeEndObject();
+		}
+	}
+
 	private void handleThrowable(JsonGenerator writer, Throwable throwable) {
 		if (!(throwable instanceof ServiceException)) {
 			LoggerFactory.getLogger(JsonHandler.class).error("", throwable);
@@ -229,6 +319,15 @@ public class JsonHandler {
 	}
 
 	private ServiceMap getServiceMap(HttpServletRequest httpRequest, BimServer bimServer, String methodName, String token, String oAuthCode) throws UserException {
+		token = resolveToken(httpRequest, token, oAuthCode);
+		if (token == null) {
+			return null;
+		}
+		ServiceMap serviceMap = bimServer.getServiceFactory().get(token, AccessMethod.JSON);
+		return serviceMap;
+	}
+
+	private String resolveToken(HttpServletRequest httpRequest, String token, String oAuthCode) {
 		if (token == null) {
 			token = httpRequest == null ? null : (String) httpRequest.getSession().getAttribute("token");
 		}
@@ -245,11 +344,7 @@ public class JsonHandler {
 				}
 			}
 		}
-		if (token == null) {
-			return null;
-		}
-		ServiceMap serviceMap = bimServer.getServiceFactory().get(token, AccessMethod.JSON);
-		return serviceMap;
+		return token;
 	}
 	
 	private <T extends PublicInterface> T getServiceInterface(HttpServletRequest httpRequest, BimServer bimServer, Class<T> interfaceClass, String methodName, String token, ServiceMap serviceMap) throws UserException, ServerException {
@@ -272,4 +367,18 @@ public class JsonHandler {
 	public JsonConverter getJsonConverter() {
 		return converter;
 	}
+
+	public void close() {
+		if (requestExecutor != null) {
+			// Running requests are not interrupted because that would invalidate the Berkeley environment when it happens during I/O
+			requestExecutor.shutdown();
+			try {
+				if (!requestExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+					LOGGER.warn("Not all json requests have finished");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -23,6 +23,7 @@ import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.berkeley.DatabaseInitException;
 import org.bimserver.database.migrations.InconsistentModelsException;
 import org.bimserver.database.migrations.Migrator;
+import org.bimserver.database.sealed.SealedRevisionStore;
 import org.bimserver.emf.MetaDataManager;
 import org.eclipse.emf.ecore.EClass;
 
@@ -46,4 +47,8 @@ public interface BimDatabase {
 	String getTableName(EClass eClass);
 	
 	UUID getUuid();
+
+	SealedRevisionStore getSealedRevisionStore();
+
+	RecordLayouts getRecordLayouts();
 }
\ No newline at end of file
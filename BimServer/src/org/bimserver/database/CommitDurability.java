@@ -0,0 +1,39 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+/**
+ * What DatabaseSession.commit does to make a committed transaction durable, configurable per OperationType
+ */
+public enum CommitDurability {
+	
+	/**
+	 * Sync the environment after every commit
+	 */
+	SYNC,
+	
+	/**
+	 * Sync the environment after every commit, but let concurrently committing sessions share one sync. A commit only returns after a sync has completed that was started after the commit, so this is as durable as SYNC
+	 */
+	GROUP,
+	
+	/**
+	 * Only commit the transaction, durability is left to the commit settings of the underlying key value store
+	 */
+	NONE
+}
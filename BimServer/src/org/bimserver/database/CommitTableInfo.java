@@ -0,0 +1,85 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * The table name and index metadata DatabaseSession needs to write objects of one EClass, computed once per EClass instead of for every written object
+ */
+class CommitTableInfo {
+	private final EClass eClass;
+	private final String tableName;
+	private final EStructuralFeature[] indexFeatures;
+	private final String[] indexTableNames;
+	private final boolean perRecordVersioning;
+	private final boolean overwrite;
+
+	CommitTableInfo(EClass eClass) {
+		this.eClass = eClass;
+		this.tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		List<EStructuralFeature> features = new ArrayList<>();
+		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+			if (eStructuralFeature.getEAnnotation("singleindex") != null) {
+				features.add(eStructuralFeature);
+			}
+		}
+		this.indexFeatures = features.toArray(new EStructuralFeature[features.size()]);
+		this.indexTableNames = new String[indexFeatures.length];
+		for (int i = 0; i < indexFeatures.length; i++) {
+			indexTableNames[i] = tableName + "_" + indexFeatures[i].getName();
+		}
+		this.perRecordVersioning = DatabaseSession.perRecordVersioning(eClass);
+		this.overwrite = eClass.getEAnnotation("nolazyload") != null;
+	}
+
+	public EClass getEClass() {
+		return eClass;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public boolean hasIndices() {
+		return indexFeatures.length > 0;
+	}
+
+	public EStructuralFeature[] getIndexFeatures() {
+		return indexFeatures;
+	}
+
+	public String[] getIndexTableNames() {
+		return indexTableNames;
+	}
+
+	public boolean isPerRecordVersioning() {
+		return perRecordVersioning;
+	}
+
+	/**
+	 * @return Whether objects of this class are always overwritten instead of stored with storeNoOverwrite
+	 */
+	public boolean isOverwrite() {
+		return overwrite;
+	}
+}
@@ -17,10 +17,14 @@ package org.bimserver.database;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -28,6 +32,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -40,6 +48,8 @@ import org.bimserver.database.berkeley.DatabaseInitException;
 import org.bimserver.database.migrations.InconsistentModelsException;
 import org.bimserver.database.migrations.MigrationException;
 import org.bimserver.database.migrations.Migrator;
+import org.bimserver.database.queries.QueryPlanCache;
+import org.bimserver.database.sealed.SealedRevisionStore;
 import org.bimserver.emf.MetaDataManager;
 import org.bimserver.models.geometry.GeometryPackage;
 import org.bimserver.models.ifc2x3tc1.Ifc2x3tc1Package;
@@ -70,6 +80,12 @@ public class Database implements BimDatabase {
 	private static final String CLASS_LOOKUP_TABLE = "INT-ClassLookup";
 	public static final String STORE_PROJECT_NAME = "INT-Store";
 	public static final int STORE_PROJECT_ID = 1;
+	public static final String SPATIAL_INDEX_TABLE = "INT-SpatialIndex";
+	public static final String GEOMETRY_ACCELLERATOR_TABLE = "INT-GeometryAccellerator";
+	public static final String GEOMETRY_CONTENT_TABLE = "INT-GeometryContent";
+	public static final String GEOMETRY_FINGERPRINT_TABLE = "INT-GeometryFingerprint";
+	public static final String PROPERTY_SET_INDEX_TABLE = "INT-PropertySetIndex";
+	public static final String CLASSIFICATION_INDEX_TABLE = "INT-ClassificationIndex";
 	public static final String SCHEMA_VERSION = "SCHEMA_VERSION";
 	private static final String DATE_CREATED = "DATE_CREATED";
 	private static final String SERVER_UUID = "SERVER_UUID";
@@ -89,6 +105,13 @@ public class Database implements BimDatabase {
 	private final MetaDataManager metaDataManager;
 	private final BimServer bimServer;
 	private UUID uuid;
+	private final QueryPlanCache queryPlanCache = new QueryPlanCache(this);
+	private final Map<EClass, CommitTableInfo> commitTableInfos = new ConcurrentHashMap<>();
+	private final Map<OperationType, CommitDurability> commitDurabilities = new EnumMap<>(OperationType.class);
+	private SealedRevisionStore sealedRevisionStore;
+	private final RecordLayouts recordLayouts = new RecordLayouts(this);
+	private Path startupCheckpointFile;
+	private volatile boolean countersInitialized;
 
 	/*
 	 * This variable should be _incremented_ with every (released)
@@ -137,6 +160,12 @@ public class Database implements BimDatabase {
 				keyValueStore.createTable(CLASS_LOOKUP_TABLE, null, true);
 				keyValueStore.createTable(Database.STORE_PROJECT_NAME, null, true);
 				keyValueStore.createTable(Registry.REGISTRY_TABLE, null, true);
+				keyValueStore.createTable(SPATIAL_INDEX_TABLE, null, false);
+				keyValueStore.createTable(GEOMETRY_ACCELLERATOR_TABLE, null, false);
+				keyValueStore.createTable(GEOMETRY_CONTENT_TABLE, null, true);
+				keyValueStore.createTable(GEOMETRY_FINGERPRINT_TABLE, null, true);
+				keyValueStore.createTable(PROPERTY_SET_INDEX_TABLE, null, false);
+				keyValueStore.createTable(CLASSIFICATION_INDEX_TABLE, null, false);
 				setDatabaseVersion(-1, databaseSession);
 				created = new Date();
 				registry.save(DATE_CREATED, created, databaseSession);
@@ -146,6 +175,21 @@ public class Database implements BimDatabase {
 				keyValueStore.openTable(databaseSession, CLASS_LOOKUP_TABLE, true);
 				keyValueStore.openTable(databaseSession, Database.STORE_PROJECT_NAME, true);
 				keyValueStore.openTable(databaseSession, Registry.REGISTRY_TABLE, true);
+				// Databases created before these tables existed will get them here
+				Map<String, Boolean> internalTables = new LinkedHashMap<>();
+				internalTables.put(SPATIAL_INDEX_TABLE, false);
+				internalTables.put(GEOMETRY_ACCELLERATOR_TABLE, false);
+				internalTables.put(GEOMETRY_CONTENT_TABLE, true);
+				internalTables.put(GEOMETRY_FINGERPRINT_TABLE, true);
+				internalTables.put(PROPERTY_SET_INDEX_TABLE, false);
+				internalTables.put(CLASSIFICATION_INDEX_TABLE, false);
+				for (String tableName : internalTables.keySet()) {
+					if (keyValueStore.containsTable(tableName)) {
+						keyValueStore.openTable(databaseSession, tableName, internalTables.get(tableName));
+					} else {
+						keyValueStore.createTable(tableName, databaseSession, internalTables.get(tableName));
+					}
+				}
 				created = registry.readDate(DATE_CREATED, databaseSession);
 				uuid = UUID.fromString(registry.readString(SERVER_UUID, databaseSession));
 				if (created == null) {
@@ -291,6 +335,24 @@ public class Database implements BimDatabase {
 	}
 
 	public void initInternalStructure(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		long start = System.nanoTime();
+		Map<Short, EClass> catalog = readClassLookup(databaseSession);
+		openTables(databaseSession, catalog.values());
+		for (Short cid : catalog.keySet()) {
+			EClass eClass = catalog.get(cid);
+			recordLayouts.load(eClass, databaseSession);
+			cidToEclass[cid] = eClass;
+			eClassToCid.put(eClass, cid);
+			if (cid > tableId) {
+				// New tables get the next cid, so this has to continue where the catalog ends
+				tableId = cid;
+			}
+		}
+		LOGGER.info("Opened " + catalog.size() + " tables (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+	}
+
+	private Map<Short, EClass> readClassLookup(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		Map<Short, EClass> catalog = new LinkedHashMap<>();
 		RecordIterator recordIterator = keyValueStore.getRecordIterator(CLASS_LOOKUP_TABLE, databaseSession);
 		try {
 			Record record = recordIterator.next();
@@ -298,34 +360,119 @@ public class Database implements BimDatabase {
 				String packageAndClassName = BinUtils.byteArrayToString(record.getValue());
 				String packageName = packageAndClassName.substring(0, packageAndClassName.indexOf("_"));
 				String className = packageAndClassName.substring(packageAndClassName.indexOf("_") + 1);
-				EClass eClass = (EClass) getEClassifier(packageName, className);
-				
-				// TODO geometry?
-				boolean transactional = !(eClass.getEPackage() == Ifc2x3tc1Package.eINSTANCE || eClass.getEPackage() == Ifc4Package.eINSTANCE);
+				catalog.put(BinUtils.byteArrayToShort(record.getKey()), (EClass) getEClassifier(packageName, className));
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		return catalog;
+	}
 
-				keyValueStore.openTable(databaseSession, packageAndClassName, transactional);
-				
-				for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
-					if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-						String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
-						try {
-							keyValueStore.openIndexTable(databaseSession, indexTableName, transactional);
-						} catch (DatabaseNotFoundException e) {
-						}
+	/**
+	 * Opening a table mostly consists of waiting for the environment to read its root node, with a few thousand tables this dominates startup time when done one by one
+	 */
+	private void openTables(DatabaseSession databaseSession, Collection<EClass> eClasses) throws BimserverDatabaseException {
+		int nrThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), eClasses.size()));
+		ExecutorService executorService = Executors.newFixedThreadPool(nrThreads, runnable -> {
+			Thread thread = new Thread(runnable, "OpenTables");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (EClass eClass : eClasses) {
+				futures.add(executorService.submit(() -> {
+					openTables(databaseSession, eClass);
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof BimserverDatabaseException) {
+						throw (BimserverDatabaseException) e.getCause();
 					}
+					throw new BimserverDatabaseException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new BimserverDatabaseException(e);
 				}
-				
-				Short cid = BinUtils.byteArrayToShort(record.getKey());
-				cidToEclass[cid] = eClass;
-				eClassToCid.put(eClass, cid);
-				record = recordIterator.next();
 			}
 		} finally {
-			recordIterator.close();
+			executorService.shutdownNow();
+		}
+	}
+
+	private void openTables(DatabaseSession databaseSession, EClass eClass) throws BimserverDatabaseException {
+		// TODO geometry?
+		boolean transactional = !(eClass.getEPackage() == Ifc2x3tc1Package.eINSTANCE || eClass.getEPackage() == Ifc4Package.eINSTANCE);
+
+		keyValueStore.openTable(databaseSession, eClass.getEPackage().getName() + "_" + eClass.getName(), transactional);
+		
+		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+			if (eStructuralFeature.getEAnnotation("singleindex") != null) {
+				String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
+				try {
+					keyValueStore.openIndexTable(databaseSession, indexTableName, transactional);
+				} catch (DatabaseNotFoundException e) {
+				}
+			}
 		}
 	}
 
 	public void initCounters(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		long start = System.nanoTime();
+		if (restoreCounters()) {
+			LOGGER.info("Restored oid counters of " + eClassToCid.size() + " tables from startup checkpoint (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+		} else {
+			scanCounters(databaseSession);
+			LOGGER.info("Recovered oid counters by reading the last record of " + eClassToCid.size() + " tables (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+		}
+		countersInitialized = true;
+	}
+
+	/**
+	 * The checkpoint is only written after a clean shutdown and deleted as soon as it has been read, so a crash in between always results in a scan on the next start
+	 */
+	private boolean restoreCounters() {
+		if (startupCheckpointFile == null) {
+			return false;
+		}
+		StartupCheckpoint startupCheckpoint = StartupCheckpoint.readAndDelete(startupCheckpointFile);
+		if (startupCheckpoint == null) {
+			return false;
+		}
+		if (!startupCheckpoint.getDatabaseUuid().equals(uuid)) {
+			LOGGER.warn("Ignoring startup checkpoint of another database (" + startupCheckpoint.getDatabaseUuid() + ")");
+			return false;
+		}
+		Map<String, Long> counters = startupCheckpoint.getOidCounters();
+		if (counters.size() != eClassToCid.size()) {
+			LOGGER.warn("Ignoring startup checkpoint, it contains " + counters.size() + " tables instead of " + eClassToCid.size());
+			return false;
+		}
+		for (EClass eClass : eClassToCid.keySet()) {
+			if (!counters.containsKey(eClass.getEPackage().getName() + "_" + eClass.getName())) {
+				LOGGER.warn("Ignoring startup checkpoint, it does not contain table " + eClass.getEPackage().getName() + "_" + eClass.getName());
+				return false;
+			}
+		}
+		for (EClass eClass : eClassToCid.keySet()) {
+			initCounter(eClass);
+			long oid = counters.get(eClass.getEPackage().getName() + "_" + eClass.getName());
+			if (oid > oidCounters.get(eClass).get()) {
+				oidCounters.put(eClass, new AtomicLong(oid));
+			}
+		}
+		if (startupCheckpoint.getPidCounter() > pidCounter.get()) {
+			pidCounter.set(startupCheckpoint.getPidCounter());
+		}
+		return true;
+	}
+
+	private void scanCounters(DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
 		for (EClass eClass : eClassToCid.keySet()) {
 			RecordIterator iterator = keyValueStore.getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), databaseSession);
 			try {
@@ -360,7 +507,27 @@ public class Database implements BimDatabase {
 	}
 
 	public void close() {
+		if (sealedRevisionStore != null) {
+			sealedRevisionStore.close();
+		}
 		keyValueStore.close();
+		if (startupCheckpointFile != null && countersInitialized) {
+			// Written after the environment has been closed, no more oids or pids can be handed out at this point
+			Map<String, Long> counters = new HashMap<>();
+			for (EClass eClass : oidCounters.keySet()) {
+				counters.put(eClass.getEPackage().getName() + "_" + eClass.getName(), oidCounters.get(eClass).get());
+			}
+			try {
+				new StartupCheckpoint(uuid, pidCounter.get(), counters).write(startupCheckpointFile);
+			} catch (IOException e) {
+				LOGGER.error("", e);
+			}
+			countersInitialized = false;
+		}
+	}
+
+	public void setStartupCheckpointFile(Path startupCheckpointFile) {
+		this.startupCheckpointFile = startupCheckpointFile;
 	}
 
 	public List<String> getAvailableClasses() {
@@ -423,6 +590,7 @@ public class Database implements BimDatabase {
 			} catch (BimserverDatabaseException e) {
 				LOGGER.error("", e);
 			}
+			recordLayouts.create(eClass, databaseSession);
 			return true;
 		}
 		return false;
@@ -470,4 +638,35 @@ public class Database implements BimDatabase {
 	public UUID getUuid() {
 		return uuid;
 	}
+
+	public QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	CommitTableInfo getCommitTableInfo(EClass eClass) {
+		return commitTableInfos.computeIfAbsent(eClass, CommitTableInfo::new);
+	}
+
+	public void setCommitDurability(OperationType operationType, CommitDurability commitDurability) {
+		commitDurabilities.put(operationType, commitDurability);
+	}
+
+	public void setSealedRevisionStore(SealedRevisionStore sealedRevisionStore) {
+		this.sealedRevisionStore = sealedRevisionStore;
+	}
+
+	/**
+	 * @return The store of sealed revisions, or null when sealing is not available
+	 */
+	public SealedRevisionStore getSealedRevisionStore() {
+		return sealedRevisionStore;
+	}
+
+	public RecordLayouts getRecordLayouts() {
+		return recordLayouts;
+	}
+
+	public CommitDurability getCommitDurability(OperationType operationType) {
+		return commitDurabilities.getOrDefault(operationType, CommitDurability.GROUP);
+	}
 }
\ No newline at end of file
@@ -22,7 +22,6 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -40,6 +39,8 @@ import org.bimserver.BimserverDatabaseException;
 import org.bimserver.ServerIfcModel;
 import org.bimserver.database.actions.BimDatabaseAction;
 import org.bimserver.database.berkeley.BimserverConcurrentModificationDatabaseException;
+import org.bimserver.database.queries.QueryPlanCache;
+import org.bimserver.database.sealed.SealedRevision;
 import org.bimserver.database.query.conditions.Condition;
 import org.bimserver.database.query.conditions.IsOfTypeCondition;
 import org.bimserver.emf.IdEObject;
@@ -108,7 +109,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	private StackTraceElement[] stackTrace;
 	private final ObjectCache objectCache = new ObjectCache();
 	private Map<String, Long> startOids;
-	private Map<Long, HashMapVirtualObject> voCache;
+	private volatile Map<Long, HashMapVirtualObject> voCache;
 	private CleanupListener cleanupListener;
 	private final Set<ServerIfcModel> serverModels = new HashSet<>();
 	private long reads;
@@ -206,17 +207,18 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			int current = 0;
 			long writes = 0;
 			ByteBuffer keyBuffer = ByteBuffer.wrap(new byte[16]);
+			// Writes are done in table/key order, this keeps consecutive writes in the same B-tree nodes
 			if (objectsToDelete != null) {
-				for (RecordIdentifierPlusType recordIdentifier : objectsToDelete) {
+				for (RecordIdentifierPlusType recordIdentifier : objectsToDelete.sortedByKey()) {
 					fillKeyBuffer(keyBuffer, recordIdentifier);
-					database.getKeyValueStore().storeNoOverwrite(recordIdentifier.getPackageName() + "_" + recordIdentifier.getClassName(), keyBuffer.array(), new byte[] { -1 }, this);
+					database.getKeyValueStore().storeNoOverwrite(recordIdentifier.getTableName(), keyBuffer.array(), new byte[] { -1 }, this);
 					writes++;
 				}
 			}
 			// This buffer is reused for the values, it's position must be reset at the end of the loop, and the convertObjectToByteArray function is responsible for setting the buffer's position to the end of the (used part of the) buffer
 			ByteBuffer reusableBuffer = ByteBuffer.allocate(32768);
 			if (objectsToCommit != null) {
-				for (IdEObject object : objectsToCommit) {
+				for (IdEObject object : objectsToCommit.sortedByKey()) {
 					if (object.getOid() == -1) {
 						throw new BimserverDatabaseException("Cannot store object with oid -1");
 					}
@@ -226,15 +228,16 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 					}
 					ByteBuffer valueBuffer = convertObjectToByteArray(object, reusableBuffer, getMetaDataManager().getPackageMetaData(object.eClass().getEPackage().getName()));
 					int valueBufferPosition = valueBuffer.position();
-					processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), object.eClass(), valueBuffer);
-					if (object.eClass().getEAnnotation("nolazyload") == null && !overwriteEnabled) {
+					CommitTableInfo commitTableInfo = database.getCommitTableInfo(object.eClass());
+					processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), commitTableInfo, valueBuffer);
+					if (!commitTableInfo.isOverwrite() && !overwriteEnabled) {
 						try {
-							database.getKeyValueStore().storeNoOverwrite(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBufferPosition, this);
+							database.getKeyValueStore().storeNoOverwrite(commitTableInfo.getTableName(), keyBuffer.array(), valueBuffer.array(), 0, valueBufferPosition, this);
 						} catch (BimserverConcurrentModificationDatabaseException e) {
 							throw e;
 						}
 					} else {
-						database.getKeyValueStore().store(object.eClass().getEPackage().getName() + "_" + object.eClass().getName(), keyBuffer.array(),
+						database.getKeyValueStore().store(commitTableInfo.getTableName(), keyBuffer.array(),
 								valueBuffer.array(), 0, valueBuffer.position(), this);
 					}
 					if (progressHandler != null) {
@@ -247,7 +250,16 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			}
 			if (bimTransaction != null) {
 				bimTransaction.commit();
-				database.getKeyValueStore().sync();
+				switch (database.getCommitDurability(operationType)) {
+				case SYNC:
+					database.getKeyValueStore().sync();
+					break;
+				case GROUP:
+					database.getKeyValueStore().groupSync();
+					break;
+				case NONE:
+					break;
+				}
 			}
 			database.incrementCommittedWrites(writes);
 			if (bimTransaction != null) {
@@ -267,56 +279,43 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		}
 	}
 
-	private void processPossibleIndices(ByteBuffer keyBuffer, int pid, int rid, long oid, EClass eClass, ByteBuffer valueBuffer) throws BimserverLockConflictException, BimserverDatabaseException {
-		boolean hasAtLeastOneIndex = false;
-		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
-			if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-				hasAtLeastOneIndex = true;
-				break;
-			}
-		}
-		if (hasAtLeastOneIndex) {
+	private void processPossibleIndices(ByteBuffer keyBuffer, int pid, int rid, long oid, CommitTableInfo commitTableInfo, ByteBuffer valueBuffer) throws BimserverLockConflictException, BimserverDatabaseException {
+		if (commitTableInfo.hasIndices()) {
+			EClass eClass = commitTableInfo.getEClass();
 			byte[] oldData = null;
 			ByteBuffer oldKeyBuffer = null;
-			boolean perRecordVersioning = perRecordVersioning(eClass);
+			boolean perRecordVersioning = commitTableInfo.isPerRecordVersioning();
 			if (perRecordVersioning) {
 				oldKeyBuffer = ByteBuffer.allocate(16);
 				oldKeyBuffer.putInt(pid);
 				oldKeyBuffer.putLong(oid);
 				oldKeyBuffer.putInt(-(rid - 1));
-				oldData = database.getKeyValueStore().get(eClass.getEPackage().getName() + "_" + eClass.getName(), oldKeyBuffer.array(), this);
+				oldData = database.getKeyValueStore().get(commitTableInfo.getTableName(), oldKeyBuffer.array(), this);
 			}
 			
-			for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
-				if (eStructuralFeature.getEAnnotation("singleindex") != null) {
-					String indexTableName = eClass.getEPackage().getName() + "_" + eClass.getName() + "_" + eStructuralFeature.getName();
-					if (perRecordVersioning && oldData != null) {
-						ByteBuffer oldValue = ByteBuffer.wrap(oldData);
-						
-						byte[] featureBytesOldIndex = extractFeatureBytes(this, oldValue, eClass, eStructuralFeature);
-						
-						if (!perRecordVersioning) {
-							ByteBuffer oldFeatureBuffer = ByteBuffer.allocate(featureBytesOldIndex.length + 8);
-							oldFeatureBuffer.putInt(pid);
-							oldFeatureBuffer.putInt(-(rid - 1));
-							oldFeatureBuffer.put(featureBytesOldIndex);
-							featureBytesOldIndex = oldFeatureBuffer.array();
-						}
-						
-						database.getKeyValueStore().delete(indexTableName, featureBytesOldIndex, oldKeyBuffer.array(), this);
-					}
+			EStructuralFeature[] indexFeatures = commitTableInfo.getIndexFeatures();
+			String[] indexTableNames = commitTableInfo.getIndexTableNames();
+			for (int i = 0; i < indexFeatures.length; i++) {
+				EStructuralFeature eStructuralFeature = indexFeatures[i];
+				String indexTableName = indexTableNames[i];
+				if (perRecordVersioning && oldData != null) {
+					ByteBuffer oldValue = ByteBuffer.wrap(oldData);
 					
-					byte[] featureBytes = extractFeatureBytes(this, valueBuffer, eClass, eStructuralFeature);
-					if (featureBytes != null) {
-						if (!perRecordVersioning) {
-							ByteBuffer featureBuffer = ByteBuffer.allocate(featureBytes.length + 8);
-							featureBuffer.putInt(pid);
-							featureBuffer.putInt(-rid);
-							featureBuffer.put(featureBytes);
-							featureBytes = featureBuffer.array();
-						}
-						database.getKeyValueStore().store(indexTableName, featureBytes, keyBuffer.array(), this);
+					byte[] featureBytesOldIndex = extractFeatureBytes(this, oldValue, eClass, eStructuralFeature);
+					
+					database.getKeyValueStore().delete(indexTableName, featureBytesOldIndex, oldKeyBuffer.array(), this);
+				}
+				
+				byte[] featureBytes = extractFeatureBytes(this, valueBuffer, eClass, eStructuralFeature);
+				if (featureBytes != null) {
+					if (!perRecordVersioning) {
+						ByteBuffer featureBuffer = ByteBuffer.allocate(featureBytes.length + 8);
+						featureBuffer.putInt(pid);
+						featureBuffer.putInt(-rid);
+						featureBuffer.put(featureBytes);
+						featureBytes = featureBuffer.array();
 					}
+					database.getKeyValueStore().store(indexTableName, featureBytes, keyBuffer.array(), this);
 				}
 			}
 		}
@@ -363,10 +362,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 
 			objectCache.put(oid, idEObject);
 			
-			int unsettedLength = model.getPackageMetaData().getUnsettedLength(eClass);
-			
-			byte[] unsetted = new byte[unsettedLength];
-			buffer.get(unsetted);
+			byte[] unsetted = database.getRecordLayouts().readUnsetted(eClass, model.getPackageMetaData(), buffer);
 			int fieldCounter = 0;
 			
 			((IdEObjectImpl) idEObject).setUuid(new UUID(buffer.getLong(), buffer.getLong()));
@@ -581,11 +577,15 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		if (object.getUuid() == null) {
 			throw new BimserverDatabaseException("UUID is required " + object.eClass().getName());
 		}
-		int bufferSize = getExactSize(object, packageMetaData, true);
+		short layoutVersion = database.getRecordLayouts().getCurrentVersion(object.eClass());
+		int bufferSize = getExactSize(object, packageMetaData, true) + (layoutVersion == 0 ? 0 : RecordLayout.HEADER_SIZE);
 		if (bufferSize > buffer.capacity()) {
 			LOGGER.debug("Buffer too small (" + bufferSize + ")");
 			buffer = ByteBuffer.allocate(bufferSize);
 		}
+		if (layoutVersion != 0) {
+			buffer.putShort(layoutVersion);
+		}
 		int unsettedLength = packageMetaData.getUnsettedLength(object.eClass());
 		
 		byte[] unsetted = new byte[unsettedLength];
@@ -1046,20 +1046,37 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		return database.getCidOfEClass(eClass);
 	}
 
+	public QueryPlanCache getQueryPlanCache() {
+		return database.getQueryPlanCache();
+	}
+
+	/**
+	 * @return The sealed snapshot of the given project id/concrete revision id, or null when it has not been sealed
+	 */
+	public SealedRevision getSealedRevision(int pid, int rid) {
+		if (database.getSealedRevisionStore() == null) {
+			return null;
+		}
+		return database.getSealedRevisionStore().get(pid, rid);
+	}
+
+	public RecordLayouts getRecordLayouts() {
+		return database.getRecordLayouts();
+	}
+
 	public List<String> getClassList() {
 		return database.getAvailableClasses();
 	}
 
 	public int getCount(EClass eClass, IfcModelInterface model, int pid, int rid) throws BimserverDatabaseException {
-		// TODO, only need to fetch the first byte of the value to be able to do the null-check, needs change in keyvaluestore layer
 		checkOpen();
 		int count = 0;
+		// Only the first two bytes of the values are read, that is enough to tell deleted objects apart
 		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(),
-				BinUtils.intToByteArray(pid), BinUtils.intToByteArray(pid), this);
+				BinUtils.intToByteArray(pid), BinUtils.intToByteArray(pid), this, 0, 2);
 		try {
 			Record record = recordIterator.next();
 			ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
-			byte[] nullReference = new byte[] { -1 };
 			while (record != null) {
 				reads++;
 				ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
@@ -1068,7 +1085,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 				int keyRid = -keyBuffer.getInt();
 				int map = getCount(model, pid, rid, keyPid, keyRid);
 				if (map == 1) {
-					if (!Arrays.equals(record.getValue(), nullReference)) {
+					byte[] value = record.getValue();
+					if (value.length != 1 || value[0] != -1) {
 						count++;
 					}
 					nextKeyStart.position(0);
@@ -1188,7 +1206,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		STOP, CONTINUE_WITH_NEXT_RECORD, CONTINUE_WITH_NEXT_OID,
 	}
 
-	private GetResult getMap(EClass originalQueryClass, EClass eClass, IfcModelInterface model, ByteBuffer buffer, int keyPid, long keyOid, int keyRid, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
+	private GetResult getMap(EClass originalQueryClass, EClass eClass, IfcModelInterface model, Record record, int keyPid, long keyOid, int keyRid, QueryInterface query, TodoList todoList) throws BimserverDatabaseException {
 		checkOpen();
 		if (keyPid == query.getPid()) {
 			if (keyRid <= query.getRid() && keyRid >= query.getStopRid()) {
@@ -1207,6 +1225,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 					if (model.contains(keyOid) && ((IdEObjectImpl)model.get(keyOid)).getLoadingState() == State.LOADED) {
 						object = model.get(keyOid);
 					} else {
+						ByteBuffer buffer = ByteBuffer.wrap(record.getValue());
 						if (buffer.capacity() == 1 && buffer.get(0) == -1) {
 							buffer.position(buffer.position() + 1);
 							return GetResult.CONTINUE_WITH_NEXT_OID;
@@ -1241,10 +1260,10 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(query.getPid());
 			tmp.putLong(startOid + 1);
-			recordIterator = database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), tmp.array(), this);
+			recordIterator = database.getKeyValueStore().getLazyRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), tmp.array(), this);
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			recordIterator = database.getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), BinUtils.intToByteArray(query.getPid()), this);
+			recordIterator = database.getKeyValueStore().getLazyRecordIterator(tableName, BinUtils.intToByteArray(query.getPid()), BinUtils.intToByteArray(query.getPid()), this);
 		}
 		try {
 			Record record = recordIterator.next();
@@ -1258,8 +1277,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 				int keyPid = keyBuffer.getInt();
 				long keyOid = keyBuffer.getLong();
 				int keyRid = -keyBuffer.getInt();
-				ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-				GetResult map = getMap(eClass, eClass, ifcModel, valueBuffer, keyPid, keyOid, keyRid, query, todoList);
+				GetResult map = getMap(eClass, eClass, ifcModel, record, keyPid, keyOid, keyRid, query, todoList);
 				if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 					nextKeyStart.position(0);
 					nextKeyStart.putInt(query.getPid());
@@ -1314,7 +1332,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		TodoList todoList = new TodoList();
 		ByteBuffer mustStartWith = createKeyBuffer(query.getPid(), oid);
 		ByteBuffer key = createKeyBuffer(query.getPid(), oid, -query.getStopRid());
-		SearchingRecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+		SearchingRecordIterator recordIterator = database.getKeyValueStore().getLazyRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
 				key.array(), this);
 		checkOpen();
 		try {
@@ -1326,8 +1344,7 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 				int keyPid = keyBuffer.getInt();
 				long keyOid = keyBuffer.getLong();
 				int keyRid = -keyBuffer.getInt();
-				ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-				GetResult map = getMap(eClass, eClass, model, valueBuffer, keyPid, keyOid, keyRid, query, todoList);
+				GetResult map = getMap(eClass, eClass, model, record, keyPid, keyOid, keyRid, query, todoList);
 				if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 					nextKeyStart.position(0);
 					nextKeyStart.putInt(query.getPid());
@@ -1386,7 +1403,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	public ObjectIdentifier getOidOfGuid(String schema, String guid, int pid, int rid) throws BimserverDatabaseException {
 		PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(schema);
 		for (EClass eClass : packageMetaData.getAllSubClasses(packageMetaData.getEClass("IfcRoot"))) {
-			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
+			// Only the values of records of the requested revision are read
+			RecordIterator recordIterator = database.getKeyValueStore().getLazyRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
 					BinUtils.intToByteArray(pid), this);
 			try {
 				Record record = recordIterator.next();
@@ -1400,7 +1418,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 						ByteBuffer value = ByteBuffer.wrap(record.getValue());
 
 						// Skip the unsettable part
-						value.position(value.position() + packageMetaData.getUnsettedLength(eClass) + 16); // 16 is the UUID
+						database.getRecordLayouts().readUnsetted(eClass, packageMetaData, value);
+						value.position(value.position() + 16); // 16 is the UUID
 
 						if (value.capacity() > 1) {
 							int stringLength = value.getInt();
@@ -1425,8 +1444,10 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 
 	public Set<ObjectIdentifier> getOidsOfName(String schema, String name, int pid, int rid) throws BimserverDatabaseException, MetaDataException {
 		Set<ObjectIdentifier> result = new HashSet<ObjectIdentifier>();
-		for (EClass eClass : getMetaDataManager().getPackageMetaData(schema).getAllSubClasses(getMetaDataManager().getPackageMetaData(schema).getEClass("IfcRoot"))) {
-			RecordIterator recordIterator = database.getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
+		PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(schema);
+		for (EClass eClass : packageMetaData.getAllSubClasses(packageMetaData.getEClass("IfcRoot"))) {
+			// Only the values of records of the requested revision are read
+			RecordIterator recordIterator = database.getKeyValueStore().getLazyRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), BinUtils.intToByteArray(pid),
 					BinUtils.intToByteArray(pid), this);
 			try {
 				Record record = recordIterator.next();
@@ -1438,28 +1459,9 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 					int ridOfRecord = -buffer.getInt();
 					if (ridOfRecord == rid && pid == pidOfRecord) {
 						ByteBuffer value = ByteBuffer.wrap(record.getValue());
-
-						// Skip the unsettable part
-						byte unsettablesSize = value.get();
-						value.position(value.position() + unsettablesSize);
-
-						if (value.capacity() > 1) {
-							int stringLength = value.getInt();
-							if (stringLength == -1) {
-								return null;
-							} else {
-								BinUtils.readString(value, stringLength); // GUID
-								if (value.getShort() != -1) { // CID of OwnerHistory
-									value.getLong(); // OID of OwnerHistory
-								}
-								stringLength = value.getInt();
-								if (stringLength != -1) {
-									String foundName = BinUtils.readString(value, stringLength);
-									if (name.equals(foundName)) {
-										result.add(new ObjectIdentifier(oid, getCid(eClass)));
-									}
-								}
-							}
+						// Deleted records are only a marker
+						if (value.capacity() > 1 && name.equals(readName(eClass, packageMetaData, value))) {
+							result.add(new ObjectIdentifier(oid, getCid(eClass)));
 						}
 					}
 					record = recordIterator.next();
@@ -1471,6 +1473,32 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		return result;
 	}
 
+	/**
+	 * @return The Name of the given IfcRoot record, or null when it is not set
+	 */
+	private String readName(EClass eClass, PackageMetaData packageMetaData, ByteBuffer value) throws BimserverDatabaseException {
+		byte[] unsetted = database.getRecordLayouts().readUnsetted(eClass, packageMetaData, value);
+		value.position(value.position() + 16); // UUID
+		int fieldCounter = 0;
+		for (EStructuralFeature feature : eClass.getEAllStructuralFeatures()) {
+			if (packageMetaData.useForDatabaseStorage(eClass, feature)) {
+				boolean isUnsetted = (unsetted[fieldCounter / 8] & (1 << (fieldCounter % 8))) != 0;
+				if (feature.getName().equals("Name")) {
+					if (isUnsetted) {
+						return null;
+					}
+					int stringLength = value.getInt();
+					return stringLength == -1 ? null : BinUtils.readString(value, stringLength);
+				}
+				if (!isUnsetted) {
+					fakeRead(value, feature);
+				}
+				fieldCounter++;
+			}
+		}
+		return null;
+	}
+
 	private int getPrimitiveSize(EDataType eDataType, Object val) {
 		if (eDataType == EcorePackage.eINSTANCE.getEInt() || eDataType == EcorePackage.eINSTANCE.getEIntegerObject()) {
 			return 4;
@@ -1808,6 +1836,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			buffer.position(buffer.position() + 4);
 		} else if (classifier == EcorePackage.eINSTANCE.getEDouble() || classifier == EcorePackage.eINSTANCE.getEDoubleObject()) {
 			buffer.position(buffer.position() + 8);
+		} else if (classifier == EcorePackage.eINSTANCE.getEShort() || classifier == EcorePackage.eINSTANCE.getEShortObject()) {
+			buffer.position(buffer.position() + 2);
 		} else if (classifier == EcorePackage.eINSTANCE.getEBoolean() || classifier == EcorePackage.eINSTANCE.getEBooleanObject()) {
 			buffer.position(buffer.position() + 1);
 		} else if (classifier == EcorePackage.eINSTANCE.getEDate()) {
@@ -2271,17 +2301,8 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 			PackageMetaData packageMetaData = getMetaDataManager().getPackageMetaData(eClass.getEPackage().getName());
 			buffer.position(0);
 			
+			byte[] unsetted = database.getRecordLayouts().readUnsetted(eClass, packageMetaData, buffer);
 			int fieldCounter = 0;
-			for (EStructuralFeature feature : eClass.getEAllStructuralFeatures()) {
-				if (packageMetaData.useForDatabaseStorage(eClass, feature)) {
-					fieldCounter++;
-				}
-			}
-			
-			int unsettedLength = (int) Math.ceil(fieldCounter / 8.0);
-			byte[] unsetted = new byte[unsettedLength];
-			buffer.get(unsetted);
-			fieldCounter = 0;
 			
 			buffer.position(buffer.position() + 16); // UUID
 			
@@ -2317,12 +2338,13 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	}
 	
 	public int save(VirtualObject object, int newRid) throws BimserverLockConflictException, BimserverConcurrentModificationDatabaseException, BimserverDatabaseException {
-		ByteBuffer valueBuffer = object.write();
 		EClass eClass = object.eClass();
+		ByteBuffer valueBuffer = addLayoutVersion(eClass, object.write());
 		ByteBuffer keyBuffer = createKeyBuffer(object.getPid(), object.getOid(), newRid);
-		database.getKeyValueStore().storeNoOverwrite(eClass.getEPackage().getName() + "_" + eClass.getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), this);
+		CommitTableInfo commitTableInfo = database.getCommitTableInfo(eClass);
+		database.getKeyValueStore().storeNoOverwrite(commitTableInfo.getTableName(), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), this);
 		
-		processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), object.eClass(), valueBuffer);
+		processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), commitTableInfo, valueBuffer);
 		
 		if (bimTransaction != null) {
 			bimTransaction.incUpdates(1);
@@ -2333,12 +2355,13 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 	
 	@Override
 	public int saveOverwrite(VirtualObject object) throws BimserverLockConflictException, BimserverConcurrentModificationDatabaseException, BimserverDatabaseException {
-		ByteBuffer valueBuffer = object.write();
 		EClass eClass = object.eClass();
+		ByteBuffer valueBuffer = addLayoutVersion(eClass, object.write());
 		ByteBuffer keyBuffer = createKeyBuffer(object.getPid(), object.getOid(), object.getRid());
-		database.getKeyValueStore().store(eClass.getEPackage().getName() + "_" + eClass.getName(), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), this);
+		CommitTableInfo commitTableInfo = database.getCommitTableInfo(eClass);
+		database.getKeyValueStore().store(commitTableInfo.getTableName(), keyBuffer.array(), valueBuffer.array(), 0, valueBuffer.position(), this);
 
-		processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), object.eClass(), valueBuffer);
+		processPossibleIndices(keyBuffer, object.getPid(), object.getRid(), object.getOid(), commitTableInfo, valueBuffer);
 
 		database.incrementCommittedWrites(1);
 		if (bimTransaction != null) {
@@ -2348,6 +2371,20 @@ public class DatabaseSession implements LazyLoader, OidProvider, DatabaseInterfa
 		return valueBuffer.position();
 	}
 
+	/**
+	 * Virtual objects write the current layout of their class, records of versioned tables also need the version of that layout
+	 */
+	private ByteBuffer addLayoutVersion(EClass eClass, ByteBuffer valueBuffer) {
+		short layoutVersion = database.getRecordLayouts().getCurrentVersion(eClass);
+		if (layoutVersion == 0) {
+			return valueBuffer;
+		}
+		ByteBuffer result = ByteBuffer.allocate(RecordLayout.HEADER_SIZE + valueBuffer.position());
+		result.putShort(layoutVersion);
+		result.put(valueBuffer.array(), 0, valueBuffer.position());
+		return result;
+	}
+
 	public KeyValueStore getKeyValueStore() {
 		return database.getKeyValueStore();
 	}
@@ -46,6 +46,11 @@ public interface KeyValueStore {
 
 	void sync();
 
+	/**
+	 * Same guarantee as sync, but concurrent callers may share a single sync. Unlike sync a failing sync is thrown, only to the caller that did the sync, callers that were waiting for it do a sync of their own
+	 */
+	void groupSync() throws BimserverDatabaseException;
+
 	void close();
 
 	boolean isNew();
@@ -89,4 +94,14 @@ public interface KeyValueStore {
 	boolean isTransactional(DatabaseSession databaseSession, String tableName) throws BimserverDatabaseException;
 
 	SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly) throws BimserverLockConflictException, BimserverDatabaseException;
+
+	/**
+	 * Iterates records of which only valueLength bytes of the value (starting at valueOffset) are read. Values that are shorter are returned as far as they go.
+	 */
+	SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, int valueOffset, int valueLength) throws BimserverLockConflictException, BimserverDatabaseException;
+
+	/**
+	 * Iterates keys only, the value of a record is read when {@link Record#getValue()} is called, which has to happen before the iterator is moved to the next record.
+	 */
+	SearchingRecordIterator getLazyRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException;
 }
\ No newline at end of file
@@ -17,7 +17,10 @@ package org.bimserver.database;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 
 import org.bimserver.emf.IdEObject;
 import org.bimserver.models.ifc2x3tc1.Ifc2x3tc1Package;
@@ -28,6 +31,19 @@ import com.google.common.collect.HashBiMap;
 import com.google.common.collect.Iterators;
 
 public class ObjectsToCommit implements Iterable<IdEObject> {
+	private static final Comparator<IdEObject> KEY_ORDER = (a, b) -> {
+		if (a.eClass() != b.eClass()) {
+			int packageCompare = a.eClass().getEPackage().getName().compareTo(b.eClass().getEPackage().getName());
+			if (packageCompare != 0) {
+				return packageCompare;
+			}
+			int classCompare = a.eClass().getName().compareTo(b.eClass().getName());
+			if (classCompare != 0) {
+				return classCompare;
+			}
+		}
+		return RecordIdentifierPlusType.compareKeys(a.getPid(), a.getOid(), a.getRid(), b.getPid(), b.getOid(), b.getRid());
+	};
 	private final BiMap<IdEObject, Long> objectsToCommitFirst = HashBiMap.create();
 	private final BiMap<IdEObject, Long> objectsToCommitSecond = HashBiMap.create();
 
@@ -68,6 +84,18 @@ public class ObjectsToCommit implements Iterable<IdEObject> {
 		return Iterators.concat(objectsToCommitFirst.keySet().iterator(), objectsToCommitSecond.keySet().iterator());
 	}
 
+	/**
+	 * @return The objects in the same order as iterator() (IFC objects first), but within each group ordered by table and key, so they can be written with as little B-tree jumping as possible
+	 */
+	public List<IdEObject> sortedByKey() {
+		List<IdEObject> result = new ArrayList<>(size());
+		result.addAll(objectsToCommitFirst.keySet());
+		result.sort(KEY_ORDER);
+		result.addAll(objectsToCommitSecond.keySet());
+		result.subList(objectsToCommitFirst.size(), result.size()).sort(KEY_ORDER);
+		return result;
+	}
+
 	public void clear() {
 		objectsToCommitFirst.clear();
 		objectsToCommitSecond.clear();
@@ -17,8 +17,10 @@ package org.bimserver.database;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.bimserver.emf.IdEObject;
@@ -42,6 +44,21 @@ public class ObjectsToDelete implements Iterable<RecordIdentifierPlusType> {
 		return set.iterator();
 	}
 
+	/**
+	 * @return The records ordered by table and key, so they can be written with as little B-tree jumping as possible
+	 */
+	public List<RecordIdentifierPlusType> sortedByKey() {
+		List<RecordIdentifierPlusType> result = new ArrayList<>(set);
+		result.sort((a, b) -> {
+			int tableCompare = a.getTableName().compareTo(b.getTableName());
+			if (tableCompare != 0) {
+				return tableCompare;
+			}
+			return RecordIdentifierPlusType.compareKeys(a.getPid(), a.getOid(), a.getRid(), b.getPid(), b.getOid(), b.getRid());
+		});
+		return result;
+	}
+
 	public void clear() {
 		set.clear();
 	}
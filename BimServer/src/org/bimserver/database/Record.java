@@ -17,8 +17,17 @@ package org.bimserver.database;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.nio.ByteBuffer;
+
 public interface Record {
 
 	byte[] getKey();
 	byte[] getValue();
+	
+	/**
+	 * @return The value wrapped in a buffer, records that are not backed by a byte[] can return it without copying
+	 */
+	default ByteBuffer getValueBuffer() {
+		return ByteBuffer.wrap(getValue());
+	}
 }
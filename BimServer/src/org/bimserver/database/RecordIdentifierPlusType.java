@@ -25,10 +25,12 @@ public class RecordIdentifierPlusType {
 	private final int pid;
 	private final long oid;
 	private final int rid;
+	private final String tableName;
 
 	public RecordIdentifierPlusType(EClass eClass, int pid, long oid, int rid) {
 		this.packageName = eClass.getEPackage().getName();
 		this.className = eClass.getName();
+		this.tableName = packageName + "_" + className;
 		this.pid = pid;
 		this.oid = oid;
 		this.rid = rid;
@@ -42,6 +44,10 @@ public class RecordIdentifierPlusType {
 		return packageName;
 	}
 	
+	public String getTableName() {
+		return tableName;
+	}
+	
 	public long getOid() {
 		return oid;
 	}
@@ -54,6 +60,21 @@ public class RecordIdentifierPlusType {
 		return rid;
 	}
 
+	/**
+	 * Compares two records in the order their keys (pid, oid, -rid) are stored in a table
+	 */
+	static int compareKeys(int pid1, long oid1, int rid1, int pid2, long oid2, int rid2) {
+		int result = Integer.compare(pid1, pid2);
+		if (result != 0) {
+			return result;
+		}
+		result = Long.compare(oid1, oid2);
+		if (result != 0) {
+			return result;
+		}
+		return Integer.compareUnsigned(-rid1, -rid2);
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,142 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * One version of the layout of the records of a table: the names of the stored features, in the order they are stored.
+ * 
+ * Layouts only ever get features added, features that are not part of an older layout have no value in the records of that layout. Those records can be read
+ * with the current layout after translating their unset bitmap, the features that are missing are marked as unset.
+ */
+public class RecordLayout {
+	/**
+	 * Size of the version that precedes the records of versioned tables
+	 */
+	public static final int HEADER_SIZE = 2;
+
+	private final short version;
+	private final List<String> featureNames;
+	private final int unsettedLength;
+	private final int[] currentIndices;
+	private final byte[] missingUnsetted;
+
+	/**
+	 * Creates the current layout, records of this layout are read as they are
+	 */
+	RecordLayout(short version, List<String> featureNames) {
+		this.version = version;
+		this.featureNames = featureNames;
+		this.unsettedLength = getUnsettedLength(featureNames.size());
+		this.currentIndices = null;
+		this.missingUnsetted = null;
+	}
+
+	/**
+	 * Creates an older layout that is read by translating it to the current layout
+	 */
+	RecordLayout(short version, List<String> featureNames, RecordLayout current) throws BimserverDatabaseException {
+		this.version = version;
+		this.featureNames = featureNames;
+		this.unsettedLength = getUnsettedLength(featureNames.size());
+		if (!current.canRead(featureNames)) {
+			throw new BimserverDatabaseException("Record layout " + version + " " + featureNames + " cannot be read as " + current.featureNames);
+		}
+		this.currentIndices = new int[featureNames.size()];
+		this.missingUnsetted = new byte[current.unsettedLength];
+		int index = 0;
+		for (int i = 0; i < current.featureNames.size(); i++) {
+			if (index < featureNames.size() && featureNames.get(index).equals(current.featureNames.get(i))) {
+				currentIndices[index++] = i;
+			} else {
+				missingUnsetted[i / 8] |= (1 << (i % 8));
+			}
+		}
+	}
+
+	/**
+	 * @return Whether records of the given (older) layout can be read with this layout, which is the case when this layout contains all of its features in the same order
+	 */
+	public boolean canRead(List<String> olderFeatureNames) {
+		int index = 0;
+		for (String featureName : featureNames) {
+			if (index < olderFeatureNames.size() && olderFeatureNames.get(index).equals(featureName)) {
+				index++;
+			}
+		}
+		return index == olderFeatureNames.size();
+	}
+
+	public short getVersion() {
+		return version;
+	}
+
+	public List<String> getFeatureNames() {
+		return featureNames;
+	}
+
+	public int getUnsettedLength() {
+		return unsettedLength;
+	}
+
+	public boolean isCurrent() {
+		return currentIndices == null;
+	}
+
+	/**
+	 * Reads the unset bitmap of a record of this layout, the returned bitmap is always in the current layout
+	 */
+	public byte[] readUnsetted(ByteBuffer buffer) {
+		byte[] unsetted = new byte[unsettedLength];
+		buffer.get(unsetted);
+		if (currentIndices == null) {
+			return unsetted;
+		}
+		byte[] result = Arrays.copyOf(missingUnsetted, missingUnsetted.length);
+		for (int i = 0; i < currentIndices.length; i++) {
+			if ((unsetted[i / 8] & (1 << (i % 8))) != 0) {
+				int currentIndex = currentIndices[i];
+				result[currentIndex / 8] |= (1 << (currentIndex % 8));
+			}
+		}
+		return result;
+	}
+
+	public static List<String> getStoredFeatureNames(EClass eClass, PackageMetaData packageMetaData) {
+		List<String> featureNames = new ArrayList<>();
+		for (EStructuralFeature eStructuralFeature : eClass.getEAllStructuralFeatures()) {
+			if (packageMetaData.useForDatabaseStorage(eClass, eStructuralFeature)) {
+				featureNames.add(eStructuralFeature.getName());
+			}
+		}
+		return featureNames;
+	}
+
+	private static int getUnsettedLength(int nrFeatures) {
+		return (nrFeatures + 7) / 8;
+	}
+}
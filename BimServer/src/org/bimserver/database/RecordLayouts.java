@@ -0,0 +1,216 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Keeps track of the record layouts of the tables. The records of versioned tables start with the version of their layout, when a schema change adds features to
+ * a class, only a new layout is registered and older records are translated when they are read (see {@link RecordLayout}). The RecordLayoutMigrator can
+ * rewrite the older records in the background.
+ * 
+ * Tables of databases created before layouts were versioned have no version in their records, they are converted the first time a migration rewrites them.
+ */
+public class RecordLayouts {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RecordLayouts.class);
+	private static final String REGISTRY_PREFIX = "recordlayouts_";
+	private static final RecordLayout[] UNVERSIONED = new RecordLayout[0];
+	private final Database database;
+	private final Map<EClass, RecordLayout[]> layouts = new ConcurrentHashMap<>();
+
+	public RecordLayouts(Database database) {
+		this.database = database;
+	}
+
+	/**
+	 * Loads the layouts of an existing table. When the current code stores the class differently than the newest layout, a new layout is added
+	 */
+	public void load(EClass eClass, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		String tableName = database.getTableName(eClass);
+		byte[] bytes = database.getRegistry().readByteArray(REGISTRY_PREFIX + tableName, databaseSession);
+		if (bytes == null) {
+			layouts.put(eClass, UNVERSIONED);
+			return;
+		}
+		List<List<String>> history = new ArrayList<>();
+		for (String line : new String(bytes, Charsets.UTF_8).split("\n", -1)) {
+			history.add(line.isEmpty() ? new ArrayList<>() : Arrays.asList(line.split(",")));
+		}
+		if (addCurrentLayout(eClass, history)) {
+			LOGGER.info("Record layout of " + tableName + " changed, records of older layouts will be upgraded when read");
+			save(tableName, history, databaseSession);
+		}
+		layouts.put(eClass, build(history));
+	}
+
+	/**
+	 * Makes a new (empty) table versioned, called when a table is created
+	 */
+	public void create(EClass eClass, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		EClass currentEClass = getCurrentEClass(eClass);
+		if (currentEClass == null) {
+			// The class does not exist anymore in the current code, the table will be converted when it is needed
+			return;
+		}
+		List<List<String>> history = new ArrayList<>();
+		addCurrentLayout(currentEClass, history);
+		save(database.getTableName(currentEClass), history, databaseSession);
+		layouts.put(currentEClass, build(history));
+	}
+
+	/**
+	 * Makes a table versioned whose records have just been rewritten with version 1 of the layout
+	 * 
+	 * @param featureNames The stored features of the rewritten records, the code running the migration might store the class with more features
+	 */
+	public void convert(EClass eClass, List<String> featureNames, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		EClass currentEClass = getCurrentEClass(eClass);
+		List<List<String>> history = new ArrayList<>();
+		history.add(featureNames);
+		addCurrentLayout(currentEClass, history);
+		save(database.getTableName(currentEClass), history, databaseSession);
+		layouts.put(currentEClass, build(history));
+	}
+
+	/**
+	 * @return Whether a table that has been rewritten with the given stored features could be converted, the current layout has to be able to read those records
+	 */
+	public boolean canConvert(EClass eClass, List<String> featureNames) {
+		EClass currentEClass = getCurrentEClass(eClass);
+		if (currentEClass == null) {
+			return false;
+		}
+		return new RecordLayout((short) 1, getCurrentFeatureNames(currentEClass)).canRead(featureNames);
+	}
+
+	public boolean isVersioned(EClass eClass) {
+		return getLayouts(eClass).length > 0;
+	}
+
+	public Set<EClass> getClasses() {
+		return layouts.keySet();
+	}
+
+	/**
+	 * @return The version records of this class are written with, 0 when the records of this class have no version
+	 */
+	public short getCurrentVersion(EClass eClass) {
+		RecordLayout[] classLayouts = getLayouts(eClass);
+		return (short) classLayouts.length;
+	}
+
+	public RecordLayout getCurrentLayout(EClass eClass) {
+		RecordLayout[] classLayouts = getLayouts(eClass);
+		return classLayouts.length == 0 ? null : classLayouts[classLayouts.length - 1];
+	}
+
+	public RecordLayout getLayout(EClass eClass, short version) throws BimserverDatabaseException {
+		RecordLayout[] classLayouts = getLayouts(eClass);
+		if (version < 1 || version > classLayouts.length) {
+			throw new BimserverDatabaseException("Unknown record layout " + version + " for " + eClass.getName());
+		}
+		return classLayouts[version - 1];
+	}
+
+	/**
+	 * Reads the layout version (for versioned tables) and the unset bitmap of a record, the buffer is left positioned at the UUID. The returned bitmap is always in
+	 * the current layout of the class
+	 */
+	public byte[] readUnsetted(EClass eClass, PackageMetaData packageMetaData, ByteBuffer buffer) throws BimserverDatabaseException {
+		RecordLayout[] classLayouts = getLayouts(eClass);
+		if (classLayouts.length == 0) {
+			byte[] unsetted = new byte[packageMetaData.getUnsettedLength(eClass)];
+			buffer.get(unsetted);
+			return unsetted;
+		}
+		short version = buffer.getShort();
+		if (version < 1 || version > classLayouts.length) {
+			throw new BimserverDatabaseException("Unknown record layout " + version + " for " + eClass.getName());
+		}
+		return classLayouts[version - 1].readUnsetted(buffer);
+	}
+
+	private RecordLayout[] getLayouts(EClass eClass) {
+		RecordLayout[] classLayouts = layouts.get(eClass);
+		if (classLayouts == null) {
+			// Migrations work with their own EClass instances
+			EClass currentEClass = getCurrentEClass(eClass);
+			if (currentEClass != null && currentEClass != eClass) {
+				classLayouts = layouts.get(currentEClass);
+			}
+		}
+		return classLayouts == null ? UNVERSIONED : classLayouts;
+	}
+
+	private EClass getCurrentEClass(EClass eClass) {
+		try {
+			return database.getEClass(eClass.getEPackage().getName(), eClass.getName());
+		} catch (BimserverDatabaseException e) {
+			return null;
+		}
+	}
+
+	private List<String> getCurrentFeatureNames(EClass eClass) {
+		return RecordLayout.getStoredFeatureNames(eClass, database.getMetaDataManager().getPackageMetaData(eClass.getEPackage().getName()));
+	}
+
+	private boolean addCurrentLayout(EClass eClass, List<List<String>> history) {
+		List<String> current = getCurrentFeatureNames(eClass);
+		if (history.isEmpty() || !history.get(history.size() - 1).equals(current)) {
+			history.add(current);
+			return true;
+		}
+		return false;
+	}
+
+	private RecordLayout[] build(List<List<String>> history) throws BimserverDatabaseException {
+		RecordLayout[] result = new RecordLayout[history.size()];
+		RecordLayout current = new RecordLayout((short) history.size(), history.get(history.size() - 1));
+		result[result.length - 1] = current;
+		for (int i = 0; i < result.length - 1; i++) {
+			result[i] = new RecordLayout((short) (i + 1), history.get(i), current);
+		}
+		return result;
+	}
+
+	private void save(String tableName, List<List<String>> history, DatabaseSession databaseSession) throws BimserverDatabaseException {
+		if (history.size() > Short.MAX_VALUE) {
+			throw new BimserverDatabaseException("Too many record layouts for " + tableName);
+		}
+		List<String> lines = new ArrayList<>();
+		for (List<String> featureNames : history) {
+			lines.add(Joiner.on(",").join(featureNames));
+		}
+		database.getRegistry().save(REGISTRY_PREFIX + tableName, Joiner.on("\n").join(lines).getBytes(Charsets.UTF_8), databaseSession);
+	}
+}
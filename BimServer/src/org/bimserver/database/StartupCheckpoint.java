@@ -0,0 +1,139 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The oid counters and table catalog of a database, written after the key value store has been closed cleanly. With a valid checkpoint the counters do not
+ * have to be recovered by seeking to the last record of every table.
+ * 
+ * The file is deleted as soon as it has been read, after a crash there is no checkpoint and the counters are recovered by scanning again.
+ */
+public class StartupCheckpoint {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StartupCheckpoint.class);
+	private static final int MAGIC = 0x42534350;
+	private static final int VERSION = 1;
+	private final UUID databaseUuid;
+	private final int pidCounter;
+	private final Map<String, Long> oidCounters;
+
+	public StartupCheckpoint(UUID databaseUuid, int pidCounter, Map<String, Long> oidCounters) {
+		this.databaseUuid = databaseUuid;
+		this.pidCounter = pidCounter;
+		this.oidCounters = oidCounters;
+	}
+
+	public UUID getDatabaseUuid() {
+		return databaseUuid;
+	}
+
+	public int getPidCounter() {
+		return pidCounter;
+	}
+
+	/**
+	 * @return The oid counters by table name, the key set is the table catalog at the time of writing
+	 */
+	public Map<String, Long> getOidCounters() {
+		return oidCounters;
+	}
+
+	/**
+	 * Reads and deletes the checkpoint
+	 * 
+	 * @return The checkpoint, or null when there is none or it is not valid
+	 */
+	public static StartupCheckpoint readAndDelete(Path file) {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try {
+			try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file))) {
+				return read(inputStream);
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Startup checkpoint could not be read: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static StartupCheckpoint read(InputStream inputStream) throws IOException {
+		CheckedInputStream checkedInputStream = new CheckedInputStream(inputStream, new CRC32());
+		DataInputStream dataInputStream = new DataInputStream(checkedInputStream);
+		if (dataInputStream.readInt() != MAGIC || dataInputStream.readInt() != VERSION) {
+			throw new IOException("Not a startup checkpoint");
+		}
+		UUID databaseUuid = new UUID(dataInputStream.readLong(), dataInputStream.readLong());
+		int pidCounter = dataInputStream.readInt();
+		int nrTables = dataInputStream.readInt();
+		Map<String, Long> oidCounters = new LinkedHashMap<>();
+		for (int i = 0; i < nrTables; i++) {
+			oidCounters.put(dataInputStream.readUTF(), dataInputStream.readLong());
+		}
+		long checksum = checkedInputStream.getChecksum().getValue();
+		if (new DataInputStream(inputStream).readLong() != checksum) {
+			throw new IOException("Checksum mismatch");
+		}
+		return new StartupCheckpoint(databaseUuid, pidCounter, oidCounters);
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file first, so a partially written checkpoint is never read
+	 */
+	public void write(Path file) throws IOException {
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tmpFile))) {
+			CheckedOutputStream checkedOutputStream = new CheckedOutputStream(outputStream, new CRC32());
+			DataOutputStream dataOutputStream = new DataOutputStream(checkedOutputStream);
+			dataOutputStream.writeInt(MAGIC);
+			dataOutputStream.writeInt(VERSION);
+			dataOutputStream.writeLong(databaseUuid.getMostSignificantBits());
+			dataOutputStream.writeLong(databaseUuid.getLeastSignificantBits());
+			dataOutputStream.writeInt(pidCounter);
+			dataOutputStream.writeInt(oidCounters.size());
+			for (Map.Entry<String, Long> entry : oidCounters.entrySet()) {
+				dataOutputStream.writeUTF(entry.getKey());
+				dataOutputStream.writeLong(entry.getValue());
+			}
+			dataOutputStream.flush();
+			new DataOutputStream(outputStream).writeLong(checkedOutputStream.getChecksum().getValue());
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
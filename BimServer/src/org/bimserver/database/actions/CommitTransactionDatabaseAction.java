@@ -18,8 +18,13 @@ package org.bimserver.database.actions;
  *****************************************************************************/
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
@@ -36,17 +41,23 @@ import org.bimserver.database.OperationType;
 import org.bimserver.database.PostCommitAction;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.emf.PackageMetaData;
+import org.bimserver.geometry.AffectedProductsFinder;
 import org.bimserver.geometry.GeometryGenerationReport;
 import org.bimserver.geometry.StreamingGeometryGenerator;
 import org.bimserver.interfaces.SConverter;
 import org.bimserver.mail.MailSystem;
+import org.bimserver.models.geometry.Bounds;
+import org.bimserver.models.geometry.GeometryFactory;
+import org.bimserver.models.geometry.Vector3f;
 import org.bimserver.models.log.AccessMethod;
 import org.bimserver.models.log.NewRevisionAdded;
 import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Density;
 import org.bimserver.models.store.ExtendedData;
 import org.bimserver.models.store.ExtendedDataSchema;
 import org.bimserver.models.store.Project;
 import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.StoreFactory;
 import org.bimserver.models.store.User;
 import org.bimserver.notifications.NewRevisionNotification;
 import org.bimserver.shared.HashMapVirtualObject;
@@ -233,34 +244,27 @@ public class CommitTransactionDatabaseAction extends GenericCheckinDatabaseActio
 					
 					generateDensityAndBounds(result, generateGeometry, concreteRevision);
 	
-					final GeometryGenerationReport finalReport = report;
-					
-					getDatabaseSession().addPostCommitAction(new PostCommitAction() {
-						@Override
-						public void execute() throws UserException {
-							if (finalReport != null) {
-								byte[] htmlBytes = finalReport.toHtml().getBytes(Charsets.UTF_8);
-								byte[] jsonBytes = finalReport.toJson().toString().getBytes(Charsets.UTF_8);
-								try (DatabaseSession tmpSession = getBimServer().getDatabase().createSession(OperationType.POSSIBLY_WRITE)) {
-									AddGeometryReports addGeometryReports = new AddGeometryReports(tmpSession, AccessMethod.INTERNAL, htmlBytes, jsonBytes, finalReport.getTimeToGenerateMs(), authorization.getUoid(), revision.getOid());
-									try {
-										tmpSession.executeAndCommitAction(addGeometryReports);
-									} catch (ServerException e1) {
-										LOGGER.error("", e1);
-									}
-								} catch (BimserverDatabaseException e1) {
-									LOGGER.error("", e1);
-								}
-							}
-							getBimServer().getNotificationsManager().notify(new NewRevisionNotification(getBimServer(), project.getOid(), revision.getOid(), authorization));
-						}
-					});
+					addGeometryReport(report, project);
 				} catch (GeometryGeneratingException e) {
 					throw new UserException(e);
 				}
 				revision.setHasGeometry(true);
 			} else {
-				if (previousRevision != null) {
+				Set<Long> affectedProducts = null;
+				if (previousRevision != null && getBimServer().getConfig().isIncrementalGeometry()) {
+					setProgress("Finding changed products...", -1);
+					try {
+						List<HashMapVirtualObject> changed = new ArrayList<>(transaction.getCreated());
+						changed.addAll(transaction.getUpdated());
+						affectedProducts = new AffectedProductsFinder(getDatabaseSession(), getBimServer(), queryContext).find(changed, transaction.getDeleted());
+					} catch (QueryException | IOException e) {
+						throw new BimserverDatabaseException(e);
+					}
+				}
+				if (affectedProducts != null && !affectedProducts.isEmpty()) {
+					regenerateGeometry(result, project, concreteRevision, previousConcreteRevision, queryContext, affectedProducts, transaction.getDeleted());
+					revision.setHasGeometry(true);
+				} else if (previousRevision != null) {
 					byte[] htmlBytes = null;
 					byte[] jsonBytes = null;
 					long timeToGenerate = -1;
@@ -312,6 +316,108 @@ public class CommitTransactionDatabaseAction extends GenericCheckinDatabaseActio
 		return concreteRevision;
 	}
 
+	/**
+	 * Generates geometry for the given products only, the geometry of all other products is still visible from the previous concrete revision
+	 */
+	private void regenerateGeometry(CreateRevisionResult result, Project project, ConcreteRevision concreteRevision, ConcreteRevision previousConcreteRevision, QueryContext queryContext, Set<Long> affectedProducts, Collection<HashMapVirtualObject> deleted) throws BimserverDatabaseException, UserException {
+		setProgress("Generating Geometry...", -1);
+		EClass productClass = queryContext.getPackageMetaData().getEClass("IfcProduct");
+		Set<Long> removedProducts = new HashSet<>();
+		Set<Long> removedGeometryInfoOids = new HashSet<>();
+		for (HashMapVirtualObject object : deleted) {
+			if (productClass.isSuperTypeOf(object.eClass())) {
+				removedProducts.add(object.getOid());
+				Object geometryInfoOid = object.get("geometry");
+				if (geometryInfoOid instanceof Long) {
+					removedGeometryInfoOids.add((Long) geometryInfoOid);
+				}
+			}
+		}
+		try {
+			GeometryGenerationReport report = new GeometryGenerationReport();
+			
+			report.setOriginalDeserializer("No deserializer, low level call");
+			report.setOriginalIfcFileName("No file, low level call");
+			report.setOriginalIfcFileSize(-1);
+			
+			StreamingGeometryGenerator streamingGeometryGenerator = new StreamingGeometryGenerator(getBimServer(), null, -1L, report);
+			streamingGeometryGenerator.setChangedProducts(affectedProducts, removedProducts, previousConcreteRevision.getOid());
+			
+			GenerateGeometryResult generateGeometry = streamingGeometryGenerator.generateGeometry(authorization.getUoid(), getDatabaseSession(), queryContext, affectedProducts.size());
+			LOGGER.info("Regenerated geometry of " + affectedProducts.size() + " products, " + removedProducts.size() + " products removed");
+			
+			concreteRevision.setMultiplierToMm(generateGeometry.getMultiplierToMm());
+			// Removed products can only make the actual bounds smaller, so the union is conservative
+			concreteRevision.setBounds(union(previousConcreteRevision.getBounds(), generateGeometry.getBounds()));
+			concreteRevision.setBoundsUntransformed(union(previousConcreteRevision.getBoundsUntransformed(), generateGeometry.getBoundsUntransformed()));
+			
+			Set<Long> replacedGeometryInfoOids = streamingGeometryGenerator.getReplacedGeometryInfoOids();
+			List<Density> carriedDensities = new ArrayList<>();
+			if (previousConcreteRevision.getDensityCollection() != null) {
+				for (Density previousDensity : previousConcreteRevision.getDensityCollection().getDensities()) {
+					if (replacedGeometryInfoOids.contains(previousDensity.getGeometryInfoId()) || removedGeometryInfoOids.contains(previousDensity.getGeometryInfoId())) {
+						continue;
+					}
+					Density density = StoreFactory.eINSTANCE.createDensity();
+					density.setType(previousDensity.getType());
+					density.setDensity(previousDensity.getDensity());
+					density.setGeometryInfoId(previousDensity.getGeometryInfoId());
+					density.setTrianglesBelow(previousDensity.getTrianglesBelow());
+					density.setVolume(previousDensity.getVolume());
+					carriedDensities.add(density);
+				}
+			}
+			generateDensityAndBounds(result, generateGeometry, concreteRevision, carriedDensities);
+			
+			addGeometryReport(report, project);
+		} catch (GeometryGeneratingException e) {
+			throw new UserException(e);
+		}
+	}
+	
+	private Bounds union(Bounds a, Bounds b) {
+		if (a == null) {
+			return b;
+		} else if (b == null) {
+			return a;
+		}
+		Bounds bounds = GeometryFactory.eINSTANCE.createBounds();
+		Vector3f min = GeometryFactory.eINSTANCE.createVector3f();
+		min.setX(Math.min(a.getMin().getX(), b.getMin().getX()));
+		min.setY(Math.min(a.getMin().getY(), b.getMin().getY()));
+		min.setZ(Math.min(a.getMin().getZ(), b.getMin().getZ()));
+		Vector3f max = GeometryFactory.eINSTANCE.createVector3f();
+		max.setX(Math.max(a.getMax().getX(), b.getMax().getX()));
+		max.setY(Math.max(a.getMax().getY(), b.getMax().getY()));
+		max.setZ(Math.max(a.getMax().getZ(), b.getMax().getZ()));
+		bounds.setMin(min);
+		bounds.setMax(max);
+		return bounds;
+	}
+	
+	private void addGeometryReport(GeometryGenerationReport report, Project project) {
+		getDatabaseSession().addPostCommitAction(new PostCommitAction() {
+			@Override
+			public void execute() throws UserException {
+				if (report != null) {
+					byte[] htmlBytes = report.toHtml().getBytes(Charsets.UTF_8);
+					byte[] jsonBytes = report.toJson().toString().getBytes(Charsets.UTF_8);
+					try (DatabaseSession tmpSession = getBimServer().getDatabase().createSession(OperationType.POSSIBLY_WRITE)) {
+						AddGeometryReports addGeometryReports = new AddGeometryReports(tmpSession, AccessMethod.INTERNAL, htmlBytes, jsonBytes, report.getTimeToGenerateMs(), authorization.getUoid(), revision.getOid());
+						try {
+							tmpSession.executeAndCommitAction(addGeometryReports);
+						} catch (ServerException e1) {
+							LOGGER.error("", e1);
+						}
+					} catch (BimserverDatabaseException e1) {
+						LOGGER.error("", e1);
+					}
+				}
+				getBimServer().getNotificationsManager().notify(new NewRevisionNotification(getBimServer(), project.getOid(), revision.getOid(), authorization));
+			}
+		});
+	}
+
 	public Revision getRevision() {
 		return revision;
 	}
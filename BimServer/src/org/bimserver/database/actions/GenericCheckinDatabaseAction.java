@@ -41,7 +41,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +51,7 @@ import org.bimserver.BimserverDatabaseException;
 import org.bimserver.GenerateGeometryResult;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.ParallelQueryObjectProvider;
 import org.bimserver.database.queries.QueryObjectProvider;
 import org.bimserver.database.queries.QueryTypeStackFrame;
 import org.bimserver.database.queries.om.Include;
@@ -73,6 +73,7 @@ import org.bimserver.models.store.Revision;
 import org.bimserver.models.store.StoreFactory;
 import org.bimserver.models.store.StorePackage;
 import org.bimserver.models.store.User;
+import org.bimserver.plugins.serializers.ObjectProvider;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.exceptions.UserException;
 import org.eclipse.emf.ecore.EClass;
@@ -182,6 +183,13 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 	}
 	
 	protected void generateDensityAndBounds(CreateRevisionResult result, GenerateGeometryResult generateGeometry, ConcreteRevision concreteRevision) throws BimserverDatabaseException {
+		generateDensityAndBounds(result, generateGeometry, concreteRevision, Collections.emptyList());
+	}
+
+	/**
+	 * @param carriedDensities Densities of geometry that has not been regenerated but is still part of the new concrete revision
+	 */
+	protected void generateDensityAndBounds(CreateRevisionResult result, GenerateGeometryResult generateGeometry, ConcreteRevision concreteRevision, List<org.bimserver.models.store.Density> carriedDensities) throws BimserverDatabaseException {
 		for (Revision revision : result.getRevisions()) {
 			Bounds newBounds = GeometryFactory.eINSTANCE.createBounds();
 			Vector3f min = GeometryFactory.eINSTANCE.createVector3f();
@@ -335,6 +343,7 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 			dbDensity.setVolume(density.getVolume());
 			newList.add(dbDensity);
 		}
+		newList.addAll(carriedDensities);
 		newList.sort(new Comparator<org.bimserver.models.store.Density>(){
 			@Override
 			public int compare(org.bimserver.models.store.Density o1, org.bimserver.models.store.Density o2) {
@@ -369,8 +378,6 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 	
 	@SuppressWarnings("unchecked")
 	protected void fixInverses(PackageMetaData packageMetaData, long newRoid, Map<EClass, Integer> summaryMap) throws QueryException, JsonParseException, JsonMappingException, IOException, BimserverDatabaseException {
-		// TODO remove cache, this is essentially a big part of the model in memory again
-		Map<Long, HashMapVirtualObject> cache = new HashMap<Long, HashMapVirtualObject>();
 		Query query = new Query("Inverses fixer", packageMetaData);
 		
 		int nrTypes = 0;
@@ -389,70 +396,106 @@ public abstract class GenericCheckinDatabaseAction extends BimDatabaseAction<Con
 			}
 		}
 		
-		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(getDatabaseSession(), bimServer, query, Collections.singleton(newRoid), packageMetaData);
-		HashMapVirtualObject next = queryObjectProvider.next();
-		EClass lastEClass = null;
-		int currentType = 0;
-		while (next != null) {
-			if (next.eClass() != lastEClass && uniqueTypes.contains(next.eClass()) && queryObjectProvider.getStackFrame() instanceof QueryTypeStackFrame) {
-				lastEClass = next.eClass();
-				currentType++;
-				setProgress("Generating inverses", (100 * currentType / nrTypes));
-			}
-			if (packageMetaData.hasInverses(next.eClass())) {
-				for (EReference eReference : packageMetaData.getAllHasInverseReferences(next.eClass())) {
-					Object reference = next.eGet(eReference);
-					if (reference != null) {
-						if (eReference.isMany()) {
-							List<Long> references = (List<Long>)reference;
-							for (Long refOid : references) {
-								fixInverses(packageMetaData, newRoid, cache, next, eReference, refOid);
+		// Instead of keeping all referenced objects in memory, the inverses are written as (target, feature, source) tuples to sorted runs on disk, which are merged and applied per target afterwards
+		try (InverseReferenceSorter sorter = new InverseReferenceSorter(bimServer.getConfig().getHomeDir().resolve("tmp"))) {
+			ObjectProvider objectProvider = ParallelQueryObjectProvider.create(getDatabaseSession(), bimServer, query, Collections.singleton(newRoid), packageMetaData, false);
+			HashMapVirtualObject next = objectProvider.next();
+			EClass lastEClass = null;
+			int currentType = 0;
+			int lastProgress = -1;
+			while (next != null) {
+				if (objectProvider instanceof ParallelQueryObjectProvider) {
+					int progress = ((ParallelQueryObjectProvider) objectProvider).getProgress();
+					if (progress != lastProgress) {
+						lastProgress = progress;
+						setProgress("Generating inverses", progress);
+					}
+				} else if (next.eClass() != lastEClass && uniqueTypes.contains(next.eClass()) && ((QueryObjectProvider) objectProvider).getStackFrame() instanceof QueryTypeStackFrame) {
+					lastEClass = next.eClass();
+					currentType++;
+					setProgress("Generating inverses", (100 * currentType / nrTypes));
+				}
+				if (packageMetaData.hasInverses(next.eClass())) {
+					for (EReference eReference : packageMetaData.getAllHasInverseReferences(next.eClass())) {
+						Object reference = next.eGet(eReference);
+						if (reference != null) {
+							if (eReference.isMany()) {
+								List<Long> references = (List<Long>)reference;
+								for (Long refOid : references) {
+									addInverse(packageMetaData, sorter, next, eReference, refOid);
+								}
+							} else {
+								addInverse(packageMetaData, sorter, next, eReference, (Long)reference);
 							}
-						} else {
-							fixInverses(packageMetaData, newRoid, cache, next, eReference, (Long)reference);
 						}
 					}
 				}
+				next = objectProvider.next();
 			}
-			next = queryObjectProvider.next();
-		}
-		
-		setProgress("Storing data", -1);
-		
-		for (HashMapVirtualObject referencedObject : cache.values()) {
-			referencedObject.saveOverwrite();
+			
+			setProgress("Storing data", -1);
+			
+			sorter.finish();
+			applyInverses(packageMetaData, newRoid, sorter);
 		}
 	}
 	
-	private void fixInverses(PackageMetaData packageMetaData, long newRoid, Map<Long, HashMapVirtualObject> cache, HashMapVirtualObject next, EReference eReference, long refOid)
-			throws JsonParseException, JsonMappingException, IOException, QueryException, BimserverDatabaseException {
-		HashMapVirtualObject referencedObject = cache.get(refOid);
-		if (referencedObject == null) {
-			referencedObject = getByOid(packageMetaData, getDatabaseSession(), newRoid, refOid);
-			if (referencedObject == null) {
-				throw new BimserverDatabaseException("Referenced object with oid " + refOid + " (" + getDatabaseSession().getEClassForOid(refOid).getName() + ")" + ", referenced from " + next.eClass().getName() + " not found");
-			}
-			cache.put(refOid, referencedObject);
-		}
-		EReference oppositeReference = packageMetaData.getInverseOrOpposite(referencedObject.eClass(), eReference);
+	private void addInverse(PackageMetaData packageMetaData, InverseReferenceSorter sorter, HashMapVirtualObject next, EReference eReference, long refOid) throws IOException, BimserverDatabaseException {
+		EClass referencedEClass = getDatabaseSession().getEClassForOid(refOid);
+		EReference oppositeReference = packageMetaData.getInverseOrOpposite(referencedEClass, eReference);
 		if (oppositeReference == null) {
-			if (eReference.getName().equals("RelatedElements") && referencedObject.eClass().getName().equals("IfcSpace")) {
+			if (eReference.getName().equals("RelatedElements") && referencedEClass.getName().equals("IfcSpace")) {
 				// Ignore, IfcSpace should have  a field called RelatedElements, but it doesn't.
 			} else {
 //				LOGGER.error("No opposite " + eReference.getName() + " found");
 			}
 		} else {
-			if (oppositeReference.isMany()) {
-				Object existingList = referencedObject.eGet(oppositeReference);
-				if (existingList != null) {
-					int currentSize = ((List<?>)existingList).size();
-					referencedObject.setListItemReference(oppositeReference, currentSize, next.eClass(), next.getOid(), 0);
-				} else {
-					referencedObject.setListItemReference(oppositeReference, 0, next.eClass(), next.getOid(), 0);
+			sorter.add(refOid, referencedEClass.getFeatureID(oppositeReference), next.getOid());
+		}
+	}
+	
+	/**
+	 * The tuples come out of the sorter grouped per class and ordered by target oid, which is also the order of the keys in the class tables. So instead of looking up every
+	 * target, the objects of every class are read in one pass and merged with the tuples.
+	 */
+	private void applyInverses(PackageMetaData packageMetaData, long newRoid, InverseReferenceSorter sorter) throws IOException, QueryException, BimserverDatabaseException {
+		InverseReferenceSorter.InverseReference inverseReference = sorter.next();
+		while (inverseReference != null) {
+			short cid = inverseReference.getTargetCid();
+			Query query = new Query("Inverses", packageMetaData);
+			query.createQueryPart().addType(getDatabaseSession().getEClass(cid), false);
+			QueryObjectProvider objectProvider = new QueryObjectProvider(getDatabaseSession(), bimServer, query, Collections.singleton(newRoid), packageMetaData);
+			HashMapVirtualObject referencedObject = objectProvider.next();
+			while (inverseReference != null && inverseReference.getTargetCid() == cid) {
+				long refOid = inverseReference.getTargetOid();
+				while (referencedObject != null && referencedObject.getOid() < refOid) {
+					referencedObject = objectProvider.next();
+				}
+				if (referencedObject == null || referencedObject.getOid() != refOid) {
+					throw new BimserverDatabaseException("Referenced object with oid " + refOid + " (" + getDatabaseSession().getEClassForOid(refOid).getName() + ")" + ", referenced from " + getDatabaseSession().getEClassForOid(inverseReference.getSourceOid()).getName() + " not found");
+				}
+				while (inverseReference != null && inverseReference.getTargetOid() == refOid) {
+					addInverse(referencedObject, inverseReference);
+					inverseReference = sorter.next();
 				}
+				referencedObject.saveOverwrite();
+			}
+		}
+	}
+
+	private void addInverse(HashMapVirtualObject referencedObject, InverseReferenceSorter.InverseReference inverseReference) throws BimserverDatabaseException {
+		EReference oppositeReference = (EReference) referencedObject.eClass().getEStructuralFeature(inverseReference.getFeatureId());
+		EClass sourceEClass = getDatabaseSession().getEClassForOid(inverseReference.getSourceOid());
+		if (oppositeReference.isMany()) {
+			Object existingList = referencedObject.eGet(oppositeReference);
+			if (existingList != null) {
+				int currentSize = ((List<?>)existingList).size();
+				referencedObject.setListItemReference(oppositeReference, currentSize, sourceEClass, inverseReference.getSourceOid(), 0);
 			} else {
-				referencedObject.setReference(oppositeReference, next.getOid(), 0);
+				referencedObject.setListItemReference(oppositeReference, 0, sourceEClass, inverseReference.getSourceOid(), 0);
 			}
+		} else {
+			referencedObject.setReference(oppositeReference, inverseReference.getSourceOid(), 0);
 		}
 	}
 	
@@ -0,0 +1,254 @@
+package org.bimserver.database.actions;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * External sorter for the (target oid, inverse feature, source oid) tuples produced while fixing inverses after a streaming checkin.
+ * 
+ * Tuples are collected in a bounded buffer, every full buffer is sorted and spilled to a run file, and {@link #finish()} merges the runs.
+ * The tuples come out ordered by class id (the lower 16 bits of the oid), then target oid, then feature and source oid, so all inverses
+ * of one object are consecutive and every class table is visited in a single pass in key order.
+ */
+public class InverseReferenceSorter implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(InverseReferenceSorter.class);
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	private final Path tmpDir;
+	private final InverseReference[] buffer;
+	private final List<Path> runs = new ArrayList<>();
+	private int size;
+	private long total;
+	private boolean finished;
+
+	private int bufferPosition;
+	private PriorityQueue<RunReader> queue;
+
+	public InverseReferenceSorter(Path tmpDir) {
+		this(tmpDir, DEFAULT_BUFFER_SIZE);
+	}
+
+	public InverseReferenceSorter(Path tmpDir, int bufferSize) {
+		this.tmpDir = tmpDir;
+		this.buffer = new InverseReference[bufferSize];
+	}
+
+	public void add(long targetOid, int featureId, long sourceOid) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("Sorter already finished");
+		}
+		if (size == buffer.length) {
+			spill();
+		}
+		buffer[size++] = new InverseReference(targetOid, featureId, sourceOid);
+		total++;
+	}
+
+	private void spill() throws IOException {
+		Arrays.sort(buffer, 0, size);
+		Path run = Files.createTempFile(tmpDir, "inverses", ".run");
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 65536))) {
+			for (int i = 0; i < size; i++) {
+				buffer[i].write(out);
+				buffer[i] = null;
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * Ends the input phase. When everything fitted in memory no file is ever written, otherwise the remainder of the buffer is spilled as the last run and all runs are opened for merging.
+	 */
+	public void finish() throws IOException {
+		finished = true;
+		if (runs.isEmpty()) {
+			Arrays.sort(buffer, 0, size);
+			return;
+		}
+		if (size > 0) {
+			spill();
+		}
+		LOGGER.debug("Merging " + runs.size() + " runs of inverse references (" + total + " tuples)");
+		queue = new PriorityQueue<>(runs.size());
+		for (Path run : runs) {
+			RunReader runReader = new RunReader(run);
+			if (runReader.advance()) {
+				queue.add(runReader);
+			} else {
+				runReader.close();
+			}
+		}
+	}
+
+	/**
+	 * @return The next tuple in sorted order, or null when all tuples have been returned
+	 */
+	public InverseReference next() throws IOException {
+		if (!finished) {
+			throw new IllegalStateException("Call finish() first");
+		}
+		if (queue == null) {
+			if (bufferPosition < size) {
+				InverseReference result = buffer[bufferPosition];
+				buffer[bufferPosition++] = null;
+				return result;
+			}
+			return null;
+		}
+		RunReader runReader = queue.poll();
+		if (runReader == null) {
+			return null;
+		}
+		InverseReference result = runReader.current;
+		if (runReader.advance()) {
+			queue.add(runReader);
+		} else {
+			runReader.close();
+		}
+		return result;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public int getNrRuns() {
+		return runs.size();
+	}
+
+	@Override
+	public void close() {
+		if (queue != null) {
+			for (RunReader runReader : queue) {
+				runReader.close();
+			}
+			queue.clear();
+		}
+		for (Path run : runs) {
+			try {
+				Files.deleteIfExists(run);
+			} catch (IOException e) {
+				LOGGER.error("Could not delete " + run, e);
+			}
+		}
+		runs.clear();
+	}
+
+	public static class InverseReference implements Comparable<InverseReference> {
+		private final long targetOid;
+		private final int featureId;
+		private final long sourceOid;
+
+		public InverseReference(long targetOid, int featureId, long sourceOid) {
+			this.targetOid = targetOid;
+			this.featureId = featureId;
+			this.sourceOid = sourceOid;
+		}
+
+		public long getTargetOid() {
+			return targetOid;
+		}
+
+		public short getTargetCid() {
+			return (short) targetOid;
+		}
+
+		public int getFeatureId() {
+			return featureId;
+		}
+
+		public long getSourceOid() {
+			return sourceOid;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeLong(targetOid);
+			out.writeInt(featureId);
+			out.writeLong(sourceOid);
+		}
+
+		@Override
+		public int compareTo(InverseReference o) {
+			int result = Short.compare(getTargetCid(), o.getTargetCid());
+			if (result != 0) {
+				return result;
+			}
+			result = Long.compare(targetOid, o.targetOid);
+			if (result != 0) {
+				return result;
+			}
+			result = Integer.compare(featureId, o.featureId);
+			if (result != 0) {
+				return result;
+			}
+			return Long.compare(sourceOid, o.sourceOid);
+		}
+	}
+
+	private static class RunReader implements Comparable<RunReader> {
+		private final Path path;
+		private final DataInputStream in;
+		private InverseReference current;
+
+		public RunReader(Path path) throws IOException {
+			this.path = path;
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536));
+		}
+
+		public boolean advance() throws IOException {
+			long targetOid;
+			try {
+				targetOid = in.readLong();
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+			current = new InverseReference(targetOid, in.readInt(), in.readLong());
+			return true;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOGGER.error("Could not close " + path, e);
+			}
+		}
+
+		@Override
+		public int compareTo(RunReader o) {
+			return current.compareTo(o.current);
+		}
+	}
+}
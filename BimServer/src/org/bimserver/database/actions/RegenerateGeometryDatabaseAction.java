@@ -26,6 +26,8 @@ import org.bimserver.GeometryGeneratingException;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OldQuery;
+import org.bimserver.database.PostCommitAction;
+import org.bimserver.database.sealed.SealedRevisionStore;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.geometry.GeometryGenerationReport;
 import org.bimserver.geometry.StreamingGeometryGenerator;
@@ -77,6 +79,13 @@ public class RegenerateGeometryDatabaseAction extends ProjectBasedDatabaseAction
 		StreamingGeometryGenerator streamingGeometryGenerator = new StreamingGeometryGenerator(bimServer, progressListener, eoid, report);
 		Revision revision = getDatabaseSession().get(roid, OldQuery.getDefault());
 		ConcreteRevision concreteRevision = revision.getConcreteRevisions().get(0);
+		// The geometry of the revision is about to change, so its sealed snapshot (if any) can no longer be used
+		SealedRevisionStore sealedRevisionStore = bimServer.getDatabase().getSealedRevisionStore();
+		if (sealedRevisionStore != null) {
+			for (ConcreteRevision other : revision.getConcreteRevisions()) {
+				sealedRevisionStore.unseal(other.getProject().getId(), other.getId());
+			}
+		}
 		PackageMetaData packageMetaData = bimServer.getMetaDataManager().getPackageMetaData(revision.getProject().getSchema());
 		int highestStopId = AbstractDownloadDatabaseAction.findHighestStopRid(concreteRevision.getProject(), concreteRevision);
 
@@ -102,6 +111,14 @@ public class RegenerateGeometryDatabaseAction extends ProjectBasedDatabaseAction
 			getDatabaseSession().store(concreteRevision);
 			
 			renderEngineName = streamingGeometryGenerator.getRenderEngineName();
+
+			getDatabaseSession().addPostCommitAction(new PostCommitAction() {
+				@Override
+				public void execute() throws UserException {
+					bimServer.getGeometryAccellerator().invalidate(roid);
+					bimServer.getGeometryAccellerator().prepare(roid);
+				}
+			});
 		} catch (GeometryGeneratingException e) {
 			e.printStackTrace();
 		}
@@ -40,6 +40,8 @@ import org.bimserver.database.OperationType;
 import org.bimserver.database.PostCommitAction;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
+import org.bimserver.database.index.ClassificationIndexBuilder;
+import org.bimserver.database.index.PropertySetIndexBuilder;
 import org.bimserver.database.queries.ConcreteRevisionStackFrame;
 import org.bimserver.database.queries.QueryObjectProvider;
 import org.bimserver.database.queries.om.Include;
@@ -230,6 +232,7 @@ public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction
 				report.setNumberOfObjects(size);
 				report.setOriginalDeserializer(deserializerVersion);
 				StreamingGeometryGenerator geometryGenerator = new StreamingGeometryGenerator(getBimServer(), progressListener, -1L, report);
+				geometryGenerator.setIncremental(getBimServer().getConfig().isIncrementalGeometry());
 				setProgress("Generating geometry...", 0);
 
 				GenerateGeometryResult generateGeometry = geometryGenerator.generateGeometry(getActingUid(), getDatabaseSession(), queryContext, size);
@@ -367,6 +370,20 @@ public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction
 					} catch (ServiceException e) {
 						LOGGER.error("", e);
 					}
+					try (DatabaseSession tmpSession = getBimServer().getDatabase().createSession(OperationType.POSSIBLY_WRITE)) {
+						new PropertySetIndexBuilder(getBimServer(), tmpSession, packageMetaData, revision.getOid(), concreteRevision.getOid()).build();
+						new ClassificationIndexBuilder(getBimServer(), tmpSession, packageMetaData, revision.getOid(), concreteRevision.getOid()).build();
+					} catch (BimserverDatabaseException e) {
+						LOGGER.error("", e);
+					}
+					if (getBimServer().getConfig().isSealRevisions() && getBimServer().getDatabase().getSealedRevisionStore() != null) {
+						try (DatabaseSession tmpSession = getBimServer().getDatabase().createSession(OperationType.READ_ONLY)) {
+							ConcreteRevision committedConcreteRevision = tmpSession.get(concreteRevision.getOid(), OldQuery.getDefault());
+							getBimServer().getDatabase().getSealedRevisionStore().seal(tmpSession, committedConcreteRevision);
+						} catch (BimserverDatabaseException e) {
+							LOGGER.error("", e);
+						}
+					}
 					if (finalReport != null) {
 						byte[] htmlBytes = finalReport.toHtml().getBytes(Charsets.UTF_8);
 						byte[] jsonBytes = finalReport.toJson().toString().getBytes(Charsets.UTF_8);
@@ -382,6 +399,10 @@ public class StreamingCheckinDatabaseAction extends GenericCheckinDatabaseAction
 						}
 					}
 					getBimServer().getNotificationsManager().notify(new NewRevisionNotification(getBimServer(), project.getOid(), revision.getOid(), authorization));
+					if (finalReport != null) {
+						// Geometry has been generated, so viewers will soon ask for octrees
+						getBimServer().getGeometryAccellerator().prepare(revision.getOid());
+					}
 				}
 			});
 
@@ -20,10 +20,11 @@ package org.bimserver.database.berkeley;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +33,8 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.BimTransaction;
@@ -67,7 +70,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	private Environment environment;
 	private long committedWrites;
 	private long reads;
-	private final Map<String, TableWrapper> tables = new HashMap<>();
+	private final Map<String, TableWrapper> tables = new ConcurrentHashMap<>();
 	private boolean isNew;
 	private TransactionConfig transactionConfig;
 	private CursorConfig safeCursorConfig;
@@ -79,6 +82,23 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	private final boolean useTransactions = true;
 	private final boolean keyPrefixing = true;
 	private CursorConfig unsafeCursorConfig;
+	
+	/**
+	 * Holds the value compression of every table that has one, the first byte is the ordinal of the ValueCompression, the rest is the trained dictionary (if any).
+	 * While the values of an existing table are being converted, the last converted key is stored under the table name plus CONVERSION_SUFFIX
+	 */
+	private static final String VALUE_CODECS_TABLE = "bimserver_value_codecs";
+	private static final String CONVERSION_SUFFIX = "/converted";
+	private static final int CONVERSION_BATCH_SIZE = 10000;
+	private Database valueCodecsDatabase;
+	private ValueCompression modelTableCompression = ValueCompression.NONE;
+	private ValueCompression geometryTableCompression = ValueCompression.NONE;
+	
+	private final ReentrantLock groupSyncLock = new ReentrantLock();
+	private final Condition groupSyncCompleted = groupSyncLock.newCondition();
+	private long requestedSyncs;
+	private long completedSyncs;
+	private boolean syncing;
 
 	public BerkeleyKeyValueStore(Path dataDir, Properties properties) throws DatabaseInitException {
 		if (Files.isDirectory(dataDir)) {
@@ -135,6 +155,181 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 
 		unsafeCursorConfig = new CursorConfig();
 		unsafeCursorConfig.setReadUncommitted(true);
+		
+		DatabaseConfig valueCodecsConfig = new DatabaseConfig();
+		valueCodecsConfig.setAllowCreate(true);
+		valueCodecsConfig.setTransactional(useTransactions);
+		try {
+			valueCodecsDatabase = environment.openDatabase(null, VALUE_CODECS_TABLE, valueCodecsConfig);
+		} catch (DatabaseException e) {
+			throw new DatabaseInitException("Could not open " + VALUE_CODECS_TABLE + " (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Sets the value compression of tables that are opened or created from now on. Tables that already have a compression keep it, existing (transactional) tables
+	 * without one are converted when they are opened
+	 * 
+	 * @param modelTableCompression Compression of the tables holding IFC objects
+	 * @param geometryTableCompression Compression of the tables of the geometry package (GeometryData, Buffer etc...)
+	 */
+	public void setTableCompression(ValueCompression modelTableCompression, ValueCompression geometryTableCompression) {
+		this.modelTableCompression = modelTableCompression;
+		this.geometryTableCompression = geometryTableCompression;
+	}
+
+	private ValueCompression getConfiguredCompression(String tableName) {
+		if (tableName.startsWith("geometry_")) {
+			return geometryTableCompression;
+		} else if (tableName.startsWith("ifc")) {
+			return modelTableCompression;
+		}
+		return ValueCompression.NONE;
+	}
+
+	private ValueCodec createValueCodec(String tableName) throws BimserverDatabaseException {
+		ValueCompression compression = getConfiguredCompression(tableName);
+		if (compression == ValueCompression.NONE) {
+			return null;
+		}
+		storeValueCodec(null, tableName, compression, new byte[0]);
+		return newValueCodec(tableName, compression, null);
+	}
+
+	/**
+	 * @return The codec of an existing table. The values of a table without codec that should be compressed have no header byte, they are stored again with a
+	 *         header first. This is done in batches, the progress is stored so an interrupted conversion continues where it stopped the next time the table is opened
+	 */
+	private ValueCodec openValueCodec(String tableName, Database database, boolean transactional) throws BimserverDatabaseException {
+		ValueCodec valueCodec = loadValueCodec(tableName);
+		byte[] convertedUpTo = loadConversionProgress(tableName);
+		if (valueCodec == null) {
+			ValueCompression compression = getConfiguredCompression(tableName);
+			if (compression == ValueCompression.NONE) {
+				return null;
+			}
+			if (!transactional) {
+				LOGGER.info("Not compressing the existing values of non-transactional table " + tableName);
+				return null;
+			}
+			try {
+				Transaction transaction = environment.beginTransaction(null, null);
+				try {
+					storeValueCodec(transaction, tableName, compression, new byte[0]);
+					valueCodecsDatabase.put(transaction, conversionKey(tableName), new DatabaseEntry(new byte[0]));
+					transaction.commit();
+				} catch (DatabaseException | BimserverDatabaseException e) {
+					transaction.abort();
+					throw e;
+				}
+			} catch (DatabaseException e) {
+				throw new BimserverDatabaseException("", e);
+			}
+			valueCodec = newValueCodec(tableName, compression, null);
+			convertedUpTo = new byte[0];
+		}
+		if (convertedUpTo != null) {
+			convertValues(tableName, database, valueCodec, convertedUpTo);
+		}
+		return valueCodec;
+	}
+
+	private void convertValues(String tableName, Database database, ValueCodec valueCodec, byte[] convertedUpTo) throws BimserverDatabaseException {
+		LOGGER.info("Compressing the values of " + tableName);
+		byte[] lastKey = convertedUpTo;
+		long converted = 0;
+		boolean done = false;
+		try {
+			while (!done) {
+				Transaction transaction = environment.beginTransaction(null, null);
+				try {
+					Cursor cursor = database.openCursor(transaction, null);
+					try {
+						DatabaseEntry key = new DatabaseEntry(lastKey);
+						DatabaseEntry value = new DatabaseEntry();
+						OperationStatus status;
+						if (lastKey.length == 0) {
+							status = cursor.getFirst(key, value, LockMode.RMW);
+						} else {
+							status = cursor.getSearchKeyRange(key, value, LockMode.RMW);
+							if (status == OperationStatus.SUCCESS && Arrays.equals(key.getData(), lastKey)) {
+								status = cursor.getNext(key, value, LockMode.RMW);
+							}
+						}
+						int batch = 0;
+						while (status == OperationStatus.SUCCESS && batch < CONVERSION_BATCH_SIZE) {
+							cursor.putCurrent(new DatabaseEntry(valueCodec.encode(value.getData(), value.getOffset(), value.getSize())));
+							lastKey = Arrays.copyOfRange(key.getData(), key.getOffset(), key.getOffset() + key.getSize());
+							batch++;
+							status = cursor.getNext(key, value, LockMode.RMW);
+						}
+						converted += batch;
+						done = status != OperationStatus.SUCCESS;
+					} finally {
+						cursor.close();
+					}
+					if (done) {
+						valueCodecsDatabase.delete(transaction, conversionKey(tableName));
+					} else {
+						valueCodecsDatabase.put(transaction, conversionKey(tableName), new DatabaseEntry(lastKey));
+					}
+					transaction.commit();
+				} catch (DatabaseException e) {
+					transaction.abort();
+					throw e;
+				}
+			}
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException("Could not compress the values of " + tableName, e);
+		}
+		LOGGER.info("Compressed " + converted + " values of " + tableName);
+	}
+
+	private byte[] loadConversionProgress(String tableName) throws BimserverDatabaseException {
+		DatabaseEntry value = new DatabaseEntry();
+		try {
+			if (valueCodecsDatabase.get(null, conversionKey(tableName), value, LockMode.READ_COMMITTED) != OperationStatus.SUCCESS) {
+				return null;
+			}
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException("", e);
+		}
+		return value.getData() == null ? new byte[0] : value.getData();
+	}
+
+	private DatabaseEntry conversionKey(String tableName) {
+		return new DatabaseEntry((tableName + CONVERSION_SUFFIX).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private ValueCodec loadValueCodec(String tableName) throws BimserverDatabaseException {
+		DatabaseEntry value = new DatabaseEntry();
+		try {
+			if (valueCodecsDatabase.get(null, new DatabaseEntry(tableName.getBytes(StandardCharsets.UTF_8)), value, LockMode.READ_COMMITTED) != OperationStatus.SUCCESS) {
+				return null;
+			}
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException("", e);
+		}
+		byte[] data = value.getData();
+		ValueCompression compression = ValueCompression.values()[data[0]];
+		byte[] dictionary = new byte[data.length - 1];
+		System.arraycopy(data, 1, dictionary, 0, dictionary.length);
+		return newValueCodec(tableName, compression, dictionary);
+	}
+
+	private ValueCodec newValueCodec(String tableName, ValueCompression compression, byte[] dictionary) {
+		return new ValueCodec(compression, dictionary, newDictionary -> storeValueCodec(null, tableName, compression, newDictionary));
+	}
+
+	private void storeValueCodec(Transaction transaction, String tableName, ValueCompression compression, byte[] dictionary) throws BimserverDatabaseException {
+		byte[] data = new byte[dictionary.length + 1];
+		data[0] = (byte) compression.ordinal();
+		System.arraycopy(dictionary, 0, data, 1, dictionary.length);
+		try {
+			valueCodecsDatabase.put(transaction, new DatabaseEntry(tableName.getBytes(StandardCharsets.UTF_8)), new DatabaseEntry(data));
+		} catch (DatabaseException e) {
+			throw new BimserverDatabaseException("", e);
+		}
 	}
 
 	public boolean isNew() {
@@ -166,11 +361,12 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 //		}
 		databaseConfig.setTransactional(finalTransactional);
 		databaseConfig.setSortedDuplicates(false);
+		boolean existing = environment.getDatabaseNames().contains(tableName);
 		Database database = environment.openDatabase(null, tableName, databaseConfig);
 		if (database == null) {
 			return false;
 		}
-		tables.put(tableName, new TableWrapper(database, finalTransactional));
+		tables.put(tableName, new TableWrapper(database, finalTransactional, existing ? openValueCodec(tableName, database, finalTransactional) : createValueCodec(tableName)));
 		
 		return true;
 	}
@@ -216,7 +412,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		if (database == null) {
 			throw new BimserverDatabaseException("Table " + tableName + " not found in database");
 		}
-		tables.put(tableName, new TableWrapper(database, finalTransactional));
+		tables.put(tableName, new TableWrapper(database, finalTransactional, openValueCodec(tableName, database, finalTransactional)));
 		return true;
 	}
 
@@ -271,6 +467,13 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 				LOGGER.error("", e);
 			}
 		}
+		if (valueCodecsDatabase != null) {
+			try {
+				valueCodecsDatabase.close();
+			} catch (DatabaseException e) {
+				LOGGER.error("", e);
+			}
+		}
 		if (environment != null) {
 			try {
 				environment.close();
@@ -312,6 +515,9 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 			TableWrapper tableWrapper = getTableWrapper(tableName);
 			OperationStatus operationStatus = tableWrapper.getDatabase().get(getTransaction(databaseSession, tableWrapper), key, value, getLockMode(tableWrapper));
 			if (operationStatus == OperationStatus.SUCCESS) {
+				if (tableWrapper.getValueCodec() != null) {
+					return tableWrapper.getValueCodec().decode(value.getData());
+				}
 				return value.getData();
 			}
 		} catch (DatabaseException e) {
@@ -358,6 +564,50 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		}
 	}
 
+	/**
+	 * Every caller gets a ticket, the first caller that finds no sync running does one sync for all tickets handed out so far, the others wait for a sync that covers their ticket.
+	 * Only a successful sync covers tickets, when it fails the caller that did it gets the exception and the next waiting caller does another sync
+	 */
+	@Override
+	public void groupSync() throws BimserverDatabaseException {
+		groupSyncLock.lock();
+		try {
+			long ticket = ++requestedSyncs;
+			while (completedSyncs < ticket) {
+				if (syncing) {
+					groupSyncCompleted.awaitUninterruptibly();
+				} else {
+					syncing = true;
+					long coveredTickets = requestedSyncs;
+					boolean synced = false;
+					groupSyncLock.unlock();
+					try {
+						syncEnvironment();
+						synced = true;
+					} catch (DatabaseException e) {
+						throw new BimserverDatabaseException("Sync failed", e);
+					} finally {
+						groupSyncLock.lock();
+						syncing = false;
+						if (synced) {
+							completedSyncs = coveredTickets;
+						}
+						groupSyncCompleted.signalAll();
+					}
+				}
+			}
+		} finally {
+			groupSyncLock.unlock();
+		}
+	}
+
+	/**
+	 * Does the actual sync for groupSync, failures are not logged but thrown
+	 */
+	protected void syncEnvironment() throws DatabaseException {
+		environment.sync();
+	}
+
 	@Override
 	public boolean containsTable(String tableName) {
 		try {
@@ -374,7 +624,7 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		try {
 			TableWrapper tableWrapper = getTableWrapper(tableName);
 			cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
-			BerkeleyRecordIterator berkeleyRecordIterator = new BerkeleyRecordIterator(cursor, this, cursorCounter.incrementAndGet());
+			BerkeleyRecordIterator berkeleyRecordIterator = new BerkeleyRecordIterator(cursor, this, cursorCounter.incrementAndGet(), tableWrapper.getValueCodec());
 			if (MONITOR_CURSOR_STACK_TRACES) {
 				openCursors.put(berkeleyRecordIterator.getCursorId(), new Exception().getStackTrace());
 			}
@@ -387,11 +637,29 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 
 	@Override
 	public SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly) throws BimserverLockConflictException, BimserverDatabaseException {
+		return openRecordIterator(tableName, mustStartWith, startSearchingAt, databaseSession, keysOnly, 0, -1, false);
+	}
+
+	@Override
+	public SearchingRecordIterator getRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, int valueOffset, int valueLength) throws BimserverLockConflictException, BimserverDatabaseException {
+		return openRecordIterator(tableName, mustStartWith, startSearchingAt, databaseSession, false, valueOffset, valueLength, false);
+	}
+
+	@Override
+	public SearchingRecordIterator getLazyRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession) throws BimserverLockConflictException, BimserverDatabaseException {
+		return openRecordIterator(tableName, mustStartWith, startSearchingAt, databaseSession, false, 0, -1, true);
+	}
+
+	private SearchingRecordIterator openRecordIterator(String tableName, byte[] mustStartWith, byte[] startSearchingAt, DatabaseSession databaseSession, boolean keysOnly, int valueOffset, int valueLength, boolean lazyValues) throws BimserverLockConflictException, BimserverDatabaseException {
 		Cursor cursor = null;
 		try {
 			TableWrapper tableWrapper = getTableWrapper(tableName);
 			cursor = tableWrapper.getDatabase().openCursor(getTransaction(databaseSession, tableWrapper), getCursorConfig(tableWrapper));
-			BerkeleySearchingRecordIterator berkeleySearchingRecordIterator = new BerkeleySearchingRecordIterator(cursor, this, cursorCounter.incrementAndGet(), mustStartWith, startSearchingAt, keysOnly);
+			BerkeleySearchingRecordIterator berkeleySearchingRecordIterator = new BerkeleySearchingRecordIterator(cursor, this, cursorCounter.incrementAndGet(), mustStartWith, startSearchingAt, keysOnly, tableWrapper.getValueCodec());
+			if (valueLength != -1) {
+				berkeleySearchingRecordIterator.setValueRange(valueOffset, valueLength);
+			}
+			berkeleySearchingRecordIterator.setLazyValues(lazyValues);
 			if (MONITOR_CURSOR_STACK_TRACES) {
 				openCursors.put(berkeleySearchingRecordIterator.getCursorId(), new Exception().getStackTrace());
 			}
@@ -525,9 +793,9 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	@Override
 	public void store(String tableName, byte[] key, byte[] value, int offset, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException {
 		DatabaseEntry dbKey = new DatabaseEntry(key);
-		DatabaseEntry dbValue = new DatabaseEntry(value, offset, length);
 		try {
 			TableWrapper tableWrapper = getTableWrapper(tableName);
+			DatabaseEntry dbValue = createValueEntry(tableWrapper, value, offset, length);
 			tableWrapper.getDatabase().put(getTransaction(databaseSession, tableWrapper), dbKey, dbValue);
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -536,6 +804,13 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 		}
 	}
 
+	private DatabaseEntry createValueEntry(TableWrapper tableWrapper, byte[] value, int offset, int length) {
+		if (tableWrapper.getValueCodec() != null) {
+			return new DatabaseEntry(tableWrapper.getValueCodec().encode(value, offset, length));
+		}
+		return new DatabaseEntry(value, offset, length);
+	}
+
 	@Override
 	public void storeNoOverwrite(String tableName, byte[] key, byte[] value, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
 		storeNoOverwrite(tableName, key, value, 0, value.length, databaseSession);
@@ -544,9 +819,9 @@ public class BerkeleyKeyValueStore implements KeyValueStore {
 	@Override
 	public void storeNoOverwrite(String tableName, byte[] key, byte[] value, int index, int length, DatabaseSession databaseSession) throws BimserverDatabaseException, BimserverLockConflictException, BimserverConcurrentModificationDatabaseException {
 		DatabaseEntry dbKey = new DatabaseEntry(key);
-		DatabaseEntry dbValue = new DatabaseEntry(value, index, length);
 		try {
 			TableWrapper tableWrapper = getTableWrapper(tableName);
+			DatabaseEntry dbValue = createValueEntry(tableWrapper, value, index, length);
 			OperationStatus putNoOverwrite = tableWrapper.getDatabase().putNoOverwrite(getTransaction(databaseSession, tableWrapper), dbKey, dbValue);
 			if (putNoOverwrite == OperationStatus.KEYEXIST) {
 				// TODO temporary test
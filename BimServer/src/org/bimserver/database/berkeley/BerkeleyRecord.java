@@ -26,8 +26,21 @@ public class BerkeleyRecord implements Record {
 	final byte[] value;
 	
 	public BerkeleyRecord(DatabaseEntry key, DatabaseEntry value) {
+		this(key, value, null);
+	}
+
+	public BerkeleyRecord(byte[] key, byte[] value) {
+		this.key = key;
+		this.value = value;
+	}
+
+	public BerkeleyRecord(DatabaseEntry key, DatabaseEntry value, ValueCodec valueCodec) {
 		this.key = key.getData();
-		this.value = value.getData();
+		if (valueCodec == null || value.getPartial() || value.getData() == null) {
+			this.value = value.getData();
+		} else {
+			this.value = valueCodec.decode(value.getData());
+		}
 	}
 
 	@Override
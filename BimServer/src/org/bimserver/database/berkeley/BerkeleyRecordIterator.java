@@ -34,11 +34,17 @@ public class BerkeleyRecordIterator implements RecordIterator {
 	private static final Logger LOGGER = LoggerFactory.getLogger(BerkeleyRecordIterator.class);
 	private final Cursor cursor;
 	private BerkeleyKeyValueStore berkeleyKeyValueStore;
+	private final ValueCodec valueCodec;
 
 	public BerkeleyRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId) {
+		this(cursor, berkeleyKeyValueStore, cursorId, null);
+	}
+
+	public BerkeleyRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId, ValueCodec valueCodec) {
 		this.cursor = cursor;
 		this.berkeleyKeyValueStore = berkeleyKeyValueStore;
 		this.cursorId = cursorId;
+		this.valueCodec = valueCodec;
 	}
 
 	public long getCursorId() {
@@ -51,7 +57,7 @@ public class BerkeleyRecordIterator implements RecordIterator {
 		try {
 			OperationStatus next = cursor.getNext(key, value, LockMode.DEFAULT);
 			if (next == OperationStatus.SUCCESS) {
-				return new BerkeleyRecord(key, value);
+				return new BerkeleyRecord(key, value, valueCodec);
 			} else {
 				return null;
 			}
@@ -78,7 +84,7 @@ public class BerkeleyRecordIterator implements RecordIterator {
 		try {
 			OperationStatus next = cursor.getLast(key, value, LockMode.DEFAULT);
 			if (next == OperationStatus.SUCCESS) {
-				return new BerkeleyRecord(key, value);
+				return new BerkeleyRecord(key, value, valueCodec);
 			} else {
 				return null;
 			}
@@ -22,6 +22,8 @@ import java.util.Arrays;
 import org.bimserver.database.BimserverLockConflictException;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.UncheckedBimserverDatabaseException;
+import org.bimserver.database.UncheckedBimserverLockConflictException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,8 +43,24 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 	private long cursorId;
 	private BerkeleyKeyValueStore berkeleyKeyValueStore;
 	private boolean onlyKeys;
+	private final ValueCodec valueCodec;
+	
+	// When valueLength is not -1, only this part of the (decoded) values is read
+	private int valueOffset;
+	private int valueLength = -1;
+	
+	// When set, values are only read when a record is asked for its value
+	private boolean lazyValues;
+	
+	// Incremented every time the cursor moves, lazy records can only read their value while the cursor is still on them
+	private long position;
 
 	public BerkeleySearchingRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId, byte[] mustStartWith, byte[] startSearchingAt, boolean onlyKeys) throws BimserverLockConflictException {
+		this(cursor, berkeleyKeyValueStore, cursorId, mustStartWith, startSearchingAt, onlyKeys, null);
+	}
+
+	public BerkeleySearchingRecordIterator(Cursor cursor, BerkeleyKeyValueStore berkeleyKeyValueStore, long cursorId, byte[] mustStartWith, byte[] startSearchingAt, boolean onlyKeys, ValueCodec valueCodec) throws BimserverLockConflictException {
+		this.valueCodec = valueCodec;
 		this.cursor = cursor;
 		this.berkeleyKeyValueStore = berkeleyKeyValueStore;
 		this.cursorId = cursorId;
@@ -51,25 +69,87 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 		this.onlyKeys = onlyKeys;
 	}
 
+	/**
+	 * Only read length bytes of every value, starting at offset. Values that are shorter are returned as far as they go.
+	 */
+	public void setValueRange(int valueOffset, int valueLength) {
+		this.valueOffset = valueOffset;
+		this.valueLength = valueLength;
+	}
+
+	/**
+	 * Only read keys while iterating, the value of a record is read when it is asked for. This has to happen before the iterator is moved.
+	 */
+	public void setLazyValues(boolean lazyValues) {
+		this.lazyValues = lazyValues;
+	}
+
 	public long getCursorId() {
 		return cursorId;
 	}
+	
+	private DatabaseEntry createValueEntry() {
+		DatabaseEntry value = new DatabaseEntry();
+		if (onlyKeys || lazyValues) {
+			value.setPartial(0, 0, true);
+		} else if (valueLength != -1) {
+			if (valueCodec == null) {
+				value.setPartial(valueOffset, valueLength, true);
+			} else {
+				value.setPartial(0, ValueCodec.getStoredPrefixLength(valueOffset, valueLength), true);
+			}
+		}
+		return value;
+	}
+	
+	private Record createRecord(DatabaseEntry key, DatabaseEntry value) throws BimserverLockConflictException {
+		if (lazyValues) {
+			return new LazyRecord(key.getData(), position);
+		} else if (valueLength != -1 && valueCodec != null) {
+			byte[] range = valueCodec.decodeRange(value.getData(), valueOffset, valueLength);
+			if (range == null) {
+				// Compressed, only the complete value can be decoded
+				byte[] decoded = readCurrentValue();
+				range = Arrays.copyOfRange(decoded, Math.min(valueOffset, decoded.length), Math.min(valueOffset + valueLength, decoded.length));
+			}
+			return new BerkeleyRecord(key.getData(), range);
+		}
+		return new BerkeleyRecord(key, value, valueCodec);
+	}
+
+	/**
+	 * @return The complete (decoded) value of the record the cursor is on
+	 */
+	private byte[] readCurrentValue() throws BimserverLockConflictException {
+		DatabaseEntry key = new DatabaseEntry();
+		DatabaseEntry value = new DatabaseEntry();
+		try {
+			if (cursor.getCurrent(key, value, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+				throw new UncheckedBimserverDatabaseException("Record has been removed while iterating");
+			}
+		} catch (LockConflictException e) {
+			throw new BimserverLockConflictException(e);
+		} catch (DatabaseException e) {
+			throw new UncheckedBimserverDatabaseException(e);
+		}
+		return valueCodec == null ? value.getData() : valueCodec.decode(value.getData());
+	}
+	
+	private boolean startsCorrectly(DatabaseEntry key) {
+		byte[] firstBytes = new byte[mustStartWith.length];
+		System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
+		return Arrays.equals(firstBytes, mustStartWith);
+	}
 	
 	private Record getFirstNext(byte[] startSearchingAt) throws BimserverLockConflictException {
 		this.nextStartSearchingAt = null;
 		DatabaseEntry key = new DatabaseEntry(startSearchingAt);
-		DatabaseEntry value = new DatabaseEntry();
-		if (onlyKeys) {
-			value.setPartial(0, 0, true);
-		}
+		DatabaseEntry value = createValueEntry();
+		position++;
 		try {
 			OperationStatus next = cursor.getSearchKeyRange(key, value, LockMode.DEFAULT);
-			if (next == OperationStatus.SUCCESS) {
-				byte[] firstBytes = new byte[mustStartWith.length];
-				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
-				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
-				}
+			if (next == OperationStatus.SUCCESS && startsCorrectly(key)) {
+				return createRecord(key, value);
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -85,18 +165,12 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 			return getFirstNext(nextStartSearchingAt);
 		}
 		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
-		if (onlyKeys) {
-			value.setPartial(0, 0, true);
-		}
+		DatabaseEntry value = createValueEntry();
+		position++;
 		try {
 			OperationStatus next = cursor.getNext(key, value, LockMode.DEFAULT);
-			if (next == OperationStatus.SUCCESS) {
-				byte[] firstBytes = new byte[mustStartWith.length];
-				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
-				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
-				}
+			if (next == OperationStatus.SUCCESS && startsCorrectly(key)) {
+				return createRecord(key, value);
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -127,18 +201,12 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 			return getFirstNext(nextStartSearchingAt);
 		}
 		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
-		if (onlyKeys) {
-			value.setPartial(0, 0, true);
-		}
+		DatabaseEntry value = createValueEntry();
+		position++;
 		try {
 			OperationStatus next = cursor.getLast(key, value, LockMode.DEFAULT);
-			if (next == OperationStatus.SUCCESS) {
-				byte[] firstBytes = new byte[mustStartWith.length];
-				System.arraycopy(key.getData(), 0, firstBytes, 0, mustStartWith.length);
-				if (Arrays.equals(firstBytes, mustStartWith)) {
-					return new BerkeleyRecord(key, value);
-				}
+			if (next == OperationStatus.SUCCESS && startsCorrectly(key)) {
+				return createRecord(key, value);
 			}
 		} catch (LockConflictException e) {
 			throw new BimserverLockConflictException(e);
@@ -147,4 +215,38 @@ public class BerkeleySearchingRecordIterator implements SearchingRecordIterator
 		}
 		return null;
 	}
+	
+	/**
+	 * Record of which the value is read from the cursor when it is asked for, see {@link BerkeleySearchingRecordIterator#setLazyValues(boolean)}
+	 */
+	private class LazyRecord implements Record {
+		private final byte[] key;
+		private final long recordPosition;
+		private byte[] value;
+
+		LazyRecord(byte[] key, long recordPosition) {
+			this.key = key;
+			this.recordPosition = recordPosition;
+		}
+
+		@Override
+		public byte[] getKey() {
+			return key;
+		}
+
+		@Override
+		public byte[] getValue() {
+			if (value == null) {
+				if (recordPosition != position) {
+					throw new IllegalStateException("The iterator has already moved past this record");
+				}
+				try {
+					value = readCurrentValue();
+				} catch (BimserverLockConflictException e) {
+					throw new UncheckedBimserverLockConflictException(e);
+				}
+			}
+			return value;
+		}
+	}
 }
\ No newline at end of file
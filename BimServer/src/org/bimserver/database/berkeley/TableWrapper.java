@@ -22,10 +22,23 @@ import com.sleepycat.je.Database;
 public class TableWrapper {
 	private Database database;
 	private boolean transactional;
+	private ValueCodec valueCodec;
 
 	public TableWrapper(Database database, boolean transactional) {
+		this(database, transactional, null);
+	}
+
+	public TableWrapper(Database database, boolean transactional, ValueCodec valueCodec) {
 		this.database = database;
 		this.transactional = transactional;
+		this.valueCodec = valueCodec;
+	}
+	
+	/**
+	 * @return The codec of the values of this table, null when values are stored as they are
+	 */
+	public ValueCodec getValueCodec() {
+		return valueCodec;
 	}
 	
 	public boolean isTransactional() {
@@ -0,0 +1,204 @@
+package org.bimserver.database.berkeley;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes and decodes the values of a compressed table. Every stored value starts with a header byte telling how the rest is stored, so values that did not
+ * compress well (or were written before the dictionary was trained) can be stored raw next to compressed ones.
+ * 
+ * Compressed values are stored as header, raw length (int) and the deflated bytes.
+ */
+public class ValueCodec {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ValueCodec.class);
+
+	public interface DictionaryListener {
+		/**
+		 * Called once when the dictionary has been built, before any value is compressed with it. The dictionary must be persisted, values cannot be read without it
+		 */
+		void dictionaryTrained(byte[] dictionary) throws Exception;
+	}
+
+	private static final byte RAW = 0;
+	private static final byte DEFLATED = 1;
+	private static final byte DEFLATED_WITH_DICTIONARY = 2;
+	private static final int HEADER_SIZE = 5;
+	private static final int MIN_COMPRESS_LENGTH = 32;
+	private static final int DICTIONARY_SAMPLES = 1024;
+	private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+	
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+	private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	private final ValueCompression compression;
+	private final DictionaryListener dictionaryListener;
+	private volatile byte[] dictionary;
+	private List<byte[]> samples;
+
+	public ValueCodec(ValueCompression compression, byte[] dictionary, DictionaryListener dictionaryListener) {
+		this.compression = compression;
+		this.dictionaryListener = dictionaryListener;
+		if (dictionary != null && dictionary.length > 0) {
+			this.dictionary = dictionary;
+		} else if (compression == ValueCompression.DEFLATE_DICTIONARY) {
+			this.samples = new ArrayList<>();
+		}
+	}
+	
+	public ValueCompression getCompression() {
+		return compression;
+	}
+
+	public byte[] encode(byte[] value, int offset, int length) {
+		byte[] dictionary = this.dictionary;
+		if (dictionary == null && samples != null) {
+			sample(value, offset, length);
+			dictionary = this.dictionary;
+		}
+		if (length >= MIN_COMPRESS_LENGTH) {
+			Deflater deflater = DEFLATERS.get();
+			deflater.reset();
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(value, offset, length);
+			deflater.finish();
+			byte[] buffer = BUFFERS.get();
+			if (buffer.length < length + HEADER_SIZE) {
+				buffer = new byte[length + HEADER_SIZE];
+				BUFFERS.set(buffer);
+			}
+			// Only keep the compressed version when it is smaller than the raw value
+			int compressedLength = 0;
+			int maxCompressedLength = length - HEADER_SIZE;
+			while (!deflater.finished() && compressedLength < maxCompressedLength) {
+				compressedLength += deflater.deflate(buffer, HEADER_SIZE + compressedLength, maxCompressedLength - compressedLength);
+			}
+			if (deflater.finished()) {
+				ByteBuffer header = ByteBuffer.wrap(buffer, 0, HEADER_SIZE);
+				header.put(dictionary == null ? DEFLATED : DEFLATED_WITH_DICTIONARY);
+				header.putInt(length);
+				return Arrays.copyOf(buffer, HEADER_SIZE + compressedLength);
+			}
+		}
+		byte[] result = new byte[length + 1];
+		result[0] = RAW;
+		System.arraycopy(value, offset, result, 1, length);
+		return result;
+	}
+
+	public byte[] decode(byte[] stored) {
+		if (stored.length == 0) {
+			return stored;
+		}
+		byte header = stored[0];
+		if (header == RAW) {
+			return Arrays.copyOfRange(stored, 1, stored.length);
+		} else if (header != DEFLATED && header != DEFLATED_WITH_DICTIONARY) {
+			throw new IllegalStateException("Unknown value header " + header);
+		}
+		int length = ByteBuffer.wrap(stored, 1, 4).getInt();
+		byte[] result = new byte[length];
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+		try {
+			int position = 0;
+			while (position < length) {
+				int inflated = inflater.inflate(result, position, length - position);
+				if (inflated == 0) {
+					if (inflater.needsDictionary()) {
+						if (header != DEFLATED_WITH_DICTIONARY || dictionary == null) {
+							throw new IllegalStateException("Value was compressed with a dictionary that is not available");
+						}
+						inflater.setDictionary(dictionary);
+					} else {
+						throw new IllegalStateException("Compressed value is truncated");
+					}
+				}
+				position += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed value is corrupt", e);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The number of stored bytes that have to be read to get length bytes at offset of a raw value with {@link #decodeRange(byte[], int, int)}
+	 */
+	public static int getStoredPrefixLength(int offset, int length) {
+		return 1 + offset + length;
+	}
+
+	/**
+	 * Decodes a part of a value from a prefix of the stored bytes. Only raw values can be decoded this way.
+	 * 
+	 * @return The requested part of the value (shorter when the value ends earlier), or null when the value is compressed and has to be decoded completely
+	 */
+	public byte[] decodeRange(byte[] storedPrefix, int offset, int length) {
+		if (storedPrefix.length == 0) {
+			return storedPrefix;
+		}
+		if (storedPrefix[0] != RAW) {
+			return null;
+		}
+		int start = Math.min(1 + offset, storedPrefix.length);
+		int end = Math.min(1 + offset + length, storedPrefix.length);
+		return Arrays.copyOfRange(storedPrefix, start, end);
+	}
+
+	private synchronized void sample(byte[] value, int offset, int length) {
+		if (samples == null) {
+			return;
+		}
+		samples.add(Arrays.copyOfRange(value, offset, offset + length));
+		if (samples.size() < DICTIONARY_SAMPLES) {
+			return;
+		}
+		// Deflate looks back from the end of the dictionary, so the most common content should be last. Values of a table are similar, so the most recent samples are used
+		byte[] newDictionary = new byte[MAX_DICTIONARY_SIZE];
+		int position = MAX_DICTIONARY_SIZE;
+		for (int i = samples.size() - 1; i >= 0 && position > 0; i--) {
+			byte[] sample = samples.get(i);
+			int toCopy = Math.min(sample.length, position);
+			System.arraycopy(sample, sample.length - toCopy, newDictionary, position - toCopy, toCopy);
+			position -= toCopy;
+		}
+		newDictionary = Arrays.copyOfRange(newDictionary, position, MAX_DICTIONARY_SIZE);
+		samples = null;
+		try {
+			dictionaryListener.dictionaryTrained(newDictionary);
+			dictionary = newDictionary;
+		} catch (Exception e) {
+			// Values keep being compressed without a dictionary
+			LOGGER.error("Could not store compression dictionary", e);
+		}
+	}
+}
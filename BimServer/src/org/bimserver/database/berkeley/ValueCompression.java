@@ -0,0 +1,38 @@
+package org.bimserver.database.berkeley;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+/**
+ * Compression of the values of a table, chosen when the table is created (or when an existing table without compression is opened) and stored with the database
+ */
+public enum ValueCompression {
+	/**
+	 * Values are stored as they are, without a header byte
+	 */
+	NONE,
+	
+	/**
+	 * Values are deflated when that makes them smaller
+	 */
+	DEFLATE,
+	
+	/**
+	 * Like DEFLATE, but after the first values of the table have been seen a preset dictionary is built from them, this helps a lot for small records
+	 */
+	DEFLATE_DICTIONARY
+}
@@ -0,0 +1,73 @@
+package org.bimserver.database.index;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.eclipse.emf.ecore.EClass;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Read-only view on the classification index of one concrete revision, written by {@link ClassificationIndexBuilder}, see {@link TermIndexTable} for the layout.
+ * 
+ * Terms are the identification codes of classification references (ItemReference in IFC2x3, Identification in IFC4), the value of an entry contains the names of the
+ * classification systems of the references the product has been classified with, separated by 0 characters.
+ */
+public class ClassificationIndex {
+	public static final byte VERSION = 1;
+	static final TermIndexTable TABLE = new TermIndexTable(Database.CLASSIFICATION_INDEX_TABLE, VERSION);
+
+	private final DatabaseSession databaseSession;
+	private final long croid;
+
+	private ClassificationIndex(DatabaseSession databaseSession, long croid) {
+		this.databaseSession = databaseSession;
+		this.croid = croid;
+	}
+
+	/**
+	 * @return The index of the given concrete revision, or null when no (compatible) index has been built
+	 */
+	public static ClassificationIndex open(DatabaseSession databaseSession, long croid) throws BimserverDatabaseException {
+		if (!TABLE.exists(databaseSession, croid)) {
+			return null;
+		}
+		return new ClassificationIndex(databaseSession, croid);
+	}
+
+	/**
+	 * @return The oids of the products classified with at least one of the given codes per type (sorted), or null when one of the codes cannot be looked up in the index
+	 */
+	public Map<EClass, List<Long>> find(Set<String> codes) throws BimserverDatabaseException {
+		LongSet oids = new LongOpenHashSet();
+		for (String code : codes) {
+			if (!TermIndexTable.isIndexable(code)) {
+				return null;
+			}
+			TABLE.read(databaseSession, croid, code, oids);
+		}
+		return TermIndexTable.groupByType(databaseSession, oids);
+	}
+}
@@ -0,0 +1,148 @@
+package org.bimserver.database.index;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the {@link ClassificationIndex} of a concrete revision once it has been checked in, from the classification references and the IfcRelAssociatesClassification
+ * relations pointing to them.
+ */
+public class ClassificationIndexBuilder extends RevisionIndexBuilder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClassificationIndexBuilder.class);
+	
+	/**
+	 * IFC4 references can point to other references, this limits how far the classification system is searched for
+	 */
+	private static final int MAX_REFERENCE_DEPTH = 16;
+	
+	// Code -> product oid -> classification systems
+	private final Map<String, Map<Long, Set<String>>> entries = new TreeMap<>();
+	private final Map<Long, String> codes = new HashMap<>();
+	private final Map<Long, Long> referencedSources = new HashMap<>();
+	private final Map<Long, String> classificationNames = new HashMap<>();
+
+	public ClassificationIndexBuilder(BimServer bimServer, DatabaseSession databaseSession, PackageMetaData packageMetaData, long roid, long croid) {
+		super(bimServer, databaseSession, packageMetaData, roid, croid);
+	}
+
+	@Override
+	public void build() throws BimserverDatabaseException {
+		long start = System.nanoTime();
+		try {
+			readClassifications();
+			readReferences();
+			readRelations();
+		} catch (IOException | QueryException e) {
+			throw new BimserverDatabaseException(e);
+		}
+		write();
+		LOGGER.debug("Classification index with " + entries.size() + " codes written in " + ((System.nanoTime() - start) / 1000000) + "ms");
+	}
+
+	private void readClassifications() throws IOException, QueryException, BimserverDatabaseException {
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(packageMetaData.getEClass("IfcClassification"));
+		HashMapVirtualObject classification = queryObjectProvider.next();
+		while (classification != null) {
+			String name = (String) classification.get("Name");
+			classificationNames.put(classification.getOid(), name == null ? "" : name);
+			classification = queryObjectProvider.next();
+		}
+	}
+
+	private void readReferences() throws IOException, QueryException, BimserverDatabaseException {
+		// Renamed from "ItemReference" in IFC2x3 to "Identification" in IFC4
+		EStructuralFeature codeFeature = packageMetaData.getEClass("IfcClassificationReference").getEStructuralFeature(1);
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(packageMetaData.getEClass("IfcClassificationReference"));
+		HashMapVirtualObject reference = queryObjectProvider.next();
+		while (reference != null) {
+			Object code = reference.get(codeFeature.getName());
+			if (code instanceof String && TermIndexTable.isIndexable((String) code)) {
+				codes.put(reference.getOid(), (String) code);
+			}
+			Object referencedSource = reference.get("ReferencedSource");
+			if (referencedSource instanceof Long) {
+				referencedSources.put(reference.getOid(), (Long) referencedSource);
+			}
+			reference = queryObjectProvider.next();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readRelations() throws IOException, QueryException, BimserverDatabaseException {
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(packageMetaData.getEClass("IfcRelAssociatesClassification"));
+		HashMapVirtualObject relation = queryObjectProvider.next();
+		while (relation != null) {
+			Object relating = relation.get("RelatingClassification");
+			List<Long> relatedObjects = (List<Long>) relation.get("RelatedObjects");
+			String code = relating instanceof Long ? codes.get(relating) : null;
+			if (code != null && relatedObjects != null) {
+				String system = getSystem((Long) relating);
+				Map<Long, Set<String>> products = entries.computeIfAbsent(code, k -> new TreeMap<>());
+				for (long relatedOid : relatedObjects) {
+					products.computeIfAbsent(relatedOid, k -> new TreeSet<>()).add(system);
+				}
+			}
+			relation = queryObjectProvider.next();
+		}
+	}
+
+	/**
+	 * @return The name of the classification system the given reference belongs to, an empty string when it is unknown
+	 */
+	private String getSystem(long referenceOid) {
+		Long source = referencedSources.get(referenceOid);
+		for (int i = 0; source != null && i < MAX_REFERENCE_DEPTH; i++) {
+			String name = classificationNames.get(source);
+			if (name != null) {
+				return name;
+			}
+			source = referencedSources.get(source);
+		}
+		return "";
+	}
+
+	private void write() throws BimserverDatabaseException {
+		for (String code : entries.keySet()) {
+			byte[] term = code.getBytes(StandardCharsets.UTF_8);
+			Map<Long, Set<String>> products = entries.get(code);
+			for (long oid : products.keySet()) {
+				ClassificationIndex.TABLE.store(databaseSession, croid, term, oid, String.join("\0", products.get(oid)).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		ClassificationIndex.TABLE.storeHeader(databaseSession, croid);
+	}
+}
@@ -0,0 +1,150 @@
+package org.bimserver.database.index;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.om.Properties;
+import org.eclipse.emf.ecore.EClass;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Read-only view on the inverted property set index of one concrete revision, written by {@link PropertySetIndexBuilder}, see {@link TermIndexTable} for the layout.
+ * 
+ * A term consists of the property set name, the property name and the value, separated by 0 characters. The value is prefixed with a character that tells how it was compared
+ * when properties were still evaluated by following IsDefinedBy, so a lookup gives exactly the same results.
+ */
+public class PropertySetIndex {
+	public static final byte VERSION = 1;
+	static final TermIndexTable TABLE = new TermIndexTable(Database.PROPERTY_SET_INDEX_TABLE, VERSION);
+	
+	/**
+	 * Wrapped String value of an IfcPropertySingleValue
+	 */
+	static final char STRING_VALUE = 'S';
+	
+	/**
+	 * Wrapped Double value of an IfcPropertySingleValue
+	 */
+	static final char DOUBLE_VALUE = 'D';
+	
+	/**
+	 * IfcBoolean value of an IfcPropertySingleValue, as lowercase tristate name
+	 */
+	static final char BOOLEAN_VALUE = 'B';
+	
+	/**
+	 * Attribute of an IfcPropertySetDefinition that is not an IfcPropertySet (the property set name is the name of the type), as string
+	 */
+	static final char ATTRIBUTE_VALUE = 'A';
+
+	private final DatabaseSession databaseSession;
+	private final long croid;
+
+	private PropertySetIndex(DatabaseSession databaseSession, long croid) {
+		this.databaseSession = databaseSession;
+		this.croid = croid;
+	}
+
+	/**
+	 * @return The index of the given concrete revision, or null when no (compatible) index has been built
+	 */
+	public static PropertySetIndex open(DatabaseSession databaseSession, long croid) throws BimserverDatabaseException {
+		if (!TABLE.exists(databaseSession, croid)) {
+			return null;
+		}
+		return new PropertySetIndex(databaseSession, croid);
+	}
+
+	/**
+	 * All given properties have to match (AND), just like when evaluating them object by object
+	 * 
+	 * @return The oids of the matching products per type (sorted), or null when one of the values cannot be looked up in the index
+	 */
+	public Map<EClass, List<Long>> find(Map<String, Properties> properties) throws BimserverDatabaseException {
+		List<List<String>> termsPerProperty = new ArrayList<>();
+		for (String propertySetName : properties.keySet()) {
+			Properties propertiesObject = properties.get(propertySetName);
+			for (String propertyName : propertiesObject.keys()) {
+				List<String> terms = createQueryTerms(propertySetName, propertyName, propertiesObject.get(propertyName));
+				if (terms == null) {
+					return null;
+				}
+				termsPerProperty.add(terms);
+			}
+		}
+		if (termsPerProperty.isEmpty()) {
+			return null;
+		}
+		LongSet result = null;
+		for (List<String> terms : termsPerProperty) {
+			LongSet oids = new LongOpenHashSet();
+			for (String term : terms) {
+				TABLE.read(databaseSession, croid, term, oids);
+			}
+			if (result == null) {
+				result = oids;
+			} else {
+				result.retainAll(oids);
+			}
+			if (result.isEmpty()) {
+				return Collections.emptyMap();
+			}
+		}
+		return TermIndexTable.groupByType(databaseSession, result);
+	}
+
+	/**
+	 * @return All terms of which at least one has to be present for the given query value, or null when the value cannot be looked up
+	 */
+	private static List<String> createQueryTerms(String propertySetName, String propertyName, Object value) {
+		List<String> terms = new ArrayList<>();
+		if (value == null) {
+			// Never matched anything
+			return terms;
+		} else if (value instanceof String) {
+			terms.add(createTerm(propertySetName, propertyName, STRING_VALUE, (String) value));
+			terms.add(createTerm(propertySetName, propertyName, BOOLEAN_VALUE, (String) value));
+			terms.add(createTerm(propertySetName, propertyName, ATTRIBUTE_VALUE, (String) value));
+		} else if (value instanceof Double) {
+			terms.add(createTerm(propertySetName, propertyName, DOUBLE_VALUE, value.toString()));
+		} else if (value instanceof Boolean) {
+			terms.add(createTerm(propertySetName, propertyName, BOOLEAN_VALUE, value.toString()));
+		} else {
+			return null;
+		}
+		for (String term : terms) {
+			if (!TermIndexTable.isIndexable(term)) {
+				return null;
+			}
+		}
+		return terms;
+	}
+
+	static String createTerm(String propertySetName, String propertyName, char valueType, String value) {
+		return propertySetName + '\0' + propertyName + '\0' + valueType + value;
+	}
+}
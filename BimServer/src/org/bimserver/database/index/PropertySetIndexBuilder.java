@@ -0,0 +1,206 @@
+package org.bimserver.database.index;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.HashMapWrappedVirtualObject;
+import org.eclipse.emf.common.util.Enumerator;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Builds the {@link PropertySetIndex} of a concrete revision once it has been checked in. Instead of starting at the products, every relation, property set and property is read
+ * once (per type, without following references) and the terms are pushed to the products the relations point to.
+ * 
+ * Non-IfcPropertySet definitions are only indexed on their single-valued attributes, references and lists were never useful to query on.
+ */
+public class PropertySetIndexBuilder extends RevisionIndexBuilder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PropertySetIndexBuilder.class);
+	private final Map<String, LongSet> entries = new TreeMap<>();
+
+	public PropertySetIndexBuilder(BimServer bimServer, DatabaseSession databaseSession, PackageMetaData packageMetaData, long roid, long croid) {
+		super(bimServer, databaseSession, packageMetaData, roid, croid);
+	}
+
+	@Override
+	public void build() throws BimserverDatabaseException {
+		long start = System.nanoTime();
+		try {
+			Map<Long, List<String>> propertySetTerms = readPropertySets(readSingleValues());
+			readRelations(packageMetaData.getEClass("IfcRelDefinesByProperties"), "RelatingPropertyDefinition", propertySetTerms);
+			
+			// IFC4 moved types to IsTypedBy, those have never been taken into account
+			EReference isDefinedBy = (EReference) packageMetaData.getEClass("IfcObject").getEStructuralFeature("IsDefinedBy");
+			if (((EClass) isDefinedBy.getEType()).isSuperTypeOf(packageMetaData.getEClass("IfcRelDefinesByType"))) {
+				readRelations(packageMetaData.getEClass("IfcRelDefinesByType"), "RelatingType", readTypeObjects(propertySetTerms));
+			}
+		} catch (IOException | QueryException e) {
+			throw new BimserverDatabaseException(e);
+		}
+		write();
+		LOGGER.debug("Property set index with " + entries.size() + " terms written in " + ((System.nanoTime() - start) / 1000000) + "ms");
+	}
+
+	/**
+	 * @return Per IfcPropertySingleValue the last part of its term (name and value), the property set name still has to be put in front
+	 */
+	private Map<Long, String> readSingleValues() throws IOException, QueryException, BimserverDatabaseException {
+		Map<Long, String> singleValues = new HashMap<>();
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(packageMetaData.getEClass("IfcPropertySingleValue"));
+		HashMapVirtualObject property = queryObjectProvider.next();
+		while (property != null) {
+			String name = (String) property.get("Name");
+			HashMapWrappedVirtualObject value = (HashMapWrappedVirtualObject) property.get("NominalValue");
+			if (name != null && value != null) {
+				Object wrappedValue = value.eGet(value.eClass().getEStructuralFeature("wrappedValue"));
+				if (value.eClass().getName().equals("IfcBoolean")) {
+					singleValues.put(property.getOid(), name + '\0' + PropertySetIndex.BOOLEAN_VALUE + ((Enumerator) wrappedValue).getName().toLowerCase());
+				} else if (wrappedValue instanceof String) {
+					singleValues.put(property.getOid(), name + '\0' + PropertySetIndex.STRING_VALUE + wrappedValue);
+				} else if (wrappedValue instanceof Double) {
+					singleValues.put(property.getOid(), name + '\0' + PropertySetIndex.DOUBLE_VALUE + wrappedValue);
+				}
+			}
+			property = queryObjectProvider.next();
+		}
+		return singleValues;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Long, List<String>> readPropertySets(Map<Long, String> singleValues) throws IOException, QueryException, BimserverDatabaseException {
+		Map<Long, List<String>> propertySetTerms = new HashMap<>();
+		EClass ifcPropertySet = packageMetaData.getEClass("IfcPropertySet");
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(packageMetaData.getEClass("IfcPropertySetDefinition"));
+		HashMapVirtualObject propertySet = queryObjectProvider.next();
+		while (propertySet != null) {
+			List<String> terms = new ArrayList<>();
+			if (ifcPropertySet.isSuperTypeOf(propertySet.eClass())) {
+				String propertySetName = (String) propertySet.get("Name");
+				List<Long> properties = (List<Long>) propertySet.get("HasProperties");
+				if (propertySetName != null && properties != null) {
+					for (long propertyOid : properties) {
+						String singleValue = singleValues.get(propertyOid);
+						if (singleValue != null) {
+							terms.add(propertySetName + '\0' + singleValue);
+						}
+					}
+				}
+			} else {
+				for (EStructuralFeature eStructuralFeature : propertySet.eClass().getEAllStructuralFeatures()) {
+					if (eStructuralFeature instanceof EAttribute && !eStructuralFeature.isMany()) {
+						Object value = propertySet.get(eStructuralFeature.getName());
+						if (value != null) {
+							terms.add(PropertySetIndex.createTerm(propertySet.eClass().getName(), eStructuralFeature.getName(), PropertySetIndex.ATTRIBUTE_VALUE, value.toString()));
+						}
+					}
+				}
+			}
+			if (!terms.isEmpty()) {
+				propertySetTerms.put(propertySet.getOid(), terms);
+			}
+			propertySet = queryObjectProvider.next();
+		}
+		return propertySetTerms;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Long, List<String>> readTypeObjects(Map<Long, List<String>> propertySetTerms) throws IOException, QueryException, BimserverDatabaseException {
+		Map<Long, List<String>> typeObjectTerms = new HashMap<>();
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(packageMetaData.getEClass("IfcTypeObject"));
+		HashMapVirtualObject typeObject = queryObjectProvider.next();
+		while (typeObject != null) {
+			List<Long> propertySets = (List<Long>) typeObject.get("HasPropertySets");
+			if (propertySets != null) {
+				List<String> terms = new ArrayList<>();
+				for (long propertySetOid : propertySets) {
+					List<String> termsOfPropertySet = propertySetTerms.get(propertySetOid);
+					if (termsOfPropertySet != null) {
+						terms.addAll(termsOfPropertySet);
+					}
+				}
+				if (!terms.isEmpty()) {
+					typeObjectTerms.put(typeObject.getOid(), terms);
+				}
+			}
+			typeObject = queryObjectProvider.next();
+		}
+		return typeObjectTerms;
+	}
+
+	/**
+	 * Adds the terms of the object the relations point to (through relatingFeature) to all related objects
+	 */
+	@SuppressWarnings("unchecked")
+	private void readRelations(EClass relationClass, String relatingFeature, Map<Long, List<String>> termsPerRelatingObject) throws IOException, QueryException, BimserverDatabaseException {
+		QueryObjectProvider queryObjectProvider = createQueryObjectProvider(relationClass);
+		HashMapVirtualObject relation = queryObjectProvider.next();
+		while (relation != null) {
+			Object relating = relation.get(relatingFeature);
+			List<Long> relatedObjects = (List<Long>) relation.get("RelatedObjects");
+			if (relating instanceof Long && relatedObjects != null) {
+				List<String> terms = termsPerRelatingObject.get(relating);
+				if (terms != null) {
+					for (String term : terms) {
+						if (TermIndexTable.isIndexable(term)) {
+							LongSet oids = entries.computeIfAbsent(term, k -> new LongOpenHashSet());
+							for (long relatedOid : relatedObjects) {
+								oids.add(relatedOid);
+							}
+						}
+					}
+				}
+			}
+			relation = queryObjectProvider.next();
+		}
+	}
+
+	private void write() throws BimserverDatabaseException {
+		byte[] empty = new byte[0];
+		for (String term : entries.keySet()) {
+			byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+			long[] oids = entries.get(term).toLongArray();
+			Arrays.sort(oids);
+			for (long oid : oids) {
+				PropertySetIndex.TABLE.store(databaseSession, croid, termBytes, oid, empty);
+			}
+		}
+		PropertySetIndex.TABLE.storeHeader(databaseSession, croid);
+	}
+}
@@ -0,0 +1,63 @@
+package org.bimserver.database.index;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * Base class of the builders of the indexes that are written for a concrete revision once it has been checked in. Builders read the objects they need type by type, without
+ * following references.
+ */
+public abstract class RevisionIndexBuilder {
+	protected final BimServer bimServer;
+	protected final DatabaseSession databaseSession;
+	protected final PackageMetaData packageMetaData;
+	protected final long roid;
+	protected final long croid;
+
+	protected RevisionIndexBuilder(BimServer bimServer, DatabaseSession databaseSession, PackageMetaData packageMetaData, long roid, long croid) {
+		this.bimServer = bimServer;
+		this.databaseSession = databaseSession;
+		this.packageMetaData = packageMetaData;
+		this.roid = roid;
+		this.croid = croid;
+	}
+
+	public abstract void build() throws BimserverDatabaseException;
+
+	/**
+	 * @return A provider of all objects of the given type (including subtypes) in the revision
+	 */
+	protected QueryObjectProvider createQueryObjectProvider(EClass eClass) throws IOException, QueryException {
+		Query query = new Query(packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		queryPart.addType(eClass, true);
+		return new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(roid), packageMetaData);
+	}
+}
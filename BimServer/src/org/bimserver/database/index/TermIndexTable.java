@@ -0,0 +1,124 @@
+package org.bimserver.database.index;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.eclipse.emf.ecore.EClass;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Layout of the tables of the per concrete revision indexes that map terms to the oids of products ({@link PropertySetIndex}, {@link ClassificationIndex}).
+ * 
+ * Keys are croid (8 bytes) followed by either nothing (the header, containing the version) or the length of a term (2 bytes), the term (UTF-8) and an oid (8 bytes).
+ */
+class TermIndexTable {
+	
+	/**
+	 * Longer terms are not stored, queries for such values are answered without the index
+	 */
+	static final int MAX_TERM_LENGTH = 512;
+	private final String tableName;
+	private final byte version;
+
+	TermIndexTable(String tableName, byte version) {
+		this.tableName = tableName;
+		this.version = version;
+	}
+
+	/**
+	 * @return Whether a complete index with the current version has been written for the given concrete revision
+	 */
+	boolean exists(DatabaseSession databaseSession, long croid) throws BimserverDatabaseException {
+		byte[] header = databaseSession.getKeyValueStore().get(tableName, createHeaderKey(croid), databaseSession);
+		return header != null && header.length > 0 && header[0] == version;
+	}
+
+	void read(DatabaseSession databaseSession, long croid, String term, LongSet oids) throws BimserverDatabaseException {
+		byte[] prefix = createPrefix(croid, term.getBytes(StandardCharsets.UTF_8));
+		SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(tableName, prefix, prefix, databaseSession, true);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				oids.add(ByteBuffer.wrap(record.getKey()).getLong(prefix.length));
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	void store(DatabaseSession databaseSession, long croid, byte[] term, long oid, byte[] value) throws BimserverDatabaseException {
+		ByteBuffer buffer = ByteBuffer.allocate(18 + term.length);
+		buffer.putLong(croid);
+		buffer.putShort((short) term.length);
+		buffer.put(term);
+		buffer.putLong(oid);
+		databaseSession.getKeyValueStore().store(tableName, buffer.array(), value, databaseSession);
+	}
+
+	/**
+	 * Makes the index visible to queries, has to be called after all entries have been stored
+	 */
+	void storeHeader(DatabaseSession databaseSession, long croid) throws BimserverDatabaseException {
+		// The header should never be there without the entries
+		databaseSession.getKeyValueStore().sync();
+		databaseSession.getKeyValueStore().store(tableName, createHeaderKey(croid), new byte[] { version }, databaseSession);
+	}
+
+	/**
+	 * @return The given oids per type, sorted (the order in which the type tables are read)
+	 */
+	static Map<EClass, List<Long>> groupByType(DatabaseSession databaseSession, LongSet oids) throws BimserverDatabaseException {
+		Map<EClass, List<Long>> oidsPerType = new HashMap<>();
+		for (long oid : oids) {
+			oidsPerType.computeIfAbsent(databaseSession.getEClassForOid(oid), k -> new ArrayList<>()).add(oid);
+		}
+		for (List<Long> list : oidsPerType.values()) {
+			Collections.sort(list);
+		}
+		return oidsPerType;
+	}
+
+	static boolean isIndexable(String term) {
+		return term.length() <= MAX_TERM_LENGTH && term.getBytes(StandardCharsets.UTF_8).length <= MAX_TERM_LENGTH;
+	}
+
+	private static byte[] createHeaderKey(long croid) {
+		return ByteBuffer.allocate(8).putLong(croid).array();
+	}
+
+	private static byte[] createPrefix(long croid, byte[] term) {
+		ByteBuffer buffer = ByteBuffer.allocate(10 + term.length);
+		buffer.putLong(croid);
+		buffer.putShort((short) term.length);
+		buffer.put(term);
+		return buffer.array();
+	}
+}
@@ -0,0 +1,216 @@
+package org.bimserver.database.migrations;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.BimserverLockConflictException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.OperationType;
+import org.bimserver.database.Record;
+import org.bimserver.database.RecordLayout;
+import org.bimserver.database.RecordLayouts;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.shared.exceptions.ServiceException;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the records of older layouts (see {@link RecordLayouts}) in the current layout while the server keeps running, after that reading them does not
+ * need a translation anymore. The work is done in small transactions and throttled to a number of records per second. After every transaction the position is
+ * stored in the registry, so a restarted server continues where it stopped.
+ */
+public class RecordLayoutMigrator extends Thread {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RecordLayoutMigrator.class);
+	private static final String REGISTRY_PREFIX = "recordlayoutmigrator_";
+	private static final int MAX_BATCH_SIZE = 1000;
+	private final BimDatabase database;
+	private final int recordsPerSecond;
+	private volatile boolean running;
+
+	/**
+	 * @param recordsPerSecond The maximum number of records read per second
+	 */
+	public RecordLayoutMigrator(BimDatabase database, int recordsPerSecond) {
+		this.database = database;
+		this.recordsPerSecond = recordsPerSecond;
+		setName("RecordLayoutMigrator");
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		running = true;
+		RecordLayouts recordLayouts = database.getRecordLayouts();
+		try {
+			for (EClass eClass : new ArrayList<>(recordLayouts.getClasses())) {
+				if (!running) {
+					return;
+				}
+				if (recordLayouts.getCurrentVersion(eClass) > 1) {
+					migrate(eClass, recordLayouts.getCurrentLayout(eClass));
+				}
+			}
+			LOGGER.info("All records have the current layout");
+		} catch (InterruptedException e) {
+			// Server is stopping, the next run continues from the stored position
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		} catch (ServiceException e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	private void migrate(EClass eClass, RecordLayout current) throws BimserverDatabaseException, ServiceException, InterruptedException {
+		String tableName = database.getTableName(eClass);
+		String progressKey = REGISTRY_PREFIX + tableName;
+		byte[] startKey = readPosition(progressKey, current.getVersion());
+		if (startKey == null) {
+			// All records of this table have been rewritten already
+			return;
+		}
+		LOGGER.info("Rewriting records of " + tableName + " with layout " + current.getVersion());
+		int batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, recordsPerSecond));
+		long rewritten = 0;
+		while (running) {
+			long start = System.nanoTime();
+			byte[] nextKey = null;
+			try (DatabaseSession databaseSession = database.createSession(OperationType.POSSIBLY_WRITE)) {
+				SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(tableName, new byte[0], startKey, databaseSession);
+				try {
+					Record record = recordIterator.next();
+					int read = 0;
+					while (record != null && read < batchSize) {
+						byte[] newValue = upgrade(eClass, current, record.getValue());
+						if (newValue != null) {
+							databaseSession.getKeyValueStore().store(tableName, record.getKey(), newValue, databaseSession);
+							rewritten++;
+						}
+						read++;
+						// The smallest key that is bigger than this key
+						nextKey = Arrays.copyOf(record.getKey(), record.getKey().length + 1);
+						record = recordIterator.next();
+					}
+					if (record == null) {
+						nextKey = null;
+					}
+				} finally {
+					recordIterator.close();
+				}
+				savePosition(progressKey, current.getVersion(), nextKey, databaseSession);
+				databaseSession.commit();
+			} catch (BimserverLockConflictException e) {
+				// Some of these records are being written by other sessions, try again later
+				Thread.sleep(1000);
+				continue;
+			}
+			if (nextKey == null) {
+				LOGGER.info("Rewrote " + rewritten + " records of " + tableName);
+				return;
+			}
+			startKey = nextKey;
+			long sleepMillis = (batchSize * 1000L) / recordsPerSecond - (System.nanoTime() - start) / 1000000;
+			if (sleepMillis > 0) {
+				Thread.sleep(sleepMillis);
+			}
+		}
+	}
+
+	/**
+	 * @return The value in the current layout, or null when the record does not need to be rewritten
+	 */
+	private byte[] upgrade(EClass eClass, RecordLayout current, byte[] value) throws BimserverDatabaseException {
+		if (value.length == 1 && value[0] == -1) {
+			// Deleted record
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(value);
+		RecordLayout recordLayout = database.getRecordLayouts().getLayout(eClass, buffer.getShort());
+		if (recordLayout.isCurrent()) {
+			return null;
+		}
+		byte[] unsetted = recordLayout.readUnsetted(buffer);
+		ByteBuffer newValue = ByteBuffer.allocate(RecordLayout.HEADER_SIZE + unsetted.length + buffer.remaining());
+		newValue.putShort(current.getVersion());
+		newValue.put(unsetted);
+		// Features that are not part of the old layout are unset, so the values of the other features stay the same
+		newValue.put(buffer);
+		return newValue.array();
+	}
+
+	/**
+	 * @return The key to continue at, an empty key to start at the beginning of the table or null when the table has been done for this layout
+	 */
+	private byte[] readPosition(String progressKey, short version) throws BimserverDatabaseException {
+		try (DatabaseSession databaseSession = database.createSession(OperationType.READ_ONLY)) {
+			return decodePosition(database.getRegistry().readByteArray(progressKey, databaseSession), version);
+		}
+	}
+
+	private void savePosition(String progressKey, short version, byte[] nextKey, DatabaseSession databaseSession) throws BimserverLockConflictException {
+		database.getRegistry().save(progressKey, encodePosition(version, nextKey), databaseSession);
+	}
+
+	/**
+	 * @param nextKey The key to continue at, or null when the table has been done
+	 * @return [short version][nextKey]
+	 */
+	static byte[] encodePosition(short version, byte[] nextKey) {
+		ByteBuffer position = ByteBuffer.allocate(2 + (nextKey == null ? 0 : nextKey.length));
+		position.putShort(version);
+		if (nextKey != null) {
+			position.put(nextKey);
+		}
+		return position.array();
+	}
+
+	/**
+	 * @return See {@link #readPosition(String, short)}
+	 */
+	static byte[] decodePosition(byte[] position, short version) {
+		if (position == null) {
+			return new byte[0];
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(position);
+		if (buffer.getShort() != version) {
+			// A newer layout has been added since, start over
+			return new byte[0];
+		}
+		if (!buffer.hasRemaining()) {
+			return null;
+		}
+		return Arrays.copyOfRange(position, 2, position.length);
+	}
+
+	/**
+	 * Stops after the current transaction, the thread is not interrupted because that would invalidate the Berkeley environment when it happens during I/O
+	 */
+	public void shutdown() {
+		running = false;
+		try {
+			join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -18,6 +18,7 @@ package org.bimserver.database.migrations.change;
  *****************************************************************************/
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.BimserverLockConflictException;
@@ -26,6 +27,8 @@ import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.KeyValueStore;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
+import org.bimserver.database.RecordLayout;
+import org.bimserver.database.RecordLayouts;
 import org.bimserver.database.migrations.NotImplementedException;
 import org.bimserver.database.migrations.Schema;
 import org.bimserver.emf.PackageMetaData;
@@ -52,14 +55,27 @@ public class NewAttributeChange implements Change {
 	public void change(Database database, DatabaseSession databaseSession) throws NotImplementedException, BimserverDatabaseException {
 		EClass eClass = eAttribute.getEContainingClass();
 		KeyValueStore keyValueStore = database.getKeyValueStore();
+		RecordLayouts recordLayouts = database.getRecordLayouts();
 		for (EClass subClass : schema.getSubClasses(eClass)) {
 			try {
 				// No data migration if the database is new
 				if (subClass.getEAnnotation("nodatabase") == null) {
+					if (recordLayouts.isVersioned(subClass)) {
+						// Records without the new attribute are upgraded when they are read
+						continue;
+					}
+					// Tables without layout versions are rewritten one last time, with version 1 of the layout when possible
+					List<String> featureNames = RecordLayout.getStoredFeatureNames(subClass, database.getMetaDataManager().getPackageMetaData(subClass.getEPackage().getName()));
+					boolean convert = recordLayouts.canConvert(subClass, featureNames);
 					RecordIterator recordIterator = keyValueStore.getRecordIterator(subClass.getEPackage().getName() + "_" + subClass.getName(), databaseSession);
 					try {
 						Record record = recordIterator.next();
 						while (record != null) {
+							if (record.getValue().length == 1 && record.getValue()[0] == -1) {
+								// Deleted record
+								record = recordIterator.next();
+								continue;
+							}
 							ByteBuffer buffer = ByteBuffer.wrap(record.getValue());
 
 							PackageMetaData packageMetaData = database.getMetaDataManager().getPackageMetaData(subClass.getEPackage().getName());
@@ -81,13 +97,19 @@ public class NewAttributeChange implements Change {
 							
 							int extra = 0;
 							
-							ByteBuffer newBuffer = ByteBuffer.allocate(record.getValue().length + (newUnsettedLength - previousUnsettedLength) + extra);
+							ByteBuffer newBuffer = ByteBuffer.allocate((convert ? RecordLayout.HEADER_SIZE : 0) + record.getValue().length + (newUnsettedLength - previousUnsettedLength) + extra);
+							if (convert) {
+								newBuffer.putShort((short) 1);
+							}
 							newBuffer.put(unsetted);
 							buffer.position(previousUnsettedLength);
 							newBuffer.put(buffer);
 							
 							keyValueStore.store(subClass.getEPackage().getName() + "_" + subClass.getName(), record.getKey(), newBuffer.array(), databaseSession);
 							record = recordIterator.next();
+						}
+						if (convert) {
+							recordLayouts.convert(subClass, featureNames, databaseSession);
 						}
 					} catch (BimserverDatabaseException e) {
 						LOGGER.error("", e);
@@ -27,6 +27,7 @@ import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.KeyValueStore;
 import org.bimserver.database.Record;
 import org.bimserver.database.RecordIterator;
+import org.bimserver.database.RecordLayouts;
 import org.bimserver.database.migrations.NotImplementedException;
 import org.bimserver.database.migrations.Schema;
 import org.eclipse.emf.ecore.EClass;
@@ -51,13 +52,23 @@ public class NewReferenceChange implements Change {
 	public void change(Database database, DatabaseSession databaseSession) throws NotImplementedException, BimserverDatabaseException {
 		EClass eClass = eReference.getEContainingClass();
 		KeyValueStore keyValueStore = database.getKeyValueStore();
+		RecordLayouts recordLayouts = database.getRecordLayouts();
 		for (EClass subClass : schema.getSubClasses(eClass)) {
 			try {
 				if (subClass.getEAnnotation("nodatabase") == null) {
+					if (recordLayouts.isVersioned(subClass)) {
+						// Records without the new reference are upgraded when they are read
+						continue;
+					}
 					RecordIterator recordIterator = keyValueStore.getRecordIterator(subClass.getEPackage().getName() + "_" + subClass.getName(), databaseSession);
 					try {
 						Record record = recordIterator.next();
 						while (record != null) {
+							if (record.getValue().length == 1 && record.getValue()[0] == -1) {
+								// Deleted record
+								record = recordIterator.next();
+								continue;
+							}
 							ByteBuffer buffer = ByteBuffer.wrap(record.getValue());
 
 							int nrStartBytesBefore = (int) Math.ceil(nrFeaturesBefore / 8.0);
@@ -25,6 +25,7 @@ import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OidCounters;
 import org.bimserver.database.actions.AbstractDownloadDatabaseAction;
+import org.bimserver.emf.MetaDataManager;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.models.store.ConcreteRevision;
 import org.bimserver.shared.QueryContext;
@@ -43,17 +44,22 @@ public class ConcreteRevisionStackFrame extends StackFrame {
 
 	public ConcreteRevisionStackFrame(QueryObjectProvider queryObjectProvider, ConcreteRevision concreteRevision, long roid) {
 		this.queryObjectProvider = queryObjectProvider;
+		queryContext = createQueryContext(queryObjectProvider.getDatabaseSession(), queryObjectProvider.getMetaDataManager(), concreteRevision, roid);
+		packageMetaData = queryContext.getPackageMetaData();
+	}
+	
+	public static QueryContext createQueryContext(DatabaseSession databaseSession, MetaDataManager metaDataManager, ConcreteRevision concreteRevision, long roid) {
 		int highestStopId = AbstractDownloadDatabaseAction.findHighestStopRid(concreteRevision.getProject(), concreteRevision);
-		packageMetaData = queryObjectProvider.getMetaDataManager().getPackageMetaData(concreteRevision.getProject().getSchema());
+		PackageMetaData packageMetaData = metaDataManager.getPackageMetaData(concreteRevision.getProject().getSchema());
 
-		queryContext = new QueryContext(queryObjectProvider.getDatabaseSession(), packageMetaData, concreteRevision.getProject().getId(), concreteRevision.getId(), roid, concreteRevision.getOid(), highestStopId);
+		QueryContext queryContext = new QueryContext(databaseSession, packageMetaData, concreteRevision.getProject().getId(), concreteRevision.getId(), roid, concreteRevision.getOid(), highestStopId);
 		if (concreteRevision.getOidCounters() != null) {
-			synchronized (getClass()) {
+			synchronized (ConcreteRevisionStackFrame.class) {
 				if (reusableQueryContexts.containsKey(concreteRevision.getOid())) {
 					queryContext.setOidCounters(reusableQueryContexts.get(concreteRevision.getOid()));
 				} else {
 					try {
-						OidCounters updateOidCounters = updateOidCounters(concreteRevision, queryObjectProvider.getDatabaseSession());
+						OidCounters updateOidCounters = updateOidCounters(concreteRevision, databaseSession);
 						queryContext.setOidCounters(updateOidCounters);
 						reusableQueryContexts.put(concreteRevision.getOid(), updateOidCounters);
 					} catch (BimserverDatabaseException e) {
@@ -62,13 +68,14 @@ public class ConcreteRevisionStackFrame extends StackFrame {
 				}
 			}
 		}
+		return queryContext;
 	}
 	
 	public static void clearCache(long croid) {
 		reusableQueryContexts.remove(croid);
 	}
 	
-	private OidCounters updateOidCounters(ConcreteRevision subRevision, DatabaseSession databaseSession) throws BimserverDatabaseException {
+	private static OidCounters updateOidCounters(ConcreteRevision subRevision, DatabaseSession databaseSession) throws BimserverDatabaseException {
 		if (subRevision.getOidCounters() != null) {
 			return new OidCounters(databaseSession, subRevision.getOidCounters());
 		}
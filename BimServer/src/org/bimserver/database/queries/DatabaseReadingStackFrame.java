@@ -21,20 +21,24 @@ import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.DatabaseSession.GetResult;
 import org.bimserver.database.Record;
 import org.bimserver.database.SearchingRecordIterator;
 import org.bimserver.database.queries.om.CanInclude;
 import org.bimserver.database.queries.om.Include;
-import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.database.queries.om.Reference;
+import org.bimserver.database.sealed.SealedRevision;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.HashMapWrappedVirtualObject;
@@ -60,6 +64,8 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 	private final QueryObjectProvider queryObjectProvider;
 	protected HashMapVirtualObject currentObject;
 	private final QueryPart queryPart;
+	// Oids of the records this frame has prefetched, evicted when it is done
+	private List<Long> prefetched;
 
 	public DatabaseReadingStackFrame(QueryContext reusable, QueryObjectProvider queryObjectProvider, QueryPart queryPart) {
 		this.reusable = reusable;
@@ -101,15 +107,7 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 				}
 			}
 			if (canInclude.isIncludeAllFields()) {
-				for (EReference eReference : object.eClass().getEAllReferences()) {
-					Include include = new Include(reusable.getPackageMetaData());
-					include.addType(object.eClass(), false);
-					include.addField(eReference.getName());
-					if (canInclude.hasIncludes()) {
-						for (Include include2 : canInclude.getIncludes()) {
-							include.addInclude(include2);
-						}
-					}
+				for (Include include : queryObjectProvider.getDatabaseSession().getQueryPlanCache().getIncludeAllFieldsIncludes(reusable.getPackageMetaData(), canInclude, object.eClass())) {
 					processPossibleInclude(object, canInclude, include);
 				}
 			}
@@ -121,13 +119,9 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 
 	protected void processPossibleInclude(HashMapVirtualObject object, CanInclude previousInclude, Include include) throws QueryException, BimserverDatabaseException {
 		if (include.hasTypes()) {
-			for (TypeDef filterClass : include.getTypes()) {
-				// TODO also exclude the possibly excluded types here
-				if (!filterClass.geteClass().isSuperTypeOf(object.eClass())) {
-//					System.out.println(filterClass.getName() + " / " + currentObject.eClass().getName());
-					// TODO too many times queries are spending time here
-					return;
-				}
+			// TODO also exclude the possibly excluded types here
+			if (!queryObjectProvider.getDatabaseSession().getQueryPlanCache().getIncludePlan(include).matchesTypes(object.getOid())) {
+				return;
 			}
 		}
 		if (include.hasDirectFields()) {
@@ -135,6 +129,7 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 				Object ref = object.get(eReference.getName());
 				if (ref != null) {
 					if (ref instanceof List) {
+						prefetch((List<Long>)ref);
 						for (Long r : (List<Long>)ref) {
 							HashMapVirtualObject byOid = getByOid(r, true);
 							int index = object.addDirectListReference(eReference, byOid);
@@ -166,16 +161,20 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 		getQueryObjectProvider().push(new QueryIncludeStackFrame(getQueryObjectProvider(), getReusable(), previousInclude, include, object, queryPart));
 	}
 	
-	public GetResult getMap(EClass originalQueryClass, EClass eClass, ByteBuffer buffer, int keyPid, long keyOid, int keyRid) throws BimserverDatabaseException {
+	/**
+	 * The value of the record is only read when the object has to be converted, so records that are skipped can come from an iterator that reads values lazily
+	 */
+	public GetResult getMap(EClass originalQueryClass, EClass eClass, Record record, int keyPid, long keyOid, int keyRid) throws BimserverDatabaseException {
 		if (keyPid == getReusable().getPid()) {
 			if (keyRid <= getReusable().getRid() && keyRid >= getReusable().getStopRid()) {
 				if (!getQueryObjectProvider().hasRead(keyOid)) {
+					ByteBuffer buffer = record.getValueBuffer();
 					if (buffer.capacity() == 1 && buffer.get(0) == -1) {
 						buffer.position(buffer.position() + 1);
 						return GetResult.CONTINUE_WITH_NEXT_OID;
 						// deleted entity
 					} else {
-						 currentObject = convertByteArrayToObject(eClass, keyOid, buffer, keyRid);
+						 currentObject = convertByteArrayToObject(eClass, keyOid, buffer, keyRid, queryPart == null ? null : getQueryObjectProvider().getAttributesToRead(eClass));
 					}
 				}
 				return GetResult.CONTINUE_WITH_NEXT_OID;
@@ -188,11 +187,15 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 	}
 	
 	protected HashMapVirtualObject convertByteArrayToObject(EClass eClass, long oid, ByteBuffer buffer, int rid) throws BimserverDatabaseException {
+		return convertByteArrayToObject(eClass, oid, buffer, rid, null);
+	}
+
+	/**
+	 * @param attributes When not null, only the attributes with these names are decoded, the values of other attributes are skipped. References are always decoded because includes depend on them
+	 */
+	protected HashMapVirtualObject convertByteArrayToObject(EClass eClass, long oid, ByteBuffer buffer, int rid, Set<String> attributes) throws BimserverDatabaseException {
 		try {
-			int unsettedLength = getPackageMetaData().getUnsettedLength(eClass);
-			
-			byte[] unsetted = new byte[unsettedLength];
-			buffer.get(unsetted);
+			byte[] unsetted = queryObjectProvider.getDatabaseSession().getRecordLayouts().readUnsetted(eClass, getPackageMetaData(), buffer);
 			
 			int fieldCounter = 0;
 			
@@ -210,6 +213,8 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 							} else if (feature.getDefaultValue() != null) {
 								idEObject.setAttribute((EAttribute) feature, feature.getDefaultValue());
 							}
+						} else if (attributes != null && feature instanceof EAttribute && !attributes.contains(feature.getName())) {
+							queryObjectProvider.getDatabaseSession().fakeRead(buffer, feature);
 						} else {
 							Object newValue = null;
 							if (feature.isMany()) {
@@ -493,6 +498,53 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 			return byOid;
 		}
 		EClass eClass = getQueryObjectProvider().getDatabaseSession().getEClassForOid(oid);
+		Record record = readRecord(eClass, oid);
+		if (record == null) {
+			return null;
+		}
+		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+		ByteBuffer valueBuffer = record.getValueBuffer();
+		keyBuffer.getInt(); // pid
+		long keyOid = keyBuffer.getLong();
+		int keyRid = -keyBuffer.getInt();
+		if (keyRid <= reusable.getRid()) {
+			if (valueBuffer.capacity() == 1 && valueBuffer.get(0) == -1) {
+				valueBuffer.position(valueBuffer.position() + 1);
+				return null;
+				// deleted entity
+			} else {
+				byOid = convertByteArrayToObject(eClass, keyOid, valueBuffer, keyRid);
+				if (byOid != null && useCache) {
+					getQueryObjectProvider().cache(byOid);
+				}
+				return byOid;
+			}
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the newest record of the given object that is visible in this frame's revision, using the prefetched records when available
+	 */
+	protected Record readRecord(EClass eClass, long oid) throws BimserverDatabaseException {
+		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		SealedRevision sealedRevision = getSealedRevision(tableName);
+		if (sealedRevision != null) {
+			Record record = sealedRevision.get(tableName, oid);
+			if (record != null) {
+				getQueryObjectProvider().incReads();
+			}
+			return record;
+		}
+		PrefetchedRecords prefetchedRecords = getQueryObjectProvider().getPrefetchedRecords();
+		if (prefetchedRecords.contains(oid, reusable)) {
+			Record record = prefetchedRecords.take(oid);
+			if (record != null) {
+				getQueryObjectProvider().incReads();
+			}
+			return record;
+		}
 		ByteBuffer mustStartWith = ByteBuffer.wrap(new byte[12]);
 		mustStartWith.putInt(reusable.getPid());
 		mustStartWith.putLong(oid);
@@ -501,36 +553,74 @@ public abstract class DatabaseReadingStackFrame extends StackFrame implements Ob
 		startSearchWith.putLong(oid);
 		startSearchWith.putInt(-reusable.getRid());
 	
-		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, mustStartWith.array(),
 				startSearchWith.array(), getQueryObjectProvider().getDatabaseSession());
 		try {
 			Record record = recordIterator.next();
-			if (record == null) {
-				return null;
-			}
-			getQueryObjectProvider().incReads();
-			ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-			ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-			keyBuffer.getInt(); // pid
-			long keyOid = keyBuffer.getLong();
-			int keyRid = -keyBuffer.getInt();
-			if (keyRid <= reusable.getRid()) {
-				if (valueBuffer.capacity() == 1 && valueBuffer.get(0) == -1) {
-					valueBuffer.position(valueBuffer.position() + 1);
-					return null;
-					// deleted entity
-				} else {
-					byOid = convertByteArrayToObject(eClass, keyOid, valueBuffer, keyRid);
-					if (byOid != null && useCache) {
-						getQueryObjectProvider().cache(byOid);
-					}
-					return byOid;
-				}
-			} else {
-				return null;
+			if (record != null) {
+				getQueryObjectProvider().incReads();
 			}
+			return record;
 		} finally {
 			recordIterator.close();
 		}
 	}
+
+	/**
+	 * Reads the records of objects that are about to be read by this frame or by frames it pushes, see {@link PrefetchedRecords}. Objects that are already cached or read are skipped.
+	 */
+	protected void prefetch(Collection<Long> oids) throws BimserverDatabaseException {
+		if (oids.size() < 2 || queryObjectProvider.getDatabaseSession().getSealedRevision(reusable.getPid(), reusable.getRid()) != null) {
+			// Lookups in a sealed revision are cheap enough by themselves
+			return;
+		}
+		List<Long> toRead = new ArrayList<>(oids.size());
+		for (Long oid : oids) {
+			if (!queryObjectProvider.hasRead(oid) && queryObjectProvider.getFromCache(oid) == null) {
+				toRead.add(oid);
+			}
+		}
+		List<Long> added = queryObjectProvider.getPrefetchedRecords().prefetch(queryObjectProvider.getDatabaseSession(), reusable, toRead);
+		if (prefetched == null) {
+			prefetched = added;
+		} else {
+			prefetched.addAll(added);
+		}
+	}
+
+	/**
+	 * Called when this frame and all frames it pushed are done, the records it prefetched that nobody took are not needed anymore
+	 */
+	void evictPrefetched() {
+		if (prefetched != null) {
+			queryObjectProvider.getPrefetchedRecords().evict(prefetched);
+			prefetched = null;
+		}
+	}
+
+	/**
+	 * @return The sealed snapshot of this frame's revision when it covers the given table, otherwise null
+	 */
+	protected SealedRevision getSealedRevision(String tableName) {
+		SealedRevision sealedRevision = queryObjectProvider.getDatabaseSession().getSealedRevision(reusable.getPid(), reusable.getRid());
+		if (sealedRevision != null && sealedRevision.covers(tableName)) {
+			return sealedRevision;
+		}
+		return null;
+	}
+
+	/**
+	 * Iterates the records of this frame's project in the given table, from the sealed snapshot of the revision when there is one, otherwise from the key value store
+	 * 
+	 * @param startSearchingAt A (partial) key, starting with the pid of this frame
+	 */
+	protected SearchingRecordIterator getRecordIterator(String tableName, byte[] startSearchingAt) throws BimserverDatabaseException {
+		SealedRevision sealedRevision = getSealedRevision(tableName);
+		if (sealedRevision != null) {
+			return sealedRevision.getRecordIterator(tableName, startSearchingAt);
+		}
+		DatabaseSession databaseSession = queryObjectProvider.getDatabaseSession();
+		// Most records that are iterated are skipped (newer revisions, older versions of objects already read), their values are not read
+		return databaseSession.getKeyValueStore().getLazyRecordIterator(tableName, BinUtils.intToByteArray(reusable.getPid()), startSearchingAt, databaseSession);
+	}
 }
\ No newline at end of file
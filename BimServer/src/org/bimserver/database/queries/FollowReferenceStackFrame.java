@@ -22,7 +22,6 @@ import java.util.List;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.Record;
-import org.bimserver.database.SearchingRecordIterator;
 import org.bimserver.database.queries.om.Include;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
@@ -61,56 +60,41 @@ public class FollowReferenceStackFrame extends DatabaseReadingStackFrame impleme
 			throw new BimserverDatabaseException("Cannot get object for oid " + oid);
 		}
 		EClass eClass = getQueryObjectProvider().getDatabaseSession().getEClassForOid(oid);
-		ByteBuffer mustStartWith = ByteBuffer.wrap(new byte[12]);
-		mustStartWith.putInt(getReusable().getPid());
-		mustStartWith.putLong(oid);
-		ByteBuffer startSearchWith = ByteBuffer.wrap(new byte[16]);
-		startSearchWith.putInt(getReusable().getPid());
-		startSearchWith.putLong(oid);
-		startSearchWith.putInt(-getReusable().getRid());
-
-		SearchingRecordIterator recordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
-				startSearchWith.array(), getQueryObjectProvider().getDatabaseSession());
-		try {
-			Record record = recordIterator.next();
-			if (record == null) {
+		Record record = readRecord(eClass, oid);
+		if (record == null) {
+			return true;
+		}
+		ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
+		keyBuffer.getInt(); // pid
+		long keyOid = keyBuffer.getLong();
+		int keyRid = -keyBuffer.getInt();
+		if (keyRid <= getReusable().getRid()) {
+			if (valueBuffer.capacity() == 1 && valueBuffer.get(0) == -1) {
+				valueBuffer.position(valueBuffer.position() + 1);
 				return true;
-			}
-			getQueryObjectProvider().incReads();
-			ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
-			ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-			keyBuffer.getInt(); // pid
-			long keyOid = keyBuffer.getLong();
-			int keyRid = -keyBuffer.getInt();
-			if (keyRid <= getReusable().getRid()) {
-				if (valueBuffer.capacity() == 1 && valueBuffer.get(0) == -1) {
-					valueBuffer.position(valueBuffer.position() + 1);
-					return true;
-					// deleted entity
-				} else {
-					currentObject = convertByteArrayToObject(eClass, keyOid, valueBuffer, keyRid);
-					
-					if (currentObject != null) {
-						EReference opposite = getPackageMetaData().getInverseOrOpposite(currentObject.eClass(), fromReference);
-						if (opposite != null) {
-							Object x = currentObject.get(opposite.getName());
-							if (x instanceof List) {
-								List<Long> list = (List<Long>)x;
-								int index = list.indexOf(fromOid);
-								currentObject.addUseForSerialization(opposite, index);
-							} else {
-								currentObject.addUseForSerialization(opposite);
-							}
+				// deleted entity
+			} else {
+				currentObject = convertByteArrayToObject(eClass, keyOid, valueBuffer, keyRid);
+				
+				if (currentObject != null) {
+					EReference opposite = getPackageMetaData().getInverseOrOpposite(currentObject.eClass(), fromReference);
+					if (opposite != null) {
+						Object x = currentObject.get(opposite.getName());
+						if (x instanceof List) {
+							List<Long> list = (List<Long>)x;
+							int index = list.indexOf(fromOid);
+							currentObject.addUseForSerialization(opposite, index);
+						} else {
+							currentObject.addUseForSerialization(opposite);
 						}
 					}
-					
-					processPossibleIncludes(currentObject, null, include);
 				}
-			} else {
-				return true;
+				
+				processPossibleIncludes(currentObject, null, include);
 			}
-		} finally {
-			recordIterator.close();
+		} else {
+			return true;
 		}
 		return true;
 	}
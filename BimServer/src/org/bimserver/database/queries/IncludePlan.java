@@ -0,0 +1,134 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bimserver.database.Database;
+import org.bimserver.database.queries.om.Include;
+import org.bimserver.database.queries.om.Include.TypeDef;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+
+/**
+ * The parts of an {@link Include} that are the same for every object the include is applied to, computed once instead of for every object. Types are resolved to
+ * bitsets of cids, so checking an object (of which the cid is part of the oid) is a single lookup.
+ */
+public class IncludePlan {
+	private final List<EReference> features;
+	private final Set<EReference> directFeatures;
+	private final BitSet outputCids;
+	private final BitSet typeCids;
+
+	public IncludePlan(Database database, Include include) {
+		List<EReference> fields = include.getFields();
+		List<EReference> fieldsDirect = include.getFieldsDirect();
+		List<EReference> features = new ArrayList<>();
+		if (fields != null) {
+			features.addAll(fields);
+		}
+		if (fieldsDirect != null) {
+			features.addAll(fieldsDirect);
+		}
+		this.features = Collections.unmodifiableList(features);
+		// Only when there are no other fields the direct fields are handled as such by the include frames
+		if (fields == null && fieldsDirect != null) {
+			this.directFeatures = Collections.unmodifiableSet(new HashSet<>(fieldsDirect));
+		} else {
+			this.directFeatures = Collections.emptySet();
+		}
+
+		PackageMetaData packageMetaData = include.getPackageMetaData();
+		if (include.getOutputTypes() != null) {
+			outputCids = new BitSet();
+			for (TypeDef typeDef : include.getOutputTypes()) {
+				set(database, outputCids, typeDef.geteClass());
+				if (typeDef.isIncludeSubTypes()) {
+					for (EClass eClass : packageMetaData.getAllSubClasses(typeDef.geteClass())) {
+						if (!typeDef.excludes(eClass)) {
+							set(database, outputCids, eClass);
+						}
+					}
+				}
+			}
+		} else {
+			outputCids = null;
+		}
+
+		if (include.hasTypes()) {
+			// An object has to be of (a subtype of) every one of the types
+			BitSet cids = null;
+			for (TypeDef typeDef : include.getTypes()) {
+				BitSet typeDefCids = new BitSet();
+				for (EClass eClass : packageMetaData.getEClasses()) {
+					if (typeDef.geteClass().isSuperTypeOf(eClass)) {
+						set(database, typeDefCids, eClass);
+					}
+				}
+				if (cids == null) {
+					cids = typeDefCids;
+				} else {
+					cids.and(typeDefCids);
+				}
+			}
+			typeCids = cids;
+		} else {
+			typeCids = null;
+		}
+	}
+
+	private static void set(Database database, BitSet cids, EClass eClass) {
+		Short cid = database.getCidOfEClass(eClass);
+		if (cid != null && cid >= 0) {
+			cids.set(cid);
+		}
+	}
+
+	public boolean isEmpty() {
+		return features.isEmpty();
+	}
+
+	public List<EReference> getFeatures() {
+		return features;
+	}
+
+	public boolean isDirect(EReference feature) {
+		return directFeatures.contains(feature);
+	}
+
+	/**
+	 * @return Whether the referenced object should be followed given the output types of the include
+	 */
+	public boolean isOutput(long oid) {
+		short cid = (short) oid;
+		return outputCids == null || (cid >= 0 && outputCids.get(cid));
+	}
+
+	/**
+	 * @return Whether an object with the given oid matches the types of the include
+	 */
+	public boolean matchesTypes(long oid) {
+		short cid = (short) oid;
+		return typeCids == null || (cid >= 0 && typeCids.get(cid));
+	}
+}
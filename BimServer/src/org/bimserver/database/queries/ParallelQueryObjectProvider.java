@@ -0,0 +1,359 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.OidCounters;
+import org.bimserver.database.OldQuery;
+import org.bimserver.database.OperationType;
+import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.plugins.serializers.ObjectProvider;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.QueryContext;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Executes a query by splitting it into partitions (QueryParts, and for plain type queries the oid ranges of the class tables), which are read in parallel by at most nrThreads workers on the
+ * shared query executor of the BimServer, each partition with its own DatabaseSession. Objects the workers cache are cached in the given DatabaseSession, so they can be found with {@link #getByOid(long)}.
+ * 
+ * The results are merged into one stream. When preserveOrder is true, the results of a partition are only returned after all results of the previous partitions, which results in the same order as the sequential {@link QueryObjectProvider}
+ * for the objects that are directly selected by the query.
+ */
+public class ParallelQueryObjectProvider implements ObjectProvider {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParallelQueryObjectProvider.class);
+	private static final Object END_OF_PARTITION = new Object();
+	
+	// Tables with less (estimated) objects than this will not be split into multiple partitions
+	private static final int MIN_OBJECTS_PER_PARTITION = 20000;
+	private static final int MAX_PARTITIONS_PER_CLASS = 64;
+	private static final int QUEUE_SIZE = 10000;
+
+	private final DatabaseSession databaseSession;
+	private final BimServer bimServer;
+	private final Query query;
+	private final Set<Long> roids;
+	private final PackageMetaData packageMetaData;
+	private final int nrThreads;
+	private final boolean preserveOrder;
+	private final ExecutorService executorService;
+	private final LongOpenHashSet oidsRead = new LongOpenHashSet();
+	private final List<QueryPartition> partitions = new ArrayList<>();
+	private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+	private final List<Future<?>> workers = new ArrayList<>();
+	private final AtomicInteger nextPartition = new AtomicInteger();
+	private volatile boolean cancelled;
+	private volatile Throwable error;
+	private int partitionsDone = 0;
+	private long start = -1;
+
+	/**
+	 * @param databaseSession Used to resolve the revisions and to cache objects, the partitions themselves are read with new (read-only) DatabaseSessions
+	 */
+	public ParallelQueryObjectProvider(DatabaseSession databaseSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData, int nrThreads, boolean preserveOrder) throws BimserverDatabaseException, QueryException {
+		this(databaseSession, bimServer, query, roids, packageMetaData, nrThreads, preserveOrder, bimServer.getQueryExecutorService());
+	}
+
+	/**
+	 * @param executorService The executor the partitions are read on, instead of the query executor of the BimServer (which does not exist when the server is configured with one query thread)
+	 */
+	ParallelQueryObjectProvider(DatabaseSession databaseSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData, int nrThreads, boolean preserveOrder, ExecutorService executorService) throws BimserverDatabaseException, QueryException {
+		this.databaseSession = databaseSession;
+		this.bimServer = bimServer;
+		this.query = query;
+		this.roids = roids;
+		this.packageMetaData = packageMetaData;
+		this.nrThreads = nrThreads;
+		this.preserveOrder = preserveOrder;
+		this.executorService = executorService;
+		if (roids.size() == 0) {
+			throw new QueryException("At least one roid required");
+		}
+		plan();
+	}
+
+	/**
+	 * @return A ParallelQueryObjectProvider when the server is configured to use more than one query thread and the query can be partitioned, a QueryObjectProvider otherwise
+	 */
+	public static ObjectProvider create(DatabaseSession databaseSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData, boolean preserveOrder) throws BimserverDatabaseException, QueryException, IOException {
+		int nrThreads = bimServer.getConfig().getQueryThreads();
+		if (nrThreads > 1 && bimServer.getQueryExecutorService() != null && canExecuteInParallel(query)) {
+			return new ParallelQueryObjectProvider(databaseSession, bimServer, query, roids, packageMetaData, nrThreads, preserveOrder);
+		}
+		return new QueryObjectProvider(databaseSession, bimServer, query, roids, packageMetaData);
+	}
+
+	public static boolean canExecuteInParallel(Query query) {
+		if (query.getSpecialQueryType() != null) {
+			return false;
+		}
+		for (QueryPart queryPart : query.getQueryParts()) {
+			if (queryPart.getTiles() != null) {
+				// Tiles need an octree, which is initialized by the StartFrame
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isTypeOnly(QueryPart queryPart) {
+		return !queryPart.hasOids() && queryPart.getGuids() == null && queryPart.getNames() == null && queryPart.getProperties() == null && queryPart.getClassifications() == null && queryPart.getInBoundingBox() == null && queryPart.getTiles() == null;
+	}
+
+	private void plan() throws BimserverDatabaseException {
+		for (long roid : roids) {
+			Revision revision = (Revision) databaseSession.get(StorePackage.eINSTANCE.getRevision(), roid, OldQuery.getDefault());
+			for (ConcreteRevision concreteRevision : revision.getConcreteRevisions()) {
+				QueryContext queryContext = ConcreteRevisionStackFrame.createQueryContext(databaseSession, bimServer.getMetaDataManager(), concreteRevision, roid);
+				for (QueryPart queryPart : query.getQueryParts()) {
+					if (isTypeOnly(queryPart)) {
+						for (EClass eClass : QueryPartStackFrame.getTypes(queryPart, queryContext)) {
+							planTable(queryPart, queryContext, eClass);
+						}
+					} else {
+						partitions.add(new QueryPartition(queryPart, queryContext, null, -1, -1));
+					}
+				}
+			}
+		}
+		LOGGER.debug("Query " + query.getName() + " split into " + partitions.size() + " partitions");
+	}
+
+	private void planTable(QueryPart queryPart, QueryContext queryContext, EClass eClass) {
+		OidCounters oidCounters = queryContext.getOidCounters();
+		if (oidCounters == null) {
+			partitions.add(new QueryPartition(queryPart, queryContext, eClass, -1, -1));
+			return;
+		}
+		if (!oidCounters.containsKey(eClass)) {
+			// Not in this revision
+			return;
+		}
+		long startOid = oidCounters.get(eClass) + 1;
+		long endOid = databaseSession.getCounter(eClass) + 1;
+		
+		// Upper bound, objects of revisions checked in later are also in this range
+		long estimatedObjects = (endOid - startOid) / 65536;
+		int nrPartitions = (int) Math.max(1, Math.min(MAX_PARTITIONS_PER_CLASS, estimatedObjects / MIN_OBJECTS_PER_PARTITION));
+		if (nrPartitions == 1) {
+			partitions.add(new QueryPartition(queryPart, queryContext, eClass, -1, -1));
+			return;
+		}
+		long step = ((endOid - startOid) / nrPartitions / 65536 + 1) * 65536;
+		for (long partitionStart = startOid; partitionStart < endOid; partitionStart += step) {
+			long partitionEnd = partitionStart + step;
+			// The last partition has no upper bound
+			partitions.add(new QueryPartition(queryPart, queryContext, eClass, partitionStart, partitionEnd >= endOid ? -1 : partitionEnd));
+		}
+	}
+
+	private void startWorkers() {
+		if (partitions.isEmpty()) {
+			return;
+		}
+		if (preserveOrder) {
+			for (int i = 0; i < partitions.size(); i++) {
+				queues.add(new ArrayBlockingQueue<>(QUEUE_SIZE));
+			}
+		} else {
+			queues.add(new ArrayBlockingQueue<>(QUEUE_SIZE));
+		}
+		for (int i = 0; i < Math.min(nrThreads, partitions.size()); i++) {
+			workers.add(executorService.submit(this::runWorker));
+		}
+	}
+
+	/**
+	 * Workers take the partitions in order, so in preserveOrder mode the partition that is being drained is always running or done
+	 */
+	private void runWorker() {
+		int index = nextPartition.getAndIncrement();
+		while (index < partitions.size() && !cancelled) {
+			runPartition(partitions.get(index), preserveOrder ? queues.get(index) : queues.get(0));
+			index = nextPartition.getAndIncrement();
+		}
+	}
+
+	private void runPartition(QueryPartition partition, BlockingQueue<Object> queue) {
+		try (DatabaseSession partitionSession = bimServer.getDatabase().createSession(OperationType.READ_ONLY)) {
+			QueryObjectProvider queryObjectProvider = new QueryObjectProvider(partitionSession, databaseSession, bimServer, query, roids, packageMetaData, partition.copyForSession(partitionSession));
+			HashMapVirtualObject next = queryObjectProvider.next();
+			while (next != null && !cancelled) {
+				put(queue, next);
+				next = queryObjectProvider.next();
+			}
+		} catch (Throwable e) {
+			if (error == null) {
+				error = e;
+			}
+		} finally {
+			put(queue, END_OF_PARTITION);
+		}
+	}
+
+	private void put(BlockingQueue<Object> queue, Object object) {
+		try {
+			while (!cancelled) {
+				if (queue.offer(object, 1, TimeUnit.SECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			cancelled = true;
+		}
+	}
+
+	@Override
+	public HashMapVirtualObject next() throws BimserverDatabaseException {
+		if (start == -1) {
+			start = System.nanoTime();
+			startWorkers();
+		}
+		while (partitionsDone < partitions.size()) {
+			BlockingQueue<Object> queue = preserveOrder ? queues.get(partitionsDone) : queues.get(0);
+			Object next;
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				close();
+				throw new BimserverDatabaseException(e);
+			}
+			if (next == END_OF_PARTITION) {
+				if (error != null) {
+					close();
+					if (error instanceof BimserverDatabaseException) {
+						throw (BimserverDatabaseException) error;
+					}
+					throw new BimserverDatabaseException(error);
+				}
+				partitionsDone++;
+				if (preserveOrder) {
+					// Allow the queue of the finished partition to be garbage collected
+					queues.set(partitionsDone - 1, null);
+				}
+				if (partitionsDone == partitions.size()) {
+					LOGGER.debug("Query " + query.getName() + ", " + partitions.size() + " partitions, " + oidsRead.size() + " objects read, " + ((System.nanoTime() - start) / 1000000) + "ms");
+				}
+				continue;
+			}
+			HashMapVirtualObject object = (HashMapVirtualObject) next;
+			if (oidsRead.add(object.getOid())) {
+				return object;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stops all workers, only needs to be called when not all results are read. Workers are not interrupted (that would invalidate the Berkeley environment when it
+	 * happens during I/O), they stop after the object they are reading.
+	 */
+	public void close() {
+		cancelled = true;
+		for (Future<?> worker : workers) {
+			worker.cancel(false);
+		}
+	}
+
+	/**
+	 * @return Percentage of partitions that have been fully read
+	 */
+	public int getProgress() {
+		if (partitions.isEmpty()) {
+			return 100;
+		}
+		return partitionsDone * 100 / partitions.size();
+	}
+
+	public int getNrPartitions() {
+		return partitions.size();
+	}
+
+	@Override
+	public ObjectProvider copy() throws IOException, QueryException {
+		try {
+			return new ParallelQueryObjectProvider(databaseSession, bimServer, query, roids, packageMetaData, nrThreads, preserveOrder, executorService);
+		} catch (BimserverDatabaseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public HashMapVirtualObject getByOid(long oid) {
+		return databaseSession.getFromCache(oid);
+	}
+
+	@Override
+	public EClass getEClassForOid(long oid) {
+		try {
+			return databaseSession.getEClassForOid(oid);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return null;
+	}
+
+	@Override
+	public EClass getEClassForCid(short cid) {
+		try {
+			return databaseSession.getEClass(cid);
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return null;
+	}
+
+	@Override
+	public ObjectNode getQueryNode() {
+		if (query.getOriginalJson() != null) {
+			return query.getOriginalJson();
+		}
+		return new JsonQueryObjectModelConverter(packageMetaData).toJson(query);
+	}
+
+	@Override
+	public void cache(HashMapVirtualObject object) {
+		databaseSession.cache(object);
+	}
+}
@@ -0,0 +1,179 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.shared.QueryContext;
+import org.eclipse.emf.ecore.EClass;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * Records that have been read ahead of the stack frames that need them. Instead of one random lookup per reference, the referenced oids are grouped per table,
+ * sorted on their key and read in one forward sweep of a cursor per table. A record is handed out once, after that it is forgotten. Records that are never
+ * taken are evicted when the frame that prefetched them is done.
+ */
+public class PrefetchedRecords {
+	/**
+	 * When the cursor is this many records behind the next oid it jumps ahead instead of stepping, so sparse references do not read the whole table
+	 */
+	private static final int MAX_STEPS = 32;
+
+	private final Map<Long, Prefetched> records = new Long2ObjectOpenHashMap<>();
+
+	private static class Prefetched {
+		private final QueryContext queryContext;
+		private final Record record;
+
+		public Prefetched(QueryContext queryContext, Record record) {
+			this.queryContext = queryContext;
+			this.record = record;
+		}
+	}
+
+	public boolean contains(long oid, QueryContext queryContext) {
+		Prefetched prefetched = records.get(oid);
+		return prefetched != null && prefetched.queryContext == queryContext;
+	}
+
+	/**
+	 * @return The newest record of the object visible in the revision it was prefetched for, or null when the object does not exist in that revision
+	 */
+	public Record take(long oid) {
+		Prefetched prefetched = records.remove(oid);
+		return prefetched == null ? null : prefetched.record;
+	}
+
+	/**
+	 * Forgets the given records when they have not been taken
+	 */
+	public void evict(Collection<Long> oids) {
+		for (long oid : oids) {
+			records.remove(oid);
+		}
+	}
+
+	/**
+	 * @return The oids that have been added, to be passed to {@link #evict(Collection)} when the records are not needed anymore
+	 */
+	public List<Long> prefetch(DatabaseSession databaseSession, QueryContext queryContext, Collection<Long> oids) throws BimserverDatabaseException {
+		List<Long> added = new ArrayList<>();
+		Map<Short, List<Long>> oidsPerCid = new HashMap<>();
+		for (long oid : oids) {
+			if (!records.containsKey(oid)) {
+				List<Long> list = oidsPerCid.get((short) oid);
+				if (list == null) {
+					list = new ArrayList<>();
+					oidsPerCid.put((short) oid, list);
+				}
+				list.add(oid);
+			}
+		}
+		for (List<Long> tableOids : oidsPerCid.values()) {
+			if (tableOids.size() < 2) {
+				// Nothing to gain for a single lookup
+				continue;
+			}
+			// Oids are positive, so this is the same order as the (unsigned) key order of the table
+			Collections.sort(tableOids);
+			EClass eClass = databaseSession.getEClassForOid(tableOids.get(0));
+			ByteBuffer mustStartWith = ByteBuffer.wrap(new byte[4]);
+			mustStartWith.putInt(queryContext.getPid());
+			// Values are only read for the records that are kept
+			SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getLazyRecordIterator(eClass.getEPackage().getName() + "_" + eClass.getName(), mustStartWith.array(),
+					createKey(queryContext, tableOids.get(0)), databaseSession);
+			try {
+				Record record = recordIterator.next();
+				int steps = 0;
+				long lastOid = -1;
+				for (long oid : tableOids) {
+					if (oid == lastOid) {
+						continue;
+					}
+					lastOid = oid;
+					Record found = null;
+					while (record != null) {
+						ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+						keyBuffer.getInt(); // pid
+						long keyOid = keyBuffer.getLong();
+						int keyRid = -keyBuffer.getInt();
+						if (keyOid > oid) {
+							break;
+						}
+						if (keyOid == oid && keyRid <= queryContext.getRid()) {
+							// Versions are ordered newest first, so this is the newest one visible
+							found = new PrefetchedRecord(record.getKey(), record.getValue());
+							record = recordIterator.next();
+							break;
+						}
+						if (++steps > MAX_STEPS) {
+							record = recordIterator.next(createKey(queryContext, oid));
+							steps = 0;
+						} else {
+							record = recordIterator.next();
+						}
+					}
+					steps = 0;
+					records.put(oid, new Prefetched(queryContext, found));
+					added.add(oid);
+				}
+			} finally {
+				recordIterator.close();
+			}
+		}
+		return added;
+	}
+
+	private static class PrefetchedRecord implements Record {
+		private final byte[] key;
+		private final byte[] value;
+
+		public PrefetchedRecord(byte[] key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		@Override
+		public byte[] getKey() {
+			return key;
+		}
+
+		@Override
+		public byte[] getValue() {
+			return value;
+		}
+	}
+
+	private byte[] createKey(QueryContext queryContext, long oid) {
+		ByteBuffer key = ByteBuffer.wrap(new byte[16]);
+		key.putInt(queryContext.getPid());
+		key.putLong(oid);
+		key.putInt(-queryContext.getRid());
+		return key.array();
+	}
+}
@@ -18,6 +18,7 @@ package org.bimserver.database.queries;
  *****************************************************************************/
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession.GetResult;
@@ -26,6 +27,8 @@ import org.bimserver.database.SearchingRecordIterator;
 import org.bimserver.database.queries.om.InBoundingBox;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.geometry.spatialindex.SpatialIndex;
+import org.bimserver.geometry.spatialindex.SpatialIndexEntry;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.HashMapWrappedVirtualObject;
 import org.bimserver.shared.QueryContext;
@@ -37,35 +40,90 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 	private SearchingRecordIterator typeRecordIterator;
 	private Record record;
 	private InBoundingBox inBoundingBox;
+	private boolean hasAny;
+	
+	// When a spatial index is available, only the objects found in the index are read (sorted by oid)
+	private List<SpatialIndexEntry> candidates;
+	private int candidateIndex;
 
 	public QueryBoundingBoxStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryPart queryPart, QueryContext reusable, InBoundingBox inBoundingBox) throws BimserverDatabaseException {
 		super(reusable, queryObjectProvider, queryPart);
 		this.eClass = eClass;
 		this.inBoundingBox = inBoundingBox;
+		this.hasAny = !Double.isNaN(inBoundingBox.getX()) || !Double.isNaN(inBoundingBox.getY()) || !Double.isNaN(inBoundingBox.getZ()) || !Double.isNaN(inBoundingBox.getWidth()) || !Double.isNaN(inBoundingBox.getHeight()) || !Double.isNaN(inBoundingBox.getDepth());
 
 		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+		if (reusable.getOidCounters() != null && !reusable.getOidCounters().containsKey(eClass)) {
+			return; // will skip to next one
+		}
+		if (openSpatialIndex(tableName)) {
+			return;
+		}
 		if (reusable.getOidCounters() != null) {
-			if (!reusable.getOidCounters().containsKey(eClass)) {
-				return; // will skip to next one
-			}
 			long startOid = reusable.getOidCounters().get(eClass);
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(reusable.getPid());
 			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()));
 			record = typeRecordIterator.next();
 		}
 	}
+
+	/**
+	 * @return true when the spatial index of the concrete revision could be used, in which case the candidates have been determined and no full table scan is needed
+	 */
+	private boolean openSpatialIndex(String tableName) throws BimserverDatabaseException {
+		if (getReusable().getCroid() == -1) {
+			return false;
+		}
+		if (hasAny && (Double.isNaN(inBoundingBox.getX()) || Double.isNaN(inBoundingBox.getY()) || Double.isNaN(inBoundingBox.getZ()) || Double.isNaN(inBoundingBox.getWidth()) || Double.isNaN(inBoundingBox.getHeight()) || Double.isNaN(inBoundingBox.getDepth()))) {
+			// Partially defined boxes compare against NaN, keep the exact old behaviour by scanning
+			return false;
+		}
+		SpatialIndex spatialIndex = SpatialIndex.open(getQueryObjectProvider().getDatabaseSession(), getReusable().getCroid(), eClass);
+		if (spatialIndex == null) {
+			return false;
+		}
+		candidates = spatialIndex.search(entry -> mayMatch(entry));
+		if (!candidates.isEmpty()) {
+			ByteBuffer tmp = ByteBuffer.allocate(12);
+			tmp.putInt(getReusable().getPid());
+			tmp.putLong(candidates.get(0).getId());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
+		}
+		return true;
+	}
+
+	/**
+	 * Conservative test used while walking the spatial index, every object that passes the exact test also passes this one (all bounding box modes require at least an overlap)
+	 */
+	private boolean mayMatch(SpatialIndexEntry entry) {
+		if (inBoundingBox.getDensityLowerThreshold() != null && entry.getMinDensity() > inBoundingBox.getDensityLowerThreshold()) {
+			return false;
+		}
+		if (inBoundingBox.getDensityUpperThreshold() != null && entry.getMaxDensity() <= inBoundingBox.getDensityUpperThreshold()) {
+			return false;
+		}
+		if (hasAny) {
+			return entry.getMinX() <= inBoundingBox.getX() + inBoundingBox.getWidth() && entry.getMaxX() >= inBoundingBox.getX() &&
+				entry.getMinY() <= inBoundingBox.getY() + inBoundingBox.getHeight() && entry.getMaxY() >= inBoundingBox.getY() &&
+				entry.getMinZ() <= inBoundingBox.getZ() + inBoundingBox.getDepth() && entry.getMaxZ() >= inBoundingBox.getZ();
+		}
+		return true;
+	}
 	
 	@Override
 	public boolean process() throws BimserverDatabaseException, QueryException {
 		if (typeRecordIterator == null) {
 			return true;
 		}
+		if (candidates != null) {
+			return processCandidate();
+		}
 		if (record == null) {
 			currentObject = null;
 			typeRecordIterator.close();
@@ -80,8 +138,7 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
+		GetResult map = getMap(eClass, eClass, record, keyPid, keyOid, keyRid);
 		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 			nextKeyStart.position(0);
 			nextKeyStart.putInt(getReusable().getPid());
@@ -97,20 +154,9 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 				HashMapVirtualObject geometryInfo = getByOid(geometryInfoId);
 				
 				// TODO the querying party should be able to force the units used
-				// TODO use some spatial indexing, this is getting slow now that it's actually used
 
-				boolean hasAny = !Double.isNaN(inBoundingBox.getX()) || !Double.isNaN(inBoundingBox.getY()) || !Double.isNaN(inBoundingBox.getZ()) || !Double.isNaN(inBoundingBox.getWidth()) || !Double.isNaN(inBoundingBox.getHeight()) || !Double.isNaN(inBoundingBox.getDepth());
-				
-				if (inBoundingBox.getDensityLowerThreshold() != null) {
-					float density = (float) geometryInfo.get("density");
-					if (density > inBoundingBox.getDensityLowerThreshold()) {
-						currentObject = null;
-						return false;
-					}
-				}
-				if (inBoundingBox.getDensityUpperThreshold() != null) {
-					float density = (float) geometryInfo.get("density");
-					if (density <= inBoundingBox.getDensityUpperThreshold()) {
+				if (inBoundingBox.getDensityLowerThreshold() != null || inBoundingBox.getDensityUpperThreshold() != null) {
+					if (!matchesDensity((float) geometryInfo.get("density"))) {
 						currentObject = null;
 						return false;
 					}
@@ -119,90 +165,8 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 					HashMapWrappedVirtualObject bounds = (HashMapWrappedVirtualObject) geometryInfo.get("boundsMm");
 					HashMapWrappedVirtualObject minBounds = (HashMapWrappedVirtualObject) bounds.eGet("min");
 					HashMapWrappedVirtualObject maxBounds = (HashMapWrappedVirtualObject) bounds.eGet("max");
-					double minX = (double) minBounds.eGet("x");
-					double minY = (double) minBounds.eGet("y");
-					double minZ = (double) minBounds.eGet("z");
-					double maxX = (double) maxBounds.eGet("x");
-					double maxY = (double) maxBounds.eGet("y");
-					double maxZ = (double) maxBounds.eGet("z");
-					
-					if (inBoundingBox.isPartial()) {
-//						if ((maxX >= inBoundingBox.getX() && inBoundingBox.getX() + inBoundingBox.getWidth() >= minX) &&
-//							(maxY >= inBoundingBox.getY() && inBoundingBox.getY() + inBoundingBox.getHeight() >= minY) &&
-//							(maxZ >= inBoundingBox.getZ() && inBoundingBox.getZ() + inBoundingBox.getDepth() >= minZ)) {
-//							
-//						} else {
-//							currentObject = null;
-//						}
-						if (minX >= inBoundingBox.getX() &&
-						minY >= inBoundingBox.getY() &&
-						minZ >= inBoundingBox.getZ() &&
-						maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-						maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-						maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-							// OK
-						} else if (minX <= inBoundingBox.getX() &&
-								minY <= inBoundingBox.getY() &&
-								minZ <= inBoundingBox.getZ() &&
-								maxX >= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-								maxY >= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-								maxZ >= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-							// OK
-						} else {
-							if (
-								(minX <= inBoundingBox.getX() + inBoundingBox.getWidth() && maxX >= inBoundingBox.getX()) &&
-								(minY <= inBoundingBox.getY() + inBoundingBox.getHeight() && maxY >= inBoundingBox.getY()) &&
-								(minZ <= inBoundingBox.getZ() + inBoundingBox.getDepth() && maxZ >= inBoundingBox.getZ())) {
-								// OK
-							} else {
-								currentObject = null;
-							}
-						}
-					} else if (inBoundingBox.isUseCenterPoint()) {
-						double centerX = (minX + maxX) / 2f;
-						double centerY = (minY + maxY) / 2f;
-						double centerZ = (minZ + maxZ) / 2f;
-						if (
-								centerX > inBoundingBox.getX() &&
-								centerY > inBoundingBox.getY() &&
-								centerZ > inBoundingBox.getZ() &&
-								centerX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-								centerY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-								centerZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-						} else {
-							currentObject = null;
-						}
-					} else {
-						if (
-							minX > inBoundingBox.getX() &&
-							minY > inBoundingBox.getY() &&
-							minZ > inBoundingBox.getZ() &&
-							maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
-							maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
-							maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
-							if (inBoundingBox.isExcludeOctants()) {
-								for (int x=0; x<2; x++) {
-									for (int y=0; y<2; y++) {
-										for (int z=0; z<2; z++) {
-											if (
-												minX > inBoundingBox.getX() + (x * inBoundingBox.getWidth() / 2) &&
-												minY > inBoundingBox.getY() + (y * inBoundingBox.getHeight() / 2) &&
-												minZ > inBoundingBox.getZ() + (z * inBoundingBox.getDepth() / 2) &&
-												maxX < inBoundingBox.getX() + ((x == 0 ? 0.5f : 1f) * inBoundingBox.getWidth()) &&
-												maxY < inBoundingBox.getY() + ((y == 0 ? 0.5f : 1f) * inBoundingBox.getHeight()) &&
-												maxZ < inBoundingBox.getZ() + ((z == 0 ? 0.5f : 1f) * inBoundingBox.getDepth())) {
-												currentObject = null;
-												break;
-											}
-										}
-									}
-								}
-							} else {
-								// OK
-							}
-						} else {
-							currentObject = null;
-						}
+					if (!matchesBounds((double) minBounds.eGet("x"), (double) minBounds.eGet("y"), (double) minBounds.eGet("z"), (double) maxBounds.eGet("x"), (double) maxBounds.eGet("y"), (double) maxBounds.eGet("z"))) {
+						currentObject = null;
 					}
 				}
 			} else {
@@ -214,6 +178,142 @@ public class QueryBoundingBoxStackFrame extends DatabaseReadingStackFrame implem
 		
 		return false;
 	}
+
+	private boolean processCandidate() throws BimserverDatabaseException, QueryException {
+		currentObject = null;
+		SpatialIndexEntry candidate = candidates.get(candidateIndex++);
+		
+		ByteBuffer searchKey = ByteBuffer.allocate(12);
+		searchKey.putInt(getReusable().getPid());
+		searchKey.putLong(candidate.getId());
+		record = typeRecordIterator.next(searchKey.array());
+		while (record != null) {
+			ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+			int keyPid = keyBuffer.getInt();
+			long keyOid = keyBuffer.getLong();
+			int keyRid = -keyBuffer.getInt();
+			if (keyOid != candidate.getId()) {
+				break;
+			}
+			getQueryObjectProvider().incReads();
+			if (getMap(eClass, eClass, record, keyPid, keyOid, keyRid) != GetResult.CONTINUE_WITH_NEXT_RECORD) {
+				break;
+			}
+			record = typeRecordIterator.next();
+		}
+		
+		// The bounds and density in the index are copies of the ones in the GeometryInfo, so there is no need to read the GeometryInfo
+		if (currentObject != null) {
+			if (!currentObject.has("geometry") || !matchesDensity(candidate.getDensity())) {
+				currentObject = null;
+			} else if (hasAny && !matchesBounds(candidate.getMinX(), candidate.getMinY(), candidate.getMinZ(), candidate.getMaxX(), candidate.getMaxY(), candidate.getMaxZ())) {
+				currentObject = null;
+			}
+		}
+		
+		processPossibleIncludes(currentObject, eClass, getQueryPart());
+		
+		if (candidateIndex >= candidates.size()) {
+			typeRecordIterator.close();
+			return true;
+		}
+		return false;
+	}
+
+	private boolean matchesDensity(float density) {
+		if (inBoundingBox.getDensityLowerThreshold() != null) {
+			if (density > inBoundingBox.getDensityLowerThreshold()) {
+				return false;
+			}
+		}
+		if (inBoundingBox.getDensityUpperThreshold() != null) {
+			if (density <= inBoundingBox.getDensityUpperThreshold()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matchesBounds(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		if (inBoundingBox.isPartial()) {
+//			if ((maxX >= inBoundingBox.getX() && inBoundingBox.getX() + inBoundingBox.getWidth() >= minX) &&
+//				(maxY >= inBoundingBox.getY() && inBoundingBox.getY() + inBoundingBox.getHeight() >= minY) &&
+//				(maxZ >= inBoundingBox.getZ() && inBoundingBox.getZ() + inBoundingBox.getDepth() >= minZ)) {
+//				
+//			} else {
+//				currentObject = null;
+//			}
+			if (minX >= inBoundingBox.getX() &&
+			minY >= inBoundingBox.getY() &&
+			minZ >= inBoundingBox.getZ() &&
+			maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+			maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+			maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+				// OK
+			} else if (minX <= inBoundingBox.getX() &&
+					minY <= inBoundingBox.getY() &&
+					minZ <= inBoundingBox.getZ() &&
+					maxX >= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+					maxY >= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+					maxZ >= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+				// OK
+			} else {
+				if (
+					(minX <= inBoundingBox.getX() + inBoundingBox.getWidth() && maxX >= inBoundingBox.getX()) &&
+					(minY <= inBoundingBox.getY() + inBoundingBox.getHeight() && maxY >= inBoundingBox.getY()) &&
+					(minZ <= inBoundingBox.getZ() + inBoundingBox.getDepth() && maxZ >= inBoundingBox.getZ())) {
+					// OK
+				} else {
+					return false;
+				}
+			}
+		} else if (inBoundingBox.isUseCenterPoint()) {
+			double centerX = (minX + maxX) / 2f;
+			double centerY = (minY + maxY) / 2f;
+			double centerZ = (minZ + maxZ) / 2f;
+			if (
+					centerX > inBoundingBox.getX() &&
+					centerY > inBoundingBox.getY() &&
+					centerZ > inBoundingBox.getZ() &&
+					centerX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+					centerY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+					centerZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+			} else {
+				return false;
+			}
+		} else {
+			if (
+				minX > inBoundingBox.getX() &&
+				minY > inBoundingBox.getY() &&
+				minZ > inBoundingBox.getZ() &&
+				maxX <= inBoundingBox.getX() + inBoundingBox.getWidth() &&
+				maxY <= inBoundingBox.getY() + inBoundingBox.getHeight() &&
+				maxZ <= inBoundingBox.getZ() + inBoundingBox.getDepth()) {
+				if (inBoundingBox.isExcludeOctants()) {
+					for (int x=0; x<2; x++) {
+						for (int y=0; y<2; y++) {
+							for (int z=0; z<2; z++) {
+								if (
+									minX > inBoundingBox.getX() + (x * inBoundingBox.getWidth() / 2) &&
+									minY > inBoundingBox.getY() + (y * inBoundingBox.getHeight() / 2) &&
+									minZ > inBoundingBox.getZ() + (z * inBoundingBox.getDepth() / 2) &&
+									maxX < inBoundingBox.getX() + ((x == 0 ? 0.5f : 1f) * inBoundingBox.getWidth()) &&
+									maxY < inBoundingBox.getY() + ((y == 0 ? 0.5f : 1f) * inBoundingBox.getHeight()) &&
+									maxZ < inBoundingBox.getZ() + ((z == 0 ? 0.5f : 1f) * inBoundingBox.getDepth())) {
+									return false;
+								}
+							}
+						}
+					}
+				} else {
+					// OK
+				}
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
 	
 	public HashMapVirtualObject getCurrentObject() {
 		return currentObject;
@@ -84,12 +84,11 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
 			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		} else {
 			// LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()),
-					queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()));
 			record = typeRecordIterator.next();
 		}
 	}
@@ -174,8 +173,7 @@ public class QueryClassificationsAndTypesStackFrame extends DatabaseReadingStack
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
+		GetResult map = getMap(eClass, eClass, record, keyPid, keyOid, keyRid);
 		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 			nextKeyStart.position(0);
 			nextKeyStart.putInt(getReusable().getPid());
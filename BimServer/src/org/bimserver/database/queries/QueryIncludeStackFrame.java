@@ -17,73 +17,39 @@ package org.bimserver.database.queries;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.queries.om.CanInclude;
 import org.bimserver.database.queries.om.Include;
-import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.QueryContext;
 import org.bimserver.shared.WrappedVirtualObject;
-import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EReference;
 
-import com.google.common.collect.Iterators;
-
 public class QueryIncludeStackFrame extends DatabaseReadingStackFrame {
 
-	private Set<Short> outputFilterCids;
 	private Iterator<EReference> featureIterator;
 	private Include include;
+	private IncludePlan includePlan;
 	private EReference feature;
-	private HashSet<?> directFeatureSet;
 
 	public QueryIncludeStackFrame(QueryObjectProvider queryObjectProvider, QueryContext queryContext, CanInclude previousInclude, Include include, HashMapVirtualObject currentObject, QueryPart queryPart) throws QueryException, BimserverDatabaseException {
 		super(queryContext, queryObjectProvider, queryPart);
 		this.include = include;
 		this.currentObject = currentObject;
 		
-		List<EReference> features = include.getFields();
-		List<EReference> featuresDirect = include.getFieldsDirect();
-		
-		if ((features == null || features.isEmpty()) && (featuresDirect == null || featuresDirect.isEmpty())) {
+		// Everything that does not depend on the current object has been computed before, once per include
+		includePlan = queryObjectProvider.getDatabaseSession().getQueryPlanCache().getIncludePlan(include);
+		if (includePlan.isEmpty()) {
 			setDone(true);
 			return;
 		}
-		if (features == null) {
-			featureIterator = featuresDirect.iterator();
-			directFeatureSet = new HashSet<>(featuresDirect);
-		} else if (featuresDirect == null) {
-			featureIterator = features.iterator();
-		} else {
-			featureIterator = Iterators.concat(features.iterator(), featuresDirect.iterator());
-		}
-		if (include.getOutputTypes() != null) {
-			this.outputFilterCids = new HashSet<>();
-			for (TypeDef typeDef : include.getOutputTypes()) {
-				this.outputFilterCids.add(queryObjectProvider.getDatabaseSession().getCidOfEClass(typeDef.geteClass()));
-				if (typeDef.isIncludeSubTypes()) {
-					Set<EClass> allSubClasses = getPackageMetaData().getAllSubClasses(typeDef.geteClass());
-					if (typeDef.hasExcludes()) {
-						for (EClass eClass : allSubClasses) {
-							if (!typeDef.excludes(eClass)) {
-								this.outputFilterCids.add(queryObjectProvider.getDatabaseSession().getCidOfEClass(eClass));
-							}
-						}
-					} else {
-						for (EClass eClass : allSubClasses) {
-							this.outputFilterCids.add(queryObjectProvider.getDatabaseSession().getCidOfEClass(eClass));
-						}
-					}
-				}
-			}
-		}
+		featureIterator = includePlan.getFeatures().iterator();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -97,9 +63,10 @@ public class QueryIncludeStackFrame extends DatabaseReadingStackFrame {
 		if (value != null) {
 			if (feature.isMany()) {
 				List<Long> list = (List<Long>)value;
+				prefetchReferences(list);
 				for (Object element: list) {
 					if (element instanceof Long) {
-						if (directFeatureSet != null && directFeatureSet.contains(feature)) {
+						if (includePlan.isDirect(feature)) {
 							HashMapVirtualObject byOid = getByOid((long)element, true);
 							getQueryObjectProvider().addRead(byOid.getOid());
 							currentObject.addDirectListReference(feature, byOid);
@@ -121,7 +88,7 @@ public class QueryIncludeStackFrame extends DatabaseReadingStackFrame {
 			} else {
 				if (value instanceof Long) {
 					long refOid = (Long) value;
-					if (directFeatureSet != null && directFeatureSet.contains(feature)) {
+					if (includePlan.isDirect(feature)) {
 						HashMapVirtualObject byOid = getByOid((Long)refOid, true);
 						getQueryObjectProvider().addRead(byOid.getOid());
 						currentObject.setDirectReference(feature, byOid);
@@ -138,8 +105,28 @@ public class QueryIncludeStackFrame extends DatabaseReadingStackFrame {
 		return !featureIterator.hasNext();
 	}
 
+	/**
+	 * Reads the records of all referenced objects of a list in one sweep, instead of one random lookup per reference by the frames processing them
+	 */
+	private void prefetchReferences(List<?> list) throws BimserverDatabaseException {
+		if (list.size() < 2) {
+			return;
+		}
+		boolean direct = includePlan.isDirect(feature);
+		List<Long> oids = new ArrayList<>(list.size());
+		for (Object element : list) {
+			if (element instanceof Long) {
+				long oid = (Long) element;
+				if (direct || includePlan.isOutput(oid)) {
+					oids.add(oid);
+				}
+			}
+		}
+		prefetch(oids);
+	}
+
 	private void processReference(long refOid) {
-		if (outputFilterCids == null || outputFilterCids.contains((short)refOid)) {
+		if (includePlan.isOutput(refOid)) {
 //			if (!getQueryObjectProvider().hasRead(refOid)) {
 				getQueryObjectProvider().push(new FollowReferenceStackFrame(getQueryObjectProvider(), refOid, getReusable(), getQueryPart(), feature, currentObject.getOid(), include));
 //			}
@@ -20,22 +20,29 @@ package org.bimserver.database.queries;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import org.bimserver.BimServer;
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.om.CanInclude;
+import org.bimserver.database.queries.om.Include;
 import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
 import org.bimserver.database.queries.om.Query;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.database.queries.om.Reference;
 import org.bimserver.emf.MetaDataManager;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.plugins.serializers.ObjectProvider;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +65,9 @@ public class QueryObjectProvider implements ObjectProvider {
 	private static final int MAX_STACK_SIZE = 10000000;
 	private static final Logger LOGGER = LoggerFactory.getLogger(QueryObjectProvider.class);
 	private DatabaseSession databaseSession;
+	
+	// The session objects are cached in, for partitions of a parallel query this is the session of the query, not the one of the partition
+	private DatabaseSession cacheSession;
 	private BimServer bimServer;
 	
 	private final Set<Long> oidsRead = new LongOpenHashSet();
@@ -66,6 +76,8 @@ public class QueryObjectProvider implements ObjectProvider {
 	private long reads = 0;
 	private long stackFramesProcessed = 0;
 	private final Set<Long> goingToRead = new LongOpenHashSet();
+	private final PrefetchedRecords prefetchedRecords = new PrefetchedRecords();
+	private final Map<EClass, Set<String>> attributesToRead = new HashMap<>();
 	private Query query;
 	private StackFrame stackFrame;
 
@@ -75,6 +87,7 @@ public class QueryObjectProvider implements ObjectProvider {
 
 	public QueryObjectProvider(DatabaseSession databaseSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData) throws IOException, QueryException {
 		this.databaseSession = databaseSession;
+		this.cacheSession = databaseSession;
 		this.bimServer = bimServer;
 		this.query = query;
 		this.roids = roids;
@@ -83,6 +96,27 @@ public class QueryObjectProvider implements ObjectProvider {
 		stack = new ArrayDeque<StackFrame>();
 		stack.push(new StartFrame(this, roids));
 		
+		initGoingToRead();
+	}
+	
+	/**
+	 * Creates a QueryObjectProvider that only reads the given partition of the query, the revision has already been resolved in the partition's QueryContext
+	 */
+	public QueryObjectProvider(DatabaseSession databaseSession, DatabaseSession cacheSession, BimServer bimServer, Query query, Set<Long> roids, PackageMetaData packageMetaData, QueryPartition partition) throws QueryException, BimserverDatabaseException {
+		this.databaseSession = databaseSession;
+		this.cacheSession = cacheSession;
+		this.bimServer = bimServer;
+		this.query = query;
+		this.roids = roids;
+		this.packageMetaData = packageMetaData;
+		
+		stack = new ArrayDeque<StackFrame>();
+		stack.push(new QueryPartStackFrame(this, partition.getQueryPart(), partition.getQueryContext(), partition));
+		
+		initGoingToRead();
+	}
+
+	private void initGoingToRead() {
 		for (QueryPart queryPart : query.getQueryParts()) {
 			if (queryPart.hasOids()) {
 				goingToRead.addAll(queryPart.getOids());
@@ -91,11 +125,11 @@ public class QueryObjectProvider implements ObjectProvider {
 	}
 	
 	public void cache(HashMapVirtualObject object) {
-		databaseSession.cache(object);
+		cacheSession.cache(object);
 	}
 
 	public HashMapVirtualObject getFromCache(long oid) {
-		return databaseSession.getFromCache(oid);
+		return cacheSession.getFromCache(oid);
 	}
 	
 	@Override
@@ -128,8 +162,7 @@ public class QueryObjectProvider implements ObjectProvider {
 	
 	public static QueryObjectProvider fromJsonNode(DatabaseSession databaseSession, BimServer bimServer, JsonNode fullQuery, Set<Long> roids, PackageMetaData packageMetaData) throws JsonParseException, JsonMappingException, IOException, QueryException {
 		if (fullQuery instanceof ObjectNode) {
-			JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
-			Query query = converter.parseJson("query", (ObjectNode) fullQuery);
+			Query query = databaseSession.getQueryPlanCache().getQuery(packageMetaData, (ObjectNode) fullQuery);
 			return new QueryObjectProvider(databaseSession, bimServer, query, roids, packageMetaData);
 		} else {
 			throw new QueryException("Query root must be of type object");
@@ -158,6 +191,9 @@ public class QueryObjectProvider implements ObjectProvider {
 				stackFrame = stack.peek();
 				if (stackFrame.isDone()) {
 					stack.pop();
+					if (stackFrame instanceof DatabaseReadingStackFrame) {
+						((DatabaseReadingStackFrame) stackFrame).evictPrefetched();
+					}
 					continue;
 				}
 				stackFramesProcessed++;
@@ -227,6 +263,10 @@ public class QueryObjectProvider implements ObjectProvider {
 		return bimServer.getMetaDataManager();
 	}
 
+	public PrefetchedRecords getPrefetchedRecords() {
+		return prefetchedRecords;
+	}
+
 	public boolean hasRead(long oid) {
 		return oidsRead.contains(oid);
 	}
@@ -279,6 +319,98 @@ public class QueryObjectProvider implements ObjectProvider {
 		return false;
 	}
 	
+	/**
+	 * Every object is read only once, so when objects of eClass are read by a query part, that read has to satisfy all query parts and includes that can reach them.
+	 * 
+	 * @return The names of the attributes to decode for objects of eClass read by query parts, the union of the attributes of all query parts that can match eClass.
+	 *         Null (decode all attributes) when one of those query parts does not restrict its attributes or when an include can reach objects of eClass
+	 */
+	public Set<String> getAttributesToRead(EClass eClass) {
+		if (attributesToRead.containsKey(eClass)) {
+			return attributesToRead.get(eClass);
+		}
+		Set<String> attributes = null;
+		for (QueryPart queryPart : query.getQueryParts()) {
+			if (canMatch(queryPart, eClass)) {
+				if (!queryPart.hasAttributes()) {
+					attributes = null;
+					break;
+				}
+				if (attributes == null) {
+					attributes = new HashSet<>();
+				}
+				attributes.addAll(queryPart.getAttributes());
+			}
+		}
+		if (attributes != null) {
+			Set<CanInclude> done = new HashSet<>();
+			for (QueryPart queryPart : query.getQueryParts()) {
+				if (canInclude(queryPart, eClass, done)) {
+					attributes = null;
+					break;
+				}
+			}
+		}
+		attributesToRead.put(eClass, attributes);
+		return attributes;
+	}
+
+	private boolean canMatch(QueryPart queryPart, EClass eClass) {
+		if (!queryPart.hasTypes()) {
+			return true;
+		}
+		for (TypeDef typeDef : queryPart.getTypes()) {
+			if (typeDef.geteClass() == eClass || (typeDef.isIncludeSubTypes() && typeDef.geteClass().isSuperTypeOf(eClass) && !typeDef.excludes(eClass))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether objects of eClass can be reached by following the includes of canInclude, includes of all fields and unresolved includes are assumed to reach everything
+	 */
+	private boolean canInclude(CanInclude canInclude, EClass eClass, Set<CanInclude> done) {
+		if (!done.add(canInclude)) {
+			return false;
+		}
+		if (canInclude.isIncludeAllFields() || canInclude.hasIncludesToResolve()) {
+			return true;
+		}
+		if (canInclude instanceof Include) {
+			Include include = (Include) canInclude;
+			if (include.hasFields()) {
+				for (EReference eReference : include.getFields()) {
+					if (((EClass) eReference.getEType()).isSuperTypeOf(eClass)) {
+						return true;
+					}
+				}
+			}
+			if (include.hasDirectFields()) {
+				for (EReference eReference : include.getFieldsDirect()) {
+					if (((EClass) eReference.getEType()).isSuperTypeOf(eClass)) {
+						return true;
+					}
+				}
+			}
+		}
+		if (canInclude.hasIncludes()) {
+			for (Include include : canInclude.getIncludes()) {
+				if (canInclude(include, eClass, done)) {
+					return true;
+				}
+			}
+		}
+		if (canInclude.hasReferences()) {
+			for (Reference reference : canInclude.getReferences()) {
+				if (canInclude(reference.getInclude(), eClass, done)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		return super.toString();
@@ -30,7 +30,6 @@ import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.QueryContext;
-import org.bimserver.utils.BinUtils;
 import org.eclipse.emf.ecore.EClass;
 
 public class QueryOidsAndTypesStackFrame extends DatabaseReadingStackFrame implements ObjectProvidingStackFrame {
@@ -67,7 +66,7 @@ public class QueryOidsAndTypesStackFrame extends DatabaseReadingStackFrame imple
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
 			tmp.putLong(startOid);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
@@ -76,7 +75,7 @@ public class QueryOidsAndTypesStackFrame extends DatabaseReadingStackFrame imple
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
 			tmp.putLong(firstOid);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		}
 	}
@@ -100,8 +99,7 @@ public class QueryOidsAndTypesStackFrame extends DatabaseReadingStackFrame imple
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
+		GetResult map = getMap(eClass, eClass, record, keyPid, keyOid, keyRid);
 		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 			if (oidIterator.hasNext()) {
 				nextKeyStart.position(0);
@@ -29,7 +29,6 @@ import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.QueryContext;
-import org.bimserver.utils.BinUtils;
 import org.eclipse.emf.ecore.EClass;
 
 public class QueryOidsStackFrame extends DatabaseReadingStackFrame implements ObjectProvidingStackFrame {
@@ -58,7 +57,7 @@ public class QueryOidsStackFrame extends DatabaseReadingStackFrame implements Ob
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
 			tmp.putLong(oid);
-			typeRecordIterator = getQueryObjectProvider().getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), getQueryObjectProvider().getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		}
 	}
@@ -76,10 +75,9 @@ public class QueryOidsStackFrame extends DatabaseReadingStackFrame implements Ob
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
 		EClass eClass = getReusable().getDatabaseInterface().getEClassForOid(keyOid);
 		
-		getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
+		getMap(eClass, eClass, record, keyPid, keyOid, keyRid);
 
 		processPossibleIncludes(currentObject, eClass, getQueryPart());
 		
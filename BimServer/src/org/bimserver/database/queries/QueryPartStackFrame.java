@@ -18,15 +18,18 @@ package org.bimserver.database.queries;
  *****************************************************************************/
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.index.ClassificationIndex;
+import org.bimserver.database.index.PropertySetIndex;
 import org.bimserver.database.queries.om.InBoundingBox;
 import org.bimserver.database.queries.om.Include;
 import org.bimserver.database.queries.om.Include.TypeDef;
@@ -48,14 +51,27 @@ public class QueryPartStackFrame extends StackFrame {
 	private final Set<String> guids;
 	private final Set<String> names;
 	private Map<String, Properties> properties;
+	
+	// Products matching the properties or classifications according to the index of the concrete revision, null when there is no index (yet) or it cannot answer the query
+	private Map<EClass, List<Long>> indexedOids;
+	private boolean indexOpened;
 	private InBoundingBox inBoundingBox;
 	private Set<String> classifications;
 	private Tiles tiles;
+	private final QueryPartition partition;
 
 	public QueryPartStackFrame(QueryObjectProvider queryObjectProvider, QueryPart partialQuery, QueryContext reusable) throws BimserverDatabaseException, QueryException {
+		this(queryObjectProvider, partialQuery, reusable, null);
+	}
+
+	/**
+	 * @param partition When not null, only the type and oid range of this partition will be read (used by {@link ParallelQueryObjectProvider})
+	 */
+	public QueryPartStackFrame(QueryObjectProvider queryObjectProvider, QueryPart partialQuery, QueryContext reusable, QueryPartition partition) throws BimserverDatabaseException, QueryException {
 		this.queryObjectProvider = queryObjectProvider;
 		this.partialQuery = partialQuery;
 		this.reusable = reusable;
+		this.partition = partition;
 		if (partialQuery.hasOids()) {
 			Set<Long> oidsList = partialQuery.getOids();
 			this.oids = new HashMap<EClass, List<Long>>();
@@ -79,34 +95,12 @@ public class QueryPartStackFrame extends StackFrame {
 		} else {
 			oids = null;
 		}
-		if (!partialQuery.hasTypes()) {
-			if (oids == null) {
-				if (reusable.getOidCounters() == null) {
-					// TODO not efficient, should make sure there are always oid counters (also after low-level changes)
-					typeIterator = reusable.getPackageMetaData().getAllClasses().iterator();
-				} else {
-					typeIterator = reusable.getOidCounters().keySet().iterator();
-				}
-			} else {
-				typeIterator = oids.keySet().iterator();
-			}
+		if (partition != null && partition.getEClass() != null) {
+			typeIterator = Collections.singleton(partition.getEClass()).iterator();
+		} else if (!partialQuery.hasTypes() && oids != null) {
+			typeIterator = oids.keySet().iterator();
 		} else {
-			Set<EClass> set = new HashSet<>();
-			for (TypeDef typeDef : partialQuery.getTypes()) {
-				set.add(typeDef.geteClass());
-				if (typeDef.isIncludeSubTypes()) {
-					if (typeDef.hasExcludes()) {
-						for (EClass eClass : reusable.getPackageMetaData().getAllSubClasses(typeDef.geteClass())) {
-							if (!typeDef.excludes(eClass)) {
-								set.add(eClass);
-							}
-						}
-					} else {
-						set.addAll(reusable.getPackageMetaData().getAllSubClasses(typeDef.geteClass()));
-					}
-				}
-			}
-			typeIterator = set.iterator();
+			typeIterator = getTypes(partialQuery, reusable).iterator();
 		}
 		if (this.partialQuery.getGuids() != null) {
 			this.guids = partialQuery.getGuids();
@@ -156,17 +150,98 @@ public class QueryPartStackFrame extends StackFrame {
 			} else if (names != null) {
 				queryObjectProvider.push(new QueryNamesAndTypesStackFrame(queryObjectProvider, eClass, partialQuery, reusable, names));
 			} else if (properties != null) {
-				queryObjectProvider.push(new QueryPropertiesAndTypesStackFrame(queryObjectProvider, eClass, partialQuery, reusable, properties));
+				if (openPropertyIndex()) {
+					pushIndexedOids(eClass);
+				} else {
+					queryObjectProvider.push(new QueryPropertiesAndTypesStackFrame(queryObjectProvider, eClass, partialQuery, reusable, properties));
+				}
 			} else if (classifications != null) {
-				queryObjectProvider.push(new QueryClassificationsAndTypesStackFrame(queryObjectProvider, eClass, partialQuery, reusable, classifications));
+				if (openClassificationIndex()) {
+					pushIndexedOids(eClass);
+				} else {
+					queryObjectProvider.push(new QueryClassificationsAndTypesStackFrame(queryObjectProvider, eClass, partialQuery, reusable, classifications));
+				}
 			} else if (inBoundingBox != null) {
 				queryObjectProvider.push(new QueryBoundingBoxStackFrame(queryObjectProvider, eClass, partialQuery, reusable, inBoundingBox));
+			} else if (partition != null) {
+				queryObjectProvider.push(new QueryTypeStackFrame(queryObjectProvider, eClass, reusable, partialQuery, partition.getStartOid(), partition.getEndOid()));
 			} else {
 				queryObjectProvider.push(new QueryTypeStackFrame(queryObjectProvider, eClass, reusable, partialQuery));
 			}
 			return false;
 		}
 		return true;
+	}
+	
+	/**
+	 * The index is consulted once for all types of this QueryPart
+	 * 
+	 * @return true when the property set index of the concrete revision could be used, in which case only the products found in the index have to be read
+	 */
+	private boolean openPropertyIndex() throws BimserverDatabaseException {
+		if (!indexOpened) {
+			indexOpened = true;
+			if (reusable.getCroid() != -1) {
+				PropertySetIndex propertySetIndex = PropertySetIndex.open(queryObjectProvider.getDatabaseSession(), reusable.getCroid());
+				if (propertySetIndex != null) {
+					indexedOids = propertySetIndex.find(properties);
+				}
+			}
+		}
+		return indexedOids != null;
+	}
+
+	/**
+	 * @return true when the classification index of the concrete revision could be used, in which case only the products found in the index have to be read
+	 */
+	private boolean openClassificationIndex() throws BimserverDatabaseException {
+		if (!indexOpened) {
+			indexOpened = true;
+			if (reusable.getCroid() != -1) {
+				ClassificationIndex classificationIndex = ClassificationIndex.open(queryObjectProvider.getDatabaseSession(), reusable.getCroid());
+				if (classificationIndex != null) {
+					indexedOids = classificationIndex.find(classifications);
+				}
+			}
+		}
+		return indexedOids != null;
+	}
+
+	private void pushIndexedOids(EClass eClass) throws BimserverDatabaseException, QueryException {
+		List<Long> oids2 = indexedOids.get(eClass);
+		if (oids2 != null) {
+			queryObjectProvider.push(new QueryOidsAndTypesStackFrame(queryObjectProvider, eClass, partialQuery, reusable, oids2));
+		}
+	}
+	
+	/**
+	 * @return All concrete classes that will be read for the given QueryPart, not taking oids into account
+	 */
+	public static Collection<EClass> getTypes(QueryPart partialQuery, QueryContext reusable) {
+		if (!partialQuery.hasTypes()) {
+			if (reusable.getOidCounters() == null) {
+				// TODO not efficient, should make sure there are always oid counters (also after low-level changes)
+				return reusable.getPackageMetaData().getAllClasses();
+			} else {
+				return reusable.getOidCounters().keySet();
+			}
+		}
+		Set<EClass> set = new LinkedHashSet<>();
+		for (TypeDef typeDef : partialQuery.getTypes()) {
+			set.add(typeDef.geteClass());
+			if (typeDef.isIncludeSubTypes()) {
+				if (typeDef.hasExcludes()) {
+					for (EClass eClass : reusable.getPackageMetaData().getAllSubClasses(typeDef.geteClass())) {
+						if (!typeDef.excludes(eClass)) {
+							set.add(eClass);
+						}
+					}
+				} else {
+					set.addAll(reusable.getPackageMetaData().getAllSubClasses(typeDef.geteClass()));
+				}
+			}
+		}
+		return set;
 	}
 	
 	private QueryPart createFilteredQueryPart(QueryPart input) throws QueryException {
@@ -0,0 +1,81 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.plugins.deserializers.DatabaseInterface;
+import org.bimserver.shared.QueryContext;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * A part of a query that can be executed independently of the other parts. Either a complete QueryPart, or one table (eClass) of a QueryPart, possibly limited to an oid range.
+ */
+public class QueryPartition {
+	private final QueryPart queryPart;
+	private final QueryContext queryContext;
+	private final EClass eClass;
+	private final long startOid;
+	private final long endOid;
+
+	/**
+	 * @param eClass When null, the complete QueryPart is executed
+	 * @param startOid First oid (inclusive), -1 for no lower bound
+	 * @param endOid Last oid (exclusive), -1 for no upper bound
+	 */
+	public QueryPartition(QueryPart queryPart, QueryContext queryContext, EClass eClass, long startOid, long endOid) {
+		this.queryPart = queryPart;
+		this.queryContext = queryContext;
+		this.eClass = eClass;
+		this.startOid = startOid;
+		this.endOid = endOid;
+	}
+
+	public QueryPart getQueryPart() {
+		return queryPart;
+	}
+
+	public QueryContext getQueryContext() {
+		return queryContext;
+	}
+
+	public EClass getEClass() {
+		return eClass;
+	}
+
+	public long getStartOid() {
+		return startOid;
+	}
+
+	public long getEndOid() {
+		return endOid;
+	}
+
+	/**
+	 * @return A copy of this partition of which the QueryContext reads from the given DatabaseInterface
+	 */
+	public QueryPartition copyForSession(DatabaseInterface databaseInterface) {
+		QueryContext newQueryContext = new QueryContext(databaseInterface, queryContext.getPackageMetaData(), queryContext.getPid(), queryContext.getRid(), queryContext.getRoid(), queryContext.getCroid(), queryContext.getStopRid());
+		newQueryContext.setOidCounters(queryContext.getOidCounters());
+		return new QueryPartition(queryPart, newQueryContext, eClass, startOid, endOid);
+	}
+
+	@Override
+	public String toString() {
+		return (eClass == null ? "QueryPart" : eClass.getName()) + " [" + startOid + ", " + endOid + ")";
+	}
+}
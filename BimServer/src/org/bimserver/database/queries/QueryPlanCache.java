@@ -0,0 +1,166 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bimserver.database.Database;
+import org.bimserver.database.queries.om.CanInclude;
+import org.bimserver.database.queries.om.Include;
+import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Caches parsed JSON queries and the plans of their includes. Queries are cached by schema and normalized JSON, so the same query sent again (the viewers send the
+ * same few queries all the time) results in the same Query and Include objects, of which the plans are then already known.
+ * 
+ * Queries are frozen (see {@link Query#freeze()}) before they are cached, so modifying a shared query fails instead of changing it for all other executions. Include
+ * plans are kept for as long as the Include exists, so an Include must not be modified after it has been executed.
+ * 
+ * The caches are keyed by identity with weak keys and can be read concurrently, they are used by every query thread for every object that is included.
+ * 
+ * Queries with tiles are never cached, their Tiles get the tiling implementation of the revisions being queried (see StartFrame) and can therefore not be
+ * shared between executions.
+ */
+public class QueryPlanCache {
+	private static final int MAX_CACHED_QUERIES = 256;
+	private final Database database;
+	private final LoadingCache<Include, IncludePlan> includePlans;
+	// The includes "includeAllFields" stands for, one per reference of the type of the object they are applied to
+	private final LoadingCache<CanInclude, Map<EClass, List<Include>>> includeAllFieldsIncludes;
+	private final Map<String, Query> queries = Collections.synchronizedMap(new LinkedHashMap<String, Query>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+			return size() > MAX_CACHED_QUERIES;
+		}
+	});
+
+	public QueryPlanCache(Database database) {
+		this.database = database;
+		includePlans = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Include, IncludePlan>() {
+			@Override
+			public IncludePlan load(Include include) {
+				return new IncludePlan(database, include);
+			}
+		});
+		includeAllFieldsIncludes = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<CanInclude, Map<EClass, List<Include>>>() {
+			@Override
+			public Map<EClass, List<Include>> load(CanInclude canInclude) {
+				return new ConcurrentHashMap<>();
+			}
+		});
+	}
+
+	public IncludePlan getIncludePlan(Include include) {
+		return includePlans.getUnchecked(include);
+	}
+
+	/**
+	 * @return For every reference of eClass an Include of that reference for objects of exactly eClass, with the includes of canInclude. Created once per
+	 *         canInclude and eClass, so their plans are only computed once as well
+	 */
+	public List<Include> getIncludeAllFieldsIncludes(PackageMetaData packageMetaData, CanInclude canInclude, EClass eClass) throws QueryException {
+		Map<EClass, List<Include>> includesPerEClass = includeAllFieldsIncludes.getUnchecked(canInclude);
+		List<Include> includes = includesPerEClass.get(eClass);
+		if (includes == null) {
+			includes = new ArrayList<>();
+			for (EReference eReference : eClass.getEAllReferences()) {
+				Include include = new Include(packageMetaData);
+				include.addType(eClass, false);
+				include.addField(eReference.getName());
+				if (canInclude.hasIncludes()) {
+					for (Include include2 : canInclude.getIncludes()) {
+						include.addInclude(include2);
+					}
+				}
+				includes.add(include);
+			}
+			List<Include> existing = includesPerEClass.putIfAbsent(eClass, includes);
+			if (existing != null) {
+				includes = existing;
+			}
+		}
+		return includes;
+	}
+
+	public Query getQuery(PackageMetaData packageMetaData, ObjectNode fullQuery) throws QueryException {
+		String key = packageMetaData.getSchema().name() + ":" + normalize(fullQuery).toString();
+		Query query = queries.get(key);
+		if (query == null) {
+			JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
+			query = converter.parseJson("query", fullQuery.deepCopy());
+			if (!hasTiles(query)) {
+				query.freeze();
+				queries.put(key, query);
+			}
+		}
+		return query;
+	}
+
+	private boolean hasTiles(Query query) {
+		for (QueryPart queryPart : query.getQueryParts()) {
+			if (queryPart.getTiles() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private JsonNode normalize(JsonNode node) {
+		if (node instanceof ObjectNode) {
+			List<String> fieldNames = new ArrayList<>();
+			Iterator<String> iterator = node.fieldNames();
+			while (iterator.hasNext()) {
+				fieldNames.add(iterator.next());
+			}
+			Collections.sort(fieldNames);
+			ObjectNode result = JsonNodeFactory.instance.objectNode();
+			for (String fieldName : fieldNames) {
+				result.set(fieldName, normalize(node.get(fieldName)));
+			}
+			return result;
+		} else if (node instanceof ArrayNode) {
+			ArrayNode result = JsonNodeFactory.instance.arrayNode();
+			for (JsonNode element : node) {
+				result.add(normalize(element));
+			}
+			return result;
+		}
+		return node;
+	}
+}
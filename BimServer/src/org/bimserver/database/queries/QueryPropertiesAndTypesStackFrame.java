@@ -62,11 +62,11 @@ public class QueryPropertiesAndTypesStackFrame extends DatabaseReadingStackFrame
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
 			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()));
 			record = typeRecordIterator.next();
 		}
 	}
@@ -91,8 +91,7 @@ public class QueryPropertiesAndTypesStackFrame extends DatabaseReadingStackFrame
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
+		GetResult map = getMap(eClass, eClass, record, keyPid, keyOid, keyRid);
 		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 			nextKeyStart.position(0);
 			nextKeyStart.putInt(getReusable().getPid());
@@ -36,25 +36,41 @@ public class QueryTypeStackFrame extends DatabaseReadingStackFrame implements Ob
 	private EClass eClass;
 	private SearchingRecordIterator typeRecordIterator;
 	private Record record;
+	private final long endOid;
 
 	public QueryTypeStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryContext reusable, QueryPart queryPart) throws BimserverLockConflictException, BimserverDatabaseException {
+		this(queryObjectProvider, eClass, reusable, queryPart, -1, -1);
+	}
+
+	/**
+	 * @param startOid First oid (inclusive) to read, or -1 to start at the beginning of the revision
+	 * @param endOid Oid (exclusive) at which reading stops, or -1 to read until the end of the table
+	 */
+	public QueryTypeStackFrame(QueryObjectProvider queryObjectProvider, EClass eClass, QueryContext reusable, QueryPart queryPart, long startOid, long endOid) throws BimserverLockConflictException, BimserverDatabaseException {
 		super(reusable, queryObjectProvider, queryPart);
 		this.eClass = eClass;
+		this.endOid = endOid;
 		
 		String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
 		if (getReusable().getOidCounters() != null) {
 			if (!getReusable().getOidCounters().containsKey(eClass)) {
 				return; // will skip to next one
 			}
-			long startOid = getReusable().getOidCounters().get(eClass);
+			long firstOid = Math.max(getReusable().getOidCounters().get(eClass) + 1, startOid);
+			ByteBuffer tmp = ByteBuffer.allocate(12);
+			tmp.putInt(getReusable().getPid());
+			tmp.putLong(firstOid);
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
+			record = typeRecordIterator.next();
+		} else if (startOid != -1) {
 			ByteBuffer tmp = ByteBuffer.allocate(12);
 			tmp.putInt(getReusable().getPid());
-			tmp.putLong(startOid + 1);
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), tmp.array(), queryObjectProvider.getDatabaseSession());
+			tmp.putLong(startOid);
+			typeRecordIterator = getRecordIterator(tableName, tmp.array());
 			record = typeRecordIterator.next();
 		} else {
 //			LOGGER.warn("Potential too-many-reads");
-			typeRecordIterator = queryObjectProvider.getDatabaseSession().getKeyValueStore().getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()), BinUtils.intToByteArray(getReusable().getPid()), queryObjectProvider.getDatabaseSession());
+			typeRecordIterator = getRecordIterator(tableName, BinUtils.intToByteArray(getReusable().getPid()));
 			record = typeRecordIterator.next();
 		}
 	}
@@ -78,8 +94,12 @@ public class QueryTypeStackFrame extends DatabaseReadingStackFrame implements Ob
 		int keyPid = keyBuffer.getInt();
 		long keyOid = keyBuffer.getLong();
 		int keyRid = -keyBuffer.getInt();
-		ByteBuffer valueBuffer = ByteBuffer.wrap(record.getValue());
-		GetResult map = getMap(eClass, eClass, valueBuffer, keyPid, keyOid, keyRid);
+		if (endOid != -1 && keyOid >= endOid) {
+			// Reached the end of the partition this frame is responsible for
+			typeRecordIterator.close();
+			return true;
+		}
+		GetResult map = getMap(eClass, eClass, record, keyPid, keyOid, keyRid);
 		if (map == GetResult.CONTINUE_WITH_NEXT_OID) {
 			nextKeyStart.position(0);
 			nextKeyStart.putInt(getReusable().getPid());
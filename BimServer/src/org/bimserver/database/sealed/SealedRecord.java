@@ -0,0 +1,60 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+
+import org.bimserver.database.Record;
+
+/**
+ * A record backed by the mapped memory of a {@link SealedRevision}, the value is only copied when getValue is used
+ */
+public class SealedRecord implements Record {
+	private final int pid;
+	private final long oid;
+	private final int rid;
+	private final ByteBuffer value;
+
+	public SealedRecord(int pid, long oid, int rid, ByteBuffer value) {
+		this.pid = pid;
+		this.oid = oid;
+		this.rid = rid;
+		this.value = value;
+	}
+
+	@Override
+	public byte[] getKey() {
+		ByteBuffer key = ByteBuffer.wrap(new byte[16]);
+		key.putInt(pid);
+		key.putLong(oid);
+		key.putInt(-rid);
+		return key.array();
+	}
+
+	@Override
+	public byte[] getValue() {
+		byte[] result = new byte[value.remaining()];
+		value.duplicate().get(result);
+		return result;
+	}
+
+	@Override
+	public ByteBuffer getValueBuffer() {
+		return value.duplicate();
+	}
+}
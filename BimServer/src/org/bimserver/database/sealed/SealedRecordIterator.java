@@ -0,0 +1,63 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.sealed.SealedRevision.Segment;
+
+public class SealedRecordIterator implements SearchingRecordIterator {
+	private final SealedRevision sealedRevision;
+	private final Segment segment;
+	private int index;
+
+	SealedRecordIterator(SealedRevision sealedRevision, Segment segment, int index) {
+		this.sealedRevision = sealedRevision;
+		this.segment = segment;
+		this.index = index;
+	}
+
+	@Override
+	public Record next() {
+		if (segment == null || index >= segment.count()) {
+			return null;
+		}
+		return segment.getRecord(sealedRevision.getPid(), index++);
+	}
+
+	@Override
+	public Record next(byte[] nextKeyStart) {
+		if (segment == null) {
+			return null;
+		}
+		index = segment.find(sealedRevision.getPid(), nextKeyStart, 0);
+		return next();
+	}
+
+	@Override
+	public Record last() {
+		if (segment == null || segment.count() == 0) {
+			return null;
+		}
+		return segment.getRecord(sealedRevision.getPid(), segment.count() - 1);
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,231 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+
+/**
+ * A read-only, memory-mapped snapshot of all objects of one concrete revision (pid/rid). For every oid only the newest record that is visible in the revision is
+ * stored (deleted markers included), so reading it gives the same records as reading the key value store for this pid/rid, without transactions, locks or cursors.
+ * 
+ * The file consists of one segment per table, followed by an index and a trailer ([long indexOffset][int MAGIC]). A segment is stored column-wise:
+ * [int count][long oid * count][int rid * count][int valueOffset * (count + 1)][values], the oids are sorted so they double as the oid index of the segment. Values
+ * are stored in the same encoding as in the key value store (references are already packed as oids there), so the normal decoding code can read them.
+ */
+public class SealedRevision {
+	static final int MAGIC = 0x42535256;
+	static final int VERSION = 1;
+	static final int TRAILER_SIZE = 12;
+
+	private final int pid;
+	private final int rid;
+	private final Set<String> packageNames;
+	private final Map<String, Segment> segments;
+
+	private SealedRevision(int pid, int rid, Set<String> packageNames, Map<String, Segment> segments) {
+		this.pid = pid;
+		this.rid = rid;
+		this.packageNames = packageNames;
+		this.segments = segments;
+	}
+
+	static SealedRevision open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < TRAILER_SIZE) {
+				throw new IOException("Not a sealed revision: " + path);
+			}
+			ByteBuffer trailer = read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+			long indexOffset = trailer.getLong();
+			if (trailer.getInt() != MAGIC) {
+				throw new IOException("Not a sealed revision: " + path);
+			}
+			ByteBuffer index = read(channel, indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+			int version = index.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported sealed revision version " + version + ": " + path);
+			}
+			int pid = index.getInt();
+			int rid = index.getInt();
+			int nrPackages = index.getInt();
+			Set<String> packageNames = new HashSet<>();
+			for (int i = 0; i < nrPackages; i++) {
+				packageNames.add(readString(index));
+			}
+			int nrSegments = index.getInt();
+			Map<String, Segment> segments = new HashMap<>();
+			for (int i = 0; i < nrSegments; i++) {
+				String tableName = readString(index);
+				long offset = index.getLong();
+				int length = index.getInt();
+				// The mapping stays valid after the channel has been closed
+				segments.put(tableName, new Segment(channel.map(MapMode.READ_ONLY, offset, length)));
+			}
+			return new SealedRevision(pid, rid, packageNames, segments);
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public int getPid() {
+		return pid;
+	}
+
+	public int getRid() {
+		return rid;
+	}
+
+	/**
+	 * @return Whether this snapshot holds the contents of the given table for this revision, tables of other packages have to be read from the key value store
+	 */
+	public boolean covers(String tableName) {
+		int index = tableName.indexOf("_");
+		return index != -1 && packageNames.contains(tableName.substring(0, index));
+	}
+
+	/**
+	 * @param startSearchingAt A (partial) key in the format of the key value store: [int pid][long oid][int -rid]
+	 */
+	public SearchingRecordIterator getRecordIterator(String tableName, byte[] startSearchingAt) {
+		Segment segment = segments.get(tableName);
+		if (segment == null) {
+			return new SealedRecordIterator(this, null, 0);
+		}
+		return new SealedRecordIterator(this, segment, segment.find(pid, startSearchingAt, 0));
+	}
+
+	/**
+	 * @return The record of the given object visible in this revision, or null when the object is not part of it
+	 */
+	public Record get(String tableName, long oid) {
+		Segment segment = segments.get(tableName);
+		if (segment == null) {
+			return null;
+		}
+		int index = segment.lowerBound(oid, 0);
+		if (index < segment.count() && segment.getOid(index) == oid) {
+			return segment.getRecord(pid, index);
+		}
+		return null;
+	}
+
+	static class Segment {
+		private final ByteBuffer buffer;
+		private final int count;
+		private final int ridsStart;
+		private final int offsetsStart;
+		private final int valuesStart;
+
+		Segment(ByteBuffer buffer) {
+			// Only absolute reads are done on this buffer, so it can be shared between threads
+			this.buffer = buffer;
+			this.count = buffer.getInt(0);
+			this.ridsStart = 4 + count * 8;
+			this.offsetsStart = ridsStart + count * 4;
+			this.valuesStart = offsetsStart + (count + 1) * 4;
+		}
+
+		int count() {
+			return count;
+		}
+
+		long getOid(int index) {
+			return buffer.getLong(4 + index * 8);
+		}
+
+		int getRid(int index) {
+			return buffer.getInt(ridsStart + index * 4);
+		}
+
+		SealedRecord getRecord(int pid, int index) {
+			ByteBuffer value = buffer.duplicate();
+			value.limit(valuesStart + buffer.getInt(offsetsStart + (index + 1) * 4));
+			value.position(valuesStart + buffer.getInt(offsetsStart + index * 4));
+			return new SealedRecord(pid, getOid(index), getRid(index), value.slice());
+		}
+
+		/**
+		 * @return The index of the first oid that is equal to or larger than the given oid, searching from index from
+		 */
+		int lowerBound(long oid, int from) {
+			int low = from;
+			int high = count;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (getOid(middle) < oid) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * @return The index of the first record with a key equal to or larger than the given (partial) key, searching from index from
+		 */
+		int find(int pid, byte[] key, int from) {
+			if (key.length < 4) {
+				return from;
+			}
+			ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+			int keyPid = keyBuffer.getInt();
+			if (keyPid != pid) {
+				return keyPid < pid ? from : count;
+			}
+			if (key.length < 12) {
+				return from;
+			}
+			long oid = keyBuffer.getLong();
+			int index = lowerBound(oid, from);
+			if (key.length >= 16 && index < count && getOid(index) == oid && Integer.compareUnsigned(-getRid(index), keyBuffer.getInt()) < 0) {
+				// The only record of this oid is older than the given key
+				index++;
+			}
+			return index;
+		}
+	}
+}
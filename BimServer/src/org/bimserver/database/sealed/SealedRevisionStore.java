@@ -0,0 +1,174 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.models.geometry.GeometryPackage;
+import org.bimserver.models.store.ConcreteRevision;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the sealed (memory-mapped, read-only) snapshots of concrete revisions, one file per revision in the given directory. Reading stack frames use a sealed
+ * revision instead of the key value store when there is one, see {@link SealedRevision}.
+ * 
+ * A concrete revision does not change after checkin, the exception is regenerating its geometry, which has to call unseal.
+ */
+public class SealedRevisionStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SealedRevisionStore.class);
+	private static final String EXTENSION = ".sealed";
+	
+	/**
+	 * Mapped files cannot be deleted on every OS, a file with this extension marks a sealed revision that has to be deleted on the next startup
+	 */
+	private static final String STALE_EXTENSION = ".stale";
+	private final Path directory;
+	private final Map<Long, SealedRevision> sealedRevisions = new ConcurrentHashMap<>();
+
+	public SealedRevisionStore(Path directory) {
+		this.directory = directory;
+		if (!Files.isDirectory(directory)) {
+			return;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+			for (Path path : stream) {
+				Path stalePath = path.resolveSibling(path.getFileName().toString() + STALE_EXTENSION);
+				if (Files.exists(stalePath)) {
+					Files.deleteIfExists(path);
+					Files.deleteIfExists(stalePath);
+					continue;
+				}
+				try {
+					SealedRevision sealedRevision = SealedRevision.open(path);
+					sealedRevisions.put(key(sealedRevision.getPid(), sealedRevision.getRid()), sealedRevision);
+				} catch (IOException e) {
+					LOGGER.error("Removing unreadable sealed revision " + path, e);
+					Files.deleteIfExists(path);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("", e);
+		}
+		if (!sealedRevisions.isEmpty()) {
+			LOGGER.info(sealedRevisions.size() + " sealed revisions found");
+		}
+	}
+
+	/**
+	 * @return The sealed revision for the given project id and concrete revision id, or null when the revision has not been sealed
+	 */
+	public SealedRevision get(int pid, int rid) {
+		if (sealedRevisions.isEmpty()) {
+			return null;
+		}
+		return sealedRevisions.get(key(pid, rid));
+	}
+
+	public boolean isSealed(int pid, int rid) {
+		return sealedRevisions.containsKey(key(pid, rid));
+	}
+
+	/**
+	 * Writes the objects (including geometry) of the given concrete revision to a sealed revision file and starts using it for reads
+	 */
+	public void seal(DatabaseSession databaseSession, ConcreteRevision concreteRevision) throws BimserverDatabaseException {
+		EPackage ePackage = databaseSession.getMetaDataManager().getPackageMetaData(concreteRevision.getProject().getSchema()).getEPackage();
+		seal(databaseSession, concreteRevision.getProject().getId(), concreteRevision.getId(), ePackage, GeometryPackage.eINSTANCE);
+	}
+
+	synchronized void seal(DatabaseSession databaseSession, int pid, int rid, EPackage... ePackages) throws BimserverDatabaseException {
+		if (isSealed(pid, rid)) {
+			return;
+		}
+		Set<String> packageNames = new LinkedHashSet<>();
+		List<EClass> eClasses = new ArrayList<>();
+		for (EPackage sealedPackage : ePackages) {
+			packageNames.add(sealedPackage.getName());
+			for (EClassifier eClassifier : sealedPackage.getEClassifiers()) {
+				if (eClassifier instanceof EClass) {
+					eClasses.add((EClass) eClassifier);
+				}
+			}
+		}
+		long start = System.nanoTime();
+		Path path = getPath(pid, rid);
+		Path tmpPath = path.resolveSibling(path.getFileName().toString() + ".tmp");
+		try {
+			Files.createDirectories(directory);
+			new SealedRevisionWriter(databaseSession, pid, rid).write(tmpPath, packageNames, eClasses);
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			sealedRevisions.put(key(pid, rid), SealedRevision.open(path));
+		} catch (IOException e) {
+			throw new BimserverDatabaseException(e);
+		} finally {
+			try {
+				Files.deleteIfExists(tmpPath);
+			} catch (IOException e) {
+				LOGGER.error("", e);
+			}
+		}
+		LOGGER.info("Sealed revision " + pid + "/" + rid + " (" + ((System.nanoTime() - start) / 1000000) + "ms)");
+	}
+
+	/**
+	 * Stops using the sealed revision (if any), must be called before the objects of a concrete revision are changed
+	 */
+	public synchronized void unseal(int pid, int rid) {
+		if (sealedRevisions.remove(key(pid, rid)) == null) {
+			return;
+		}
+		Path path = getPath(pid, rid);
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			try {
+				Files.createFile(path.resolveSibling(path.getFileName().toString() + STALE_EXTENSION));
+			} catch (IOException e1) {
+				LOGGER.error("", e1);
+			}
+		}
+	}
+
+	public void close() {
+		sealedRevisions.clear();
+	}
+
+	private Path getPath(int pid, int rid) {
+		return directory.resolve(pid + "_" + rid + EXTENSION);
+	}
+
+	private static long key(int pid, int rid) {
+		return ((long) pid << 32) | (rid & 0xFFFFFFFFL);
+	}
+}
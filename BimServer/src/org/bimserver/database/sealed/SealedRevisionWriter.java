@@ -0,0 +1,161 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.utils.BinUtils;
+import org.eclipse.emf.ecore.EClass;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * Writes the file format described in {@link SealedRevision}
+ */
+class SealedRevisionWriter {
+	private final DatabaseSession databaseSession;
+	private final int pid;
+	private final int rid;
+
+	SealedRevisionWriter(DatabaseSession databaseSession, int pid, int rid) {
+		this.databaseSession = databaseSession;
+		this.pid = pid;
+		this.rid = rid;
+	}
+
+	void write(Path path, Set<String> packageNames, List<EClass> eClasses) throws IOException, BimserverDatabaseException {
+		List<String> tableNames = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		long position = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			for (EClass eClass : eClasses) {
+				String tableName = eClass.getEPackage().getName() + "_" + eClass.getName();
+				int length = writeSegment(out, tableName);
+				if (length > 0) {
+					tableNames.add(tableName);
+					offsets.add(position);
+					lengths.add(length);
+					position += length;
+				}
+			}
+			long indexOffset = position;
+			out.writeInt(SealedRevision.VERSION);
+			out.writeInt(pid);
+			out.writeInt(rid);
+			out.writeInt(packageNames.size());
+			for (String packageName : packageNames) {
+				writeString(out, packageName);
+			}
+			out.writeInt(tableNames.size());
+			for (int i = 0; i < tableNames.size(); i++) {
+				writeString(out, tableNames.get(i));
+				out.writeLong(offsets.get(i));
+				out.writeInt(lengths.get(i));
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(SealedRevision.MAGIC);
+		}
+	}
+
+	/**
+	 * @return The amount of bytes written, 0 when the table has no records for this revision
+	 */
+	private int writeSegment(DataOutputStream out, String tableName) throws IOException, BimserverDatabaseException {
+		if (!databaseSession.getKeyValueStore().containsTable(tableName)) {
+			return 0;
+		}
+		LongArrayList oids = new LongArrayList();
+		IntArrayList rids = new IntArrayList();
+		IntArrayList valueOffsets = new IntArrayList();
+		ByteArrayOutputStream values = new ByteArrayOutputStream();
+		byte[] pidBytes = BinUtils.intToByteArray(pid);
+		ByteBuffer nextKeyStart = ByteBuffer.allocate(12);
+		SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(tableName, pidBytes, pidBytes, databaseSession);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				ByteBuffer keyBuffer = ByteBuffer.wrap(record.getKey());
+				keyBuffer.getInt(); // pid
+				long keyOid = keyBuffer.getLong();
+				int keyRid = -keyBuffer.getInt();
+				if (keyRid <= rid) {
+					// Records of an oid are ordered newest first, so this is the version visible in the revision, older versions can be skipped
+					byte[] value = record.getValue();
+					if ((long) values.size() + value.length > Integer.MAX_VALUE) {
+						throw new BimserverDatabaseException("Table " + tableName + " is too big to seal");
+					}
+					oids.add(keyOid);
+					rids.add(keyRid);
+					valueOffsets.add(values.size());
+					values.write(value);
+					nextKeyStart.position(0);
+					nextKeyStart.putInt(pid);
+					nextKeyStart.putLong(keyOid + 1);
+					record = recordIterator.next(nextKeyStart.array());
+				} else {
+					record = recordIterator.next();
+				}
+			}
+		} finally {
+			recordIterator.close();
+		}
+		if (oids.isEmpty()) {
+			return 0;
+		}
+		int count = oids.size();
+		long length = 4L + count * 8L + count * 4L + (count + 1) * 4L + values.size();
+		if (length > Integer.MAX_VALUE) {
+			throw new BimserverDatabaseException("Table " + tableName + " is too big to seal");
+		}
+		valueOffsets.add(values.size());
+		out.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			out.writeLong(oids.getLong(i));
+		}
+		for (int i = 0; i < count; i++) {
+			out.writeInt(rids.getInt(i));
+		}
+		for (int i = 0; i <= count; i++) {
+			out.writeInt(valueOffsets.getInt(i));
+		}
+		values.writeTo(out);
+		return (int) length;
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+}
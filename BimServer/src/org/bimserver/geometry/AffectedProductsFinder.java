@@ -0,0 +1,280 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.geometry.GeometryPackage;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.QueryContext;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines which products need new geometry after a set of objects has been changed, by following references upwards from the changed objects (points, placements,
+ * representation items, styles, materials, openings, types) until the products using them are found.
+ * 
+ * Most of these references have no inverse, so the referring objects are found by reading the types that have a reference that can point to the objects found so far.
+ * Every type is read at most once, only its references are kept.
+ */
+public class AffectedProductsFinder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AffectedProductsFinder.class);
+
+	private final DatabaseSession databaseSession;
+	private final BimServer bimServer;
+	private final PackageMetaData packageMetaData;
+	private final long roid;
+	private final Collection<EClass> classes;
+	private final EClass ifcRoot;
+	private final EClass ifcProduct;
+	private final EClass ifcStyledItem;
+	private final EClass ifcTypeProduct;
+	private final EClass ifcRelVoidsElement;
+	private final EClass ifcRelAssociatesMaterial;
+	private final EClass ifcRelDefinesByType;
+	private final Map<EClass, Set<String>> rootReferences = new HashMap<>();
+	private final Map<EClass, List<EReference>> followedReferences = new HashMap<>();
+	private final Set<EClass> read = new HashSet<>();
+	private final Map<Long, List<Long>> referrers = new HashMap<>();
+	private final Map<Long, HashMapVirtualObject> relations = new HashMap<>();
+
+	public AffectedProductsFinder(DatabaseSession databaseSession, BimServer bimServer, QueryContext queryContext) {
+		this.databaseSession = databaseSession;
+		this.bimServer = bimServer;
+		this.packageMetaData = queryContext.getPackageMetaData();
+		this.roid = queryContext.getRoid();
+		this.classes = queryContext.getOidCounters() != null ? queryContext.getOidCounters().keySet() : packageMetaData.getEClasses();
+		this.ifcRoot = packageMetaData.getEClass("IfcRoot");
+		this.ifcProduct = packageMetaData.getEClass("IfcProduct");
+		this.ifcStyledItem = packageMetaData.getEClass("IfcStyledItem");
+		this.ifcTypeProduct = packageMetaData.getEClass("IfcTypeProduct");
+		this.ifcRelVoidsElement = packageMetaData.getEClass("IfcRelVoidsElement");
+		this.ifcRelAssociatesMaterial = packageMetaData.getEClass("IfcRelAssociatesMaterial");
+		this.ifcRelDefinesByType = packageMetaData.getEClass("IfcRelDefinesByType");
+
+		// Of the IfcRoot objects only these references lead to products whose geometry depends on the referenced object
+		rootReferences.put(ifcProduct, new HashSet<>(Arrays.asList("Representation", "ObjectPlacement")));
+		rootReferences.put(ifcTypeProduct, Collections.singleton("RepresentationMaps"));
+		rootReferences.put(ifcRelVoidsElement, Collections.singleton("RelatedOpeningElement"));
+		rootReferences.put(ifcRelAssociatesMaterial, Collections.singleton("RelatingMaterial"));
+		rootReferences.put(ifcRelDefinesByType, Collections.singleton("RelatingType"));
+	}
+
+	/**
+	 * @param changed Objects that have been created or updated
+	 * @param removed Objects that have been removed, removed products are never part of the result
+	 * @return The oids of the products that need new geometry
+	 */
+	public Set<Long> find(Collection<HashMapVirtualObject> changed, Collection<HashMapVirtualObject> removed) throws QueryException, IOException, BimserverDatabaseException {
+		Set<Long> affected = new HashSet<>();
+		Set<Long> seen = new HashSet<>();
+		Set<Long> pending = new HashSet<>();
+		for (HashMapVirtualObject object : changed) {
+			if (ifcRoot.isSuperTypeOf(object.eClass()) || ifcStyledItem.isSuperTypeOf(object.eClass())) {
+				relations.put(object.getOid(), object);
+			}
+		}
+		for (HashMapVirtualObject object : changed) {
+			if (seen.add(object.getOid())) {
+				reach(object.getOid(), affected, seen, pending);
+			}
+		}
+		for (HashMapVirtualObject object : removed) {
+			if (!ifcProduct.isSuperTypeOf(object.eClass()) && seen.add(object.getOid())) {
+				// Objects still referring to a removed object are affected as well
+				pending.add(object.getOid());
+			}
+		}
+		while (!pending.isEmpty()) {
+			Set<EClass> pendingClasses = new HashSet<>();
+			for (long oid : pending) {
+				pendingClasses.add(databaseSession.getEClassForOid(oid));
+			}
+			readReferrers(pendingClasses);
+			Set<Long> next = new HashSet<>();
+			for (long oid : pending) {
+				List<Long> list = referrers.get(oid);
+				if (list != null) {
+					for (long referrer : list) {
+						if (seen.add(referrer)) {
+							reach(referrer, affected, seen, next);
+						}
+					}
+				}
+			}
+			pending = next;
+		}
+		for (HashMapVirtualObject object : removed) {
+			affected.remove(object.getOid());
+		}
+		LOGGER.debug(affected.size() + " products affected by " + changed.size() + " changed and " + removed.size() + " removed objects, " + read.size() + " types read");
+		return affected;
+	}
+
+	private void reach(long oid, Set<Long> affected, Set<Long> seen, Set<Long> next) {
+		EClass eClass = databaseSession.getEClassForOid(oid);
+		if (ifcProduct.isSuperTypeOf(eClass)) {
+			affected.add(oid);
+			// Openings also change the geometry of the elements they are in
+			next.add(oid);
+			return;
+		}
+		HashMapVirtualObject relation = relations.get(oid);
+		if (ifcRelVoidsElement.isSuperTypeOf(eClass)) {
+			reachReferenced(relation, "RelatingBuildingElement", affected, seen, next);
+		} else if (ifcRelAssociatesMaterial.isSuperTypeOf(eClass) || ifcRelDefinesByType.isSuperTypeOf(eClass)) {
+			reachReferenced(relation, "RelatedObjects", affected, seen, next);
+		} else if (ifcRoot.isSuperTypeOf(eClass) && !ifcTypeProduct.isSuperTypeOf(eClass)) {
+			// Other relations and objects do not influence geometry
+		} else {
+			if (ifcStyledItem.isSuperTypeOf(eClass)) {
+				// A changed style changes the item it is applied to
+				reachReferenced(relation, "Item", affected, seen, next);
+			}
+			next.add(oid);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void reachReferenced(HashMapVirtualObject relation, String featureName, Set<Long> affected, Set<Long> seen, Set<Long> next) {
+		if (relation == null) {
+			return;
+		}
+		Object value = relation.get(featureName);
+		if (value instanceof Long) {
+			if (seen.add((Long) value)) {
+				reach((Long) value, affected, seen, next);
+			}
+		} else if (value instanceof List) {
+			for (Object item : (List<Object>) value) {
+				if (item instanceof Long && seen.add((Long) item)) {
+					reach((Long) item, affected, seen, next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads all types having a followed reference that can point to objects of the given types
+	 */
+	private void readReferrers(Set<EClass> targetClasses) throws QueryException, IOException, BimserverDatabaseException {
+		for (EClass eClass : classes) {
+			if (read.contains(eClass) || eClass.getEPackage() != packageMetaData.getEPackage()) {
+				continue;
+			}
+			boolean canRefer = false;
+			for (EReference eReference : getFollowedReferences(eClass)) {
+				for (EClass targetClass : targetClasses) {
+					if (((EClass) eReference.getEType()).isSuperTypeOf(targetClass)) {
+						canRefer = true;
+						break;
+					}
+				}
+			}
+			if (canRefer) {
+				read(eClass);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void read(EClass eClass) throws QueryException, IOException, BimserverDatabaseException {
+		read.add(eClass);
+		List<EReference> references = getFollowedReferences(eClass);
+		boolean keepObjects = ifcRoot.isSuperTypeOf(eClass) || ifcStyledItem.isSuperTypeOf(eClass);
+
+		Query query = new Query("Referrers " + eClass.getName(), packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		queryPart.addType(eClass, false);
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(roid), packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			if (next.eClass() == eClass) {
+				for (EReference eReference : references) {
+					Object value = next.eGet(eReference);
+					if (value instanceof Long) {
+						addReferrer((Long) value, next.getOid());
+					} else if (value instanceof List) {
+						for (Object item : (List<Object>) value) {
+							if (item instanceof Long) {
+								addReferrer((Long) item, next.getOid());
+							}
+						}
+					}
+				}
+				if (keepObjects) {
+					relations.putIfAbsent(next.getOid(), next);
+				}
+			}
+			next = queryObjectProvider.next();
+		}
+	}
+
+	private void addReferrer(long referenced, long referrer) {
+		List<Long> list = referrers.get(referenced);
+		if (list == null) {
+			list = new ArrayList<>(1);
+			referrers.put(referenced, list);
+		}
+		list.add(referrer);
+	}
+
+	private List<EReference> getFollowedReferences(EClass eClass) {
+		List<EReference> references = followedReferences.get(eClass);
+		if (references == null) {
+			references = new ArrayList<>();
+			Set<String> names = null;
+			if (ifcRoot.isSuperTypeOf(eClass)) {
+				names = Collections.emptySet();
+				for (EClass rootClass : rootReferences.keySet()) {
+					if (rootClass.isSuperTypeOf(eClass)) {
+						names = rootReferences.get(rootClass);
+					}
+				}
+			}
+			for (EReference eReference : eClass.getEAllReferences()) {
+				if (packageMetaData.isInverse(eReference) || eReference.getEType().getEPackage() == GeometryPackage.eINSTANCE) {
+					continue;
+				}
+				if (names == null || names.contains(eReference.getName())) {
+					references.add(eReference);
+				}
+			}
+			followedReferences.put(eClass, references);
+		}
+		return references;
+	}
+}
@@ -0,0 +1,109 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 digest of one or more byte sequences, used as the identity of geometry content. Every part is prefixed with its length, so
+ * different splits of the same bytes do not end up with the same digest.
+ */
+public final class ContentDigest {
+	public static final int SIZE = 32;
+
+	private final byte[] digest;
+	private final int hashCode;
+
+	private ContentDigest(byte[] digest) {
+		this.digest = digest;
+		this.hashCode = Arrays.hashCode(digest);
+	}
+
+	public static ContentDigest of(byte[]... parts) {
+		MessageDigest messageDigest = createMessageDigest();
+		for (byte[] part : parts) {
+			messageDigest.update(lengthBytes(part.length));
+			messageDigest.update(part);
+		}
+		return new ContentDigest(messageDigest.digest());
+	}
+
+	/**
+	 * Digests the buffers from position 0 up to their limit, without changing their position
+	 */
+	public static ContentDigest of(ByteBuffer... parts) {
+		MessageDigest messageDigest = createMessageDigest();
+		for (ByteBuffer part : parts) {
+			ByteBuffer duplicate = part.duplicate();
+			duplicate.position(0);
+			messageDigest.update(lengthBytes(duplicate.remaining()));
+			messageDigest.update(duplicate);
+		}
+		return new ContentDigest(messageDigest.digest());
+	}
+
+	private static byte[] lengthBytes(int length) {
+		return ByteBuffer.allocate(4).putInt(length).array();
+	}
+
+	private static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(digest);
+	}
+
+	public static ContentDigest readFrom(ByteBuffer buffer) {
+		byte[] digest = new byte[SIZE];
+		buffer.get(digest);
+		return new ContentDigest(digest);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ContentDigest)) {
+			return false;
+		}
+		return Arrays.equals(digest, ((ContentDigest) obj).digest);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,146 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.models.geometry.GeometryPackage;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.QueryContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed store for geometry {@link org.bimserver.models.geometry.Buffer}s, shared by all concrete revisions of a project.
+ * 
+ * Every buffer is identified by the {@link ContentDigest} of its data. Keys in the content table are pid (4 bytes) and digest (32 bytes),
+ * values are the oid of the buffer and the rid it was stored with. A stored buffer is only reused when it is visible from the revision being
+ * generated (its rid is not higher), because buffers are resolved with the normal pid/oid/rid lookups. For the same reason buffers are not
+ * shared between projects, the pid is part of every record key. Revisions and projects are never removed (projects are only marked as
+ * deleted), so buffers are never released and there is no need to count how many generations refer to them.
+ * 
+ * A reused buffer keeps its oid, which is below the Buffer oid counter of the new concrete revision. It is only reachable through the
+ * references of the GeometryData using it, the same as the buffers of carried forward GeometryData, so type queries on Buffer only
+ * return the buffers stored by the revision itself.
+ * 
+ * One instance is used for one geometry generation, lookups are cached so every distinct buffer is only stored once, also when
+ * multiple threads produce the same data concurrently. {@link #flush()} registers the new buffers once the generation is done.
+ */
+public class GeometryContentStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeometryContentStore.class);
+	private static final int VALUE_SIZE = 12;
+	private static final int NR_LOCKS = 64;
+
+	private final DatabaseSession databaseSession;
+	private final int pid;
+	private final int rid;
+	private final Map<ContentDigest, Long> buffers = new ConcurrentHashMap<>();
+	private final Object[] locks = new Object[NR_LOCKS];
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong buffersReused = new AtomicLong();
+
+	public GeometryContentStore(DatabaseSession databaseSession, QueryContext queryContext) {
+		this.databaseSession = databaseSession;
+		this.pid = queryContext.getPid();
+		this.rid = queryContext.getRid();
+		for (int i = 0; i < NR_LOCKS; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return The oid of a Buffer containing exactly the given data, either an existing one or a newly stored one
+	 */
+	public long getOrCreateBuffer(QueryContext queryContext, ByteBuffer data) throws BimserverDatabaseException {
+		byte[] bytes = data.array();
+		ContentDigest digest = ContentDigest.of(bytes);
+		Long oid = buffers.get(digest);
+		if (oid != null) {
+			countReuse(bytes);
+			return oid;
+		}
+		synchronized (locks[(digest.hashCode() & 0x7FFFFFFF) % NR_LOCKS]) {
+			oid = buffers.get(digest);
+			if (oid != null) {
+				countReuse(bytes);
+				return oid;
+			}
+			ByteBuffer value = read(digest);
+			if (value != null && value.getInt(8) <= rid) {
+				oid = value.getLong(0);
+				countReuse(bytes);
+			} else {
+				HashMapVirtualObject buffer = new HashMapVirtualObject(queryContext, GeometryPackage.eINSTANCE.getBuffer());
+				buffer.set("data", bytes);
+				buffer.save();
+				oid = buffer.getOid();
+			}
+			buffers.put(digest, oid);
+			return oid;
+		}
+	}
+
+	private void countReuse(byte[] bytes) {
+		buffersReused.incrementAndGet();
+		bytesSaved.addAndGet(bytes.length);
+	}
+
+	/**
+	 * Registers the buffers stored by this generation. When an existing entry is not visible from this revision (a revision with a lower rid
+	 * is regenerated), it is replaced, so it is usable by more revisions.
+	 */
+	public void flush() throws BimserverDatabaseException {
+		int added = 0;
+		for (Map.Entry<ContentDigest, Long> entry : buffers.entrySet()) {
+			ByteBuffer value = read(entry.getKey());
+			if (value != null && (value.getLong(0) == entry.getValue() || value.getInt(8) <= rid)) {
+				continue;
+			}
+			ByteBuffer newValue = ByteBuffer.allocate(VALUE_SIZE);
+			newValue.putLong(entry.getValue());
+			newValue.putInt(rid);
+			databaseSession.getKeyValueStore().store(Database.GEOMETRY_CONTENT_TABLE, createKey(pid, entry.getKey()), newValue.array(), databaseSession);
+			added++;
+		}
+		LOGGER.debug(buffers.size() + " distinct buffers, " + added + " new, " + buffersReused.get() + " reused");
+	}
+
+	private ByteBuffer read(ContentDigest digest) throws BimserverDatabaseException {
+		byte[] bytes = databaseSession.getKeyValueStore().get(Database.GEOMETRY_CONTENT_TABLE, createKey(pid, digest), databaseSession);
+		if (bytes == null || bytes.length != VALUE_SIZE) {
+			return null;
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static byte[] createKey(int pid, ContentDigest digest) {
+		ByteBuffer key = ByteBuffer.allocate(4 + ContentDigest.SIZE);
+		key.putInt(pid);
+		digest.writeTo(key);
+		return key.array();
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+}
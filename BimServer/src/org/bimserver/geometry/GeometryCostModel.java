@@ -0,0 +1,55 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * Estimates the cost of a geometry job as the amount of IFC bytes it will serialize. Starts with a fixed guess per representation item and learns the actual amount
+ * per type from the jobs that have been serialized so far.
+ */
+public class GeometryCostModel {
+	private static final long DEFAULT_BYTES_PER_ITEM = 2048;
+	private final Map<EClass, Statistics> statistics = new ConcurrentHashMap<>();
+
+	private static class Statistics {
+		private final AtomicLong nrItems = new AtomicLong();
+		private final AtomicLong nrBytes = new AtomicLong();
+	}
+
+	public void record(EClass eClass, int nrItems, long nrBytes) {
+		Statistics stats = statistics.computeIfAbsent(eClass, k -> new Statistics());
+		stats.nrItems.addAndGet(Math.max(1, nrItems));
+		stats.nrBytes.addAndGet(nrBytes);
+	}
+
+	public long estimateBytes(EClass eClass, int nrItems) {
+		long bytesPerItem = DEFAULT_BYTES_PER_ITEM;
+		Statistics stats = statistics.get(eClass);
+		if (stats != null) {
+			long recordedItems = stats.nrItems.get();
+			if (recordedItems > 0) {
+				bytesPerItem = Math.max(1, stats.nrBytes.get() / recordedItems);
+			}
+		}
+		return Math.max(1, nrItems) * bytesPerItem;
+	}
+}
@@ -0,0 +1,131 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.shared.QueryContext;
+
+/**
+ * Remembers per product (identified by its GlobalId) the fingerprint of the data its geometry was generated from, and the GeometryInfo
+ * that was generated. Keys are pid (4 bytes), rid (4 bytes) and the UTF-8 GlobalId, values are the fingerprint, the oid of the GeometryInfo
+ * and the roid of the revision it belongs to.
+ * 
+ * Only the entries of the previous revision of the project (rid - 1) are used, so entries of other revisions that happen to use the same
+ * GlobalIds are never looked at. When a revision stores its entries, the ones of the previous revision are removed.
+ */
+public class GeometryFingerprintStore {
+	private static final int VALUE_SIZE = ContentDigest.SIZE + 8 + 8;
+
+	private final DatabaseSession databaseSession;
+	private final int pid;
+	private final int rid;
+	private final long roid;
+
+	public static class Entry {
+		private final ContentDigest fingerprint;
+		private final long geometryInfoOid;
+		private final long roid;
+
+		public Entry(ContentDigest fingerprint, long geometryInfoOid, long roid) {
+			this.fingerprint = fingerprint;
+			this.geometryInfoOid = geometryInfoOid;
+			this.roid = roid;
+		}
+
+		public ContentDigest getFingerprint() {
+			return fingerprint;
+		}
+
+		public long getGeometryInfoOid() {
+			return geometryInfoOid;
+		}
+
+		public long getRoid() {
+			return roid;
+		}
+	}
+
+	public GeometryFingerprintStore(DatabaseSession databaseSession, QueryContext queryContext) {
+		this.databaseSession = databaseSession;
+		this.pid = queryContext.getPid();
+		this.rid = queryContext.getRid();
+		this.roid = queryContext.getRoid();
+	}
+
+	/**
+	 * @return The entry the previous revision of the project stored for the given product, or null
+	 */
+	public Entry get(String globalId) throws BimserverDatabaseException {
+		byte[] bytes = databaseSession.getKeyValueStore().get(Database.GEOMETRY_FINGERPRINT_TABLE, createKey(rid - 1, globalId), databaseSession);
+		if (bytes == null || bytes.length != VALUE_SIZE) {
+			return null;
+		}
+		ByteBuffer value = ByteBuffer.wrap(bytes);
+		ContentDigest fingerprint = ContentDigest.readFrom(value);
+		return new Entry(fingerprint, value.getLong(), value.getLong());
+	}
+
+	/**
+	 * Stores the geometry of the given product for the revision being generated
+	 */
+	public void put(String globalId, ContentDigest fingerprint, long geometryInfoOid) throws BimserverDatabaseException {
+		ByteBuffer value = ByteBuffer.allocate(VALUE_SIZE);
+		fingerprint.writeTo(value);
+		value.putLong(geometryInfoOid);
+		value.putLong(roid);
+		databaseSession.getKeyValueStore().store(Database.GEOMETRY_FINGERPRINT_TABLE, createKey(rid, globalId), value.array(), databaseSession);
+	}
+
+	/**
+	 * Removes the entries of the previous revision, they will not be used anymore once the revision being generated has stored its own
+	 */
+	public void removePrevious() throws BimserverDatabaseException {
+		byte[] prefix = ByteBuffer.allocate(8).putInt(pid).putInt(rid - 1).array();
+		List<byte[]> keys = new ArrayList<>();
+		SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(Database.GEOMETRY_FINGERPRINT_TABLE, prefix, prefix, databaseSession, true);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				keys.add(record.getKey());
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		for (byte[] key : keys) {
+			databaseSession.getKeyValueStore().delete(Database.GEOMETRY_FINGERPRINT_TABLE, key, databaseSession);
+		}
+	}
+
+	private byte[] createKey(int rid, String globalId) {
+		byte[] globalIdBytes = globalId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer key = ByteBuffer.allocate(8 + globalIdBytes.length);
+		key.putInt(pid);
+		key.putInt(rid);
+		key.put(globalIdBytes);
+		return key.array();
+	}
+}
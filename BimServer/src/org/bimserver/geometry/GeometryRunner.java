@@ -18,7 +18,6 @@ package org.bimserver.geometry;
  *****************************************************************************/
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,7 +38,6 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.Color4f;
 import org.bimserver.GenerateGeometryResult;
@@ -69,6 +67,7 @@ import org.bimserver.plugins.serializers.OidConvertingSerializer;
 import org.bimserver.plugins.serializers.StreamingSerializer;
 import org.bimserver.plugins.serializers.StreamingSerializerPlugin;
 import org.bimserver.renderengine.RenderEnginePool;
+import org.bimserver.servlets.ReusableByteArrayOutputStream;
 import org.bimserver.shared.HashMapVirtualObject;
 import org.bimserver.shared.HashMapWrappedVirtualObject;
 import org.bimserver.shared.QueryContext;
@@ -100,6 +99,9 @@ public class GeometryRunner implements Runnable {
 	private boolean writeOutputFiles = false;
 	private GeometryGenerationDebugger geometryGenerationDebugger;
 	private Query originalQuery;
+	private long sequence;
+	private int nrItems;
+	private long estimatedCost;
 
 	public GeometryRunner(StreamingGeometryGenerator streamingGeometryGenerator, EClass eClass, RenderEnginePool renderEnginePool, DatabaseSession databaseSession, RenderEngineSettings renderEngineSettings, ObjectProvider objectProvider,
 			StreamingSerializerPlugin ifcSerializerPlugin, RenderEngineFilter renderEngineFilter, GenerateGeometryResult generateGeometryResult, QueryContext queryContext, boolean geometryReused,
@@ -164,7 +166,7 @@ public class GeometryRunner implements Runnable {
 
 			StreamingSerializer serializer = ifcSerializerPlugin.createSerializer(new PluginConfiguration());
 			RenderEngine renderEngine = null;
-			byte[] bytes = null;
+			ReusableByteArrayOutputStream buffer = null;
 			try {
 				final Set<HashMapVirtualObject> objects = new LinkedHashSet<>();
 				ObjectProviderProxy proxy = new ObjectProviderProxy(objectProvider, new ObjectListener() {
@@ -182,19 +184,23 @@ public class GeometryRunner implements Runnable {
 					}
 				});
 				serializer.init(proxy, null, null, this.streamingGeometryGenerator.bimServer.getPluginManager(), this.streamingGeometryGenerator.packageMetaData);
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				IOUtils.copy(serializer.getInputStream(), baos);
-				bytes = baos.toByteArray();
-				InputStream in = new ByteArrayInputStream(bytes);
+				// The fragment is serialized into a pooled buffer and handed to the render engine without copying it
+				buffer = this.streamingGeometryGenerator.serializationBuffers.borrow();
+				serializer.writeToOutputStream(buffer);
+				this.streamingGeometryGenerator.costModel.record(eClass, nrItems, buffer.usedSize());
+				InputStream in = new ByteArrayInputStream(buffer.getByteArray(), 0, buffer.usedSize());
 				Map<Long, HashMapVirtualObject> notFoundObjects = new HashMap<>();
 
 				Set<Range> reusableGeometryData = new HashSet<>();
 
 				Map<Long, TemporaryGeometryData> productToData = new HashMap<>();
+				// An engine that failed, or was left in an unknown state, must not be handed out again by the pool
+				boolean renderEngineFailed = false;
+				boolean completed = false;
 				try {
 					if (!objects.isEmpty()) {
 						renderEngine = renderEnginePool.borrowObject();
-						try (RenderEngineModel renderEngineModel = renderEngine.openModel(in, bytes.length)) {
+						try (RenderEngineModel renderEngineModel = renderEngine.openModel(in, buffer.usedSize())) {
 							renderEngineModel.setSettings(renderEngineSettings);
 							renderEngineModel.setFilter(renderEngineFilter);
 
@@ -207,6 +213,8 @@ public class GeometryRunner implements Runnable {
 									} else {
 										StreamingGeometryGenerator.LOGGER.error("Error in " + eClass.getName(), e);
 									}
+								} else {
+									renderEngineFailed = true;
 								}
 							}
 
@@ -313,8 +321,6 @@ public class GeometryRunner implements Runnable {
 										
 										job.setTrianglesGenerated(indicesAsInt.capacity() / 3);
 										job.getReport().incrementTriangles(indicesAsInt.capacity() / 3);
-										
-										streamingGeometryGenerator.cacheGeometryData(geometryData, vertices);
 
 										ColorMap colorMap = new ColorMap();
 										
@@ -468,29 +474,30 @@ public class GeometryRunner implements Runnable {
 
 										if (reuseGeometry) {
 											/* TODO It still happens that geometry that should be reused is not reused, one of the reasons is still concurrency:
-											 * 	- When the same geometry is processed concurrently they could both do the hash check at a time when there is no cached version, then they both think it's non-reused geometry
+											 * 	- When the same geometry is processed concurrently they could both do the digest check at a time when there is no cached version, then they both think it's non-reused geometry
+											 * 	  Only the (small) GeometryData is stored twice in that case, the buffers are deduplicated by the content store
 											*/
-											int hash = this.streamingGeometryGenerator.hash(indices, vertices, normals, colors);
+											ContentDigest digest = this.streamingGeometryGenerator.digest(indices, vertices, normals, colors, getAppearance(geometryData, hasTransparency));
 											int firstIndex = indicesAsInt.get(0);
 											int lastIndex = indicesAsInt.get(indicesAsInt.capacity() - 1);
 											double[] firstVertex = new double[] { verticesAsDouble.get(firstIndex), verticesAsDouble.get(firstIndex + 1), verticesAsDouble.get(firstIndex + 2) };
 											double[] lastVertex = new double[] { verticesAsDouble.get(lastIndex * 3), verticesAsDouble.get(lastIndex * 3 + 1), verticesAsDouble.get(lastIndex * 3 + 2) };
 											Range range = new Range(firstVertex, lastVertex);
-											Long referenceOid = this.streamingGeometryGenerator.hashes.get(hash);
-											if (referenceOid != null) {
-												HashMapVirtualObject referencedData = databaseSession.getFromCache(referenceOid);
-												if (referencedData == null) {
-													LOGGER.error("Object not found in cache: " + referenceOid + " (hash: " + hash + ")");
-												}
+											HashMapVirtualObject referencedData = this.streamingGeometryGenerator.geometryDataByContent.get(digest);
+											if (referencedData != null) {
 												synchronized (referencedData) {
 													Integer currentValue = (Integer) referencedData.get("reused");
 													referencedData.set("reused", currentValue + 1);
+													HashMapWrappedVirtualObject dataBounds = (HashMapWrappedVirtualObject) referencedData.get("boundsMm");
+													extendBounds(boundsMm, dataBounds);
+													referencedData.saveOverwrite();
 												}
-												HashMapWrappedVirtualObject dataBounds = (HashMapWrappedVirtualObject) referencedData.get("boundsMm");
-												extendBounds(boundsMm, dataBounds);
-												referencedData.saveOverwrite();
-												geometryInfo.setReference(GeometryPackage.eINSTANCE.getGeometryInfo_Data(), referenceOid, 0);
+												geometryInfo.setReference(GeometryPackage.eINSTANCE.getGeometryInfo_Data(), referencedData.getOid(), 0);
 												this.streamingGeometryGenerator.bytesSavedByHash.addAndGet(size);
+												if (geometryReused) {
+													// Mapped copies of this product still need the data of their master
+													productToData.put(ifcProduct.getOid(), new TemporaryGeometryData(referencedData.getOid(), renderEngineInstance.getAdditionalData(), indicesAsInt.capacity() / 3, size, mibu, mabu, indicesAsInt, verticesAsDouble, hasTransparency, colors.capacity()));
+												}
 											} else if (geometryReused) {
 												// This is true when this geometry is part of a mapped item mapping (and used more than once)
 												
@@ -540,6 +547,8 @@ public class GeometryRunner implements Runnable {
 													productToData.put(ifcProduct.getOid(), new TemporaryGeometryData(geometryData.getOid(), renderEngineInstance.getAdditionalData(), indicesAsInt.capacity() / 3, size, mibu, mabu, indicesAsInt, verticesAsDouble, hasTransparency, colors.capacity()));
 													geometryData.save();
 													databaseSession.cache((HashMapVirtualObject) geometryData);
+													this.streamingGeometryGenerator.cacheGeometryData(geometryData, vertices);
+													this.streamingGeometryGenerator.geometryDataByContent.putIfAbsent(digest, geometryData);
 												}
 											} else {
 												// if (sizes.containsKey(size)
@@ -566,16 +575,20 @@ public class GeometryRunner implements Runnable {
 												geometryData.save(); // TODO Why??
 
 												databaseSession.cache((HashMapVirtualObject) geometryData);
-												this.streamingGeometryGenerator.hashes.put(hash, geometryData.getOid());
+												this.streamingGeometryGenerator.cacheGeometryData(geometryData, vertices);
+												// Only published after saving, so other threads never update an unsaved GeometryData
+												this.streamingGeometryGenerator.geometryDataByContent.putIfAbsent(digest, geometryData);
 												// sizes.put(size, ifcProduct);
 											}
 										} else {
 											geometryData.save();
 											databaseSession.cache((HashMapVirtualObject) geometryData);
+											this.streamingGeometryGenerator.cacheGeometryData(geometryData, vertices);
 										}
 
 										this.streamingGeometryGenerator.setTransformationMatrix(geometryInfo, productTranformationMatrix);
 										debuggingInfo.put(ifcProduct.getOid(), new DebuggingInfo(productTranformationMatrix, indices.asIntBuffer(), vertices.asFloatBuffer()));
+										this.streamingGeometryGenerator.geometryGenerated(ifcProduct, geometryInfo);
 
 										geometryInfo.save();
 										this.streamingGeometryGenerator.totalBytes.addAndGet(size);
@@ -797,6 +810,7 @@ public class GeometryRunner implements Runnable {
 											// indices, vertices,
 											// generateGeometryResult);
 											this.streamingGeometryGenerator.setTransformationMatrix(geometryInfo, totalTranformationMatrix);
+											this.streamingGeometryGenerator.geometryGenerated(ifcProduct, geometryInfo);
 
 											geometryInfo.save();
 											// totalBytes.addAndGet(size);
@@ -809,6 +823,7 @@ public class GeometryRunner implements Runnable {
 							}
 						}
 					}
+					completed = true;
 				} finally {
 					if (renderEngine != null) {
 						Metrics metrics = renderEngine.getMetrics();
@@ -816,7 +831,11 @@ public class GeometryRunner implements Runnable {
 							job.setCpuTimeMs(metrics.getCpuTimeMs());
 							job.setMaxMemoryBytes(metrics.getMaxMemoryBytes());
 						}
-						renderEnginePool.returnObject(renderEngine);
+						if (renderEngineFailed || !completed) {
+							renderEnginePool.invalidateObject(renderEngine);
+						} else {
+							renderEnginePool.returnObject(renderEngine);
+						}
 					}
 					try {
 						if (!notFoundObjects.isEmpty()) {
@@ -827,9 +846,9 @@ public class GeometryRunner implements Runnable {
 							}
 							sb.delete(sb.length() - 2, sb.length());
 							job.setException(new Exception("Missing objects in model (" + sb.toString() + ")"));
-							writeDebugFile(bytes, false, notFoundObjects);
+							writeDebugFile(buffer, false, notFoundObjects);
 						} else if (writeOutputFiles) {
-							writeDebugFile(bytes, false, null);
+							writeDebugFile(buffer, false, null);
 						}
 						in.close();
 					} catch (Throwable e) {
@@ -840,9 +859,13 @@ public class GeometryRunner implements Runnable {
 				}
 			} catch (Throwable e) {
 				StreamingGeometryGenerator.LOGGER.error("", e);
-				if(bytes!=null) writeDebugFile(bytes, true, null);
+				if(buffer!=null) writeDebugFile(buffer, true, null);
 				job.setException(e);
 				// LOGGER.error("Original query: " + originalQuery, e);
+			} finally {
+				if (buffer != null) {
+					this.streamingGeometryGenerator.serializationBuffers.release(buffer);
+				}
 			}
 		} catch (Throwable e) {
 			StreamingGeometryGenerator.LOGGER.error("", e);
@@ -852,6 +875,20 @@ public class GeometryRunner implements Runnable {
 		job.setEndNanos(end);
 	}
 
+	void setEstimate(long sequence, int nrItems, long estimatedCost) {
+		this.sequence = sequence;
+		this.nrItems = nrItems;
+		this.estimatedCost = estimatedCost;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	long getEstimatedCost() {
+		return estimatedCost;
+	}
+
 	private BufferSet appendInvertedGeometry(IntBuffer indicesAsInt, DoubleBuffer verticesAsDouble, FloatBuffer normalsAsFloat, IntBuffer colorIndices) {
 		indicesAsInt.position(0);
 		normalsAsFloat.position(0);
@@ -1029,10 +1066,22 @@ public class GeometryRunner implements Runnable {
 	}
 	
 	private long createBuffer(QueryContext queryContext, ByteBuffer data) throws BimserverDatabaseException {
-		HashMapVirtualObject buffer = new HashMapVirtualObject(queryContext, GeometryPackage.eINSTANCE.getBuffer());
-		buffer.set("data", data.array());
-		buffer.save();
-		return buffer.getOid();
+		return streamingGeometryGenerator.getContentStore().getOrCreateBuffer(queryContext, data);
+	}
+
+	/**
+	 * The parts of a GeometryData that are not stored in its buffers, but do change how it looks
+	 */
+	private ByteBuffer getAppearance(HashMapVirtualObject geometryData, boolean hasTransparency) {
+		ByteBuffer appearance = ByteBuffer.allocate(33);
+		for (String feature : new String[]{"color", "mostUsedColor"}) {
+			HashMapWrappedVirtualObject color = (HashMapWrappedVirtualObject) geometryData.get(feature);
+			for (String component : new String[]{"x", "y", "z", "w"}) {
+				appearance.putFloat(color == null ? -1f : (float) color.eGet(component));
+			}
+		}
+		appearance.put((byte) (hasTransparency ? 1 : 0));
+		return appearance;
 	}
 
 	private ByteBuffer quantizeColors(byte[] vertex_colors) {
@@ -1134,7 +1183,7 @@ public class GeometryRunner implements Runnable {
 		}
 	}
 	
-	private float getVolumeFromBounds(HashMapWrappedVirtualObject bounds) throws GeometryGeneratingException { 
+	static float getVolumeFromBounds(HashMapWrappedVirtualObject bounds) throws GeometryGeneratingException { 
 		HashMapWrappedVirtualObject min = (HashMapWrappedVirtualObject) bounds.eGet("min");
 		HashMapWrappedVirtualObject max = (HashMapWrappedVirtualObject) bounds.eGet("max");
 		
@@ -1158,7 +1207,7 @@ public class GeometryRunner implements Runnable {
 		return volume;
 	}
 
-	private float getBiggestFaceFromBounds(HashMapWrappedVirtualObject bounds) throws GeometryGeneratingException {
+	static float getBiggestFaceFromBounds(HashMapWrappedVirtualObject bounds) throws GeometryGeneratingException {
 		HashMapWrappedVirtualObject min = (HashMapWrappedVirtualObject) bounds.eGet("min");
 		HashMapWrappedVirtualObject max = (HashMapWrappedVirtualObject) bounds.eGet("max");
 
@@ -1234,7 +1283,7 @@ public class GeometryRunner implements Runnable {
 		return true;
 	}
 	
-	private synchronized void writeDebugFile(byte[] bytes, boolean error, Map<Long, HashMapVirtualObject> notFoundObjects) throws FileNotFoundException, IOException {
+	private synchronized void writeDebugFile(ReusableByteArrayOutputStream buffer, boolean error, Map<Long, HashMapVirtualObject> notFoundObjects) throws FileNotFoundException, IOException {
 		boolean debug = true;
 		if (debug) {
 			Path debugPath = this.streamingGeometryGenerator.bimServer.getHomeDir().resolve("debug");
@@ -1267,7 +1316,7 @@ public class GeometryRunner implements Runnable {
 //			}
 
 //			StreamingGeometryGenerator.LOGGER.info("Writing debug file to " + file.toAbsolutePath().toString());
-			FileUtils.writeByteArrayToFile(file.toFile(), bytes);
+			FileUtils.writeByteArrayToFile(file.toFile(), buffer.getByteArray(), 0, buffer.usedSize());
 		}
 	}
 }
\ No newline at end of file
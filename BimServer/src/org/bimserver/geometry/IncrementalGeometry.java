@@ -0,0 +1,322 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bimserver.BimServer;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.GenerateGeometryResult;
+import org.bimserver.GeometryGeneratingException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.queries.QueryObjectProvider;
+import org.bimserver.database.queries.om.Include;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.geometry.GeometryPackage;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.HashMapWrappedVirtualObject;
+import org.bimserver.shared.QueryContext;
+import org.bimserver.utils.UuidUtils;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental geometry generation for a new revision of a project. Before a batch of products is sent to the render engine, every product
+ * is fingerprinted ({@link ProductFingerprinter}) and compared with the fingerprint stored for the same GlobalId by an earlier revision
+ * ({@link GeometryFingerprintStore}). Products that did not change get a copy of their previous GeometryInfo and GeometryData, the buffers
+ * are shared, only the remaining products are tessellated.
+ * 
+ * The copies are needed because geometry objects are found per revision by type, only the buffers are always reached through references.
+ */
+public class IncrementalGeometry {
+	private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalGeometry.class);
+	private static final int FINGERPRINT_VERSION = 1;
+
+	private final StreamingGeometryGenerator streamingGeometryGenerator;
+	private final BimServer bimServer;
+	private final DatabaseSession databaseSession;
+	private final QueryContext queryContext;
+	private final PackageMetaData packageMetaData;
+	private final GenerateGeometryResult generateGeometryResult;
+	private final GeometryFingerprintStore fingerprintStore;
+	private final byte[] settings;
+	private final Map<Long, String> globalIds = new HashMap<>();
+	private final Map<Long, ContentDigest> fingerprints = new HashMap<>();
+	private final Map<Long, Long> generated = new ConcurrentHashMap<>();
+	private final AtomicInteger carried = new AtomicInteger();
+
+	public IncrementalGeometry(StreamingGeometryGenerator streamingGeometryGenerator, DatabaseSession databaseSession, QueryContext queryContext, GenerateGeometryResult generateGeometryResult, String renderEngine) {
+		this.streamingGeometryGenerator = streamingGeometryGenerator;
+		this.bimServer = streamingGeometryGenerator.bimServer;
+		this.databaseSession = databaseSession;
+		this.queryContext = queryContext;
+		this.packageMetaData = queryContext.getPackageMetaData();
+		this.generateGeometryResult = generateGeometryResult;
+		this.fingerprintStore = new GeometryFingerprintStore(databaseSession, queryContext);
+		String settings = FINGERPRINT_VERSION + "/" + packageMetaData.getSchema().name() + "/" + renderEngine + "/" + streamingGeometryGenerator.isCalculateQuantities() + "/" + generateGeometryResult.getMultiplierToMm();
+		this.settings = settings.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Products of these types depend on more than their own data, they are always tessellated
+	 */
+	public boolean supports(EClass eClass) {
+		return !streamingGeometryGenerator.isApplyLayerSets() && !packageMetaData.getEClass("IfcBuildingElementPart").isSuperTypeOf(eClass);
+	}
+
+	/**
+	 * @param batch Oids of products of the given type, with the oids of the representations to use
+	 * @return The products of the batch that have to be tessellated
+	 */
+	public Map<Long, Set<Long>> carryForward(EClass eClass, Map<Long, Set<Long>> batch) throws QueryException, IOException, BimserverDatabaseException, GeometryGeneratingException {
+		Query query = new Query("Fingerprint " + eClass.getName(), packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		Set<Long> representationOids = new HashSet<>();
+		for (Long oid : batch.keySet()) {
+			queryPart.addOid(oid);
+			representationOids.addAll(batch.get(oid));
+		}
+		streamingGeometryGenerator.addGeometryIncludes(query, queryPart, eClass, representationOids);
+
+		ProductFingerprinter fingerprinter = new ProductFingerprinter(packageMetaData, settings);
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(queryContext.getRoid()), packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			fingerprinter.add(next);
+			next = queryObjectProvider.next();
+		}
+
+		Map<Long, Set<Long>> remaining = new LinkedHashMap<>();
+		Map<Long, Map<Long, HashMapVirtualObject>> unchangedByRoid = new HashMap<>();
+		for (Long oid : batch.keySet()) {
+			HashMapVirtualObject product = fingerprinter.get(oid);
+			String globalId = product == null ? null : (String) product.get("GlobalId");
+			if (globalId == null) {
+				remaining.put(oid, batch.get(oid));
+				continue;
+			}
+			ContentDigest fingerprint = fingerprinter.fingerprint(product);
+			globalIds.put(oid, globalId);
+			fingerprints.put(oid, fingerprint);
+			GeometryFingerprintStore.Entry entry = fingerprintStore.get(globalId);
+			if (entry == null || !entry.getFingerprint().equals(fingerprint)) {
+				remaining.put(oid, batch.get(oid));
+				continue;
+			}
+			Map<Long, HashMapVirtualObject> unchanged = unchangedByRoid.get(entry.getRoid());
+			if (unchanged == null) {
+				unchanged = new HashMap<>();
+				unchangedByRoid.put(entry.getRoid(), unchanged);
+			}
+			if (unchanged.putIfAbsent(entry.getGeometryInfoOid(), product) != null) {
+				// Duplicate GlobalId
+				remaining.put(oid, batch.get(oid));
+			}
+		}
+		for (Long roid : unchangedByRoid.keySet()) {
+			Map<Long, HashMapVirtualObject> unchanged = unchangedByRoid.get(roid);
+			Set<Long> copied = copy(eClass, roid, unchanged);
+			for (HashMapVirtualObject product : unchanged.values()) {
+				if (!copied.contains(product.getOid())) {
+					remaining.put(product.getOid(), batch.get(product.getOid()));
+				}
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Copies the GeometryInfo (and GeometryData) objects of an earlier revision to the revision being generated
+	 * 
+	 * @param unchanged Products by the oid of their GeometryInfo in the revision with the given roid
+	 * @return The oids of the products that got their geometry
+	 */
+	private Set<Long> copy(EClass eClass, long roid, Map<Long, HashMapVirtualObject> unchanged) throws QueryException, IOException, BimserverDatabaseException, GeometryGeneratingException {
+		Query query = new Query("Previous geometry " + eClass.getName(), packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		for (Long oid : unchanged.keySet()) {
+			queryPart.addOid(oid);
+		}
+		Include dataInclude = queryPart.createInclude();
+		dataInclude.addType(GeometryPackage.eINSTANCE.getGeometryInfo(), false);
+		dataInclude.addField("data");
+		Include verticesInclude = dataInclude.createInclude();
+		verticesInclude.addType(GeometryPackage.eINSTANCE.getGeometryData(), false);
+		verticesInclude.addField("vertices");
+
+		Map<Long, HashMapVirtualObject> objects = new HashMap<>();
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(roid), packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			objects.put(next.getOid(), next);
+			next = queryObjectProvider.next();
+		}
+
+		Map<Long, Long> copied = new HashMap<>();
+		Map<Long, HashMapVirtualObject> dataCopies = new HashMap<>();
+		for (Long geometryInfoOid : unchanged.keySet()) {
+			HashMapVirtualObject ifcProduct = unchanged.get(geometryInfoOid);
+			HashMapVirtualObject geometryInfo = objects.get(geometryInfoOid);
+			if (geometryInfo == null) {
+				continue;
+			}
+			Long dataOid = (Long) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_Data());
+			HashMapVirtualObject geometryData = dataCopies.get(dataOid);
+			if (geometryData == null) {
+				geometryData = dataOid == null ? null : objects.get(dataOid);
+				HashMapVirtualObject vertices = geometryData == null ? null : objects.get((Long) geometryData.eGet(GeometryPackage.eINSTANCE.getGeometryData_Vertices()));
+				if (vertices == null) {
+					LOGGER.debug("No previous geometry data found for " + ifcProduct.eClass().getName() + " " + ifcProduct.getOid());
+					continue;
+				}
+				geometryData.prepareForCopy(queryContext);
+				geometryData.generateNewOid();
+				geometryData.set("reused", 0);
+				dataCopies.put(dataOid, geometryData);
+				streamingGeometryGenerator.cacheGeometryData(geometryData, ByteBuffer.wrap((byte[]) vertices.get("data")).order(ByteOrder.LITTLE_ENDIAN));
+			}
+			geometryData.set("reused", (Integer) geometryData.get("reused") + 1);
+
+			geometryInfo.prepareForCopy(queryContext);
+			geometryInfo.generateNewOid();
+			geometryInfo.setAttribute(GeometryPackage.eINSTANCE.getGeometryInfo_IfcProductOid(), ifcProduct.getOid());
+			geometryInfo.setAttribute(GeometryPackage.eINSTANCE.getGeometryInfo_IfcProductUuid(), UuidUtils.toByteArray(ifcProduct.getUuid()));
+			geometryInfo.setAttribute(GeometryPackage.eINSTANCE.getGeometryInfo_IfcProductRid(), ifcProduct.getRid());
+			geometryInfo.setReference(GeometryPackage.eINSTANCE.getGeometryInfo_Data(), geometryData.getOid(), 0);
+			extendResult(geometryInfo);
+			addDensity(eClass, geometryInfo);
+			streamingGeometryGenerator.geometryGenerated(ifcProduct, geometryInfo);
+			geometryInfo.save();
+			copied.put(ifcProduct.getOid(), geometryInfo.getOid());
+		}
+		for (HashMapVirtualObject geometryData : dataCopies.values()) {
+			geometryData.save();
+			databaseSession.cache(geometryData);
+		}
+		setGeometry(copied);
+		carried.addAndGet(copied.size());
+		return copied.keySet();
+	}
+
+	/**
+	 * The products are read again without includes before they are overwritten, so what is written does not depend on what the fingerprint query read
+	 * 
+	 * @param geometryInfoOids The oid of the new GeometryInfo by product oid
+	 */
+	private void setGeometry(Map<Long, Long> geometryInfoOids) throws QueryException, IOException, BimserverDatabaseException {
+		if (geometryInfoOids.isEmpty()) {
+			return;
+		}
+		Query query = new Query("Carried products", packageMetaData);
+		QueryPart queryPart = query.createQueryPart();
+		for (Long oid : geometryInfoOids.keySet()) {
+			queryPart.addOid(oid);
+		}
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(queryContext.getRoid()), packageMetaData);
+		HashMapVirtualObject next = queryObjectProvider.next();
+		while (next != null) {
+			next.setReference(streamingGeometryGenerator.geometryFeature, geometryInfoOids.get(next.getOid()), 0);
+			next.saveOverwrite();
+			next = queryObjectProvider.next();
+		}
+	}
+
+	private void extendResult(HashMapVirtualObject geometryInfo) {
+		HashMapWrappedVirtualObject bounds = (HashMapWrappedVirtualObject) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_Bounds());
+		HashMapWrappedVirtualObject boundsUntransformed = (HashMapWrappedVirtualObject) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_BoundsUntransformed());
+		synchronized (generateGeometryResult) {
+			if (bounds != null) {
+				HashMapWrappedVirtualObject min = (HashMapWrappedVirtualObject) bounds.eGet("min");
+				HashMapWrappedVirtualObject max = (HashMapWrappedVirtualObject) bounds.eGet("max");
+				generateGeometryResult.setMinX(Math.min((double) min.eGet("x"), generateGeometryResult.getMinX()));
+				generateGeometryResult.setMinY(Math.min((double) min.eGet("y"), generateGeometryResult.getMinY()));
+				generateGeometryResult.setMinZ(Math.min((double) min.eGet("z"), generateGeometryResult.getMinZ()));
+				generateGeometryResult.setMaxX(Math.max((double) max.eGet("x"), generateGeometryResult.getMaxX()));
+				generateGeometryResult.setMaxY(Math.max((double) max.eGet("y"), generateGeometryResult.getMaxY()));
+				generateGeometryResult.setMaxZ(Math.max((double) max.eGet("z"), generateGeometryResult.getMaxZ()));
+			}
+			if (boundsUntransformed != null) {
+				HashMapWrappedVirtualObject min = (HashMapWrappedVirtualObject) boundsUntransformed.eGet("min");
+				HashMapWrappedVirtualObject max = (HashMapWrappedVirtualObject) boundsUntransformed.eGet("max");
+				generateGeometryResult.setUntranslatedMinX(Math.min((double) min.eGet("x"), generateGeometryResult.getUntranslatedMinX()));
+				generateGeometryResult.setUntranslatedMinY(Math.min((double) min.eGet("y"), generateGeometryResult.getUntranslatedMinY()));
+				generateGeometryResult.setUntranslatedMinZ(Math.min((double) min.eGet("z"), generateGeometryResult.getUntranslatedMinZ()));
+				generateGeometryResult.setUntranslatedMaxX(Math.max((double) max.eGet("x"), generateGeometryResult.getUntranslatedMaxX()));
+				generateGeometryResult.setUntranslatedMaxY(Math.max((double) max.eGet("y"), generateGeometryResult.getUntranslatedMaxY()));
+				generateGeometryResult.setUntranslatedMaxZ(Math.max((double) max.eGet("z"), generateGeometryResult.getUntranslatedMaxZ()));
+			}
+		}
+	}
+
+	private void addDensity(EClass eClass, HashMapVirtualObject geometryInfo) throws GeometryGeneratingException {
+		HashMapWrappedVirtualObject boundsUntransformed = (HashMapWrappedVirtualObject) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_BoundsUntransformed());
+		HashMapWrappedVirtualObject boundsUntransformedMm = (HashMapWrappedVirtualObject) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_BoundsUntransformedMm());
+		Integer primitiveCount = (Integer) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_PrimitiveCount());
+		if (boundsUntransformed == null || boundsUntransformedMm == null || primitiveCount == null) {
+			return;
+		}
+		Double volume = (Double) geometryInfo.eGet(GeometryPackage.eINSTANCE.getGeometryInfo_Volume());
+		if (volume == null || volume == 0) {
+			volume = (double) GeometryRunner.getVolumeFromBounds(boundsUntransformed);
+		}
+		generateGeometryResult.addDensity(new Density(eClass.getName(), volume.floatValue(), GeometryRunner.getBiggestFaceFromBounds(boundsUntransformedMm), primitiveCount, geometryInfo.getOid()));
+	}
+
+	void geometryGenerated(HashMapVirtualObject ifcProduct, HashMapVirtualObject geometryInfo) {
+		generated.put(ifcProduct.getOid(), geometryInfo.getOid());
+	}
+
+	/**
+	 * Stores the fingerprints of all fingerprinted products that have geometry in this revision, to be used by the next revision. Products
+	 * of which the GlobalId is not unique within this revision are left out, the next revision cannot tell them apart.
+	 */
+	public void flush() throws BimserverDatabaseException {
+		Map<String, Integer> counts = new HashMap<>();
+		for (String globalId : globalIds.values()) {
+			counts.merge(globalId, 1, Integer::sum);
+		}
+		fingerprintStore.removePrevious();
+		int stored = 0;
+		for (Long oid : fingerprints.keySet()) {
+			Long geometryInfoOid = generated.get(oid);
+			if (geometryInfoOid != null && counts.get(globalIds.get(oid)) == 1) {
+				fingerprintStore.put(globalIds.get(oid), fingerprints.get(oid), geometryInfoOid);
+				stored++;
+			}
+		}
+		LOGGER.debug(carried.get() + " products carried forward, " + stored + " fingerprints stored");
+	}
+
+	public int getNrCarried() {
+		return carried.get();
+	}
+}
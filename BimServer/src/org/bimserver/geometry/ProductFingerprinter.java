@@ -0,0 +1,199 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.models.geometry.GeometryPackage;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.HashMapWrappedVirtualObject;
+import org.eclipse.emf.common.util.Enumerator;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
+
+/**
+ * Computes a fingerprint of everything the render engine gets to see of a product: its placement, representations, openings, materials
+ * and type, including all objects reachable from those. The fingerprint does not depend on oids, so the same product in two revisions
+ * has the same fingerprint when none of the data used for its geometry has changed.
+ * 
+ * Only objects that have been added with {@link #add(HashMapVirtualObject)} are part of the fingerprint, so the objects should be
+ * loaded with the same includes as the geometry generation query. Not included are the identity of IfcRoot objects (GlobalId, Name,
+ * Description, OwnerHistory), references to other products (except openings and types) and inverses that do not affect geometry.
+ */
+public class ProductFingerprinter {
+	private static final Set<String> ROOT_FEATURES = new HashSet<>(Arrays.asList("ObjectPlacement", "Representation", "HasOpenings", "HasAssociations", "IsTypedBy"));
+	private static final Set<String> IDENTITY_FEATURES = new HashSet<>(Arrays.asList("GlobalId", "Name", "Description", "OwnerHistory"));
+	private static final Set<String> FOLLOWED_INVERSES = new HashSet<>(Arrays.asList("HasOpenings", "HasAssociations", "IsTypedBy", "StyledByItem"));
+	private static final Set<String> FOLLOWED_PRODUCT_REFERENCES = new HashSet<>(Arrays.asList("RelatedOpeningElement", "RelatingType"));
+
+	private static final byte NULL = 0;
+	private static final byte OBJECT = 1;
+	private static final byte BACK_REFERENCE = 2;
+	private static final byte WRAPPED = 3;
+	private static final byte LIST = 4;
+	private static final byte END = 5;
+	private static final byte VALUE = 6;
+
+	private final PackageMetaData packageMetaData;
+	private final byte[] settings;
+	private final EClass ifcRoot;
+	private final EClass ifcObjectDefinition;
+	private final Map<Long, HashMapVirtualObject> objects = new HashMap<>();
+
+	/**
+	 * @param settings Everything besides the model that influences the generated geometry (render engine, units etc...), part of every fingerprint
+	 */
+	public ProductFingerprinter(PackageMetaData packageMetaData, byte[] settings) {
+		this.packageMetaData = packageMetaData;
+		this.settings = settings;
+		this.ifcRoot = packageMetaData.getEClass("IfcRoot");
+		this.ifcObjectDefinition = packageMetaData.getEClass("IfcObjectDefinition");
+	}
+
+	public void add(HashMapVirtualObject object) {
+		objects.put(object.getOid(), object);
+	}
+
+	public HashMapVirtualObject get(long oid) {
+		return objects.get(oid);
+	}
+
+	public ContentDigest fingerprint(HashMapVirtualObject product) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			Map<Long, Integer> visited = new HashMap<>();
+			visited.put(product.getOid(), 0);
+			out.writeByte(OBJECT);
+			out.writeUTF(product.eClass().getName());
+			for (EStructuralFeature feature : product.eClass().getEAllStructuralFeatures()) {
+				if (ROOT_FEATURES.contains(feature.getName())) {
+					writeFeature(out, product, feature, visited);
+				}
+			}
+		} catch (IOException e) {
+			// Not possible with a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return ContentDigest.of(settings, bytes.toByteArray());
+	}
+
+	private void writeObject(DataOutputStream out, HashMapVirtualObject object, Map<Long, Integer> visited) throws IOException {
+		Integer index = visited.get(object.getOid());
+		if (index != null) {
+			// Shared objects and cycles are written as the index of the first visit, which does not depend on oids
+			out.writeByte(BACK_REFERENCE);
+			out.writeInt(index);
+			return;
+		}
+		visited.put(object.getOid(), visited.size());
+		out.writeByte(OBJECT);
+		out.writeUTF(object.eClass().getName());
+		boolean isRoot = ifcRoot.isSuperTypeOf(object.eClass());
+		for (EStructuralFeature feature : object.eClass().getEAllStructuralFeatures()) {
+			if (isRoot && IDENTITY_FEATURES.contains(feature.getName())) {
+				continue;
+			}
+			if (feature instanceof EReference) {
+				EReference eReference = (EReference) feature;
+				if (eReference.getEType().getEPackage() == GeometryPackage.eINSTANCE) {
+					continue;
+				}
+				if (packageMetaData.isInverse(eReference) && !FOLLOWED_INVERSES.contains(feature.getName())) {
+					continue;
+				}
+			}
+			writeFeature(out, object, feature, visited);
+		}
+		out.writeByte(END);
+	}
+
+	private void writeFeature(DataOutputStream out, HashMapVirtualObject object, EStructuralFeature feature, Map<Long, Integer> visited) throws IOException {
+		out.writeShort(object.eClass().getFeatureID(feature));
+		writeValue(out, feature, object.eGet(feature), visited);
+	}
+
+	private void writeValue(DataOutputStream out, EStructuralFeature feature, Object value, Map<Long, Integer> visited) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof List) {
+			out.writeByte(LIST);
+			for (Object item : (List<?>) value) {
+				if (feature instanceof EReference && item instanceof Long && getFollowed(feature, (Long) item) == null) {
+					// Leaving these out completely, so adding other products to for example a material association does not change the fingerprint
+					continue;
+				}
+				writeValue(out, feature, item, visited);
+			}
+			out.writeByte(END);
+		} else if (value instanceof HashMapWrappedVirtualObject) {
+			HashMapWrappedVirtualObject wrapped = (HashMapWrappedVirtualObject) value;
+			out.writeByte(WRAPPED);
+			out.writeUTF(wrapped.eClass().getName());
+			for (EAttribute eAttribute : wrapped.eClass().getEAllAttributes()) {
+				writeValue(out, eAttribute, wrapped.eGet(eAttribute), visited);
+			}
+		} else if (feature instanceof EReference && value instanceof Long) {
+			HashMapVirtualObject referenced = getFollowed(feature, (Long) value);
+			if (referenced == null) {
+				out.writeByte(NULL);
+			} else {
+				writeObject(out, referenced, visited);
+			}
+		} else {
+			out.writeByte(VALUE);
+			if (value instanceof Enumerator) {
+				writeString(out, ((Enumerator) value).getLiteral());
+			} else if (value instanceof byte[]) {
+				out.writeInt(((byte[]) value).length);
+				out.write((byte[]) value);
+			} else if (value instanceof Double) {
+				out.writeDouble((Double) value);
+			} else {
+				writeString(out, value.toString());
+			}
+		}
+	}
+
+	/**
+	 * Objects that were not loaded are not seen by the render engine either, references to other products are only followed for openings and types
+	 */
+	private HashMapVirtualObject getFollowed(EStructuralFeature feature, long oid) {
+		HashMapVirtualObject referenced = objects.get(oid);
+		if (referenced == null || (ifcObjectDefinition.isSuperTypeOf(referenced.eClass()) && !FOLLOWED_PRODUCT_REFERENCES.contains(feature.getName()))) {
+			return null;
+		}
+		return referenced;
+	}
+
+	private void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,52 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bimserver.servlets.ReusableByteArrayOutputStream;
+
+/**
+ * Keeps the buffers the IFC fragments of the GeometryRunners are serialized into, so every runner reuses an already grown buffer instead of allocating (and copying) a new one per batch.
+ * At most one buffer per thread is kept, buffers that have grown beyond maxRetainedSize are dropped after use so one very large batch does not stay in memory.
+ */
+public class SerializationBufferPool {
+	private final BlockingQueue<ReusableByteArrayOutputStream> buffers;
+	private final int maxRetainedSize;
+
+	public SerializationBufferPool(int nrThreads, int maxRetainedSize) {
+		this.buffers = new ArrayBlockingQueue<>(nrThreads);
+		this.maxRetainedSize = maxRetainedSize;
+	}
+
+	public ReusableByteArrayOutputStream borrow() {
+		ReusableByteArrayOutputStream buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = new ReusableByteArrayOutputStream();
+		}
+		return buffer;
+	}
+
+	public void release(ReusableByteArrayOutputStream buffer) {
+		if (buffer.getByteArray().length > maxRetainedSize) {
+			return;
+		}
+		buffer.reset();
+		buffers.offer(buffer);
+	}
+}
@@ -28,6 +28,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,8 +36,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -51,6 +52,8 @@ import org.bimserver.GeometryGeneratingException;
 import org.bimserver.ProductDef;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OldQuery;
+import org.bimserver.database.OperationType;
+import org.bimserver.database.PostCommitAction;
 import org.bimserver.database.actions.ProgressListener;
 import org.bimserver.database.queries.QueryObjectProvider;
 import org.bimserver.database.queries.om.Include;
@@ -60,6 +63,7 @@ import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.emf.PackageMetaData;
 import org.bimserver.emf.Schema;
+import org.bimserver.geometry.spatialindex.SpatialIndexBuilder;
 import org.bimserver.models.geometry.Bounds;
 import org.bimserver.models.geometry.GeometryPackage;
 import org.bimserver.models.geometry.Vector3f;
@@ -91,9 +95,27 @@ import org.slf4j.LoggerFactory;
 
 public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	static final Logger LOGGER = LoggerFactory.getLogger(StreamingGeometryGenerator.class);
+	private static final int MAX_RETAINED_SERIALIZATION_BUFFER_SIZE = 64 * 1024 * 1024;
+	static final long MAX_BYTES_PER_BATCH = 2 * 1024 * 1024;
+	
+	/**
+	 * The most expensive jobs first, jobs with the same estimated cost in the order they were created
+	 */
+	static final Comparator<Runnable> JOB_ORDER = new Comparator<Runnable>() {
+		@Override
+		public int compare(Runnable o1, Runnable o2) {
+			GeometryRunner runner1 = (GeometryRunner) o1;
+			GeometryRunner runner2 = (GeometryRunner) o2;
+			int result = Long.compare(runner2.getEstimatedCost(), runner1.getEstimatedCost());
+			if (result == 0) {
+				result = Long.compare(runner1.getSequence(), runner2.getSequence());
+			}
+			return result;
+		}
+	};
 	
 	final BimServer bimServer;
-	final Map<Integer, Long> hashes = new ConcurrentHashMap<>();
+	final Map<ContentDigest, HashMapVirtualObject> geometryDataByContent = new ConcurrentHashMap<>();
 
 	private EClass productClass;
 	EReference geometryFeature;
@@ -134,10 +156,30 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 
 	private GeometryGenerationDebugger geometryGenerationDebugger = new GeometryGenerationDebugger();
 
+	private final SpatialIndexBuilder spatialIndexBuilder = new SpatialIndexBuilder();
+
+	private GeometryContentStore contentStore;
+
 	private boolean applyLayerSets;
 
 	private boolean calculateQuantities;
 
+	private boolean incremental;
+
+	private IncrementalGeometry incrementalGeometry;
+
+	private Set<Long> changedProducts;
+
+	private Set<Long> removedProducts;
+
+	private long previousCroid = -1;
+
+	private final Set<Long> replacedGeometryInfoOids = ConcurrentHashMap.newKeySet();
+
+	SerializationBufferPool serializationBuffers;
+
+	final GeometryCostModel costModel = new GeometryCostModel();
+
 	public StreamingGeometryGenerator(final BimServer bimServer, ProgressListener progressListener, Long eoid, GeometryGenerationReport report) {
 		this.bimServer = bimServer;
 		this.progressListener = progressListener;
@@ -186,6 +228,8 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		reuseGeometry = bimServer.getServerSettingsCache().getServerSettings().isReuseGeometry();
 		optimizeMappedItems = bimServer.getServerSettingsCache().getServerSettings().isOptimizeMappedItems();
 		
+		contentStore = new GeometryContentStore(databaseSession, queryContext);
+		
 		report.setStart(new GregorianCalendar());
 		report.setIfcSchema(queryContext.getPackageMetaData().getSchema());
 		report.setUseMappingOptimization(optimizeMappedItems);
@@ -221,6 +265,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 			if (maxSimultanousThreads < 1) {
 				maxSimultanousThreads = 1;
 			}
+			serializationBuffers = new SerializationBufferPool(maxSimultanousThreads, MAX_RETAINED_SERIALIZATION_BUFFER_SIZE);
 
 			final RenderEngineSettings settings = new RenderEngineSettings();
 			settings.setPrecision(Precision.SINGLE);
@@ -257,7 +302,9 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 			
 			// TODO reuse, pool the pools :) Or something smarter
 			// TODO reuse queue, or try to determine a realistic size, or don't use a fixed-size queue
-			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxSimultanousThreads, maxSimultanousThreads, 24, TimeUnit.HOURS, new ArrayBlockingQueue<Runnable>(10000000));
+			// The most expensive jobs are started first, so large batches do not end up at the tail of the run while the other threads are idle. All threads take
+			// their work from this one queue, so a thread that is done never waits while there are jobs left
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxSimultanousThreads, maxSimultanousThreads, 24, TimeUnit.HOURS, new PriorityBlockingQueue<Runnable>(1024, JOB_ORDER));
 
 			JsonQueryObjectModelConverter jsonQueryObjectModelConverter = new JsonQueryObjectModelConverter(packageMetaData);
 			String queryNameSpace = packageMetaData.getSchema().name().toLowerCase() + "-stdlib";
@@ -271,9 +318,19 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 			} else {
 				classes = packageMetaData.getEClasses();
 			}
+			if (changedProducts != null) {
+				classes = new HashSet<>();
+				for (long oid : changedProducts) {
+					classes.add(databaseSession.getEClassForOid(oid));
+				}
+			}
 
 			float multiplierToMm = processUnits(databaseSession, queryContext);
 			generateGeometryResult.setMultiplierToMm(multiplierToMm);
+
+			if (incremental) {
+				incrementalGeometry = new IncrementalGeometry(this, databaseSession, queryContext, generateGeometryResult, renderEngine.getPluginDescriptor().getPluginClassName() + "/" + renderEngine.getPluginDescriptor().getPluginBundleVersion().getVersion() + "/" + versionInfo.getBuildVersion());
+			}
 			
 			// Phase 1 (mapped item detection) sometimes detects that mapped items have invalid (unsupported) RepresentationIdentifier values, this set keeps track of objects to skip in Phase 2 because of that
 			Set<Long> toSkip = new HashSet<>();
@@ -327,7 +384,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 					QueryObjectProvider queryObjectProvider2 = new QueryObjectProvider(databaseSession, bimServer, query2, Collections.singleton(queryContext.getRoid()), packageMetaData);
 					HashMapVirtualObject next = queryObjectProvider2.next();
 					while (next != null) {
-						if (next.eClass() == eClass) {
+						if (next.eClass() == eClass && isChanged(next.getOid())) {
 							AbstractHashMapVirtualObject representation = next.getDirectFeature(representationFeature);
 							if (representation != null) {
 								Set<HashMapVirtualObject> representations = representation.getDirectListFeature(representationsFeature);
@@ -539,7 +596,7 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 
 //							queryPart3.addInclude(jsonQueryObjectModelConverter.getDefineFromFile("ifc2x3tc1-stdlib:IfcMappedItem"));
 							
-							processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, true, map, map.size(), representationOids);
+							processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, true, map, map.size(), map.size(), representationOids);
 						}
 					}
 					
@@ -577,18 +634,16 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 				representationsInclude2.addType(packageMetaData.getEClass("IfcShapeModel"), true);
 				representationsInclude2.addFieldDirect("ContextOfItems");
 				
-				Query query = new Query("Main " + eClass.getName(), packageMetaData);
-				query.setDoubleBuffer(true);
-				QueryPart queryPart = query.createQueryPart();
-				int written = 0;
+				// Products of this batch with their representations
+				Map<Long, Set<Long>> batch = new LinkedHashMap<>();
+				int batchItems = 0;
 
 				QueryObjectProvider queryObjectProvider2 = new QueryObjectProvider(databaseSession, bimServer, query3, Collections.singleton(queryContext.getRoid()), packageMetaData);
 				HashMapVirtualObject next = queryObjectProvider2.next();
 				
-				Set<Long> representationOids = new HashSet<>();
 				while (next != null) {
 					// Not sure why the duplicate code in the next 20 lines
-					if (next.eClass() == eClass && !done.contains(next.getOid()) && !toSkip.contains(next.getOid())) {
+					if (next.eClass() == eClass && !done.contains(next.getOid()) && !toSkip.contains(next.getOid()) && isChanged(next.getOid())) {
 						AbstractHashMapVirtualObject representation = next.getDirectFeature(representationFeature);
 						if (representation != null) {
 							Set<HashMapVirtualObject> list = representation.getDirectListFeature(packageMetaData.getEReference("IfcProductRepresentation", "Representations"));
@@ -600,16 +655,12 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 										list = representation.getDirectListFeature(packageMetaData.getEReference("IfcProductRepresentation", "Representations"));
 										Set<Long> goForIt2 = goForIt(list);
 										if (!goForIt2.isEmpty()) {
-											queryPart.addOid(next.getOid());
-											representationOids.addAll(goForIt2);
-											written++;
-											if (written >= maxObjectsPerFile) {
-												processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, written, representationOids);
-												query = new Query("Main " + eClass.getName(), packageMetaData);
-												query.setDoubleBuffer(true);
-												queryPart = query.createQueryPart();
-												written = 0;
-												representationOids.clear();
+											batch.put(next.getOid(), goForIt2);
+											batchItems += countItems(list, goForIt2);
+											if (isBatchFull(costModel, eClass, batch.size(), batchItems, maxObjectsPerFile)) {
+												processBatch(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, batch, batchItems);
+												batch = new LinkedHashMap<>();
+												batchItems = 0;
 											}
 										}
 									}
@@ -619,8 +670,8 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 					}
 					next = queryObjectProvider2.next();
 				}
-				if (written > 0) {
-					processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, written, representationOids);
+				if (!batch.isEmpty()) {
+					processBatch(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, batch, batchItems);
 				}
 			}
 			
@@ -644,14 +695,9 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 				for (Long id : geometryDataMap.keySet()) {
 					Tuple<HashMapVirtualObject, ByteBuffer> tuple = geometryDataMap.get(id);
 					
-					HashMapVirtualObject buffer = new HashMapVirtualObject(queryContext, GeometryPackage.eINSTANCE.getBuffer());
-//				Buffer buffer = databaseSession.create(Buffer.class);
-					buffer.set("data", quantizeVertices(tuple.getB().asDoubleBuffer(), quantizationMatrix, multiplierToMm).array());
-//				buffer.setData(quantizeVertices(tuple.getB(), quantizationMatrix, multiplierToMm).array());
-//				databaseSession.store(buffer);
-					buffer.save();
+					long verticesQuantized = contentStore.getOrCreateBuffer(queryContext, quantizeVertices(tuple.getB().asDoubleBuffer(), quantizationMatrix, multiplierToMm));
 					HashMapVirtualObject geometryData = tuple.getA();
-					geometryData.set("verticesQuantized", buffer.getOid());
+					geometryData.set("verticesQuantized", verticesQuantized);
 					int reused = (int) geometryData.eGet(GeometryPackage.eINSTANCE.getGeometryData_Reused());
 					int nrTriangles = (int) geometryData.eGet(GeometryPackage.eINSTANCE.getGeometryData_NrIndices()) / 3;
 					int saveableTriangles = Math.max(0, (reused - 1)) * nrTriangles;
@@ -663,9 +709,33 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 				}
 			}
 
+			if (incrementalGeometry != null) {
+				incrementalGeometry.flush();
+			}
+			contentStore.flush();
+			boolean completeSpatialIndex = true;
+			if (changedProducts != null) {
+				Set<Long> excluded = new HashSet<>(changedProducts);
+				excluded.addAll(removedProducts);
+				completeSpatialIndex = spatialIndexBuilder.addFrom(databaseSession, previousCroid, excluded);
+			}
+			if (completeSpatialIndex) {
+				final long croid = queryContext.getCroid();
+				databaseSession.addPostCommitAction(new PostCommitAction() {
+					@Override
+					public void execute() throws UserException {
+						try (DatabaseSession tmpSession = bimServer.getDatabase().createSession(OperationType.POSSIBLY_WRITE)) {
+							spatialIndexBuilder.build(tmpSession, croid);
+						} catch (BimserverDatabaseException e) {
+							LOGGER.error("", e);
+						}
+					}
+				});
+			}
+
 			long end = System.nanoTime();
 			long total = totalBytes.get() - (bytesSavedByHash.get() + bytesSavedByTransformation.get() + bytesSavedByMapping.get());
-			LOGGER.info("Rendertime: " + Formatters.nanosToString(end - start) + ", " + "Reused (by hash): " + Formatters.bytesToString(bytesSavedByHash.get()) + ", Reused (by transformation): " + Formatters.bytesToString(bytesSavedByTransformation.get()) + ", Reused (by mapping): " + Formatters.bytesToString(bytesSavedByMapping.get()) + ", Total: " + Formatters.bytesToString(totalBytes.get()) + ", Final: " + Formatters.bytesToString(total));
+			LOGGER.info("Rendertime: " + Formatters.nanosToString(end - start) + ", " + "Reused (by hash): " + Formatters.bytesToString(bytesSavedByHash.get()) + ", Reused (by content): " + Formatters.bytesToString(contentStore.getBytesSaved()) + ", Carried forward: " + (incrementalGeometry == null ? 0 : incrementalGeometry.getNrCarried()) + " products" + ", Reused (by transformation): " + Formatters.bytesToString(bytesSavedByTransformation.get()) + ", Reused (by mapping): " + Formatters.bytesToString(bytesSavedByMapping.get()) + ", Total: " + Formatters.bytesToString(totalBytes.get()) + ", Final: " + Formatters.bytesToString(total));
 			if (report.getNumberOfDebugFiles() > 0) {
 				LOGGER.error("[" + report.getOriginalIfcFileName() + "] Number of erroneous files: " + report.getNumberOfDebugFiles());
 			}
@@ -697,6 +767,31 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		return generateGeometryResult;
 	}
 
+	/**
+	 * Called for every product that got geometry in this revision, either generated or carried forward
+	 */
+	void geometryGenerated(HashMapVirtualObject ifcProduct, HashMapVirtualObject geometryInfo) {
+		Object previous = ifcProduct.eGet(geometryFeature);
+		if (previous instanceof Long) {
+			replacedGeometryInfoOids.add((Long) previous);
+		}
+		addToSpatialIndex(ifcProduct, geometryInfo);
+		if (incrementalGeometry != null) {
+			incrementalGeometry.geometryGenerated(ifcProduct, geometryInfo);
+		}
+	}
+
+	private void addToSpatialIndex(HashMapVirtualObject ifcProduct, HashMapVirtualObject geometryInfo) {
+		HashMapWrappedVirtualObject boundsMm = (HashMapWrappedVirtualObject) geometryInfo.get("boundsMm");
+		if (boundsMm == null) {
+			return;
+		}
+		HashMapWrappedVirtualObject minBounds = (HashMapWrappedVirtualObject) boundsMm.eGet("min");
+		HashMapWrappedVirtualObject maxBounds = (HashMapWrappedVirtualObject) boundsMm.eGet("max");
+		Object density = geometryInfo.get("density");
+		spatialIndexBuilder.add(ifcProduct.eClass(), ifcProduct.getOid(), (double) minBounds.eGet("x"), (double) minBounds.eGet("y"), (double) minBounds.eGet("z"), (double) maxBounds.eGet("x"), (double) maxBounds.eGet("y"), (double) maxBounds.eGet("z"), density == null ? 0 : (float) density);
+	}
+
 	private double[] createQuantizationMatrixFromBounds(Bounds bounds, float multiplierToMm) {
 		double[] matrix = Matrix.identity();
 		double scale = 32768;
@@ -811,6 +906,26 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		return 1000f;
 	}
 
+	private int countItems(Set<HashMapVirtualObject> representations, Set<Long> representationOids) {
+		int nrItems = 0;
+		for (HashMapVirtualObject representation : representations) {
+			if (representationOids.contains(representation.getOid())) {
+				Object items = representation.eGet(itemsFeature);
+				if (items instanceof List) {
+					nrItems += ((List<?>) items).size();
+				}
+			}
+		}
+		return Math.max(1, nrItems);
+	}
+
+	/**
+	 * Batches are also cut when they are estimated to become too large, so a few products with many items do not make one very long job
+	 */
+	static boolean isBatchFull(GeometryCostModel costModel, EClass eClass, int nrProducts, int nrItems, int maxObjectsPerFile) {
+		return nrProducts >= maxObjectsPerFile || costModel.estimateBytes(eClass, nrItems) >= MAX_BYTES_PER_BATCH;
+	}
+
 	private Set<Long> goForIt(Set<HashMapVirtualObject> list) {
 		Set<Long> representationOids = new HashSet<>();
 		if (list != null) {
@@ -919,8 +1034,46 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		return matrix;
 	}
 
+	/**
+	 * Tessellates a batch of products of the given type, when generating incrementally only the products that have changed since the previous revision
+	 */
+	private void processBatch(final DatabaseSession databaseSession, QueryContext queryContext, GenerateGeometryResult generateGeometryResult, final StreamingSerializerPlugin ifcSerializerPlugin, final RenderEngineSettings settings,
+			final RenderEngineFilter renderEngineFilter, RenderEnginePool renderEnginePool, ThreadPoolExecutor executor, EClass eClass, Map<Long, Set<Long>> batch, int nrItems) throws QueryException, IOException, BimserverDatabaseException, GeometryGeneratingException {
+		if (incrementalGeometry != null && incrementalGeometry.supports(eClass)) {
+			int originalSize = batch.size();
+			batch = incrementalGeometry.carryForward(eClass, batch);
+			if (batch.isEmpty()) {
+				return;
+			}
+			nrItems = (int) ((long) nrItems * batch.size() / originalSize);
+		}
+		Query query = new Query("Main " + eClass.getName(), packageMetaData);
+		query.setDoubleBuffer(true);
+		QueryPart queryPart = query.createQueryPart();
+		Set<Long> representationOids = new HashSet<>();
+		for (Long oid : batch.keySet()) {
+			queryPart.addOid(oid);
+			representationOids.addAll(batch.get(oid));
+		}
+		processQuery(databaseSession, queryContext, generateGeometryResult, ifcSerializerPlugin, settings, renderEngineFilter, renderEnginePool, executor, eClass, query, queryPart, false, null, batch.size(), nrItems, representationOids);
+	}
+
 	private void processQuery(final DatabaseSession databaseSession, QueryContext queryContext, GenerateGeometryResult generateGeometryResult, final StreamingSerializerPlugin ifcSerializerPlugin, final RenderEngineSettings settings,
-			final RenderEngineFilter renderEngineFilter, RenderEnginePool renderEnginePool, ThreadPoolExecutor executor, EClass eClass, Query query, QueryPart queryPart, boolean geometryReused, Map<Long, ProductDef> map, int nrObjects, Set<Long> representationOids) throws QueryException, IOException {
+			final RenderEngineFilter renderEngineFilter, RenderEnginePool renderEnginePool, ThreadPoolExecutor executor, EClass eClass, Query query, QueryPart queryPart, boolean geometryReused, Map<Long, ProductDef> map, int nrObjects, int nrItems, Set<Long> representationOids) throws QueryException, IOException {
+		addGeometryIncludes(query, queryPart, eClass, representationOids);
+		
+		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(queryContext.getRoid()), packageMetaData);
+		
+		ReportJob job = report.newJob(eClass.getName(), nrObjects);
+		GeometryRunner runner = new GeometryRunner(this, eClass, renderEnginePool, databaseSession, settings, queryObjectProvider, ifcSerializerPlugin, renderEngineFilter, generateGeometryResult, queryContext, geometryReused, map, job, reuseGeometry, geometryGenerationDebugger, query);
+		runner.setEstimate(jobsTotal.incrementAndGet(), nrItems, costModel.estimateBytes(eClass, nrItems));
+		executor.execute(runner);
+	}
+
+	/**
+	 * Adds everything the render engine needs for the products in the given query part: representations (by oid in a separate query part), placement, openings, materials and types
+	 */
+	void addGeometryIncludes(Query query, QueryPart queryPart, EClass eClass, Set<Long> representationOids) throws QueryException {
 		JsonQueryObjectModelConverter jsonQueryObjectModelConverter = new JsonQueryObjectModelConverter(packageMetaData);
 		
 		String lowerCasePackage = packageMetaData.getSchema().name().toLowerCase();
@@ -1044,13 +1197,6 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 			hasOpenings2.addInclude(jsonQueryObjectModelConverter.getDefineFromFile(queryNameSpace + ":Representation", true));
 			hasOpenings2.addInclude(objectPlacement);
 		}
-		
-		QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, bimServer, query, Collections.singleton(queryContext.getRoid()), packageMetaData);
-		
-		ReportJob job = report.newJob(eClass.getName(), nrObjects);
-		GeometryRunner runner = new GeometryRunner(this, eClass, renderEnginePool, databaseSession, settings, queryObjectProvider, ifcSerializerPlugin, renderEngineFilter, generateGeometryResult, queryContext, geometryReused, map, job, reuseGeometry, geometryGenerationDebugger, query);
-		executor.submit(runner);
-		jobsTotal.incrementAndGet();
 	}
 
 	private void processMappingQuery(final DatabaseSession databaseSession, QueryContext queryContext, GenerateGeometryResult generateGeometryResult, final StreamingSerializerPlugin ifcSerializerPlugin, final RenderEngineSettings settings,
@@ -1094,8 +1240,8 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		
 		ReportJob job = report.newJob(eClass.getName(), nrObjects);
 		GeometryRunner runner = new GeometryRunner(this, eClass, renderEnginePool, databaseSession, settings, queryObjectProvider, ifcSerializerPlugin, renderEngineFilter, generateGeometryResult, queryContext, geometryReused, map, job, reuseGeometry, geometryGenerationDebugger, query);
-		executor.submit(runner);
-		jobsTotal.incrementAndGet();
+		runner.setEstimate(jobsTotal.incrementAndGet(), nrObjects, costModel.estimateBytes(eClass, nrObjects));
+		executor.execute(runner);
 	}
 	
 //	private Set<Long> getRepresentationItems(DatabaseSession databaseSession, QueryContext queryContext, HashMapVirtualObject next) throws QueryException, IOException {
@@ -1147,19 +1293,13 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		return size;
 	}
 
-	int hash(ByteBuffer indices, ByteBuffer vertices, ByteBuffer normals, ByteBuffer colors) {
+	ContentDigest digest(ByteBuffer indices, ByteBuffer vertices, ByteBuffer normals, ByteBuffer colors, ByteBuffer appearance) {
 		indices.position(0);
 		vertices.position(0);
 		normals.position(0);
 		colors.position(0);
 		
-		int hashCode = 0;
-		hashCode += indices.hashCode();
-		hashCode += vertices.hashCode();
-		hashCode += normals.hashCode();
-		hashCode += colors.hashCode();
-		
-		return hashCode;
+		return ContentDigest.of(indices, vertices, normals, colors, appearance);
 	}
 	
 	int hash(VirtualObject geometryData) {
@@ -1254,6 +1394,10 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 		return renderEngineName;
 	}
 
+	GeometryContentStore getContentStore() {
+		return contentStore;
+	}
+
 	public void cacheGeometryData(HashMapVirtualObject geometryData, ByteBuffer vertices) {
 		geometryDataMap.put(geometryData.getOid(), new Tuple<>(geometryData, vertices));
 	}
@@ -1265,4 +1409,37 @@ public class StreamingGeometryGenerator extends GenericGeometryGenerator {
 	public boolean isCalculateQuantities() {
 		return calculateQuantities;
 	}
+
+	public boolean isApplyLayerSets() {
+		return applyLayerSets;
+	}
+
+	private boolean isChanged(long oid) {
+		return changedProducts == null || changedProducts.contains(oid);
+	}
+
+	/**
+	 * Only generates geometry for the given products, all other products keep the geometry they have. The spatial index of the previous concrete revision is carried forward.
+	 * 
+	 * @param removedProducts Products that have been removed since the previous concrete revision, left out of the spatial index
+	 */
+	public void setChangedProducts(Set<Long> changedProducts, Set<Long> removedProducts, long previousCroid) {
+		this.changedProducts = changedProducts;
+		this.removedProducts = removedProducts;
+		this.previousCroid = previousCroid;
+	}
+
+	/**
+	 * @return The oids of the GeometryInfo objects products had before they got new geometry
+	 */
+	public Set<Long> getReplacedGeometryInfoOids() {
+		return replacedGeometryInfoOids;
+	}
+
+	/**
+	 * @param incremental When true, products that did not change since an earlier revision of the project get a copy of their earlier geometry instead of being tessellated again
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
 }
@@ -19,13 +19,18 @@ package org.bimserver.geometry.accellerator;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.bimserver.BimServer;
@@ -40,6 +45,7 @@ import org.bimserver.database.queries.om.Query;
 import org.bimserver.database.queries.om.QueryException;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.emf.PackageMetaData;
+import org.bimserver.geometry.accellerator.GeometryAccelleratorStore.Profile;
 import org.bimserver.interfaces.objects.SDensity;
 import org.bimserver.models.geometry.GeometryPackage;
 import org.bimserver.models.store.Density;
@@ -53,6 +59,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
 
 public class GeometryAccellerator {
 	private static final Logger LOGGER = LoggerFactory.getLogger(GeometryAccellerator.class);
@@ -61,39 +68,194 @@ public class GeometryAccellerator {
 	private final LoadingCache<DensityThresholdKey, DensityThreshold> densityThresholds;
 	private final LoadingCache<ReuseKey, ReuseSet> reuseSets;
 
+	private final ExecutorService prepareExecutor;
+	private final Map<Long, Long> roidToPoid = new ConcurrentHashMap<>();
+	private final Set<String> recordedProfiles = ConcurrentHashMap.newKeySet();
+	private volatile GeometryAccelleratorStore store;
+
 	/*
 	 * TODO
-	 * - Implement cache eviction either
-	 * 		- By trying to come up with an estimate as to how many bytes each cache entry uses and simply limiting on for example 10% of MAX heap (and eviction on last used, or least used)
-	 * 		- By simply changing the limit on the amount of entries to something smaller
-	 * 		- Manually, by adding an API call that cleans up cache entries, this can be useful for clients that already know they won't be querying a model anytime soon
-	 * 		- Allowing clients to set the maximumSize
+	 * - Manually, by adding an API call that cleans up cache entries, this can be useful for clients that already know they won't be querying a model anytime soon
+	 * - Allowing clients to set the maximum size
 	 */
 	
+	// Rough estimates of the heap usage, the GeometryObjects are also indexed (6 times) by the TilingImplementation
+	private static final int OCTREE_NODE_BYTES = 256;
+	private static final int GEOMETRY_OBJECT_BYTES = 512;
+	private static final int REUSE_OBJECT_BYTES = 96;
+	private static final int DENSITY_THRESHOLD_BYTES = 256;
+
 	public GeometryAccellerator(BimServer bimServer) {
 		this.bimServer = bimServer;
 		
-		octrees = CacheBuilder.newBuilder().maximumSize(10000).build(new CacheLoader<OctreeKey, Octree>() {
+		// All caches combined use at most 10% of the max heap, evicted on least recently used. Evicted entries are still available from the GeometryAccelleratorStore
+		long maxBytes = Runtime.getRuntime().maxMemory() / 10;
+		
+		octrees = CacheBuilder.newBuilder().maximumWeight(maxBytes * 8 / 10).weigher(new Weigher<OctreeKey, Octree>() {
+			@Override
+			public int weigh(OctreeKey key, Octree octree) {
+				long size = 0;
+				for (Node node : octree.values()) {
+					size += OCTREE_NODE_BYTES + node.getNrObjects() * GEOMETRY_OBJECT_BYTES;
+				}
+				return (int) Math.min(Integer.MAX_VALUE, size);
+			}
+		}).build(new CacheLoader<OctreeKey, Octree>() {
 			public Octree load(OctreeKey key) {
-				return generateOctree(key);
+				Octree octree = getStore().getOctree(key);
+				if (octree == null) {
+					octree = generateOctree(key);
+					if (octree != null) {
+						getStore().storeOctree(key, octree);
+					}
+				}
+				return octree;
 			}
 		});
 		
-		reuseSets = CacheBuilder.newBuilder().maximumSize(10000).build(new CacheLoader<ReuseKey, ReuseSet>() {
+		reuseSets = CacheBuilder.newBuilder().maximumWeight(maxBytes * 15 / 100).weigher(new Weigher<ReuseKey, ReuseSet>() {
+			@Override
+			public int weigh(ReuseKey key, ReuseSet reuseSet) {
+				return (int) Math.min(Integer.MAX_VALUE, (long) reuseSet.getReuseObjects().size() * REUSE_OBJECT_BYTES);
+			}
+		}).build(new CacheLoader<ReuseKey, ReuseSet>() {
 			public ReuseSet load(ReuseKey key) {
-				return generateReuseSet(key);
+				ReuseSet reuseSet = getStore().getReuseSet(key);
+				if (reuseSet == null) {
+					reuseSet = generateReuseSet(key);
+					getStore().storeReuseSet(key, reuseSet);
+				}
+				return reuseSet;
 			}
 		});
 		
-		densityThresholds = CacheBuilder.newBuilder().maximumSize(10000).build(new CacheLoader<DensityThresholdKey, DensityThreshold>() {
+		densityThresholds = CacheBuilder.newBuilder().maximumWeight(maxBytes * 5 / 100).weigher(new Weigher<DensityThresholdKey, DensityThreshold>() {
+			@Override
+			public int weigh(DensityThresholdKey key, DensityThreshold densityThreshold) {
+				return DENSITY_THRESHOLD_BYTES;
+			}
+		}).build(new CacheLoader<DensityThresholdKey, DensityThreshold>() {
 			@Override
 			public DensityThreshold load(DensityThresholdKey key) throws Exception {
-				return generateDensityThreshold(key);
+				DensityThreshold densityThreshold = getStore().getDensityThreshold(key);
+				if (densityThreshold == null) {
+					densityThreshold = generateDensityThreshold(key);
+					if (densityThreshold == null) {
+						// No densities at all, caches cannot contain null values
+						densityThreshold = new DensityThreshold();
+					}
+					getStore().storeDensityThreshold(key, densityThreshold);
+				}
+				return densityThreshold;
+			}
+		});
+		
+		prepareExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "GeometryAccellerator");
+				thread.setDaemon(true);
+				return thread;
 			}
 		});
 	}
 
+	private GeometryAccelleratorStore getStore() {
+		if (store == null) {
+			synchronized (this) {
+				if (store == null) {
+					store = new GeometryAccelleratorStore(bimServer.getDatabase());
+				}
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Generates (and stores) the octrees and reuse sets of a new revision in the background, using the combinations of excluded classes and reuse thresholds that have
+	 * recently been used for the same project, so the first viewer does not have to wait for them.
+	 */
+	public void prepare(final long roid) {
+		prepareExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				Set<Long> roids = Collections.singleton(roid);
+				List<Profile> profiles = getStore().getProfiles(getPoid(roid));
+				if (profiles.isEmpty()) {
+					profiles.add(new Profile(Collections.<String>emptySet(), null));
+				}
+				for (Profile profile : profiles) {
+					Set<Long> geometryIdsToReuse = Collections.emptySet();
+					if (profile.getTrianglesToSave() != null) {
+						geometryIdsToReuse = getGeometryDataToReuse(roids, profile.getExcludedClasses(), profile.getTrianglesToSave());
+					}
+					getOctree(roids, profile.getExcludedClasses(), geometryIdsToReuse, 0, -1, -1);
+				}
+				LOGGER.info("Prepared " + profiles.size() + " octree(s) for revision " + roid + " in " + ((System.nanoTime() - start) / 1000000) + " ms");
+			}
+		});
+	}
+
+	/**
+	 * Removes all structures generated for the given revision from memory and disk, to be called when the geometry of a revision changes
+	 */
+	public void invalidate(long roid) {
+		for (OctreeKey key : octrees.asMap().keySet()) {
+			if (key.getRoids().contains(roid)) {
+				octrees.invalidate(key);
+			}
+		}
+		for (ReuseKey key : reuseSets.asMap().keySet()) {
+			if (key.getRoids().contains(roid)) {
+				reuseSets.invalidate(key);
+			}
+		}
+		for (DensityThresholdKey key : densityThresholds.asMap().keySet()) {
+			if (key.getRoid().contains(roid)) {
+				densityThresholds.invalidate(key);
+			}
+		}
+		getStore().invalidate(roid);
+	}
+
+	public void close() {
+		prepareExecutor.shutdownNow();
+	}
+
+	private long getPoid(long roid) {
+		Long poid = roidToPoid.get(roid);
+		if (poid == null) {
+			try (DatabaseSession databaseSession = bimServer.getDatabase().createSession(OperationType.READ_ONLY)) {
+				Revision revision = databaseSession.get(roid, OldQuery.getDefault());
+				poid = revision.getProject().getOid();
+				roidToPoid.put(roid, poid);
+			} catch (BimserverDatabaseException e) {
+				LOGGER.error("", e);
+				return -1;
+			}
+		}
+		return poid;
+	}
+
+	private void recordProfile(Set<Long> roids, Set<String> excludedClasses, Integer trianglesToSave) {
+		if (roids == null || roids.size() != 1) {
+			return;
+		}
+		long poid = getPoid(roids.iterator().next());
+		if (poid == -1) {
+			return;
+		}
+		Profile profile = new Profile(excludedClasses, trianglesToSave);
+		if (recordedProfiles.add(poid + " " + profile)) {
+			getStore().addProfile(poid, profile);
+		}
+	}
+
 	public Octree getOctree(Set<Long> roids, Set<String> excludedClasses, Set<Long> geometryIdsToReuse, int maxDepth, float minimumThreshold, float maximumThreshold) {
+		if (geometryIdsToReuse == null || geometryIdsToReuse.isEmpty()) {
+			recordProfile(roids, excludedClasses, null);
+		}
 		OctreeKey key = new OctreeKey(roids, excludedClasses, geometryIdsToReuse);
 		try {
 			return octrees.get(key);
@@ -327,6 +489,7 @@ public class GeometryAccellerator {
 	}
 	
 	public Set<Long> getGeometryDataToReuse(Set<Long> roids, Set<String> excludedTypes, Integer trianglesToSave) {
+		recordProfile(roids, excludedTypes, trianglesToSave);
 		ReuseKey key = new ReuseKey(roids, excludedTypes);
 		try {
 			return reuseSets.get(key).getListOfGeometryDataIds(trianglesToSave);
@@ -396,16 +559,11 @@ public class GeometryAccellerator {
 
 	public SDensity getDensityThreshold(Set<Long> roids, Long nrTriangles, Set<String> excludedTypes) {
 		DensityThresholdKey key = new DensityThresholdKey(roids, nrTriangles, excludedTypes);
-		DensityThreshold generateDensityThreshold = generateDensityThreshold(key);
-		if (generateDensityThreshold == null) {
+		try {
+			return densityThresholds.get(key).getDensity();
+		} catch (ExecutionException e) {
+			LOGGER.error("", e);
 			return null;
 		}
-		return generateDensityThreshold.getDensity();
-//		try {
-//			return densityThresholds.get(key).getDensity();
-//		} catch (ExecutionException e) {
-//			LOGGER.error("", e);
-//			return null;
-//		}
 	}
 }
\ No newline at end of file
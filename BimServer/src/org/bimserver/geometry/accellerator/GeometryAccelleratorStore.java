@@ -0,0 +1,432 @@
+package org.bimserver.geometry.accellerator;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.BimDatabase;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.OperationType;
+import org.bimserver.database.queries.Bounds;
+import org.bimserver.interfaces.objects.SDensity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the structures generated by the GeometryAccellerator, so they survive restarts.
+ * 
+ * Keys are a type byte followed by a SHA-256 digest of the (sorted) request parameters. For every roid a list of the keys it is part of is kept as well, so all entries of a
+ * revision can be removed when its geometry changes. Values start with a format version, values with another version are ignored (and regenerated).
+ */
+public class GeometryAccelleratorStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeometryAccelleratorStore.class);
+	private static final byte FORMAT_VERSION = 1;
+
+	private static final byte OCTREE = 1;
+	private static final byte REUSE_SET = 2;
+	private static final byte DENSITY_THRESHOLD = 3;
+	private static final byte ROID_INDEX = 4;
+	private static final byte PROFILES = 5;
+
+	private static final int KEY_LENGTH = 33;
+	private static final int MAX_PROFILES_PER_PROJECT = 8;
+
+	private final BimDatabase database;
+
+	public GeometryAccelleratorStore(BimDatabase database) {
+		this.database = database;
+	}
+
+	public Octree getOctree(OctreeKey key) {
+		ByteBuffer buffer = get(createKey(OCTREE, key.getRoids(), key.getExcludedClasses(), key.getGeometryIdsToReuse(), null));
+		if (buffer == null) {
+			return null;
+		}
+		Octree octree = new Octree(readBounds(buffer), buffer.getInt());
+		int deepestLevel = buffer.getInt();
+		int nrNodes = buffer.getInt();
+		try {
+			for (int i=0; i<nrNodes; i++) {
+				int level = buffer.getInt();
+				int parentId = buffer.getInt();
+				int localId = buffer.getInt();
+				boolean attached = buffer.get() == 1;
+				Bounds bounds = readBounds(buffer);
+				Node node = level == 0 ? octree : octree.restoreNode(bounds, level, parentId, localId, attached);
+				node.getMinimumBounds().integrate(readBounds(buffer));
+				int nrValues = buffer.getInt();
+				for (int j=0; j<nrValues; j++) {
+					long oid = buffer.getLong();
+					long croid = buffer.getLong();
+					int saveableTriangles = buffer.getInt();
+					int reused = buffer.getInt();
+					int triangles = buffer.getInt();
+					float density = buffer.getFloat();
+					Bounds objectBounds = readBounds(buffer);
+					GeometryObject geometryObject = new GeometryObject(oid, database.getEClassForOid(oid), croid, saveableTriangles, reused, triangles, density, objectBounds);
+					geometryObject.setTileId(buffer.getInt());
+					geometryObject.setTileLevel(buffer.getInt());
+					node.restoreValue(geometryObject);
+				}
+			}
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+			return null;
+		}
+		octree.setDeepestLevel(deepestLevel);
+		return octree;
+	}
+
+	public void storeOctree(OctreeKey key, Octree octree) {
+		List<Node> nodes = new ArrayList<>(octree.values());
+		nodes.sort((o1, o2) -> Integer.compare(o1.getId(), o2.getId()));
+		int size = 48 + 12;
+		for (Node node : nodes) {
+			size += 13 + 96 + 4 + node.getNrObjects() * 88;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		writeBounds(buffer, octree.getBounds());
+		buffer.putInt(octree.getMaxDepth());
+		buffer.putInt(octree.getDeepestLevel());
+		buffer.putInt(nodes.size());
+		for (Node node : nodes) {
+			buffer.putInt(node.getLevel());
+			buffer.putInt(node.getParentId());
+			buffer.putInt(node.getLocalId());
+			buffer.put(node.isAttached() ? (byte) 1 : (byte) 0);
+			writeBounds(buffer, node.getBounds());
+			writeBounds(buffer, node.getMinimumBounds());
+			buffer.putInt(node.getNrObjects());
+			for (GeometryObject geometryObject : node.getValues()) {
+				buffer.putLong(geometryObject.getOid());
+				buffer.putLong(geometryObject.getCroid());
+				buffer.putInt(geometryObject.getSaveableTriangles());
+				buffer.putInt(geometryObject.getReused());
+				buffer.putInt(geometryObject.getTriangles());
+				buffer.putFloat(geometryObject.getDensity());
+				writeBounds(buffer, geometryObject.getBounds());
+				buffer.putInt(geometryObject.getTileId());
+				buffer.putInt(geometryObject.getTileLevel());
+			}
+		}
+		put(createKey(OCTREE, key.getRoids(), key.getExcludedClasses(), key.getGeometryIdsToReuse(), null), key.getRoids(), buffer.array());
+	}
+
+	public ReuseSet getReuseSet(ReuseKey key) {
+		ByteBuffer buffer = get(createKey(REUSE_SET, key.getRoids(), key.getExcludedClasses(), null, null));
+		if (buffer == null) {
+			return null;
+		}
+		ReuseSet reuseSet = new ReuseSet();
+		int nrObjects = buffer.getInt();
+		for (int i=0; i<nrObjects; i++) {
+			reuseSet.add(buffer.getLong(), buffer.getInt(), buffer.getInt());
+		}
+		return reuseSet;
+	}
+
+	public void storeReuseSet(ReuseKey key, ReuseSet reuseSet) {
+		Collection<ReuseObject> reuseObjects = reuseSet.getReuseObjects();
+		ByteBuffer buffer = ByteBuffer.allocate(4 + reuseObjects.size() * 16);
+		buffer.putInt(reuseObjects.size());
+		for (ReuseObject reuseObject : reuseObjects) {
+			buffer.putLong(reuseObject.getGeometryDataOid());
+			buffer.putInt(reuseObject.getReused());
+			buffer.putInt(reuseObject.getNrPrimitives());
+		}
+		put(createKey(REUSE_SET, key.getRoids(), key.getExcludedClasses(), null, null), key.getRoids(), buffer.array());
+	}
+
+	public DensityThreshold getDensityThreshold(DensityThresholdKey key) {
+		ByteBuffer buffer = get(createKey(DENSITY_THRESHOLD, key.getRoid(), key.getExcludedTypes(), null, key.getNrTriangles()));
+		if (buffer == null) {
+			return null;
+		}
+		DensityThreshold densityThreshold = new DensityThreshold();
+		if (buffer.get() == 1) {
+			SDensity density = new SDensity();
+			density.setOid(buffer.getLong());
+			density.setGeometryInfoId(buffer.getLong());
+			density.setTrianglesBelow(buffer.getLong());
+			density.setTrianglesAbove(buffer.getLong());
+			density.setVolume(buffer.getFloat());
+			density.setDensity(buffer.getFloat());
+			density.setType(readString(buffer));
+			densityThreshold.setDensity(density);
+		}
+		return densityThreshold;
+	}
+
+	public void storeDensityThreshold(DensityThresholdKey key, DensityThreshold densityThreshold) {
+		SDensity density = densityThreshold.getDensity();
+		byte[] type = density == null || density.getType() == null ? new byte[0] : density.getType().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 40 + 4 + type.length);
+		if (density == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) 1);
+			buffer.putLong(density.getOid());
+			buffer.putLong(density.getGeometryInfoId());
+			buffer.putLong(density.getTrianglesBelow());
+			buffer.putLong(density.getTrianglesAbove());
+			buffer.putFloat(density.getVolume());
+			buffer.putFloat(density.getDensity());
+			buffer.putInt(type.length);
+			buffer.put(type);
+		}
+		put(createKey(DENSITY_THRESHOLD, key.getRoid(), key.getExcludedTypes(), null, key.getNrTriangles()), key.getRoid(), buffer.array());
+	}
+
+	/**
+	 * Removes all stored structures that have been generated for (among others) the given revision
+	 */
+	public synchronized void invalidate(long roid) {
+		byte[] indexKey = createRoidIndexKey(roid);
+		try (DatabaseSession databaseSession = database.createSession(OperationType.POSSIBLY_WRITE)) {
+			byte[] index = databaseSession.getKeyValueStore().get(Database.GEOMETRY_ACCELLERATOR_TABLE, indexKey, databaseSession);
+			if (index != null) {
+				for (int offset = 0; offset + KEY_LENGTH <= index.length; offset += KEY_LENGTH) {
+					byte[] key = new byte[KEY_LENGTH];
+					System.arraycopy(index, offset, key, 0, KEY_LENGTH);
+					databaseSession.getKeyValueStore().delete(Database.GEOMETRY_ACCELLERATOR_TABLE, key, databaseSession);
+				}
+				databaseSession.getKeyValueStore().delete(Database.GEOMETRY_ACCELLERATOR_TABLE, indexKey, databaseSession);
+			}
+			databaseSession.commit();
+		} catch (Exception e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	/**
+	 * @return The combinations of excluded classes and reuse threshold (null when no reuse was requested) that have recently been requested for revisions of the given project,
+	 * most recent last
+	 */
+	public List<Profile> getProfiles(long poid) {
+		List<Profile> profiles = new ArrayList<>();
+		try (DatabaseSession databaseSession = database.createSession(OperationType.READ_ONLY)) {
+			byte[] value = databaseSession.getKeyValueStore().get(Database.GEOMETRY_ACCELLERATOR_TABLE, createProfilesKey(poid), databaseSession);
+			if (value != null) {
+				ByteBuffer buffer = ByteBuffer.wrap(value);
+				if (buffer.get() != FORMAT_VERSION) {
+					return profiles;
+				}
+				int nrProfiles = buffer.getInt();
+				for (int i=0; i<nrProfiles; i++) {
+					int trianglesToSave = buffer.getInt();
+					int nrExcluded = buffer.getInt();
+					Set<String> excluded = new TreeSet<>();
+					for (int j=0; j<nrExcluded; j++) {
+						excluded.add(readString(buffer));
+					}
+					profiles.add(new Profile(excluded, trianglesToSave == -1 ? null : trianglesToSave));
+				}
+			}
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+		}
+		return profiles;
+	}
+
+	public synchronized void addProfile(long poid, Profile profile) {
+		List<Profile> profiles = getProfiles(poid);
+		profiles.remove(profile);
+		profiles.add(profile);
+		while (profiles.size() > MAX_PROFILES_PER_PROJECT) {
+			profiles.remove(0);
+		}
+		int size = 5;
+		for (Profile existing : profiles) {
+			size += 8;
+			for (String excluded : existing.getExcludedClasses()) {
+				size += 4 + excluded.getBytes(StandardCharsets.UTF_8).length;
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put(FORMAT_VERSION);
+		buffer.putInt(profiles.size());
+		for (Profile existing : profiles) {
+			buffer.putInt(existing.getTrianglesToSave() == null ? -1 : existing.getTrianglesToSave());
+			buffer.putInt(existing.getExcludedClasses().size());
+			for (String excluded : existing.getExcludedClasses()) {
+				byte[] bytes = excluded.getBytes(StandardCharsets.UTF_8);
+				buffer.putInt(bytes.length);
+				buffer.put(bytes);
+			}
+		}
+		try (DatabaseSession databaseSession = database.createSession(OperationType.POSSIBLY_WRITE)) {
+			databaseSession.getKeyValueStore().store(Database.GEOMETRY_ACCELLERATOR_TABLE, createProfilesKey(poid), buffer.array(), databaseSession);
+			databaseSession.commit();
+		} catch (Exception e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	private ByteBuffer get(byte[] key) {
+		try (DatabaseSession databaseSession = database.createSession(OperationType.READ_ONLY)) {
+			byte[] value = databaseSession.getKeyValueStore().get(Database.GEOMETRY_ACCELLERATOR_TABLE, key, databaseSession);
+			if (value == null) {
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			if (buffer.get() != FORMAT_VERSION) {
+				return null;
+			}
+			return buffer;
+		} catch (BimserverDatabaseException e) {
+			LOGGER.error("", e);
+			return null;
+		}
+	}
+
+	private synchronized void put(byte[] key, Set<Long> roids, byte[] value) {
+		byte[] versioned = new byte[value.length + 1];
+		versioned[0] = FORMAT_VERSION;
+		System.arraycopy(value, 0, versioned, 1, value.length);
+		try (DatabaseSession databaseSession = database.createSession(OperationType.POSSIBLY_WRITE)) {
+			databaseSession.getKeyValueStore().store(Database.GEOMETRY_ACCELLERATOR_TABLE, key, versioned, databaseSession);
+			for (long roid : roids) {
+				byte[] indexKey = createRoidIndexKey(roid);
+				byte[] index = databaseSession.getKeyValueStore().get(Database.GEOMETRY_ACCELLERATOR_TABLE, indexKey, databaseSession);
+				if (index == null) {
+					index = new byte[0];
+				}
+				if (!contains(index, key)) {
+					byte[] newIndex = new byte[index.length + KEY_LENGTH];
+					System.arraycopy(index, 0, newIndex, 0, index.length);
+					System.arraycopy(key, 0, newIndex, index.length, KEY_LENGTH);
+					databaseSession.getKeyValueStore().store(Database.GEOMETRY_ACCELLERATOR_TABLE, indexKey, newIndex, databaseSession);
+				}
+			}
+			databaseSession.commit();
+		} catch (Exception e) {
+			LOGGER.error("", e);
+		}
+	}
+
+	private boolean contains(byte[] index, byte[] key) {
+		for (int offset = 0; offset + KEY_LENGTH <= index.length; offset += KEY_LENGTH) {
+			boolean equal = true;
+			for (int i=0; i<KEY_LENGTH && equal; i++) {
+				equal = index[offset + i] == key[i];
+			}
+			if (equal) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private byte[] createKey(byte type, Set<Long> roids, Set<String> excludedClasses, Set<Long> geometryIdsToReuse, Long nrTriangles) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(new TreeSet<>(roids == null ? Collections.<Long>emptySet() : roids)).append("|");
+		sb.append(new TreeSet<>(excludedClasses == null ? Collections.<String>emptySet() : excludedClasses)).append("|");
+		sb.append(new TreeSet<>(geometryIdsToReuse == null ? Collections.<Long>emptySet() : geometryIdsToReuse)).append("|");
+		sb.append(nrTriangles);
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+			ByteBuffer buffer = ByteBuffer.allocate(KEY_LENGTH);
+			buffer.put(type);
+			buffer.put(digest);
+			return buffer.array();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private byte[] createRoidIndexKey(long roid) {
+		ByteBuffer buffer = ByteBuffer.allocate(9);
+		buffer.put(ROID_INDEX);
+		buffer.putLong(roid);
+		return buffer.array();
+	}
+
+	private byte[] createProfilesKey(long poid) {
+		ByteBuffer buffer = ByteBuffer.allocate(9);
+		buffer.put(PROFILES);
+		buffer.putLong(poid);
+		return buffer.array();
+	}
+
+	private Bounds readBounds(ByteBuffer buffer) {
+		return new Bounds(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+	}
+
+	private void writeBounds(ByteBuffer buffer, Bounds bounds) {
+		buffer.putDouble(bounds.getMinX());
+		buffer.putDouble(bounds.getMinY());
+		buffer.putDouble(bounds.getMinZ());
+		buffer.putDouble(bounds.getMaxX());
+		buffer.putDouble(bounds.getMaxY());
+		buffer.putDouble(bounds.getMaxZ());
+	}
+
+	private String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static class Profile {
+		private final Set<String> excludedClasses;
+		private final Integer trianglesToSave;
+
+		public Profile(Set<String> excludedClasses, Integer trianglesToSave) {
+			this.excludedClasses = excludedClasses == null ? new TreeSet<String>() : new TreeSet<>(excludedClasses);
+			this.trianglesToSave = trianglesToSave;
+		}
+
+		public Set<String> getExcludedClasses() {
+			return excludedClasses;
+		}
+
+		public Integer getTrianglesToSave() {
+			return trianglesToSave;
+		}
+
+		@Override
+		public int hashCode() {
+			return excludedClasses.hashCode() * 31 + (trianglesToSave == null ? 0 : trianglesToSave.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Profile)) {
+				return false;
+			}
+			Profile other = (Profile) obj;
+			return excludedClasses.equals(other.excludedClasses) && (trianglesToSave == null ? other.trianglesToSave == null : trianglesToSave.equals(other.trianglesToSave));
+		}
+
+		@Override
+		public String toString() {
+			return excludedClasses + " " + trianglesToSave;
+		}
+	}
+}
@@ -143,6 +143,33 @@ public class Node {
 		}
 	}
 
+	int getParentId() {
+		return parentId;
+	}
+
+	int getLocalId() {
+		return localId;
+	}
+
+	int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return Whether this node is still reachable from its parent, nodes that have been moved up stay available by id but are detached
+	 */
+	boolean isAttached() {
+		return level > 0 && getParent() != null && getParent().nodes[localId] == this;
+	}
+
+	void attach(Node child) {
+		nodes[child.localId] = child;
+	}
+
+	void restoreValue(GeometryObject geometryObject) {
+		values.add(geometryObject);
+	}
+
 	public Bounds getBounds() {
 		return bounds;
 	}
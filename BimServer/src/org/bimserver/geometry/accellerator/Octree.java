@@ -72,6 +72,17 @@ public class Octree extends Node {
 		}
 	}
 	
+	/**
+	 * Recreates a node that was stored by the GeometryAccelleratorStore, parents have to be restored before their children
+	 */
+	Node restoreNode(Bounds bounds, int level, int parentId, int localId, boolean attached) {
+		Node node = new Node(this, bounds, level, parentId, localId + 1, getMaxDepth());
+		if (attached) {
+			getById(parentId).attach(node);
+		}
+		return node;
+	}
+
 	public Node getById(Integer tileId) {
 		return list.get(tileId);
 	}
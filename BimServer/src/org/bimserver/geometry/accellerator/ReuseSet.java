@@ -17,8 +17,10 @@ package org.bimserver.geometry.accellerator;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -51,6 +53,14 @@ public class ReuseSet {
 		return result;
 	}
 
+	public List<ReuseObject> getReuseObjects() {
+		List<ReuseObject> result = new ArrayList<>();
+		for (Set<ReuseObject> set : map.values()) {
+			result.addAll(set);
+		}
+		return result;
+	}
+
 	public void add(long geometryDataOid, int reused, int nrPrimitives) {
 		ReuseObject reuseObject = new ReuseObject(geometryDataOid, reused, nrPrimitives);
 		
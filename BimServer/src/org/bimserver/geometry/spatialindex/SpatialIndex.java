@@ -0,0 +1,143 @@
+package org.bimserver.geometry.spatialindex;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * Read-only view on the packed R-tree that is stored for one concrete type within one concrete revision.
+ * 
+ * Keys in the index table are croid (8 bytes), cid (2 bytes) and node id (4 bytes). Node 0 is a header with the root node id and the number of entries, the other nodes contain
+ * a leaf flag, a count and the entries themselves.
+ * 
+ * The table is not transactional, the key of only the croid is a header for the whole concrete revision that is written after all types have been written. Without it none
+ * of the per type indexes of the concrete revision are used, with it a type without an index has no geometry in the concrete revision.
+ */
+public class SpatialIndex {
+	public static final byte VERSION = 1;
+	public static final int HEADER_NODE_ID = 0;
+
+	private final DatabaseSession databaseSession;
+	private final long croid;
+	private final short cid;
+	private final int rootNodeId;
+	private final int nrEntries;
+
+	private SpatialIndex(DatabaseSession databaseSession, long croid, short cid, int rootNodeId, int nrEntries) {
+		this.databaseSession = databaseSession;
+		this.croid = croid;
+		this.cid = cid;
+		this.rootNodeId = rootNodeId;
+		this.nrEntries = nrEntries;
+	}
+
+	/**
+	 * @return The index for the given type within the given concrete revision, or null when no (compatible) index has been generated
+	 */
+	public static SpatialIndex open(DatabaseSession databaseSession, long croid, EClass eClass) throws BimserverDatabaseException {
+		if (!isComplete(databaseSession, croid)) {
+			return null;
+		}
+		short cid = databaseSession.getCid(eClass);
+		byte[] header = databaseSession.getKeyValueStore().get(Database.SPATIAL_INDEX_TABLE, createKey(croid, cid, HEADER_NODE_ID), databaseSession);
+		if (header == null) {
+			return new SpatialIndex(databaseSession, croid, cid, HEADER_NODE_ID, 0);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		if (buffer.get() != VERSION) {
+			return null;
+		}
+		return new SpatialIndex(databaseSession, croid, cid, buffer.getInt(), buffer.getInt());
+	}
+
+	/**
+	 * @return Whether all types of the given concrete revision have been written
+	 */
+	public static boolean isComplete(DatabaseSession databaseSession, long croid) throws BimserverDatabaseException {
+		byte[] header = databaseSession.getKeyValueStore().get(Database.SPATIAL_INDEX_TABLE, createHeaderKey(croid), databaseSession);
+		return header != null && header.length > 0 && header[0] == VERSION;
+	}
+
+	public static byte[] createHeaderKey(long croid) {
+		return ByteBuffer.allocate(8).putLong(croid).array();
+	}
+
+	public static byte[] createKey(long croid, short cid, int nodeId) {
+		ByteBuffer buffer = ByteBuffer.allocate(14);
+		buffer.putLong(croid);
+		buffer.putShort(cid);
+		buffer.putInt(nodeId);
+		return buffer.array();
+	}
+
+	public int getNrEntries() {
+		return nrEntries;
+	}
+
+	/**
+	 * Walks the tree, only descending into nodes accepted by the filter. The filter is applied to the leaf entries as well.
+	 * 
+	 * @return All accepted leaf entries, sorted by oid
+	 */
+	public List<SpatialIndexEntry> search(SpatialIndexFilter filter) throws BimserverDatabaseException {
+		List<SpatialIndexEntry> result = new ArrayList<>();
+		if (nrEntries == 0) {
+			return result;
+		}
+		Deque<Integer> toVisit = new ArrayDeque<>();
+		toVisit.push(rootNodeId);
+		while (!toVisit.isEmpty()) {
+			int nodeId = toVisit.pop();
+			byte[] value = databaseSession.getKeyValueStore().get(Database.SPATIAL_INDEX_TABLE, createKey(croid, cid, nodeId), databaseSession);
+			if (value == null) {
+				throw new BimserverDatabaseException("Spatial index node " + nodeId + " not found (croid: " + croid + ", cid: " + cid + ")");
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			boolean leaf = buffer.get() == 1;
+			int count = buffer.getInt();
+			for (int i=0; i<count; i++) {
+				SpatialIndexEntry entry = SpatialIndexEntry.read(buffer);
+				if (filter.accept(entry)) {
+					if (leaf) {
+						result.add(entry);
+					} else {
+						toVisit.push((int) entry.getId());
+					}
+				}
+			}
+		}
+		Collections.sort(result, new Comparator<SpatialIndexEntry>() {
+			@Override
+			public int compare(SpatialIndexEntry o1, SpatialIndexEntry o2) {
+				return Long.compare(o1.getId(), o2.getId());
+			}
+		});
+		return result;
+	}
+}
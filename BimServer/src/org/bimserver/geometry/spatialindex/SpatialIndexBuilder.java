@@ -0,0 +1,224 @@
+package org.bimserver.geometry.spatialindex;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.Database;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.eclipse.emf.ecore.EClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the bounds and densities of products while geometry is being generated (can be called from multiple threads) and writes a Sort-Tile-Recursive packed R-tree per type
+ * when all geometry has been generated.
+ */
+public class SpatialIndexBuilder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpatialIndexBuilder.class);
+	public static final int NODE_CAPACITY = 64;
+
+	private final ConcurrentHashMap<EClass, Queue<SpatialIndexEntry>> entries = new ConcurrentHashMap<>();
+
+	public void add(EClass eClass, long oid, double minX, double minY, double minZ, double maxX, double maxY, double maxZ, float density) {
+		entries.computeIfAbsent(eClass, k -> new ConcurrentLinkedQueue<>()).add(new SpatialIndexEntry(oid, minX, minY, minZ, maxX, maxY, maxZ, density, density));
+	}
+
+	/**
+	 * Adds all entries of the index of an earlier concrete revision, except the ones of the given objects. Used when only part of the geometry of a concrete revision is
+	 * generated, the rest being the same as in the earlier one.
+	 * 
+	 * @return false when the earlier concrete revision has no complete index, in which case the new index would be incomplete
+	 */
+	public boolean addFrom(DatabaseSession databaseSession, long croid, Set<Long> excludedOids) throws BimserverDatabaseException {
+		if (!SpatialIndex.isComplete(databaseSession, croid)) {
+			return false;
+		}
+		byte[] prefix = SpatialIndex.createHeaderKey(croid);
+		Set<Short> cids = new HashSet<>();
+		SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(Database.SPATIAL_INDEX_TABLE, prefix, prefix, databaseSession, true);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				ByteBuffer key = ByteBuffer.wrap(record.getKey());
+				if (key.remaining() > prefix.length) {
+					key.getLong();
+					short cid = key.getShort();
+					if (key.getInt() == SpatialIndex.HEADER_NODE_ID) {
+						cids.add(cid);
+					}
+				}
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		for (short cid : cids) {
+			EClass eClass = databaseSession.getEClass(cid);
+			SpatialIndex spatialIndex = SpatialIndex.open(databaseSession, croid, eClass);
+			if (spatialIndex == null) {
+				return false;
+			}
+			Queue<SpatialIndexEntry> queue = entries.computeIfAbsent(eClass, k -> new ConcurrentLinkedQueue<>());
+			for (SpatialIndexEntry entry : spatialIndex.search(entry -> true)) {
+				if (!excludedOids.contains(entry.getId())) {
+					queue.add(entry);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the index of the given concrete revision. The table is not transactional, so this should only be called once the concrete revision has been committed,
+	 * otherwise a rollback would leave the index behind.
+	 */
+	public void build(DatabaseSession databaseSession, long croid) throws BimserverDatabaseException {
+		long start = System.nanoTime();
+		// Geometry can be regenerated for an existing concrete revision, first make the previous index invisible, then remove all of it, also the types that have no geometry anymore
+		databaseSession.getKeyValueStore().delete(Database.SPATIAL_INDEX_TABLE, SpatialIndex.createHeaderKey(croid), databaseSession);
+		delete(databaseSession, SpatialIndex.createHeaderKey(croid));
+		int total = 0;
+		for (EClass eClass : entries.keySet()) {
+			List<SpatialIndexEntry> list = new ArrayList<>(entries.get(eClass));
+			build(databaseSession, croid, databaseSession.getCid(eClass), list);
+			total += list.size();
+		}
+		// The header should never be there without the types
+		databaseSession.getKeyValueStore().sync();
+		databaseSession.getKeyValueStore().store(Database.SPATIAL_INDEX_TABLE, SpatialIndex.createHeaderKey(croid), new byte[] { SpatialIndex.VERSION }, databaseSession);
+		LOGGER.debug("Spatial index for " + total + " objects (" + entries.size() + " types) written in " + ((System.nanoTime() - start) / 1000000) + "ms");
+	}
+
+	private void build(DatabaseSession databaseSession, long croid, short cid, List<SpatialIndexEntry> leafEntries) throws BimserverDatabaseException {
+		int nextNodeId = SpatialIndex.HEADER_NODE_ID + 1;
+		int rootNodeId = nextNodeId;
+		List<SpatialIndexEntry> level = leafEntries;
+		boolean leaf = true;
+		while (true) {
+			List<List<SpatialIndexEntry>> nodes = pack(level);
+			List<SpatialIndexEntry> parentLevel = new ArrayList<>(nodes.size());
+			for (List<SpatialIndexEntry> node : nodes) {
+				int nodeId = nextNodeId++;
+				writeNode(databaseSession, croid, cid, nodeId, leaf, node);
+				parentLevel.add(cover(nodeId, node));
+			}
+			if (nodes.size() <= 1) {
+				rootNodeId = nextNodeId - 1;
+				break;
+			}
+			level = parentLevel;
+			leaf = false;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(9);
+		header.put(SpatialIndex.VERSION);
+		header.putInt(rootNodeId);
+		header.putInt(leafEntries.size());
+		databaseSession.getKeyValueStore().store(Database.SPATIAL_INDEX_TABLE, SpatialIndex.createKey(croid, cid, SpatialIndex.HEADER_NODE_ID), header.array(), databaseSession);
+	}
+
+	private void delete(DatabaseSession databaseSession, byte[] prefix) throws BimserverDatabaseException {
+		List<byte[]> keys = new ArrayList<>();
+		SearchingRecordIterator recordIterator = databaseSession.getKeyValueStore().getRecordIterator(Database.SPATIAL_INDEX_TABLE, prefix, prefix, databaseSession, true);
+		try {
+			Record record = recordIterator.next();
+			while (record != null) {
+				keys.add(record.getKey());
+				record = recordIterator.next();
+			}
+		} finally {
+			recordIterator.close();
+		}
+		for (byte[] key : keys) {
+			databaseSession.getKeyValueStore().delete(Database.SPATIAL_INDEX_TABLE, key, databaseSession);
+		}
+	}
+
+	private void writeNode(DatabaseSession databaseSession, long croid, short cid, int nodeId, boolean leaf, List<SpatialIndexEntry> node) throws BimserverDatabaseException {
+		ByteBuffer buffer = ByteBuffer.allocate(5 + node.size() * SpatialIndexEntry.SIZE);
+		buffer.put(leaf ? (byte) 1 : (byte) 0);
+		buffer.putInt(node.size());
+		for (SpatialIndexEntry entry : node) {
+			entry.write(buffer);
+		}
+		databaseSession.getKeyValueStore().store(Database.SPATIAL_INDEX_TABLE, SpatialIndex.createKey(croid, cid, nodeId), buffer.array(), databaseSession);
+	}
+
+	private SpatialIndexEntry cover(int nodeId, List<SpatialIndexEntry> node) {
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double minZ = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		double maxZ = Double.NEGATIVE_INFINITY;
+		float minDensity = Float.POSITIVE_INFINITY;
+		float maxDensity = Float.NEGATIVE_INFINITY;
+		for (SpatialIndexEntry entry : node) {
+			minX = Math.min(minX, entry.getMinX());
+			minY = Math.min(minY, entry.getMinY());
+			minZ = Math.min(minZ, entry.getMinZ());
+			maxX = Math.max(maxX, entry.getMaxX());
+			maxY = Math.max(maxY, entry.getMaxY());
+			maxZ = Math.max(maxZ, entry.getMaxZ());
+			minDensity = Math.min(minDensity, entry.getMinDensity());
+			maxDensity = Math.max(maxDensity, entry.getMaxDensity());
+		}
+		return new SpatialIndexEntry(nodeId, minX, minY, minZ, maxX, maxY, maxZ, minDensity, maxDensity);
+	}
+
+	/**
+	 * Sort-Tile-Recursive packing: sort on x, cut into slabs, sort every slab on y, cut into runs, sort every run on z and cut into nodes
+	 */
+	private List<List<SpatialIndexEntry>> pack(List<SpatialIndexEntry> entries) {
+		List<List<SpatialIndexEntry>> nodes = new ArrayList<>();
+		if (entries.isEmpty()) {
+			nodes.add(entries);
+			return nodes;
+		}
+		int nrNodes = (entries.size() + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int nrSlices = (int) Math.ceil(Math.cbrt(nrNodes));
+		int slabSize = NODE_CAPACITY * nrSlices * nrSlices;
+		int runSize = NODE_CAPACITY * nrSlices;
+
+		entries.sort(Comparator.comparingDouble(SpatialIndexEntry::getCenterX));
+		for (int slabStart = 0; slabStart < entries.size(); slabStart += slabSize) {
+			List<SpatialIndexEntry> slab = new ArrayList<>(entries.subList(slabStart, Math.min(entries.size(), slabStart + slabSize)));
+			slab.sort(Comparator.comparingDouble(SpatialIndexEntry::getCenterY));
+			for (int runStart = 0; runStart < slab.size(); runStart += runSize) {
+				List<SpatialIndexEntry> run = new ArrayList<>(slab.subList(runStart, Math.min(slab.size(), runStart + runSize)));
+				run.sort(Comparator.comparingDouble(SpatialIndexEntry::getCenterZ));
+				for (int nodeStart = 0; nodeStart < run.size(); nodeStart += NODE_CAPACITY) {
+					nodes.add(new ArrayList<>(run.subList(nodeStart, Math.min(run.size(), nodeStart + NODE_CAPACITY))));
+				}
+			}
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,121 @@
+package org.bimserver.geometry.spatialindex;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+
+/**
+ * One record in a spatial index. For leaf records the id is the oid of the IfcProduct, for inner records it is the id of the child node.
+ * Density is stored as a range so inner records can be skipped when none of their children can pass a density threshold.
+ */
+public class SpatialIndexEntry {
+	public static final int SIZE = 8 + 6 * 8 + 2 * 4;
+
+	private final long id;
+	private final double minX;
+	private final double minY;
+	private final double minZ;
+	private final double maxX;
+	private final double maxY;
+	private final double maxZ;
+	private final float minDensity;
+	private final float maxDensity;
+
+	public SpatialIndexEntry(long id, double minX, double minY, double minZ, double maxX, double maxY, double maxZ, float minDensity, float maxDensity) {
+		this.id = id;
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+		this.minDensity = minDensity;
+		this.maxDensity = maxDensity;
+	}
+
+	public static SpatialIndexEntry read(ByteBuffer buffer) {
+		return new SpatialIndexEntry(buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getFloat(), buffer.getFloat());
+	}
+
+	public void write(ByteBuffer buffer) {
+		buffer.putLong(id);
+		buffer.putDouble(minX);
+		buffer.putDouble(minY);
+		buffer.putDouble(minZ);
+		buffer.putDouble(maxX);
+		buffer.putDouble(maxY);
+		buffer.putDouble(maxZ);
+		buffer.putFloat(minDensity);
+		buffer.putFloat(maxDensity);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public double getMinX() {
+		return minX;
+	}
+
+	public double getMinY() {
+		return minY;
+	}
+
+	public double getMinZ() {
+		return minZ;
+	}
+
+	public double getMaxX() {
+		return maxX;
+	}
+
+	public double getMaxY() {
+		return maxY;
+	}
+
+	public double getMaxZ() {
+		return maxZ;
+	}
+
+	public double getCenterX() {
+		return (minX + maxX) / 2;
+	}
+
+	public double getCenterY() {
+		return (minY + maxY) / 2;
+	}
+
+	public double getCenterZ() {
+		return (minZ + maxZ) / 2;
+	}
+
+	public float getMinDensity() {
+		return minDensity;
+	}
+
+	public float getMaxDensity() {
+		return maxDensity;
+	}
+
+	/**
+	 * @return The density of a leaf entry
+	 */
+	public float getDensity() {
+		return minDensity;
+	}
+}
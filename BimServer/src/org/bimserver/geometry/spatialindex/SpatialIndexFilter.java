@@ -0,0 +1,25 @@
+package org.bimserver.geometry.spatialindex;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+public interface SpatialIndexFilter {
+	/**
+	 * Called for inner and leaf entries, for inner entries the bounds and density range cover all entries below it, so returning false for an inner entry must mean that none of its children can match
+	 */
+	boolean accept(SpatialIndexEntry entry);
+}
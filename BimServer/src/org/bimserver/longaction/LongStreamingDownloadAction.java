@@ -51,8 +51,8 @@ import org.bimserver.cache.NewDiskCacheOutputStream;
 import org.bimserver.database.DatabaseSession;
 import org.bimserver.database.OldQuery;
 import org.bimserver.database.OperationType;
+import org.bimserver.database.queries.ParallelQueryObjectProvider;
 import org.bimserver.database.queries.QueryObjectProvider;
-import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
 import org.bimserver.database.queries.om.Query;
 import org.bimserver.database.queries.om.QueryPart;
 import org.bimserver.database.queries.om.SpecialQueryType;
@@ -69,6 +69,7 @@ import org.bimserver.plugins.serializers.CacheStoringStreamingSerializerDataSour
 import org.bimserver.plugins.serializers.DoneListener;
 import org.bimserver.plugins.serializers.MessagingStreamingSerializer;
 import org.bimserver.plugins.serializers.MessagingStreamingSerializerPlugin;
+import org.bimserver.plugins.serializers.ObjectProvider;
 import org.bimserver.plugins.serializers.ProjectInfo;
 import org.bimserver.plugins.serializers.SerializerException;
 import org.bimserver.plugins.serializers.StreamingSerializer;
@@ -96,6 +97,7 @@ public class LongStreamingDownloadAction extends LongAction {
 	private Path cacheFile;
 	private String jsonQuery;
 	private DatabaseSession databaseSession;
+	private ObjectProvider objectProvider;
 
 	public LongStreamingDownloadAction(BimServer bimServer, String username, String userUsername, Authorization authorization, Long serializerOid, String jsonQuery, Set<Long> roids) {
 		super(bimServer, username, userUsername, authorization);
@@ -143,9 +145,8 @@ public class LongStreamingDownloadAction extends LongAction {
 				LOGGER.info("No serializer config found");
 			} else {
 				Plugin plugin = getBimServer().getPluginManager().getPlugin(serializerPluginConfiguration.getPluginDescriptor().getPluginClassName(), true);
-				JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(packageMetaData);
 				ObjectNode queryObject = OBJECT_MAPPER.readValue(jsonQuery, ObjectNode.class);
-				Query query = converter.parseJson("query", (ObjectNode) queryObject);
+				Query query = databaseSession.getQueryPlanCache().getQuery(packageMetaData, queryObject);
 				
 				downloadDescriptor = new DownloadDescriptor(packageMetaData, jsonQuery, roids, query, serializerOid, this.filename);
 				
@@ -190,7 +191,8 @@ public class LongStreamingDownloadAction extends LongAction {
 						}
 					}
 					// TODO passing a databasesession here, make sure it will be closed!!
-					QueryObjectProvider queryObjectProvider = new QueryObjectProvider(databaseSession, getBimServer(), query, roids, packageMetaData);
+					ObjectProvider queryObjectProvider = ParallelQueryObjectProvider.create(databaseSession, getBimServer(), query, roids, packageMetaData, true);
+					objectProvider = queryObjectProvider;
 					if (plugin instanceof MessagingStreamingSerializerPlugin) {
 						MessagingStreamingSerializerPlugin serializerPlugin = (MessagingStreamingSerializerPlugin)plugin;
 						if(!serializerPlugin.getSupportedSchemas().contains(packageMetaData.getSchema())){
@@ -280,6 +282,10 @@ public class LongStreamingDownloadAction extends LongAction {
 	@Override
 	public void stop() {
 		super.stop();
+		if (objectProvider instanceof ParallelQueryObjectProvider) {
+			// The download might have been abandoned before all objects were read
+			((ParallelQueryObjectProvider) objectProvider).close();
+		}
 		databaseSession.close();
 	}
 }
\ No newline at end of file
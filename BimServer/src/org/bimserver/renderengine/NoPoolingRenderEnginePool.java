@@ -40,6 +40,11 @@ public class NoPoolingRenderEnginePool implements RenderEnginePool {
 		renderEngine.close();
 	}
 
+	@Override
+	public void invalidateObject(RenderEngine renderEngine) throws RenderEngineException {
+		renderEngine.close();
+	}
+
 	@Override
 	public RenderEngineFactory getRenderEngineFactory() {
 		return renderEngineFactory;
@@ -17,6 +17,7 @@ package org.bimserver.renderengine;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import org.bimserver.emf.Schema;
 import org.bimserver.plugins.renderengine.RenderEngine;
 import org.bimserver.plugins.renderengine.RenderEngineException;
 import org.bimserver.plugins.renderengine.VersionInfo;
@@ -26,4 +27,6 @@ public interface RenderEngineFactory {
 	RenderEngine createRenderEngine() throws RenderEngineException;
 	
 	VersionInfo getVersionInfo();
+
+	Schema getSchema();
 }
@@ -27,4 +27,9 @@ public interface RenderEnginePool  {
 	RenderEngine borrowObject() throws RenderEngineException;
 
 	void returnObject(RenderEngine renderEngine) throws RenderEngineException;
+
+	/**
+	 * Return a render engine that has failed, it will not be handed out again
+	 */
+	void invalidateObject(RenderEngine renderEngine) throws RenderEngineException;
 }
\ No newline at end of file
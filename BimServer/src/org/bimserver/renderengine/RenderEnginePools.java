@@ -74,6 +74,11 @@ public class RenderEnginePools {
 						@Override
 						public VersionInfo getVersionInfo() {
 							return renderEnginePlugin.getVersionInfo();
+						}
+
+						@Override
+						public Schema getSchema() {
+							return schema;
 						}});
 					map.put(className, renderEnginePool);
 					return renderEnginePool;
@@ -25,13 +25,26 @@ import org.bimserver.renderengine.RenderEnginePoolFactory;
 public class CommonsPoolingRenderEnginePoolFactory implements RenderEnginePoolFactory {
 
 	private int nrRenderEngineProcesses;
+	private boolean reuseRenderEngines;
+	private int maxModelsPerEngine;
+	private long maxBytesPerEngine;
 
 	public CommonsPoolingRenderEnginePoolFactory(int nrRenderEngineProcesses) {
 		this.nrRenderEngineProcesses = nrRenderEngineProcesses;
 	}
 	
+	public CommonsPoolingRenderEnginePoolFactory(int nrRenderEngineProcesses, boolean reuseRenderEngines, int maxModelsPerEngine, long maxBytesPerEngine) {
+		this.nrRenderEngineProcesses = nrRenderEngineProcesses;
+		this.reuseRenderEngines = reuseRenderEngines;
+		this.maxModelsPerEngine = maxModelsPerEngine;
+		this.maxBytesPerEngine = maxBytesPerEngine;
+	}
+	
 	@Override
 	public RenderEnginePool newRenderEnginePool(RenderEngineFactory renderEngineFactory) throws RenderEngineException {
+		if (reuseRenderEngines) {
+			return new CommonsRenderEnginePool(nrRenderEngineProcesses, renderEngineFactory, maxModelsPerEngine, maxBytesPerEngine);
+		}
 		return new CommonsRenderEnginePool(nrRenderEngineProcesses, renderEngineFactory);
 	}
 }
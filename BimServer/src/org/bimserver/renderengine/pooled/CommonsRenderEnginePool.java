@@ -17,6 +17,8 @@ package org.bimserver.renderengine.pooled;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.nio.charset.StandardCharsets;
+
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.PooledObjectFactory;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
@@ -32,6 +34,8 @@ public class CommonsRenderEnginePool implements RenderEnginePool {
 	private static final Logger LOGGER = LoggerFactory.getLogger(CommonsRenderEnginePool.class);
 	private GenericObjectPool<RenderEngine> genericObjectPool;
 	private RenderEngineFactory renderEngineFactory;
+	private int maxModelsPerEngine;
+	private long maxBytesPerEngine;
 	
 	public CommonsRenderEnginePool(int poolSize, RenderEngineFactory renderEngineFactory) throws RenderEngineException {
 		LOGGER.info("Pool size: " + poolSize);
@@ -73,6 +77,75 @@ public class CommonsRenderEnginePool implements RenderEnginePool {
 		genericObjectPool.setMaxTotal(poolSize);
 	}
 
+	/**
+	 * A pool that actually reuses render engines. An engine is recycled after it has processed maxModelsPerEngine models or maxBytesPerEngine bytes, engines that
+	 * have failed are never handed out again. Idle engines are periodically checked by letting them process a very small model.
+	 */
+	public CommonsRenderEnginePool(int poolSize, RenderEngineFactory renderEngineFactory, int maxModelsPerEngine, long maxBytesPerEngine) throws RenderEngineException {
+		LOGGER.info("Pool size: " + poolSize + ", reusing render engines for at most " + maxModelsPerEngine + " models / " + maxBytesPerEngine + " bytes");
+		this.renderEngineFactory = renderEngineFactory;
+		this.maxModelsPerEngine = maxModelsPerEngine;
+		this.maxBytesPerEngine = maxBytesPerEngine;
+		
+		byte[] probeModel = createProbeModel(renderEngineFactory.getSchema().getHeaderName());
+		
+		PooledObjectFactory<RenderEngine> pooledObjectFactory = new PooledObjectFactory<RenderEngine>() {
+			@Override
+			public void activateObject(PooledObject<RenderEngine> arg0) throws Exception {
+				arg0.getObject().init();
+			}
+
+			@Override
+			public void destroyObject(PooledObject<RenderEngine> arg0) throws Exception {
+				arg0.getObject().close();
+			}
+
+			@Override
+			public PooledObject<RenderEngine> makeObject() throws Exception {
+				return new DefaultPooledObject<RenderEngine>(new ReusableRenderEngineWrapper(renderEngineFactory));
+			}
+
+			@Override
+			public void passivateObject(PooledObject<RenderEngine> arg0) throws Exception {
+			}
+
+			@Override
+			public boolean validateObject(PooledObject<RenderEngine> arg0) {
+				try {
+					((ReusableRenderEngineWrapper) arg0.getObject()).probe(probeModel);
+					return true;
+				} catch (Exception e) {
+					LOGGER.warn("Render engine failed probe, it will be replaced", e);
+					return false;
+				}
+			}
+		};
+		
+		genericObjectPool = new GenericObjectPool<RenderEngine>(pooledObjectFactory);
+		
+		genericObjectPool.setMaxWaitMillis(1000 * 60 * 60);
+		genericObjectPool.setMaxTotal(poolSize);
+		genericObjectPool.setMaxIdle(poolSize);
+		genericObjectPool.setTestWhileIdle(true);
+		genericObjectPool.setTimeBetweenEvictionRunsMillis(1000 * 60);
+		genericObjectPool.setMinEvictableIdleTimeMillis(1000 * 60 * 10);
+	}
+
+	private static byte[] createProbeModel(String schema) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("ISO-10303-21;\n");
+		sb.append("HEADER;\n");
+		sb.append("FILE_DESCRIPTION(('ViewDefinition [CoordinationView]'),'2;1');\n");
+		sb.append("FILE_NAME('probe.ifc','2019-01-01T00:00:00',(''),(''),'','','');\n");
+		sb.append("FILE_SCHEMA(('" + schema + "'));\n");
+		sb.append("ENDSEC;\n");
+		sb.append("DATA;\n");
+		sb.append("#1=IFCCARTESIANPOINT((0.,0.,0.));\n");
+		sb.append("ENDSEC;\n");
+		sb.append("END-ISO-10303-21;\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
 	@Override
 	public RenderEngine borrowObject() throws RenderEngineException {
 		try {
@@ -85,7 +158,23 @@ public class CommonsRenderEnginePool implements RenderEnginePool {
 
 	@Override
 	public void returnObject(RenderEngine renderEngine) throws RenderEngineException {
+		if (renderEngine instanceof ReusableRenderEngineWrapper) {
+			ReusableRenderEngineWrapper reusableRenderEngineWrapper = (ReusableRenderEngineWrapper) renderEngine;
+			if (reusableRenderEngineWrapper.getNrModels() >= maxModelsPerEngine || reusableRenderEngineWrapper.getNrBytes() >= maxBytesPerEngine) {
+				invalidateObject(renderEngine);
+				return;
+			}
+		}
 		genericObjectPool.returnObject(renderEngine);
+	}
+
+	@Override
+	public void invalidateObject(RenderEngine renderEngine) throws RenderEngineException {
+		try {
+			genericObjectPool.invalidateObject(renderEngine);
+		} catch (Exception e) {
+			throw new RenderEngineException(e);
+		}
 	}
 
 	@Override
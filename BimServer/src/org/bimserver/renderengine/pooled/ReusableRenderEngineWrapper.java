@@ -0,0 +1,137 @@
+package org.bimserver.renderengine.pooled;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.bimserver.plugins.renderengine.Metrics;
+import org.bimserver.plugins.renderengine.RenderEngine;
+import org.bimserver.plugins.renderengine.RenderEngineException;
+import org.bimserver.plugins.renderengine.RenderEngineModel;
+import org.bimserver.renderengine.RenderEngineFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Keeps one render engine alive over multiple borrows. Counts the models and bytes it has processed, so the pool can recycle it after a while.
+ */
+public class ReusableRenderEngineWrapper implements RenderEngine {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private final RenderEngineFactory renderEngineFactory;
+	private RenderEngine wrapped;
+	private int nrModels;
+	private long nrBytes;
+	private long cpuTimeMsAtBorrow;
+
+	public ReusableRenderEngineWrapper(RenderEngineFactory renderEngineFactory) {
+		this.renderEngineFactory = renderEngineFactory;
+	}
+
+	/**
+	 * Called by the pool every time the engine is borrowed, the metrics of the engine are remembered so {@link #getMetrics()} only covers this borrow
+	 */
+	@Override
+	public void init() throws RenderEngineException {
+		if (wrapped == null) {
+			wrapped = renderEngineFactory.createRenderEngine();
+			wrapped.init();
+		}
+		Metrics metrics = wrapped.getMetrics();
+		cpuTimeMsAtBorrow = metrics == null ? 0 : metrics.getCpuTimeMs();
+	}
+
+	@Override
+	public RenderEngineModel openModel(InputStream inputStream, long size) throws RenderEngineException {
+		nrModels++;
+		nrBytes += size;
+		return wrapped.openModel(inputStream, size);
+	}
+
+	@Override
+	public RenderEngineModel openModel(InputStream inputStream) throws RenderEngineException {
+		nrModels++;
+		return wrapped.openModel(inputStream);
+	}
+
+	/**
+	 * Opens a very small model and lets the engine process it, to check whether the engine is still working
+	 */
+	public void probe(byte[] probeModel) throws RenderEngineException {
+		try (RenderEngineModel renderEngineModel = wrapped.openModel(new ByteArrayInputStream(probeModel), probeModel.length)) {
+			renderEngineModel.generateGeneralGeometry();
+		}
+	}
+
+	public int getNrModels() {
+		return nrModels;
+	}
+
+	public long getNrBytes() {
+		return nrBytes;
+	}
+
+	@Override
+	public void close() throws RenderEngineException {
+		if (wrapped != null) {
+			wrapped.close();
+			wrapped = null;
+		}
+	}
+
+	@Override
+	public boolean isCalculateQuantities() {
+		return wrapped.isCalculateQuantities();
+	}
+
+	@Override
+	public boolean isApplyLayerSets() {
+		return wrapped.isApplyLayerSets();
+	}
+
+	/**
+	 * @return The metrics since the engine was borrowed. The engine only keeps a peak of its memory use, so the maximum memory covers the whole life of the engine
+	 */
+	@Override
+	public Metrics getMetrics() {
+		final Metrics metrics = wrapped.getMetrics();
+		if (metrics == null) {
+			return null;
+		}
+		final long cpuTimeMs = metrics.getCpuTimeMs() - cpuTimeMsAtBorrow;
+		return new Metrics() {
+			@Override
+			public long getCpuTimeMs() {
+				return cpuTimeMs;
+			}
+
+			@Override
+			public long getMaxMemoryBytes() {
+				return metrics.getMaxMemoryBytes();
+			}
+
+			@Override
+			public ObjectNode asJson() {
+				ObjectNode result = OBJECT_MAPPER.createObjectNode();
+				result.put("cpuTimeMs", getCpuTimeMs());
+				result.put("maxMemoryBytes", getMaxMemoryBytes());
+				return result;
+			}
+		};
+	}
+}
@@ -440,7 +440,6 @@ public class ClientIfcModel extends IfcModel implements GeometryTarget {
 				bimServerClient.getServiceInterface().cleanupLongAction(topicId);
 
 				loadedClasses.add(eClass.getName());
-				rebuildIndexPerClass(eClass);
 				modelState = ModelState.NONE;
 				
 				try {
@@ -587,7 +586,6 @@ public class ClientIfcModel extends IfcModel implements GeometryTarget {
 
 				for (EClass subClass : bimServerClient.getMetaDataManager().getPackageMetaData(eClass.getEPackage().getName()).getAllSubClasses(eClass)) {
 					loadedClasses.add(subClass.getName());
-					rebuildIndexPerClass(eClass);
 				}
 				loadedClasses.add(eClass.getName());
 				modelState = ModelState.NONE;
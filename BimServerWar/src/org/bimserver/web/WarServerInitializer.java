@@ -32,8 +32,11 @@ import org.bimserver.BimServer;
 import org.bimserver.BimServerConfig;
 import org.bimserver.BimserverDatabaseException;
 import org.bimserver.Environment;
+import org.bimserver.database.CommitDurability;
 import org.bimserver.database.DatabaseRestartRequiredException;
+import org.bimserver.database.OperationType;
 import org.bimserver.database.berkeley.DatabaseInitException;
+import org.bimserver.database.berkeley.ValueCompression;
 import org.bimserver.plugins.ResourceFetcher;
 import org.bimserver.resources.WarResourceFetcher;
 import org.bimserver.servlets.websockets.jsr356.Jsr356Impl;
@@ -73,6 +76,56 @@ public class WarServerInitializer implements ServletContextListener {
 			autoMigrate = Boolean.valueOf(servletContext.getInitParameter("autoMigrate"));
 		}
 
+		int queryThreads = 1;
+		if (servletContext.getInitParameter("queryThreads") != null) {
+			queryThreads = Integer.parseInt(servletContext.getInitParameter("queryThreads"));
+		}
+
+		boolean incrementalGeometry = false;
+		if (servletContext.getInitParameter("incrementalGeometry") != null) {
+			incrementalGeometry = Boolean.valueOf(servletContext.getInitParameter("incrementalGeometry"));
+		}
+
+		boolean reuseRenderEngines = true;
+		if (servletContext.getInitParameter("reuseRenderEngines") != null) {
+			reuseRenderEngines = Boolean.valueOf(servletContext.getInitParameter("reuseRenderEngines"));
+		}
+
+		int renderEngineMaxModels = 1000;
+		if (servletContext.getInitParameter("renderEngineMaxModels") != null) {
+			renderEngineMaxModels = Integer.parseInt(servletContext.getInitParameter("renderEngineMaxModels"));
+		}
+
+		long renderEngineMaxBytes = 2L * 1024 * 1024 * 1024;
+		if (servletContext.getInitParameter("renderEngineMaxBytes") != null) {
+			renderEngineMaxBytes = Long.parseLong(servletContext.getInitParameter("renderEngineMaxBytes"));
+		}
+
+		boolean sealRevisions = false;
+		if (servletContext.getInitParameter("sealRevisions") != null) {
+			sealRevisions = Boolean.valueOf(servletContext.getInitParameter("sealRevisions"));
+		}
+
+		int backgroundMigrationRate = 0;
+		if (servletContext.getInitParameter("backgroundMigrationRate") != null) {
+			backgroundMigrationRate = Integer.parseInt(servletContext.getInitParameter("backgroundMigrationRate"));
+		}
+
+		int jsonRequestThreads = 1;
+		if (servletContext.getInitParameter("jsonRequestThreads") != null) {
+			jsonRequestThreads = Integer.parseInt(servletContext.getInitParameter("jsonRequestThreads"));
+		}
+
+		ValueCompression modelTableCompression = ValueCompression.NONE;
+		if (servletContext.getInitParameter("modelTableCompression") != null) {
+			modelTableCompression = ValueCompression.valueOf(servletContext.getInitParameter("modelTableCompression").toUpperCase());
+		}
+
+		ValueCompression geometryTableCompression = ValueCompression.NONE;
+		if (servletContext.getInitParameter("geometryTableCompression") != null) {
+			geometryTableCompression = ValueCompression.valueOf(servletContext.getInitParameter("geometryTableCompression").toUpperCase());
+		}
+
 		String realPath = servletContext.getRealPath("/");
 		if (!realPath.endsWith("/")) {
 			realPath = realPath + "/";
@@ -86,6 +139,22 @@ public class WarServerInitializer implements ServletContextListener {
 
 		BimServerConfig config = new BimServerConfig();
 		config.setAutoMigrate(autoMigrate);
+		config.setQueryThreads(queryThreads);
+		config.setIncrementalGeometry(incrementalGeometry);
+		config.setReuseRenderEngines(reuseRenderEngines);
+		config.setRenderEngineMaxModels(renderEngineMaxModels);
+		config.setRenderEngineMaxBytes(renderEngineMaxBytes);
+		config.setSealRevisions(sealRevisions);
+		config.setBackgroundMigrationRate(backgroundMigrationRate);
+		config.setJsonRequestThreads(jsonRequestThreads);
+		config.setModelTableCompression(modelTableCompression);
+		config.setGeometryTableCompression(geometryTableCompression);
+		for (OperationType operationType : OperationType.values()) {
+			String commitDurability = servletContext.getInitParameter("commitDurability." + operationType.name());
+			if (commitDurability != null) {
+				config.setCommitDurability(operationType, CommitDurability.valueOf(commitDurability.toUpperCase()));
+			}
+		}
 		config.setEnvironment(Environment.WAR);
 		config.setHomeDir(homeDir);
 		config.setResourceFetcher(resourceFetcher);
@@ -87,6 +87,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	 * @throws QueryException 
 	 */
 	public void addField(String fieldName) throws QueryException {
+		checkNotFrozen();
 		EReference feature = null;
 		for (TypeDef typeDef : types) {
 			if (typeDef.geteClass().getEStructuralFeature(fieldName) == null) {
@@ -110,6 +111,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 	
 	public void addFieldDirect(String fieldName) throws QueryException {
+		checkNotFrozen();
 		EReference feature = null;
 		for (TypeDef typeDef : types) {
 			if (typeDef.geteClass().getEStructuralFeature(fieldName) == null) {
@@ -133,6 +135,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void addInclude(Include newInclude) {
+		checkNotFrozen();
 		if (includes == null) {
 			includes = new ArrayList<Include>();
 		}
@@ -149,6 +152,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	
 	@Override
 	public void addType(EClass eClass, boolean includeAllSubTypes, Set<EClass> excludedEClasses) {
+		checkNotFrozen();
 		if (eClass == null) {
 			throw new IllegalArgumentException("eClass cannot be null");
 		}
@@ -159,6 +163,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 	
 	public void addType(EClass eClass, boolean includeAllSubTypes) {
+		checkNotFrozen();
 		if (eClass == null) {
 			throw new IllegalArgumentException("eClass cannot be null");
 		}
@@ -172,6 +177,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void addOutputType(EClass eClass, boolean includeAllSubTypes) {
+		checkNotFrozen();
 		if (eClass == null) {
 			throw new IllegalArgumentException("eClass cannot be null");
 		}
@@ -183,6 +189,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	
 	@Override
 	public void addOutputType(EClass eClass, boolean includeAllSubTypes, Set<EClass> excludedEClasses) {
+		checkNotFrozen();
 		if (eClass == null) {
 			throw new IllegalArgumentException("eClass cannot be null");
 		}
@@ -263,6 +270,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public Include createInclude() {
+		checkNotFrozen();
 		Include include = new Include(packageMetaData);
 		addInclude(include);
 		return include;
@@ -273,6 +281,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void addIncludeReference(Include down, String name) {
+		checkNotFrozen();
 		if (references == null) {
 			references = new ArrayList<>();
 		}
@@ -288,6 +297,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void makeDirectRecursive(Set<Include> done) {
+		checkNotFrozen();
 		if (done.contains(this)) {
 			return;
 		}
@@ -312,6 +322,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void addType(TypeDef typeDef) {
+		checkNotFrozen();
 		if (types == null) {
 			types = new HashSet<>();
 		}
@@ -319,6 +330,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void addField(EReference field) throws QueryException {
+		checkNotFrozen();
 		this.addField(field.getName());
 	}
 	
@@ -361,11 +373,13 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void setIncludeAllFields(boolean includeAllFields) {
+		checkNotFrozen();
 		this.includeAllFields = includeAllFields;
 	}
 
 	@Override
 	public void addInclude(String name) {
+		checkNotFrozen();
 		if (includesToResolve == null) {
 			includesToResolve = new HashSet<String>();
 		}
@@ -381,6 +395,7 @@ public class Include extends PartOfQuery implements CanInclude {
 	}
 
 	public void setExclude(boolean exclude) {
+		checkNotFrozen();
 		this.exclude = exclude;
 	}
 	
@@ -30,8 +30,10 @@ import java.util.Set;
 
 import org.bimserver.database.queries.om.Include.TypeDef;
 import org.bimserver.emf.PackageMetaData;
+import org.eclipse.emf.ecore.EAttribute;
 import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EStructuralFeature;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
@@ -108,6 +110,13 @@ public class JsonQueryObjectModelConverter {
 					guidsNode.add(guid);
 				}
 			}
+			if (queryPart.hasAttributes()) {
+				ArrayNode attributesNode = OBJECT_MAPPER.createArrayNode();
+				queryPartNode.set("attributes", attributesNode);
+				for (String attribute : queryPart.getAttributes()) {
+					attributesNode.add(attribute);
+				}
+			}
 			if (queryPart.hasInBoundingBox()) {
 				ObjectNode inBoundingBoxNode = OBJECT_MAPPER.createObjectNode();
 				if (!Double.isNaN(queryPart.getInBoundingBox().getX())) {
@@ -746,6 +755,22 @@ public class JsonQueryObjectModelConverter {
 				throw new QueryException("\"classifications\" must be of type array");
 			}
 		}
+		if (objectNode.has("attributes")) {
+			JsonNode attributesNode = objectNode.get("attributes");
+			if (attributesNode instanceof ArrayNode) {
+				ArrayNode attributes = (ArrayNode)attributesNode;
+				for (int i=0; i<attributes.size(); i++) {
+					JsonNode attributeNode = attributes.get(i);
+					if (attributeNode.isTextual()) {
+						addAttribute(queryPart, attributeNode.asText());
+					} else {
+						throw new QueryException("\"attributes\"[" + i + "] must be of type string");
+					}
+				}
+			} else {
+				throw new QueryException("\"attributes\" must be of type array");
+			}
+		}
 		if (objectNode.has("inBoundingBox")) {
 			JsonNode boundingBoxNode = objectNode.get("inBoundingBox");
 			if (boundingBoxNode instanceof ObjectNode) {
@@ -834,7 +859,7 @@ public class JsonQueryObjectModelConverter {
 		Iterator<String> fieldNames = objectNode.fieldNames();
 		while (fieldNames.hasNext()) {
 			String fieldName = fieldNames.next();
-			if (fieldName.equals("includeAllFields") || fieldName.equals("type") || fieldName.equals("types") || fieldName.equals("oid") || fieldName.equals("oids") || fieldName.equals("guid") || fieldName.equals("guids") || fieldName.equals("name") || fieldName.equals("names") || fieldName.equals("properties") || fieldName.equals("inBoundingBox") || fieldName.equals("include") || fieldName.equals("includes") || fieldName.equalsIgnoreCase("includeAllSubtypes") || fieldName.equals("classifications") || fieldName.equals("doublebuffer") || fieldName.equals("version")  || fieldName.equals("loaderSettings") || fieldName.equals("tiles") || fieldName.equals("reuseLowerThreshold") || fieldName.contentEquals("specialQueryType")) {
+			if (fieldName.equals("includeAllFields") || fieldName.equals("type") || fieldName.equals("types") || fieldName.equals("oid") || fieldName.equals("oids") || fieldName.equals("guid") || fieldName.equals("guids") || fieldName.equals("name") || fieldName.equals("names") || fieldName.equals("properties") || fieldName.equals("inBoundingBox") || fieldName.equals("include") || fieldName.equals("includes") || fieldName.equalsIgnoreCase("includeAllSubtypes") || fieldName.equals("classifications") || fieldName.equals("attributes") || fieldName.equals("doublebuffer") || fieldName.equals("version")  || fieldName.equals("loaderSettings") || fieldName.equals("tiles") || fieldName.equals("reuseLowerThreshold") || fieldName.contentEquals("specialQueryType")) {
 				// fine
 			} else {
 				throw new QueryException("Unknown field: \"" + fieldName + "\"");
@@ -877,6 +902,40 @@ public class JsonQueryObjectModelConverter {
 		}
 	}
 	
+	/**
+	 * Adds the attribute when at least one of the types the query part can match (all types when it has none) has an attribute with that name
+	 */
+	private void addAttribute(QueryPart queryPart, String attributeName) throws QueryException {
+		Set<EClass> eClasses = new HashSet<>();
+		if (queryPart.hasTypes()) {
+			for (TypeDef typeDef : queryPart.getTypes()) {
+				eClasses.add(typeDef.geteClass());
+				if (typeDef.isIncludeSubTypes()) {
+					Set<EClass> subClasses = packageMetaData.getAllSubClasses(typeDef.geteClass());
+					if (subClasses != null) {
+						eClasses.addAll(subClasses);
+					}
+				}
+			}
+		} else {
+			eClasses.addAll(packageMetaData.getAllClasses());
+		}
+		boolean reference = false;
+		for (EClass eClass : eClasses) {
+			EStructuralFeature eStructuralFeature = eClass.getEStructuralFeature(attributeName);
+			if (eStructuralFeature instanceof EAttribute) {
+				queryPart.addAttribute(attributeName);
+				return;
+			} else if (eStructuralFeature instanceof EReference) {
+				reference = true;
+			}
+		}
+		if (reference) {
+			throw new QueryException("\"" + attributeName + "\" is a reference, references are always read");
+		}
+		throw new QueryException("None of the queried types has an attribute \"" + attributeName + "\"");
+	}
+
 	private double checkFloat(ObjectNode node, String key) throws QueryException {
 		if (!node.has(key)) {
 			throw new QueryException("\"" + key + "\" not found on \"inBoundingBox\"");
@@ -17,9 +17,45 @@ package org.bimserver.database.queries.om;
  * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
  *****************************************************************************/
 
+import java.util.Set;
+
 public abstract class PartOfQuery {
+	private boolean frozen;
 
 	abstract void dump(int indent, StringBuilder sb);
+
+	/**
+	 * Makes this part and the includes it refers to unmodifiable, see {@link Query#freeze()}
+	 */
+	void freeze(Set<PartOfQuery> done) {
+		if (!done.add(this)) {
+			return;
+		}
+		frozen = true;
+		if (this instanceof CanInclude) {
+			CanInclude canInclude = (CanInclude) this;
+			if (canInclude.hasIncludes()) {
+				for (Include include : canInclude.getIncludes()) {
+					include.freeze(done);
+				}
+			}
+			if (canInclude.hasReferences()) {
+				for (Reference reference : canInclude.getReferences()) {
+					reference.getInclude().freeze(done);
+				}
+			}
+		}
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	protected void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("This query is shared and cannot be modified");
+		}
+	}
 	
 	protected String indent(int indentation) {
 		StringBuilder sb = new StringBuilder();
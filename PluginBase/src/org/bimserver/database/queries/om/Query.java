@@ -18,10 +18,13 @@ package org.bimserver.database.queries.om;
  *****************************************************************************/
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import org.bimserver.emf.PackageMetaData;
 
@@ -37,6 +40,7 @@ public class Query {
 	private ObjectNode geometrySettings;
 	private ObjectNode originalJson;
 	private SpecialQueryType specialQueryType;
+	private boolean frozen;
 	
 	public Query(String name, PackageMetaData packageMetaData) {
 		this.name = name;
@@ -49,10 +53,12 @@ public class Query {
 	}
 
 	public void addDefine(String name, Include include) {
+		checkNotFrozen();
 		defines.put(name, include);
 	}
 	
 	public void addQueryPart(QueryPart queryPart) {
+		checkNotFrozen();
 		queryParts.add(queryPart);
 	}
 	
@@ -73,12 +79,14 @@ public class Query {
 	}
 	
 	public QueryPart createQueryPart() {
+		checkNotFrozen();
 		QueryPart queryPart = new QueryPart(packageMetaData);
 		addQueryPart(queryPart);
 		return queryPart;
 	}
 	
 	public Include createDefine(String name) {
+		checkNotFrozen();
 		Include include = new Include(packageMetaData);
 		this.defines.put(name, include);
 		return include;
@@ -105,6 +113,7 @@ public class Query {
 	}
 
 	public void setDoubleBuffer(boolean doubleBuffer) {
+		checkNotFrozen();
 		this.doubleBuffer = doubleBuffer;
 	}
 	
@@ -113,6 +122,7 @@ public class Query {
 	}
 
 	public void setVersion(int version) {
+		checkNotFrozen();
 		this.version = version;
 	}
 	
@@ -121,6 +131,7 @@ public class Query {
 	}
 
 	public void setGeometrySettings(ObjectNode geometrySettings) {
+		checkNotFrozen();
 		this.geometrySettings = geometrySettings;
 	}
 	
@@ -133,24 +144,53 @@ public class Query {
 	}
 	
 	public void setOriginalJson(ObjectNode originalJson) {
+		checkNotFrozen();
 		this.originalJson = originalJson;
 	}
 
 	public QueryPart insertQueryPart() {
+		checkNotFrozen();
 		QueryPart queryPart = new QueryPart(packageMetaData);
 		queryParts.add(0, queryPart);
 		return queryPart;
 	}
 
 	public void clear() {
+		checkNotFrozen();
 		this.queryParts.clear();
 	}
 	
 	public void setSpecialQueryType(SpecialQueryType specialQueryType) {
+		checkNotFrozen();
 		this.specialQueryType = specialQueryType;
 	}
 	
 	public SpecialQueryType getSpecialQueryType() {
 		return specialQueryType;
 	}
+
+	/**
+	 * Makes this query, its defines, query parts and all includes reachable from them unmodifiable. Frozen queries can be shared between threads, any attempt to
+	 * modify them results in an IllegalStateException. Code that needs a modified version of a query has to parse its own copy.
+	 */
+	public void freeze() {
+		frozen = true;
+		Set<PartOfQuery> done = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Include define : defines.values()) {
+			define.freeze(done);
+		}
+		for (QueryPart queryPart : queryParts) {
+			queryPart.freeze(done);
+		}
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("This query is shared and cannot be modified");
+		}
+	}
 }
\ No newline at end of file
@@ -37,6 +37,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	private Set<String> names;
 	private Map<String, Properties> properties;
 	private Set<String> classifications;
+	private Set<String> attributes;
 	private PackageMetaData packageMetaData;
 	private InBoundingBox inBoundingBox;
 	private List<Include> includes;
@@ -51,6 +52,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void addType(EClass type, boolean includeAllSubTypes) {
+		checkNotFrozen();
 		if (types == null) {
 			types = new LinkedHashSet<>();
 		}
@@ -68,6 +70,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 	
 	public void addType(EClass type, boolean includeAllSubTypes, Set<EClass> excludedEClasses) {
+		checkNotFrozen();
 		if (types == null) {
 			types = new LinkedHashSet<>();
 		}
@@ -78,6 +81,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 	
 	public void addType(TypeDef typeDef) {
+		checkNotFrozen();
 		if (types == null) {
 			types = new LinkedHashSet<>();
 		}
@@ -85,6 +89,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void addOid(long oid) {
+		checkNotFrozen();
 		if (oids == null) {
 			oids = new LinkedHashSet<>();
 		}
@@ -92,6 +97,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 	
 	public void addOids(Collection<Long> oids) {
+		checkNotFrozen();
 		if (this.oids == null) {
 			this.oids = new LinkedHashSet<>();
 		}
@@ -99,6 +105,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void addGuid(String guid) {
+		checkNotFrozen();
 		if (guids == null) {
 			guids = new LinkedHashSet<>();
 		}
@@ -122,6 +129,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void addProperty(String propertySetName, String key, Object value) {
+		checkNotFrozen();
 		if (this.properties == null) {
 			this.properties = new HashMap<>();
 		}
@@ -135,6 +143,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void setInBoundingBox(InBoundingBox inBoundingBox) {
+		checkNotFrozen();
 		this.inBoundingBox = inBoundingBox;
 	}
 	
@@ -147,11 +156,13 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void setIncludeAllFields(boolean includeAllFields) {
+		checkNotFrozen();
 		this.includeAllFields = includeAllFields;
 	}
 	
 	@Override
 	public void addInclude(Include include) {
+		checkNotFrozen();
 		if (includes == null) {
 			includes = new ArrayList<Include>();
 		}
@@ -212,6 +223,12 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 				sb.append(indent(indent + 1) + guid + "\n");
 			}
 		}
+		if (hasAttributes()) {
+			sb.append(indent(indent) + "attributes\n");
+			for (String attribute : getAttributes()) {
+				sb.append(indent(indent + 1) + attribute + "\n");
+			}
+		}
 		if (hasIncludes()) {
 			sb.append(indent(indent) + "includes\n");
 			for (Include include : getIncludes()) {
@@ -241,12 +258,14 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public Include createInclude() {
+		checkNotFrozen();
 		Include include = new Include(packageMetaData);
 		addInclude(include);
 		return include;
 	}
 
 	public void addName(String name) {
+		checkNotFrozen();
 		if (names == null) {
 			names = new LinkedHashSet<>();
 		}
@@ -258,6 +277,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void addClassification(String classification) {
+		checkNotFrozen();
 		if (classifications == null) {
 			classifications = new HashSet<>();
 		}
@@ -268,8 +288,31 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 		return classifications;
 	}
 
+	/**
+	 * Restrict the attributes that are read for the objects matched by this query part, all other attributes are skipped while decoding. References are always read.
+	 * Objects are only read once per query, so objects that other query parts or includes of the query can also reach are read with the attributes they need as well.
+	 * 
+	 * @param attribute
+	 */
+	public void addAttribute(String attribute) {
+		checkNotFrozen();
+		if (attributes == null) {
+			attributes = new HashSet<>();
+		}
+		attributes.add(attribute);
+	}
+
+	public Set<String> getAttributes() {
+		return attributes;
+	}
+
+	public boolean hasAttributes() {
+		return attributes != null;
+	}
+
 	@Override
 	public void addIncludeReference(Include down, String name) {
+		checkNotFrozen();
 		if (references == null) {
 			references = new ArrayList<>();
 		}
@@ -289,6 +332,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void setTiles(Tiles tiles) {
+		checkNotFrozen();
 		this.tiles = tiles;
 	}
 	
@@ -297,6 +341,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 	}
 
 	public void setMinimumReuseThreshold(int minimumReuseThreshold) {
+		checkNotFrozen();
 		this.minimumReuseThreshold = minimumReuseThreshold;
 	}
 	
@@ -307,6 +352,7 @@ public class QueryPart extends PartOfQuery implements CanInclude {
 
 	@Override
 	public void addInclude(String name) {
+		checkNotFrozen();
 		if (includesToResolve == null) {
 			includesToResolve = new HashSet<String>();
 		}
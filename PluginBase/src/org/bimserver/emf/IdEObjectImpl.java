@@ -43,6 +43,8 @@ public class IdEObjectImpl extends MinimalEObjectImpl implements IdEObject {
 	private State loadingState = State.NO_LAZY_LOADING;
 	private QueryInterface queryInterface;
 	private boolean useInverses = true;
+	// The key under which this object is stored in the OidObjectStore of its model, differs from the oid when the oid has been changed after storing
+	private long storeKey = -1;
 
 	@Override
 	public long getOid() {
@@ -53,6 +55,14 @@ public class IdEObjectImpl extends MinimalEObjectImpl implements IdEObject {
 		this.oid = oid;
 	}
 
+	public long getStoreKey() {
+		return storeKey;
+	}
+
+	public void setStoreKey(long storeKey) {
+		this.storeKey = storeKey;
+	}
+
 	@Override
 	public Object dynamicGet(int dynamicFeatureID) {
 		load();
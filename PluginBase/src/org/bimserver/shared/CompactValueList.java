@@ -0,0 +1,186 @@
+package org.bimserver.shared;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.RandomAccess;
+
+/**
+ * List used by {@link HashMapVirtualObject} for many-valued features. Lists of references (oids) and lists of doubles are kept in a primitive long array,
+ * the list switches to an Object array the first time a value of another type is stored (wrapped values, two-dimensional arrays).
+ */
+final class CompactValueList extends AbstractList<Object> implements RandomAccess {
+	enum Kind {
+		LONG,
+		DOUBLE,
+		OBJECT
+	}
+
+	private Kind kind;
+	private long[] primitives;
+	private BitSet nulls;
+	private Object[] objects;
+	private int size;
+
+	CompactValueList(Kind kind, int initialCapacity) {
+		this.kind = kind;
+		if (kind == Kind.OBJECT) {
+			objects = new Object[initialCapacity];
+		} else {
+			primitives = new long[initialCapacity];
+		}
+	}
+
+	@Override
+	public Object get(int index) {
+		checkIndex(index, size);
+		switch (kind) {
+		case LONG:
+			return isNull(index) ? null : primitives[index];
+		case DOUBLE:
+			return isNull(index) ? null : Double.longBitsToDouble(primitives[index]);
+		default:
+			return objects[index];
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Object set(int index, Object element) {
+		checkIndex(index, size);
+		Object old = get(index);
+		store(index, element);
+		return old;
+	}
+
+	@Override
+	public void add(int index, Object element) {
+		checkIndex(index, size + 1);
+		modCount++;
+		if (kind == Kind.OBJECT) {
+			if (size == objects.length) {
+				objects = Arrays.copyOf(objects, grow(size));
+			}
+			System.arraycopy(objects, index, objects, index + 1, size - index);
+		} else {
+			if (size == primitives.length) {
+				primitives = Arrays.copyOf(primitives, grow(size));
+			}
+			System.arraycopy(primitives, index, primitives, index + 1, size - index);
+			if (nulls != null) {
+				for (int i = size; i > index; i--) {
+					nulls.set(i, nulls.get(i - 1));
+				}
+			}
+		}
+		size++;
+		if (kind == Kind.OBJECT) {
+			objects[index] = element;
+		} else {
+			store(index, element);
+		}
+	}
+
+	@Override
+	public Object remove(int index) {
+		checkIndex(index, size);
+		modCount++;
+		Object old = get(index);
+		if (kind == Kind.OBJECT) {
+			System.arraycopy(objects, index + 1, objects, index, size - index - 1);
+			objects[size - 1] = null;
+		} else {
+			System.arraycopy(primitives, index + 1, primitives, index, size - index - 1);
+			if (nulls != null) {
+				for (int i = index; i < size - 1; i++) {
+					nulls.set(i, nulls.get(i + 1));
+				}
+				nulls.clear(size - 1);
+			}
+		}
+		size--;
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		if (objects != null) {
+			Arrays.fill(objects, 0, size, null);
+		}
+		nulls = null;
+		size = 0;
+	}
+
+	private void store(int index, Object element) {
+		if (kind == Kind.OBJECT) {
+			objects[index] = element;
+		} else if (element == null) {
+			if (nulls == null) {
+				nulls = new BitSet();
+			}
+			nulls.set(index);
+		} else if (kind == Kind.LONG && element instanceof Long) {
+			clearNull(index);
+			primitives[index] = (Long) element;
+		} else if (kind == Kind.DOUBLE && element instanceof Double) {
+			clearNull(index);
+			primitives[index] = Double.doubleToRawLongBits((Double) element);
+		} else {
+			toObjects();
+			objects[index] = element;
+		}
+	}
+
+	private void toObjects() {
+		Object[] newObjects = new Object[Math.max(primitives.length, 1)];
+		for (int i = 0; i < size; i++) {
+			newObjects[i] = get(i);
+		}
+		kind = Kind.OBJECT;
+		objects = newObjects;
+		primitives = null;
+		nulls = null;
+	}
+
+	private boolean isNull(int index) {
+		return nulls != null && nulls.get(index);
+	}
+
+	private void clearNull(int index) {
+		if (nulls != null) {
+			nulls.clear(index);
+		}
+	}
+
+	private static int grow(int size) {
+		return Math.max(4, size + (size >> 1));
+	}
+
+	private void checkIndex(int index, int limit) {
+		if (index < 0 || index >= limit) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
@@ -52,18 +52,33 @@ import com.google.common.base.Charsets;
 
 public class HashMapVirtualObject extends AbstractHashMapVirtualObject implements VirtualObject {
 	private static final Logger LOGGER = LoggerFactory.getLogger(VirtualObject.class);
-	private final Map<EStructuralFeature, Object> map = new HashMap<>();
+	
+	/**
+	 * Marks a feature that has explicitly been set to null, an empty slot means the feature is not set
+	 */
+	private static final Object NULL = new Object();
+	
+	/**
+	 * Values indexed by the feature id of the feature within eClass (see EClass.getFeatureID)
+	 */
+	private final Object[] values;
+	/**
+	 * Values of features that are not features of eClass (for example features of another instance of the same package), they are kept so they can be read
+	 * back with the same feature, as when all values were in one map, but they are never written to the database
+	 */
+	private Map<EStructuralFeature, Object> otherValues;
 	private EClass eClass;
 	private long oid;
 	private UUID uuid;
 	private QueryContext reusable;
-	private Map<EStructuralFeature, Object> useForSerializationFeatures = new HashMap<>();
+	private Map<EStructuralFeature, Object> useForSerializationFeatures;
 	private HashMap<EReference, AbstractHashMapVirtualObject> directReferences;
 	private HashMap<EReference, Set<HashMapVirtualObject>> directListReferences;
 
 	public HashMapVirtualObject(QueryContext reusable, EClass eClass) {
 		this.reusable = reusable;
 		this.eClass = eClass;
+		this.values = new Object[eClass.getEAllStructuralFeatures().size()];
 		this.oid = reusable.getDatabaseInterface().newOid(eClass);
 		this.uuid = reusable.getDatabaseInterface().newUuid();
 	}
@@ -71,6 +86,7 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 	public HashMapVirtualObject(QueryContext reusable, EClass eClass, long oid, UUID uuid) {
 		this.reusable = reusable;
 		this.eClass = eClass;
+		this.values = new Object[eClass.getEAllStructuralFeatures().size()];
 		this.oid = oid;
 		this.uuid = uuid;
 	}
@@ -84,8 +100,51 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 		return this.oid;
 	}
 	
+	private int slot(EStructuralFeature feature) {
+		if (feature == null) {
+			return -1;
+		}
+		return eClass.getFeatureID(feature);
+	}
+	
+	private void put(EStructuralFeature feature, Object value) {
+		int slot = slot(feature);
+		if (slot == -1) {
+			if (otherValues == null) {
+				otherValues = new HashMap<>();
+			}
+			otherValues.put(feature, value);
+		} else {
+			values[slot] = value == null ? NULL : value;
+		}
+	}
+	
+	private Object getValue(EStructuralFeature feature) {
+		int slot = slot(feature);
+		if (slot == -1) {
+			return otherValues == null ? null : otherValues.get(feature);
+		}
+		Object value = values[slot];
+		return value == NULL ? null : value;
+	}
+	
+	private boolean containsValue(EStructuralFeature feature) {
+		int slot = slot(feature);
+		if (slot == -1) {
+			return otherValues != null && otherValues.containsKey(feature);
+		}
+		return values[slot] != null;
+	}
+	
 	public void eUnset(EStructuralFeature feature) {
-		map.remove(feature);
+		int slot = slot(feature);
+		if (slot == -1) {
+			if (otherValues != null) {
+				otherValues.remove(feature);
+			}
+		} else {
+			values[slot] = null;
+		}
 	}
 	
 	public QueryContext getReusable() {
@@ -93,20 +152,20 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 	}
 
 	public void setAttribute(EAttribute eAttribute, Object val) {
-		map.put(eAttribute, val);
+		put(eAttribute, val);
 	}
 
 	public Object eGet(EStructuralFeature feature) {
-		return map.get(feature);
+		return getValue(feature);
 	}
 
 	public Object get(String featureName) {
 		EStructuralFeature eStructuralFeature = eClass.getEStructuralFeature(featureName);
-		return map.get(eStructuralFeature);
+		return getValue(eStructuralFeature);
 	}
 	
 	public boolean eIsSet(EStructuralFeature feature) {
-		return map.containsKey(feature);
+		return containsValue(feature);
 	}
 	
 	public EClass eClass() {
@@ -505,10 +564,10 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private List getOrCreateList(EStructuralFeature structuralFeature, int minSize) {
-		List list = (List<?>) map.get(structuralFeature);
+		List list = (List<?>) getValue(structuralFeature);
 		if (list == null) {
-			list = new ArrayList(minSize == -1 ? 0 : minSize);
-			map.put(structuralFeature, list);
+			list = createList(structuralFeature, minSize == -1 ? 0 : minSize);
+			put(structuralFeature, list);
 		}
 		while (list.size() < minSize) {
 			list.add(null);
@@ -516,6 +575,19 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 		return list;
 	}
 
+	private static List<Object> createList(EStructuralFeature structuralFeature, int initialCapacity) {
+		EClassifier eType = structuralFeature.getEType();
+		if (eType instanceof EClass) {
+			if (structuralFeature.getEAnnotation("twodimensionalarray") != null || eType.getEAnnotation("wrapped") != null) {
+				return new CompactValueList(CompactValueList.Kind.OBJECT, initialCapacity);
+			}
+			return new CompactValueList(CompactValueList.Kind.LONG, initialCapacity);
+		} else if (eType == EcorePackage.eINSTANCE.getEDouble() || eType == EcorePackage.eINSTANCE.getEDoubleObject()) {
+			return new CompactValueList(CompactValueList.Kind.DOUBLE, initialCapacity);
+		}
+		return new ArrayList<>(initialCapacity);
+	}
+
 	public void save() throws BimserverDatabaseException {
 		getDatabaseInterface().save(this);
 	}
@@ -544,7 +616,7 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 		if (!definedType.isSuperTypeOf(referencedEClass)) {
 			throw new CannotStoreReferenceInFieldException(DeserializerErrorCode.REFERENCED_OBJECT_CANNOT_BE_STORED_IN_THIS_FIELD, "Cannot store a " + referencedEClass.getName() + " in " + eClass().getName() + "." + eReference.getName() + " of type " + definedType.getName());
 		}
-		map.put(eReference, referenceOid);
+		put(eReference, referenceOid);
 	}
 
 	@Override
@@ -559,7 +631,7 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 		if (!definedType.isSuperTypeOf(referencedEClass)) {
 			throw new CannotStoreReferenceInFieldException(DeserializerErrorCode.REFERENCED_OBJECT_CANNOT_BE_STORED_IN_THIS_FIELD, "Cannot store a " + referencedEClass.getName() + " in " + eClass().getName() + "." + eReference.getName() + " of type " + definedType.getName());
 		}
-		map.put(eReference, wrappedVirtualObject);
+		put(eReference, wrappedVirtualObject);
 	}
 
 	@Override
@@ -577,7 +649,7 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 
 	public boolean has(String key) {
 		EStructuralFeature eStructuralFeature = eClass.getEStructuralFeature(key);
-		return map.containsKey(eStructuralFeature) && map.get(eStructuralFeature) != null;
+		return getValue(eStructuralFeature) != null;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -585,7 +657,7 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 		if (feature instanceof EAttribute) {
 			return true;
 		}
-		if (useForSerializationFeatures.containsKey(feature)) {
+		if (useForSerializationFeatures != null && useForSerializationFeatures.containsKey(feature)) {
 			Object object = useForSerializationFeatures.get(feature);
 			if (object instanceof Set) {
 				Set<Integer> set = (Set<Integer>) object;
@@ -603,11 +675,14 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 		if (feature instanceof EAttribute) {
 			return true;
 		}
-		return useForSerializationFeatures.containsKey(feature);
+		return useForSerializationFeatures != null && useForSerializationFeatures.containsKey(feature);
 	}
 
 	public void addUseForSerialization(EStructuralFeature eStructuralFeature) {
 		if (eStructuralFeature.getEContainingClass().isSuperTypeOf(eClass)) {
+			if (useForSerializationFeatures == null) {
+				useForSerializationFeatures = new HashMap<>();
+			}
 			useForSerializationFeatures.put(eStructuralFeature, true);
 		} else {
 			throw new IllegalArgumentException(eStructuralFeature.getName() + " does not exist in " + eClass.getName());
@@ -617,6 +692,9 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 	@SuppressWarnings("unchecked")
 	public void addUseForSerialization(EStructuralFeature eStructuralFeature, int index) {
 		if (eStructuralFeature.getEContainingClass().isSuperTypeOf(eClass)) {
+			if (useForSerializationFeatures == null) {
+				useForSerializationFeatures = new HashMap<>();
+			}
 			Set<Object> set = (Set<Object>) useForSerializationFeatures.get(eStructuralFeature);
 			if (set == null) {
 				set = new HashSet<>();
@@ -650,8 +728,11 @@ public class HashMapVirtualObject extends AbstractHashMapVirtualObject implement
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(eClass.getName() + " " + getOid() + "\n");
-		for (EStructuralFeature eStructuralFeature : map.keySet()) {
-			sb.append("\t" + eStructuralFeature.getName() + ": " + map.get(eStructuralFeature) + "\n");
+		List<EStructuralFeature> features = eClass.getEAllStructuralFeatures();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				sb.append("\t" + features.get(i).getName() + ": " + (values[i] == NULL ? null : values[i]) + "\n");
+			}
 		}
 		return sb.toString();
 	}
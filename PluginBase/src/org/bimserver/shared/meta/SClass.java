@@ -46,7 +46,7 @@ public class SClass implements Comparable<SClass> {
 	private final String name;
 	private final Class<?> instanceClass;
 	private final Set<SClass> subClasses = new TreeSet<SClass>();
-	private final SConstructor sConstructor;
+	private SConstructor sConstructor;
 	private final SimpleType simpleType;
 	private SClass superClass;
 	private SServicesMap sServicesMap;
@@ -170,6 +170,13 @@ public class SClass implements Comparable<SClass> {
 		return allFields.values();
 	}
 	
+	/**
+	 * Replaces the constructor this class was created with, used to replace the reflective constructors by generated ones
+	 */
+	public void setSConstructor(SConstructor sConstructor) {
+		this.sConstructor = sConstructor;
+	}
+
 	public SBase newInstance() {
 		if (sConstructor == null) {
 			throw new RuntimeException("No constructor for " + getName() + "!");
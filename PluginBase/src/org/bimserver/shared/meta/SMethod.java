@@ -22,9 +22,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.jws.WebMethod;
@@ -35,6 +33,7 @@ import org.bimserver.shared.interfaces.PublicInterface;
 import org.bimserver.shared.reflector.KeyValuePair;
 import org.bimserver.shared.reflector.Reflector;
 import org.bimserver.shared.reflector.ReflectorException;
+import org.bimserver.shared.reflector.ServiceDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,7 +51,7 @@ public class SMethod {
 	private String returnDoc;
 	private String name;
 	private SService service;
-	private final Map<PublicInterface, Reflector> reflectorCache = java.util.Collections.synchronizedMap(new HashMap<>());
+	private int index;
 	
 	@SuppressWarnings("rawtypes")
 	public SMethod(SService service, Method method) {
@@ -211,14 +210,24 @@ public class SMethod {
 		return returnDoc;
 	}
 
+	/**
+	 * @return The position of this method in the (name ordered) methods of its service
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
+
 	public <T extends PublicInterface, K extends PublicInterface> Object invoke(Class<K> clazz, T service, KeyValuePair[] keyValuePairs) throws ServiceException, ReflectorException {
-		Reflector reflector = null;
-		if (reflectorCache.containsKey(service)) {
-			reflector = reflectorCache.get(service);
-		} else {
-			reflector = this.service.getServicesMap().getReflectorFactory().createReflector(clazz, service);
-			reflectorCache.put(service, reflector);
+		ServiceDispatcher dispatcher = this.service.getDispatcher();
+		if (dispatcher != null) {
+			return dispatcher.invoke(service, index, keyValuePairs);
 		}
+		// No dispatcher has been generated, service instances are created per request so the reflector is not worth keeping
+		Reflector reflector = this.service.getServicesMap().getReflectorFactory().createReflector(clazz, service);
 		return reflector.callMethod(clazz.getName(), getName(), getReturnType().getInstanceClass(), keyValuePairs);
 	}
 	
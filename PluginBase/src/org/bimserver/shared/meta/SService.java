@@ -30,6 +30,7 @@ import java.util.TreeMap;
 import javax.jws.WebService;
 
 import org.bimserver.shared.interfaces.PublicInterface;
+import org.bimserver.shared.reflector.ServiceDispatcher;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.ASTVisitor;
@@ -52,6 +53,7 @@ public class SService {
 	private String simpleName;
 	private SourceCodeFetcher sourceCodeFetcher;
 	private String nameSpace;
+	private volatile ServiceDispatcher dispatcher;
 
 	public SService(SServicesMap servicesMap, SourceCodeFetcher sourceCodeFetcher, Class<? extends PublicInterface> interfaceClass) {
 		this.servicesMap = servicesMap;
@@ -155,6 +157,10 @@ public class SService {
 		for (Method method : interfaceClass.getMethods()) {
 			methods.put(method.getName(), new SMethod(this, method));
 		}
+		int index = 0;
+		for (SMethod sMethod : methods.values()) {
+			sMethod.setIndex(index++);
+		}
 		if (processJavaDoc && sourceCodeFetcher != null) {
 			processClass(interfaceClass);
 		}
@@ -235,4 +241,12 @@ public class SService {
 	public String getNameSpace() {
 		return nameSpace;
 	}
+
+	public ServiceDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	public void setDispatcher(ServiceDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
 }
\ No newline at end of file
@@ -86,7 +86,7 @@ public class SServicesMap {
 
 	public void addType(final Class<?> type) {
 		if (!types.containsKey(type.getSimpleName())) {
-			// TODO reflective constructor use can be slow
+			// Reflective, RealtimeReflectorFactoryBuilder replaces it with a generated constructor
 			SClass sClass = new SClass(this, type, new SConstructor(){
 				@Override
 				public Object newInstance() {
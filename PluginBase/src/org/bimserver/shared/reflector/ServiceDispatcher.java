@@ -0,0 +1,33 @@
+package org.bimserver.shared.reflector;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.bimserver.shared.exceptions.ServerException;
+import org.bimserver.shared.exceptions.UserException;
+import org.bimserver.shared.interfaces.PublicInterface;
+
+/**
+ * Calls the methods of one service interface directly on a service instance. One is generated per interface (see RealtimeReflectorFactoryBuilder), so it can be
+ * shared by all service instances.
+ */
+public interface ServiceDispatcher {
+	/**
+	 * @param methodIndex The index of the method in the service, see {@link org.bimserver.shared.meta.SMethod#getIndex()}
+	 */
+	Object invoke(PublicInterface service, int methodIndex, KeyValuePair[] arguments) throws ServerException, UserException;
+}
@@ -75,6 +75,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
 public abstract class IfcModel implements IfcModelInterface {
 
 	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(IfcModel.class);
@@ -82,7 +84,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	private final Set<IfcModelChangeListener> changeListeners = new LinkedHashSet<IfcModelChangeListener>();
 
 	// Object with oid
-	private BiMap<Long, IdEObject> objects;
+	private OidObjectStore objects;
 	
 	// Objects without oid, usually embedded when serialized
 	private final Set<IdEObject> unidentifiedObjects = new HashSet<IdEObject>();
@@ -103,7 +105,7 @@ public abstract class IfcModel implements IfcModelInterface {
 			throw new IllegalArgumentException("PackageMetaData is required");
 		}
 		this.packageMetaData = packageMetaData;
-		this.objects = HashBiMap.create(size);
+		this.objects = new OidObjectStore(size);
 	}
 
 	public IfcModel(PackageMetaData packageMetaData, Map<Integer, Long> pidRoidMap) {
@@ -113,8 +115,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	@SuppressWarnings("unchecked")
 	protected void buildIndex() {
 		indexPerClass = new HashMap<>();
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get(key);
+		for (IdEObject value : objects.values()) {
 			if (value != null) {
 				List<? extends IdEObject> list = indexPerClass.get(value.eClass());
 				if (list == null) {
@@ -132,8 +133,7 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 		ArrayList<IdEObject> list = new ArrayList<>();
 		indexPerClass.put(eClass, list);
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get(key);
+		for (IdEObject value : objects.values()) {
 			if (eClass == value.eClass()) {
 				list.add(value);
 			}
@@ -142,8 +142,7 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	private void buildIndexWithSubTypes() {
 		indexPerClassWithSubTypes = new HashMap<>();
-		for (Long key : objects.keySet()) {
-			IdEObject idEObject = objects.get(key);
+		for (IdEObject idEObject : objects.values()) {
 			if (idEObject != null) {
 				buildIndexWithSuperTypes(idEObject, idEObject.eClass());
 			}
@@ -163,24 +162,37 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	public void buildGuidIndex() {
 		guidIndex = new HashMap<>();
-		if (objects.isEmpty()) {
+		EClass ifcRootEclass = packageMetaData.getEClass("IfcRoot");
+		if (ifcRootEclass == null) {
 			return;
 		}
-		EClass ifcRootEclass = packageMetaData.getEClass("IfcRoot");
 		for (EClassifier classifier : packageMetaData.getEPackage().getEClassifiers()) {
 			if (classifier instanceof EClass && ifcRootEclass.isSuperTypeOf((EClass) classifier)) {
 				Map<String, IdEObject> map = new TreeMap<>();
 				guidIndex.put((EClass) classifier, map);
 			}
 		}
-		EStructuralFeature guidFeature = ifcRootEclass.getEStructuralFeature("GlobalId");
-		for (Long key : objects.keySet()) {
-			IdEObject value = objects.get(key);
-			if (ifcRootEclass.isSuperTypeOf(value.eClass())) {
-				Object guid = value.eGet(guidFeature);
-				if (guid != null) {
-					guidIndex.get(value.eClass()).put((String)guid, value);
-				}
+		for (IdEObject value : objects.values()) {
+			addToClassIndex(guidIndex, value, "GlobalId");
+		}
+	}
+
+	private void addToClassIndex(Map<EClass, Map<String, IdEObject>> index, IdEObject value, String featureName) {
+		Map<String, IdEObject> map = index.get(value.eClass());
+		if (map != null) {
+			Object key = value.eGet(value.eClass().getEStructuralFeature(featureName));
+			if (key != null) {
+				map.put((String)key, value);
+			}
+		}
+	}
+
+	private void removeFromClassIndex(Map<EClass, Map<String, IdEObject>> index, IdEObject value, String featureName) {
+		Map<String, IdEObject> map = index.get(value.eClass());
+		if (map != null) {
+			Object key = value.eGet(value.eClass().getEStructuralFeature(featureName));
+			if (key != null && map.get(key) == value) {
+				map.remove(key);
 			}
 		}
 	}
@@ -194,14 +206,8 @@ public abstract class IfcModel implements IfcModelInterface {
 				nameIndex.put((EClass) classifier, map);
 			}
 		}
-		EStructuralFeature nameFeature = ifcRootEclass.getEStructuralFeature("Name");
 		for (IdEObject value: objects.values()) {
-			if (ifcRootEclass.isSuperTypeOf(value.eClass())) {
-				Object name = value.eGet(nameFeature);
-				if (name != null) {
-					nameIndex.get(value.eClass()).put((String)name, value);
-				}
-			}
+			addToClassIndex(nameIndex, value, "Name");
 		}
 	}
 
@@ -364,19 +370,18 @@ public abstract class IfcModel implements IfcModelInterface {
 			unidentifiedObjects.add(eObject);
 		} else {
 			if (objects.containsKey(oid)) {
-				if (!ignoreDuplicateOids) {
-					if (objects.get(oid) != eObject) {
-//						throw new ObjectAlreadyExistsException("Oid already stored: " + oid + " " + eObject + " (old: " + objects.get(oid) + ")", objects.get(oid), eObject);
-					}
+				if (objects.get(oid) == eObject) {
+					// Placeholders are added again by the deserializers once they have been loaded
+					addToAttributeIndices(eObject);
+				} else if (!ignoreDuplicateOids) {
+//					throw new ObjectAlreadyExistsException("Oid already stored: " + oid + " " + eObject + " (old: " + objects.get(oid) + ")", objects.get(oid), eObject);
 				}
 			} else {
 				objects.put(oid, eObject);
 				if (!((IdEObjectImpl) eObject).hasModel() || !allowMultiModel) {
 					((IdEObjectImpl) eObject).setModel(this);
 				}
-				if (guidIndexed != null) {
-					indexGuid(eObject);
-				}
+				addToAttributeIndices(eObject);
 				if (indexPerClassWithSubTypes != null) {
 //					if (indexPerClassWithSubTypes.get(eObject.eClass()) != null) {
 						buildIndexWithSuperTypes(eObject, eObject.eClass());
@@ -397,7 +402,27 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 	}
 
-	public BiMap<Long, IdEObject> getObjects() {
+	/**
+	 * Adds the object to the GlobalId and Name indices that have been built. Placeholders of objects that have not been loaded yet are skipped, reading their
+	 * attributes would load them, they are indexed when they are added again after loading
+	 */
+	private void addToAttributeIndices(IdEObject eObject) {
+		State loadingState = ((IdEObjectImpl) eObject).getLoadingState();
+		if (loadingState == State.TO_BE_LOADED || loadingState == State.OPPOSITE_SETTING) {
+			return;
+		}
+		if (guidIndexed != null) {
+			indexGuid(eObject);
+		}
+		if (guidIndex != null) {
+			addToClassIndex(guidIndex, eObject, "GlobalId");
+		}
+		if (nameIndex != null) {
+			addToClassIndex(nameIndex, eObject, "Name");
+		}
+	}
+
+	public OidObjectStore getObjects() {
 		return objects;
 	}
 
@@ -406,7 +431,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public boolean contains(IdEObject eObject) {
-		return objects.containsValue(eObject);
+		return objects.containsObject(eObject);
 	}
 
 	public void indexGuids() {
@@ -533,13 +558,26 @@ public abstract class IfcModel implements IfcModelInterface {
 
 	public void remove(IdEObject idEObject) {
 		unidentifiedObjects.remove(idEObject);
-		objects.inverse().remove(idEObject);
+		objects.removeObject(idEObject);
 		if (indexPerClass != null) {
 			indexPerClass.get(idEObject.eClass()).remove(idEObject);
 		}
 		if (indexPerClassWithSubTypes != null) {
 			indexPerClassWithSubTypes.get(idEObject.eClass()).remove(idEObject);
 		}
+		EStructuralFeature guidFeature = idEObject.eClass().getEStructuralFeature("GlobalId");
+		if (guidIndexed != null && guidFeature != null) {
+			Object guid = idEObject.eGet(guidFeature);
+			if (guid != null && guidIndexed.get(guid) == idEObject) {
+				guidIndexed.remove(guid);
+			}
+		}
+		if (guidIndex != null) {
+			removeFromClassIndex(guidIndex, idEObject, "GlobalId");
+		}
+		if (nameIndex != null) {
+			removeFromClassIndex(nameIndex, idEObject, "Name");
+		}
 	}
 
 	public void setOid(IdEObject object, Long oid) {
@@ -547,23 +585,23 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public void fixOids(OidProvider oidProvider) {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
-		for (long oid : objects.keySet()) {
-			fixOids(objects.get(oid), oidProvider, temp);
+		OidObjectStore temp = new OidObjectStore(objects.size());
+		for (IdEObject idEObject : new ArrayList<>(objects.values())) {
+			fixOids(idEObject, oidProvider, temp);
 		}
 		objects = temp;
 	}
 
 	public void fixOidsFlat(OidProvider oidProvider) {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
-		for (long oid : objects.keySet()) {
-			fixOidsFlat(objects.get(oid), oidProvider, temp);
+		OidObjectStore temp = new OidObjectStore(objects.size());
+		for (IdEObject idEObject : new ArrayList<>(objects.values())) {
+			fixOidsFlat(idEObject, oidProvider, temp);
 		}
 		objects = temp;
 	}
 
 	public void fixOids() {
-		BiMap<Long, IdEObject> temp = HashBiMap.create();
+		OidObjectStore temp = new OidObjectStore(objects.size());
 		for (IdEObject object : objects.values()) {
 			temp.put(object.getOid(), object);
 		}
@@ -571,15 +609,16 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 	
 	@SuppressWarnings("rawtypes")
-	private void fixOids(IdEObject idEObject, OidProvider oidProvider, BiMap<Long, IdEObject> temp) {
+	private void fixOids(IdEObject idEObject, OidProvider oidProvider, OidObjectStore temp) {
 		if (idEObject == null) {
 			return;
 		}
-		if (temp.containsValue(idEObject)) {
+		if (temp.containsObject(idEObject)) {
 			return;
 		}
+		boolean stored = objects.containsObject(idEObject);
 		((IdEObjectImpl) idEObject).setOid(oidProvider.newOid(idEObject.eClass()));
-		if (objects.containsValue(idEObject)) {
+		if (stored) {
 			temp.put(idEObject.getOid(), idEObject);
 		}
 		for (EReference eReference : idEObject.eClass().getEAllReferences()) {
@@ -595,28 +634,33 @@ public abstract class IfcModel implements IfcModelInterface {
 		}
 	}
 
-	private void fixOidsFlat(IdEObject idEObject, OidProvider oidProvider, BiMap<Long, IdEObject> temp) {
+	private void fixOidsFlat(IdEObject idEObject, OidProvider oidProvider, OidObjectStore temp) {
 		if (idEObject == null) {
 			return;
 		}
-		if (temp.containsValue(idEObject)) {
+		if (temp.containsObject(idEObject)) {
 			return;
 		}
+		boolean stored = objects.containsObject(idEObject);
 		((IdEObjectImpl) idEObject).setOid(oidProvider.newOid(idEObject.eClass()));
-		if (objects.containsValue(idEObject)) {
+		if (stored) {
 			temp.put(idEObject.getOid(), idEObject);
 		}
 	}
 
 	public void setObjectOids() {
-		for (long oid : objects.keySet()) {
+		LongIterator iterator = objects.keySet().iterator();
+		while (iterator.hasNext()) {
+			long oid = iterator.nextLong();
 			((IdEObjectImpl) objects.get(oid)).setOid(oid);
 		}
 	}
 
 	public long getHighestOid() {
 		long max = 0;
-		for (long oid : objects.keySet()) {
+		LongIterator iterator = objects.keySet().iterator();
+		while (iterator.hasNext()) {
+			long oid = iterator.nextLong();
 			if (oid > max) {
 				max = oid;
 			}
@@ -625,8 +669,7 @@ public abstract class IfcModel implements IfcModelInterface {
 	}
 
 	public void changeOid(IdEObject object) {
-		objects.inverse().remove(object);
-		objects.put(object.getOid(), object);
+		objects.forcePut(object.getOid(), object);
 	}
 	
 	public IdEObject getByGuid(String guid) {
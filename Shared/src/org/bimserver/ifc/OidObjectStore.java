@@ -0,0 +1,385 @@
+package org.bimserver.ifc;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+
+import com.google.common.collect.BiMap;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Object storage of an {@link IfcModel}, an open addressing table from primitive oids to objects.
+ * 
+ * There is no reverse table, the key of an object is kept on the object itself ({@link IdEObjectImpl#getStoreKey()}), so it does not depend on its current oid
+ * ({@link IdEObject#getOid()}). Objects can still be found and removed after their oid has been changed or reset, for example by {@link IfcModel#resetOids()}
+ * before a branch gets new oids. An object can be stored in more than one store (models sharing objects), the key on the object is only trusted when this store
+ * has the object under that key, otherwise the oid is tried.
+ * 
+ * The store implements {@link BiMap} so it can still be handed out by {@link IfcModel#getObjects()}, the primitive methods avoid boxing.
+ */
+public class OidObjectStore extends AbstractMap<Long, IdEObject> implements BiMap<Long, IdEObject> {
+	private final Long2ObjectOpenHashMap<IdEObject> objects;
+	private Inverse inverse;
+
+	public OidObjectStore(int expectedSize) {
+		objects = new Long2ObjectOpenHashMap<>(expectedSize);
+	}
+
+	public OidObjectStore() {
+		this(16);
+	}
+
+	public IdEObject get(long oid) {
+		return objects.get(oid);
+	}
+
+	public boolean containsKey(long oid) {
+		return objects.containsKey(oid);
+	}
+
+	/**
+	 * @return The key under which the given object is stored, or -1 when the object is not stored
+	 */
+	public long getKey(IdEObject object) {
+		long key = object instanceof IdEObjectImpl ? ((IdEObjectImpl) object).getStoreKey() : -1;
+		if (key != -1 && objects.get(key) == object) {
+			return key;
+		}
+		long oid = object.getOid();
+		if (oid != -1 && oid != key && objects.get(oid) == object) {
+			return oid;
+		}
+		return -1;
+	}
+
+	public boolean containsObject(IdEObject object) {
+		return getKey(object) != -1;
+	}
+
+	/**
+	 * @throws IllegalArgumentException When the object is already stored under another key
+	 */
+	public IdEObject put(long oid, IdEObject object) {
+		IdEObject existing = objects.get(oid);
+		if (existing == object) {
+			return existing;
+		}
+		if (containsObject(object)) {
+			throw new IllegalArgumentException("value already present: " + object);
+		}
+		return putUnchecked(oid, object);
+	}
+
+	public IdEObject forcePut(long oid, IdEObject object) {
+		long oldKey = getKey(object);
+		if (oldKey != -1 && oldKey != oid) {
+			removeKey(oldKey);
+		}
+		return putUnchecked(oid, object);
+	}
+
+	private IdEObject putUnchecked(long oid, IdEObject object) {
+		IdEObject old = objects.put(oid, object);
+		if (old != null && old != object) {
+			clearKey(old, oid);
+		}
+		if (object instanceof IdEObjectImpl) {
+			((IdEObjectImpl) object).setStoreKey(oid);
+		}
+		return old;
+	}
+
+	public IdEObject removeKey(long oid) {
+		IdEObject old = objects.remove(oid);
+		if (old != null) {
+			clearKey(old, oid);
+		}
+		return old;
+	}
+
+	private void clearKey(IdEObject object, long oid) {
+		if (object instanceof IdEObjectImpl && ((IdEObjectImpl) object).getStoreKey() == oid) {
+			((IdEObjectImpl) object).setStoreKey(-1);
+		}
+	}
+
+	public boolean removeObject(IdEObject object) {
+		long key = getKey(object);
+		if (key == -1) {
+			return false;
+		}
+		removeKey(key);
+		return true;
+	}
+
+	@Override
+	public IdEObject get(Object key) {
+		return key instanceof Long ? get(((Long) key).longValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Long && containsKey(((Long) key).longValue());
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return value instanceof IdEObject && containsObject((IdEObject) value);
+	}
+
+	@Override
+	public IdEObject put(Long key, IdEObject value) {
+		return put(key.longValue(), value);
+	}
+
+	@Override
+	public IdEObject forcePut(Long key, IdEObject value) {
+		return forcePut(key.longValue(), value);
+	}
+
+	@Override
+	public IdEObject remove(Object key) {
+		return key instanceof Long ? removeKey(((Long) key).longValue()) : null;
+	}
+
+	@Override
+	public int size() {
+		return objects.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return objects.isEmpty();
+	}
+
+	@Override
+	public void clear() {
+		// Keys left on the objects are not trusted anymore, none of the objects is found under them
+		objects.clear();
+	}
+
+	@Override
+	public LongSet keySet() {
+		return LongSets.unmodifiable(objects.keySet());
+	}
+
+	@Override
+	public Set<IdEObject> values() {
+		return new AbstractSet<IdEObject>() {
+			@Override
+			public Iterator<IdEObject> iterator() {
+				final Iterator<Long2ObjectMap.Entry<IdEObject>> iterator = objects.long2ObjectEntrySet().iterator();
+				return new Iterator<IdEObject>() {
+					private IdEObject last;
+					private long lastKey;
+
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public IdEObject next() {
+						Long2ObjectMap.Entry<IdEObject> entry = iterator.next();
+						last = entry.getValue();
+						lastKey = entry.getLongKey();
+						return last;
+					}
+
+					@Override
+					public void remove() {
+						iterator.remove();
+						clearKey(last, lastKey);
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsValue(o);
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				return o instanceof IdEObject && removeObject((IdEObject) o);
+			}
+
+			@Override
+			public int size() {
+				return objects.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<Entry<Long, IdEObject>> entrySet() {
+		return new AbstractSet<Entry<Long, IdEObject>>() {
+			@Override
+			public Iterator<Entry<Long, IdEObject>> iterator() {
+				final ObjectIterator<Long2ObjectMap.Entry<IdEObject>> iterator = objects.long2ObjectEntrySet().iterator();
+				return new Iterator<Entry<Long, IdEObject>>() {
+					private IdEObject last;
+					private long lastKey;
+
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public Entry<Long, IdEObject> next() {
+						Long2ObjectMap.Entry<IdEObject> entry = iterator.next();
+						last = entry.getValue();
+						lastKey = entry.getLongKey();
+						return new SimpleImmutableEntry<>(entry.getLongKey(), last);
+					}
+
+					@Override
+					public void remove() {
+						iterator.remove();
+						clearKey(last, lastKey);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return objects.size();
+			}
+		};
+	}
+
+	@Override
+	public BiMap<IdEObject, Long> inverse() {
+		if (inverse == null) {
+			inverse = new Inverse();
+		}
+		return inverse;
+	}
+
+	private class Inverse extends AbstractMap<IdEObject, Long> implements BiMap<IdEObject, Long> {
+		@Override
+		public Long get(Object key) {
+			if (key instanceof IdEObject) {
+				long oid = getKey((IdEObject) key);
+				if (oid != -1) {
+					return oid;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return OidObjectStore.this.containsValue(key);
+		}
+
+		@Override
+		public boolean containsValue(Object value) {
+			return OidObjectStore.this.containsKey(value);
+		}
+
+		@Override
+		public Long put(IdEObject key, Long value) {
+			IdEObject existing = objects.get(value.longValue());
+			if (existing != null && existing != key) {
+				throw new IllegalArgumentException("value already present: " + value);
+			}
+			return forcePut(key, value);
+		}
+
+		@Override
+		public Long forcePut(IdEObject key, Long value) {
+			Long old = get(key);
+			OidObjectStore.this.forcePut(value.longValue(), key);
+			return old;
+		}
+
+		@Override
+		public Long remove(Object key) {
+			Long old = get(key);
+			if (old != null) {
+				removeKey(old);
+			}
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return objects.size();
+		}
+
+		@Override
+		public void clear() {
+			OidObjectStore.this.clear();
+		}
+
+		@Override
+		public Set<Long> values() {
+			return OidObjectStore.this.keySet();
+		}
+
+		@Override
+		public Set<Entry<IdEObject, Long>> entrySet() {
+			return new AbstractSet<Entry<IdEObject, Long>>() {
+				@Override
+				public Iterator<Entry<IdEObject, Long>> iterator() {
+					final Iterator<Entry<Long, IdEObject>> iterator = OidObjectStore.this.entrySet().iterator();
+					return new Iterator<Entry<IdEObject, Long>>() {
+						@Override
+						public boolean hasNext() {
+							return iterator.hasNext();
+						}
+
+						@Override
+						public Entry<IdEObject, Long> next() {
+							Entry<Long, IdEObject> entry = iterator.next();
+							return new SimpleImmutableEntry<>(entry.getValue(), entry.getKey());
+						}
+
+						@Override
+						public void remove() {
+							iterator.remove();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return objects.size();
+				}
+			};
+		}
+
+		@Override
+		public BiMap<Long, IdEObject> inverse() {
+			return OidObjectStore.this;
+		}
+	}
+}
@@ -18,11 +18,103 @@ package org.bimserver.shared.json;
  *****************************************************************************/
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.UUID;
 
+import javax.activation.DataHandler;
+
+import org.bimserver.shared.meta.SBase;
+import org.bimserver.shared.meta.SField;
+
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.gson.stream.JsonReader;
 
+/**
+ * Converts service results to JSON the same way {@link JsonConverter#toJson(Object)} does, but writes them to a {@link JsonGenerator} directly instead of building a tree first
+ */
 public class StreamingJsonConverter {
 
+	public void toJson(Object object, JsonGenerator out) throws IOException {
+		if (object instanceof SBase) {
+			SBase base = (SBase) object;
+			out.writeStartObject();
+			out.writeStringField("__type", base.getSClass().getSimpleName());
+			for (SField field : base.getSClass().getAllFields()) {
+				out.writeFieldName(field.getName());
+				toJson(base.sGet(field), out);
+			}
+			out.writeEndObject();
+		} else if (object instanceof Collection) {
+			Collection<?> collection = (Collection<?>) object;
+			out.writeStartArray();
+			for (Object value : collection) {
+				toJson(value, out);
+			}
+			out.writeEndArray();
+		} else if (object instanceof Date) {
+			out.writeNumber(((Date) object).getTime());
+		} else if (object instanceof DataHandler) {
+			DataHandler dataHandler = (DataHandler) object;
+			try (InputStream inputStream = dataHandler.getInputStream()) {
+				// Base64 encoded while reading, the data is never completely in memory
+				out.writeBinary(inputStream, -1);
+			}
+		} else if (object instanceof Boolean) {
+			out.writeBoolean((Boolean) object);
+		} else if (object instanceof String) {
+			out.writeString((String) object);
+		} else if (object instanceof Long) {
+			out.writeNumber((Long) object);
+		} else if (object instanceof UUID) {
+			out.writeString(((UUID) object).toString());
+		} else if (object instanceof Integer) {
+			out.writeNumber((Integer) object);
+		} else if (object instanceof Double) {
+			out.writeNumber((Double) object);
+		} else if (object instanceof Float) {
+			out.writeNumber((Float) object);
+		} else if (object instanceof Enum) {
+			out.writeString(object.toString());
+		} else if (object == null) {
+			out.writeNull();
+		} else if (object instanceof byte[]) {
+			out.writeBinary((byte[]) object);
+		} else {
+			throw new UnsupportedOperationException(object.getClass().getName());
+		}
+	}
+
+	/**
+	 * Walks the object the same way {@link #toJson(Object, JsonGenerator)} does without writing anything, so unsupported types are found before anything has been written
+	 * 
+	 * @return Whether the object contains a {@link DataHandler}, reading its data can still fail while writing
+	 */
+	public boolean containsDataHandler(Object object) {
+		if (object instanceof SBase) {
+			SBase base = (SBase) object;
+			boolean result = false;
+			for (SField field : base.getSClass().getAllFields()) {
+				result |= containsDataHandler(base.sGet(field));
+			}
+			return result;
+		} else if (object instanceof Collection) {
+			boolean result = false;
+			for (Object value : (Collection<?>) object) {
+				result |= containsDataHandler(value);
+			}
+			return result;
+		} else if (object instanceof DataHandler) {
+			return true;
+		} else if (object == null || object instanceof Date || object instanceof Boolean || object instanceof String || object instanceof Long || object instanceof UUID || object instanceof Integer
+				|| object instanceof Double || object instanceof Float || object instanceof Enum || object instanceof byte[]) {
+			return false;
+		} else {
+			throw new UnsupportedOperationException(object.getClass().getName());
+		}
+	}
+
 	public <T> T fromJson(JsonReader jsonReader, Class<T> cl) throws IOException {
 		jsonReader.beginObject();
 		
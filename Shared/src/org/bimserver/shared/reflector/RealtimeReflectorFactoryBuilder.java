@@ -1,5 +1,7 @@
 package org.bimserver.shared.reflector;
 
+import java.lang.reflect.Modifier;
+
 import org.apache.commons.lang.RandomStringUtils;
 import org.bimserver.generated.GeneratedNeighbourClass;
 import org.bimserver.reflector.NeighbourClass;
@@ -22,6 +24,9 @@ import org.bimserver.reflector.NeighbourClass;
  *****************************************************************************/
 
 import org.bimserver.shared.interfaces.PublicInterface;
+import org.bimserver.shared.meta.SBase;
+import org.bimserver.shared.meta.SClass;
+import org.bimserver.shared.meta.SConstructor;
 import org.bimserver.shared.meta.SMethod;
 import org.bimserver.shared.meta.SParameter;
 import org.bimserver.shared.meta.SService;
@@ -64,6 +69,10 @@ public class RealtimeReflectorFactoryBuilder implements ReflectorFactoryBuilder
 				SService sService = servicesMap.getByName(name);
 				build1(newClassPrefix, (Class<? extends PublicInterface>) sService.getInterfaceClass(), sService);
 				build2(newClassPrefix, (Class<? extends PublicInterface>) sService.getInterfaceClass(), sService);
+				buildDispatcher(newClassPrefix, (Class<? extends PublicInterface>) sService.getInterfaceClass(), sService);
+			}
+			for (SClass sClass : servicesMap.getTypes()) {
+				buildConstructor(newClassPrefix, sClass);
 			}
 			
 			CtClass reflectorFactoryImpl = pool.makeClass("org.bimserver.reflector.ReflectorFactoryImpl" + newClassPrefix);
@@ -233,4 +242,82 @@ public class RealtimeReflectorFactoryBuilder implements ReflectorFactoryBuilder
 			LOGGER.error("", e);
 		}
 	}
+
+	/**
+	 * Generates a ServiceDispatcher that selects the method by its index instead of comparing names, one instance is used for all service instances
+	 */
+	private void buildDispatcher(String newClassPrefix, Class<? extends PublicInterface> interfaceClass, SService sService) {
+		try {
+			CtClass dispatcherClass = pool.makeClass(GENERATED_CLASSES_PACKAGE + "." + interfaceClass.getSimpleName() + "Dispatcher" + newClassPrefix);
+			dispatcherClass.addInterface(pool.get(ServiceDispatcher.class.getName()));
+
+			CtClass[] parameters = new CtClass[3];
+			parameters[0] = pool.get(PublicInterface.class.getName());
+			parameters[1] = CtClass.intType;
+			parameters[2] = pool.get(KeyValuePair.class.getName() + "[]");
+			CtMethod method = new CtMethod(pool.get(Object.class.getName()), "invoke", parameters, dispatcherClass);
+
+			StringBuilder methodBuilder = new StringBuilder();
+			methodBuilder.append("{");
+			methodBuilder.append(interfaceClass.getName() + " publicInterface = (" + interfaceClass.getName() + ")$1;");
+			methodBuilder.append("switch ($2) {");
+			for (SMethod sMethod : sService.getMethods()) {
+				methodBuilder.append("case " + sMethod.getIndex() + ": ");
+				if (!sMethod.getReturnType().isVoid()) {
+					methodBuilder.append("return ");
+				}
+				methodBuilder.append("publicInterface." + sMethod.getName() + "(");
+				int i=0;
+				for (SParameter sParameter : sMethod.getParameters()) {
+					methodBuilder.append("(" + sParameter.getType().toJavaCode() + ")$3[" + i + "].getValue()");
+					if (i < sMethod.getParameters().size() - 1) {
+						methodBuilder.append(", ");
+					}
+					i++;
+				}
+				methodBuilder.append(");");
+				if (sMethod.getReturnType().isVoid()) {
+					methodBuilder.append("return null;");
+				}
+			}
+			methodBuilder.append("}");
+			methodBuilder.append("throw new IllegalArgumentException(\"No method with index \" + $2 + \" in " + interfaceClass.getSimpleName() + "\");");
+			methodBuilder.append("}");
+			method.setBody(methodBuilder.toString());
+			dispatcherClass.addMethod(method);
+
+			Class<?> class1 = pool.toClass(dispatcherClass, GeneratedNeighbourClass.class, getClass().getClassLoader(), getClass().getProtectionDomain());
+			sService.setDispatcher((ServiceDispatcher) class1.newInstance());
+		} catch (Exception e) {
+			// SMethod falls back to a Reflector
+			LOGGER.error("", e);
+		}
+	}
+
+	/**
+	 * Replaces the reflective constructor of the type, used for every object that is converted from a request
+	 */
+	private void buildConstructor(String newClassPrefix, SClass sClass) {
+		Class<?> instanceClass = sClass.getInstanceClass();
+		if (!SBase.class.isAssignableFrom(instanceClass) || instanceClass.isInterface() || Modifier.isAbstract(instanceClass.getModifiers()) || !Modifier.isPublic(instanceClass.getModifiers())) {
+			return;
+		}
+		try {
+			instanceClass.getConstructor();
+		} catch (NoSuchMethodException e) {
+			return;
+		}
+		try {
+			CtClass constructorClass = pool.makeClass(GENERATED_CLASSES_PACKAGE + "." + instanceClass.getSimpleName() + "Constructor" + newClassPrefix);
+			constructorClass.addInterface(pool.get(SConstructor.class.getName()));
+			CtMethod method = new CtMethod(pool.get(Object.class.getName()), "newInstance", new CtClass[0], constructorClass);
+			method.setBody("{return new " + instanceClass.getName() + "();}");
+			constructorClass.addMethod(method);
+
+			Class<?> class1 = pool.toClass(constructorClass, GeneratedNeighbourClass.class, getClass().getClassLoader(), getClass().getProtectionDomain());
+			sClass.setSConstructor((SConstructor) class1.newInstance());
+		} catch (Exception e) {
+			LOGGER.error("", e);
+		}
+	}
 }
\ No newline at end of file
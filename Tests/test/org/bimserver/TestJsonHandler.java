@@ -0,0 +1,222 @@
+package org.bimserver;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.activation.DataHandler;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.bimserver.interfaces.objects.SDownloadResult;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.test.TestWithEmbeddedServer;
+import org.bimserver.utils.InputStreamDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Concurrent multi-requests have to give the same responses, in the same order, as sequential ones
+ */
+public class TestJsonHandler extends TestWithEmbeddedServer {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private ExecutorService requestExecutor;
+	private JsonHandler jsonHandler;
+
+	@Before
+	public void setup() {
+		// The shared test server executes multi-requests sequentially, so it has no request executor
+		requestExecutor = Executors.newFixedThreadPool(4);
+		jsonHandler = new JsonHandler(getBimServer(), requestExecutor);
+	}
+
+	@After
+	public void tearDown() {
+		requestExecutor.shutdownNow();
+	}
+
+	private JsonNode execute(ObjectNode message, HttpServletRequest httpRequest) throws IOException {
+		StringWriter out = new StringWriter();
+		jsonHandler.execute(message, httpRequest, out);
+		return OBJECT_MAPPER.readTree(out.toString());
+	}
+
+	private ObjectNode createRequest(String interfaceName, String methodName) {
+		ObjectNode request = OBJECT_MAPPER.createObjectNode();
+		request.put("interface", interfaceName);
+		request.put("method", methodName);
+		request.set("parameters", OBJECT_MAPPER.createObjectNode());
+		return request;
+	}
+
+	private ObjectNode createMultiRequest(String token, List<ObjectNode> requests) {
+		ObjectNode message = OBJECT_MAPPER.createObjectNode();
+		if (token != null) {
+			message.put("token", token);
+		}
+		message.put("concurrent", true);
+		ArrayNode requestsNode = message.putArray("requests");
+		for (ObjectNode request : requests) {
+			requestsNode.add(request);
+		}
+		return message;
+	}
+
+	private String login() throws IOException {
+		ObjectNode request = createRequest("AuthInterface", "login");
+		((ObjectNode) request.get("parameters")).put("username", "admin@bimserver.org");
+		((ObjectNode) request.get("parameters")).put("password", "admin");
+		ObjectNode message = OBJECT_MAPPER.createObjectNode();
+		message.set("request", request);
+		return execute(message, null).get("response").get("result").asText();
+	}
+
+	@Test
+	public void testOrderAndError() throws Exception {
+		BimServerClientInterface bimServerClient = getFactory().create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+		List<SProject> projects = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			projects.add(bimServerClient.getServiceInterface().addProject("test" + Math.random(), "ifc2x3tc1"));
+		}
+		
+		List<ObjectNode> requests = new ArrayList<>();
+		for (SProject project : projects) {
+			ObjectNode request = createRequest("ServiceInterface", "getProjectByPoid");
+			((ObjectNode) request.get("parameters")).put("poid", project.getOid());
+			requests.add(request);
+		}
+		// A failing request in the middle only replaces its own response
+		requests.add(5, createRequest("ServiceInterface", "doesNotExist"));
+		
+		JsonNode result = execute(createMultiRequest(login(), requests), null);
+		assertFalse(result.has("exception"));
+		ArrayNode responses = (ArrayNode) result.get("responses");
+		assertEquals(requests.size(), responses.size());
+		for (int i = 0; i < responses.size(); i++) {
+			if (i == 5) {
+				assertEquals("UserException", responses.get(i).get("exception").get("__type").asText());
+			} else {
+				SProject project = projects.get(i < 5 ? i : i - 1);
+				assertEquals(project.getName(), responses.get(i).get("result").get("name").asText());
+			}
+		}
+	}
+
+	@Test
+	public void testTokenFromSession() throws Exception {
+		String token = login();
+		Thread servletThread = Thread.currentThread();
+		AtomicBoolean usedOutsideServletThread = new AtomicBoolean();
+		HttpSession session = (HttpSession) Proxy.newProxyInstance(TestJsonHandler.class.getClassLoader(), new Class[]{HttpSession.class}, (proxy, method, args) -> {
+			if (Thread.currentThread() != servletThread) {
+				usedOutsideServletThread.set(true);
+			}
+			return method.getName().equals("getAttribute") && args[0].equals("token") ? token : null;
+		});
+		HttpServletRequest httpRequest = (HttpServletRequest) Proxy.newProxyInstance(TestJsonHandler.class.getClassLoader(), new Class[]{HttpServletRequest.class}, (proxy, method, args) -> {
+			if (Thread.currentThread() != servletThread) {
+				usedOutsideServletThread.set(true);
+			}
+			return method.getName().equals("getSession") ? session : null;
+		});
+		
+		List<ObjectNode> requests = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			requests.add(createRequest("AuthInterface", "getLoggedInUser"));
+		}
+		// No token in the message, it has to be found in the session before the requests are handed to the workers
+		JsonNode result = execute(createMultiRequest(null, requests), httpRequest);
+		for (JsonNode response : result.get("responses")) {
+			assertEquals(response.toString(), "admin@bimserver.org", response.get("result").get("username").asText());
+		}
+		assertFalse("The http request was used outside of the servlet thread", usedOutsideServletThread.get());
+	}
+
+	@Test
+	public void testDataHandlerBuffered() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		SDownloadResult downloadResult = new SDownloadResult();
+		downloadResult.setProjectName("test");
+		downloadResult.setFile(new DataHandler(new InputStreamDataSource(new ByteArrayInputStream(data))));
+		StringWriter out = new StringWriter();
+		try (JsonGenerator generator = new JsonFactory().createGenerator(out)) {
+			jsonHandler.writeResult(downloadResult, generator);
+		}
+		JsonNode result = OBJECT_MAPPER.readTree(out.toString()).get("result");
+		assertEquals("test", result.get("projectName").asText());
+		assertArrayEquals(data, Base64.getDecoder().decode(result.get("file").asText()));
+		
+		// Reading fails halfway, nothing may have been written so the exception can still be written as the response
+		InputStream failingInputStream = new FilterInputStream(new ByteArrayInputStream(data)) {
+			private int bytesRead;
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (bytesRead > data.length / 2) {
+					throw new IOException("Read failed");
+				}
+				int result = super.read(b, off, len);
+				bytesRead += result;
+				return result;
+			}
+		};
+		downloadResult.setFile(new DataHandler(new InputStreamDataSource(failingInputStream)));
+		out = new StringWriter();
+		try (JsonGenerator generator = new JsonFactory().createGenerator(out)) {
+			try {
+				jsonHandler.writeResult(downloadResult, generator);
+				fail("Exception expected");
+			} catch (IOException e) {
+				assertEquals("Read failed", e.getMessage());
+			}
+			generator.flush();
+			assertTrue(out.toString().isEmpty());
+		}
+	}
+}
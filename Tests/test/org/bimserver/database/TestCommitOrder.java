@@ -0,0 +1,131 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.models.ifc4.Ifc4Factory;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The commit writes objects and deletes in the order of sortedByKey, which must be the order of the tables and of the keys within them
+ */
+public class TestCommitOrder {
+	private EClass wallClass;
+	private EClass doorClass;
+
+	@Before
+	public void setUp() {
+		// Sorts before the IFC packages by name, IFC objects must still come first
+		EPackage ePackage = EcoreFactory.eINSTANCE.createEPackage();
+		ePackage.setName("aaa");
+		wallClass = EcoreFactory.eINSTANCE.createEClass();
+		wallClass.setName("Wall");
+		doorClass = EcoreFactory.eINSTANCE.createEClass();
+		doorClass.setName("Door");
+		ePackage.getEClassifiers().add(wallClass);
+		ePackage.getEClassifiers().add(doorClass);
+	}
+
+	@Test
+	public void testObjectsToCommitSortedByKey() {
+		ObjectsToCommit objectsToCommit = new ObjectsToCommit();
+		objectsToCommit.put(create(wallClass, 2, 1000, 3));
+		objectsToCommit.put(create(wallClass, 1, 5000, 1));
+		objectsToCommit.put(create(doorClass, 1, 7000, 1));
+		objectsToCommit.put(create(wallClass, 1, 3000, 2));
+		objectsToCommit.put(create(wallClass, 1, 3000, 3));
+		objectsToCommit.put(create(wallClass, 1, 1L << 40, 1));
+		IdEObject ifcWall = Ifc4Factory.eINSTANCE.createIfcWall();
+		((IdEObjectImpl) ifcWall).setOid(9000);
+		objectsToCommit.put(ifcWall);
+
+		List<IdEObject> sorted = objectsToCommit.sortedByKey();
+		Assert.assertEquals(objectsToCommit.size(), sorted.size());
+		Assert.assertSame(ifcWall, sorted.get(0));
+		Assert.assertSame(doorClass, sorted.get(1).eClass());
+		for (int i = 2; i < sorted.size(); i++) {
+			Assert.assertSame(wallClass, sorted.get(i).eClass());
+		}
+		for (int i = 3; i < sorted.size(); i++) {
+			assertKeyOrder(sorted.get(i - 1).getPid(), sorted.get(i - 1).getOid(), sorted.get(i - 1).getRid(), sorted.get(i).getPid(), sorted.get(i).getOid(), sorted.get(i).getRid());
+		}
+		// Newer revisions of the same object come first, -rid is stored in the key
+		Assert.assertEquals(3, sorted.get(2).getRid());
+		Assert.assertEquals(2, sorted.get(3).getRid());
+	}
+
+	@Test
+	public void testObjectsToDeleteSortedByKey() {
+		ObjectsToDelete objectsToDelete = new ObjectsToDelete();
+		objectsToDelete.put(wallClass, 1, 2, 3000);
+		objectsToDelete.put(doorClass, 1, 2, 7000);
+		objectsToDelete.put(wallClass, 1, 3, 3000);
+		objectsToDelete.put(wallClass, 1, 2, 1000);
+
+		List<RecordIdentifierPlusType> sorted = objectsToDelete.sortedByKey();
+		Assert.assertEquals("aaa_Door", sorted.get(0).getTableName());
+		for (int i = 2; i < sorted.size(); i++) {
+			RecordIdentifierPlusType previous = sorted.get(i - 1);
+			RecordIdentifierPlusType current = sorted.get(i);
+			Assert.assertEquals("aaa_Wall", current.getTableName());
+			assertKeyOrder(previous.getPid(), previous.getOid(), previous.getRid(), current.getPid(), current.getOid(), current.getRid());
+		}
+	}
+
+	/**
+	 * Compares the keys as the key value store does, unsigned byte by byte
+	 */
+	private void assertKeyOrder(int pid1, long oid1, int rid1, int pid2, long oid2, int rid2) {
+		byte[] key1 = createKey(pid1, oid1, rid1);
+		byte[] key2 = createKey(pid2, oid2, rid2);
+		for (int i = 0; i < key1.length; i++) {
+			int compare = Integer.compare(Byte.toUnsignedInt(key1[i]), Byte.toUnsignedInt(key2[i]));
+			if (compare != 0) {
+				Assert.assertTrue("Keys out of order at byte " + i, compare < 0);
+				return;
+			}
+		}
+		Assert.fail("Duplicate key");
+	}
+
+	private byte[] createKey(int pid, long oid, int rid) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putInt(pid);
+		buffer.putLong(oid);
+		buffer.putInt(-rid);
+		return buffer.array();
+	}
+
+	private IdEObject create(EClass eClass, int pid, long oid, int rid) {
+		IdEObjectImpl idEObject = new IdEObjectImpl();
+		idEObject.eSetClass(eClass);
+		idEObject.setPid(pid);
+		idEObject.setOid(oid);
+		idEObject.setRid(rid);
+		return idEObject;
+	}
+}
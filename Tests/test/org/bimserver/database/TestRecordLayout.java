@@ -0,0 +1,76 @@
+package org.bimserver.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bimserver.BimserverDatabaseException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRecordLayout {
+	private static final List<String> OLD = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i");
+	// "x" is inserted in the middle, "y" at the end
+	private static final List<String> CURRENT = Arrays.asList("a", "b", "c", "x", "d", "e", "f", "g", "h", "i", "y");
+
+	@Test
+	public void testReadUnsettedAfterInsert() throws Exception {
+		RecordLayout current = new RecordLayout((short) 2, CURRENT);
+		RecordLayout old = new RecordLayout((short) 1, OLD, current);
+		Assert.assertTrue(current.isCurrent());
+		Assert.assertFalse(old.isCurrent());
+		Assert.assertEquals(2, old.getUnsettedLength());
+		Assert.assertEquals(2, current.getUnsettedLength());
+
+		// "b" and "i" unset in the old record, followed by the rest of the value
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 1 << 1, 1 << 0, 42 });
+		byte[] unsetted = old.readUnsetted(buffer);
+		Assert.assertEquals(42, buffer.get());
+
+		for (int i = 0; i < CURRENT.size(); i++) {
+			String featureName = CURRENT.get(i);
+			boolean expected = featureName.equals("b") || featureName.equals("i") || featureName.equals("x") || featureName.equals("y");
+			Assert.assertEquals(featureName, expected, (unsetted[i / 8] & (1 << (i % 8))) != 0);
+		}
+	}
+
+	@Test
+	public void testReadUnsettedCurrent() throws Exception {
+		RecordLayout current = new RecordLayout((short) 2, CURRENT);
+		byte[] unsetted = current.readUnsetted(ByteBuffer.wrap(new byte[] { 5, 3 }));
+		Assert.assertArrayEquals(new byte[] { 5, 3 }, unsetted);
+	}
+
+	@Test
+	public void testCanRead() throws Exception {
+		RecordLayout current = new RecordLayout((short) 2, CURRENT);
+		Assert.assertTrue(current.canRead(OLD));
+		Assert.assertTrue(current.canRead(CURRENT));
+		// Removed or reordered features cannot be read
+		Assert.assertFalse(current.canRead(Arrays.asList("a", "z")));
+		Assert.assertFalse(current.canRead(Arrays.asList("b", "a")));
+		try {
+			new RecordLayout((short) 1, Arrays.asList("b", "a"), current);
+			Assert.fail();
+		} catch (BimserverDatabaseException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.bimserver.database.berkeley;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestValueCodec {
+	// The header bytes of stored values
+	private static final byte RAW = 0;
+	private static final byte DEFLATED = 1;
+	private static final byte DEFLATED_WITH_DICTIONARY = 2;
+
+	@Test
+	public void testRaw() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, null, null);
+		byte[] value = "short".getBytes(StandardCharsets.UTF_8);
+		byte[] stored = valueCodec.encode(value, 0, value.length);
+		Assert.assertEquals(RAW, stored[0]);
+		Assert.assertEquals(value.length + 1, stored.length);
+		Assert.assertArrayEquals(value, valueCodec.decode(stored));
+
+		Assert.assertArrayEquals(new byte[0], valueCodec.decode(valueCodec.encode(new byte[0], 0, 0)));
+		// Deleted marker
+		Assert.assertArrayEquals(new byte[] { -1 }, valueCodec.decode(valueCodec.encode(new byte[] { -1 }, 0, 1)));
+	}
+
+	@Test
+	public void testDeflated() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, null, null);
+		byte[] value = repeat("IfcWallStandardCase", 50);
+		byte[] stored = valueCodec.encode(value, 0, value.length);
+		Assert.assertEquals(DEFLATED, stored[0]);
+		Assert.assertTrue(stored.length < value.length);
+		Assert.assertArrayEquals(value, valueCodec.decode(stored));
+	}
+
+	@Test
+	public void testIncompressibleStaysRaw() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, null, null);
+		byte[] value = new byte[1000];
+		new Random(1).nextBytes(value);
+		byte[] stored = valueCodec.encode(value, 0, value.length);
+		Assert.assertEquals(RAW, stored[0]);
+		Assert.assertEquals(value.length + 1, stored.length);
+		Assert.assertArrayEquals(value, valueCodec.decode(stored));
+	}
+
+	@Test
+	public void testSizeThreshold() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, null, null);
+		// Values shorter than 32 bytes are never compressed, even when they would get smaller
+		Assert.assertEquals(RAW, valueCodec.encode(new byte[31], 0, 31)[0]);
+		Assert.assertEquals(DEFLATED, valueCodec.encode(new byte[32], 0, 32)[0]);
+	}
+
+	@Test
+	public void testOffsetAndLength() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, null, null);
+		byte[] value = repeat("abc", 100);
+		Assert.assertArrayEquals(Arrays.copyOfRange(value, 10, 110), valueCodec.decode(valueCodec.encode(value, 10, 100)));
+		Assert.assertArrayEquals(Arrays.copyOfRange(value, 3, 8), valueCodec.decode(valueCodec.encode(value, 3, 5)));
+	}
+
+	@Test
+	public void testDecodeRange() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, null, null);
+		byte[] raw = valueCodec.encode("0123456789".getBytes(StandardCharsets.UTF_8), 0, 10);
+		byte[] prefix = Arrays.copyOf(raw, ValueCodec.getStoredPrefixLength(2, 3));
+		Assert.assertArrayEquals("234".getBytes(StandardCharsets.UTF_8), valueCodec.decodeRange(prefix, 2, 3));
+		// Shorter when the value ends earlier
+		Assert.assertArrayEquals("89".getBytes(StandardCharsets.UTF_8), valueCodec.decodeRange(raw, 8, 5));
+
+		byte[] deflated = valueCodec.encode(repeat("abc", 100), 0, 300);
+		Assert.assertNull(valueCodec.decodeRange(deflated, 0, 4));
+	}
+
+	@Test
+	public void testDictionary() {
+		List<byte[]> dictionaries = new ArrayList<>();
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE_DICTIONARY, null, dictionaries::add);
+		List<byte[]> values = new ArrayList<>();
+		List<byte[]> stored = new ArrayList<>();
+		for (int i = 0; i < 1100; i++) {
+			byte[] value = ("#" + i + "= IFCWALLSTANDARDCASE('2O2Fr$t4X7Zf8NOew3FLOH',#" + (i * 7) + ",'Wall-" + i + "',$,$,#" + (i + 3) + ",#" + (i + 4) + ",$);").getBytes(StandardCharsets.UTF_8);
+			values.add(value);
+			stored.add(valueCodec.encode(value, 0, value.length));
+		}
+		// The dictionary is built from the first samples and handed out once before it is used
+		Assert.assertEquals(1, dictionaries.size());
+		Assert.assertTrue(dictionaries.get(0).length <= 32 * 1024);
+		Assert.assertNotEquals(DEFLATED_WITH_DICTIONARY, stored.get(0)[0]);
+		Assert.assertEquals(DEFLATED_WITH_DICTIONARY, stored.get(stored.size() - 1)[0]);
+
+		// A codec created with the persisted dictionary reads all values, also the ones written before the dictionary existed
+		ValueCodec reopened = new ValueCodec(ValueCompression.DEFLATE_DICTIONARY, dictionaries.get(0), null);
+		for (int i = 0; i < values.size(); i++) {
+			Assert.assertArrayEquals(values.get(i), valueCodec.decode(stored.get(i)));
+			Assert.assertArrayEquals(values.get(i), reopened.decode(stored.get(i)));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMissingDictionary() {
+		ValueCodec valueCodec = new ValueCodec(ValueCompression.DEFLATE, new byte[0], null);
+		ValueCodec withDictionary = new ValueCodec(ValueCompression.DEFLATE_DICTIONARY, repeat("IfcWall", 100), null);
+		byte[] value = repeat("IfcWall", 20);
+		byte[] stored = withDictionary.encode(value, 0, value.length);
+		Assert.assertEquals(DEFLATED_WITH_DICTIONARY, stored[0]);
+		valueCodec.decode(stored);
+	}
+
+	private byte[] repeat(String string, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(string);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,45 @@
+package org.bimserver.database.migrations;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRecordLayoutMigrator {
+	@Test
+	public void testPositionRoundTrip() {
+		byte[] nextKey = ByteBuffer.allocate(17).putInt(1).putLong(65537).putInt(-3).array();
+		Assert.assertArrayEquals(nextKey, RecordLayoutMigrator.decodePosition(RecordLayoutMigrator.encodePosition((short) 3, nextKey), (short) 3));
+	}
+
+	@Test
+	public void testDone() {
+		Assert.assertNull(RecordLayoutMigrator.decodePosition(RecordLayoutMigrator.encodePosition((short) 3, null), (short) 3));
+	}
+
+	@Test
+	public void testStartOver() {
+		// Never started
+		Assert.assertArrayEquals(new byte[0], RecordLayoutMigrator.decodePosition(null, (short) 3));
+		// Stored for an older layout, a newer layout has been added since
+		Assert.assertArrayEquals(new byte[0], RecordLayoutMigrator.decodePosition(RecordLayoutMigrator.encodePosition((short) 2, new byte[] { 1, 2 }), (short) 3));
+		Assert.assertArrayEquals(new byte[0], RecordLayoutMigrator.decodePosition(RecordLayoutMigrator.encodePosition((short) 2, null), (short) 3));
+	}
+}
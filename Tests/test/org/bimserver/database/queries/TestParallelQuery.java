@@ -0,0 +1,140 @@
+package org.bimserver.database.queries;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.OperationType;
+import org.bimserver.database.queries.om.Include;
+import org.bimserver.database.queries.om.Query;
+import org.bimserver.database.queries.om.QueryPart;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.plugins.serializers.ObjectProvider;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.shared.HashMapVirtualObject;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.test.TestWithEmbeddedServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A query read in partitions by multiple threads has to return the same objects as the sequential query
+ */
+public class TestParallelQuery extends TestWithEmbeddedServer {
+
+	private static final int NR_THREADS = 4;
+	
+	private ExecutorService executorService;
+	private Set<Long> roids;
+
+	@Before
+	public void setup() throws Exception {
+		// The shared test server is configured with one query thread, so it has no query executor
+		executorService = Executors.newFixedThreadPool(NR_THREADS);
+		
+		BimServerClientInterface bimServerClient = getFactory().create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+		SProject project = bimServerClient.getServiceInterface().addProject("test" + Math.random(), "ifc2x3tc1");
+		SDeserializerPluginConfiguration deserializer = bimServerClient.getServiceInterface().getSuggestedDeserializerForExtension("ifc", project.getOid());
+		bimServerClient.checkinSync(project.getOid(), "test", deserializer.getOid(), false, new URL("https://github.com/opensourceBIM/TestFiles/raw/master/TestData/data/AC11-Institute-Var-2-IFC.ifc"));
+		project = bimServerClient.getServiceInterface().getProjectByPoid(project.getOid());
+		roids = Collections.singleton(project.getLastRevisionId());
+	}
+	
+	@After
+	public void tearDown() {
+		executorService.shutdownNow();
+	}
+
+	private Query createQuery(PackageMetaData packageMetaData) {
+		Query query = new Query("test", packageMetaData);
+		QueryPart products = query.createQueryPart();
+		products.addType(packageMetaData.getEClass("IfcProduct"), true);
+		Include include = products.createInclude();
+		include.addType(packageMetaData.getEClass("IfcProduct"), true);
+		include.addField("Representation");
+		QueryPart relationships = query.createQueryPart();
+		relationships.addType(packageMetaData.getEClass("IfcRelationship"), true);
+		return query;
+	}
+	
+	private Set<Long> readOids(ObjectProvider objectProvider) throws Exception {
+		Set<Long> oids = new HashSet<>();
+		HashMapVirtualObject next = objectProvider.next();
+		while (next != null) {
+			assertTrue("Object " + next.getOid() + " returned twice", oids.add(next.getOid()));
+			next = objectProvider.next();
+		}
+		return oids;
+	}
+	
+	@Test
+	public void testSameResults() throws Exception {
+		Set<Long> expected;
+		try (DatabaseSession databaseSession = getBimServer().getDatabase().createSession(OperationType.READ_ONLY)) {
+			PackageMetaData packageMetaData = databaseSession.getMetaDataManager().getPackageMetaData("ifc2x3tc1");
+			expected = readOids(new QueryObjectProvider(databaseSession, getBimServer(), createQuery(packageMetaData), roids, packageMetaData));
+		}
+		assertTrue(expected.size() > 0);
+		
+		for (boolean preserveOrder : new boolean[]{false, true}) {
+			try (DatabaseSession databaseSession = getBimServer().getDatabase().createSession(OperationType.READ_ONLY)) {
+				PackageMetaData packageMetaData = databaseSession.getMetaDataManager().getPackageMetaData("ifc2x3tc1");
+				ParallelQueryObjectProvider parallelQueryObjectProvider = new ParallelQueryObjectProvider(databaseSession, getBimServer(), createQuery(packageMetaData), roids, packageMetaData, NR_THREADS, preserveOrder, executorService);
+				assertTrue(parallelQueryObjectProvider.getNrPartitions() > 1);
+				assertEquals("preserveOrder " + preserveOrder, expected, readOids(parallelQueryObjectProvider));
+				assertEquals(100, parallelQueryObjectProvider.getProgress());
+			}
+		}
+	}
+	
+	@Test
+	public void testCloseMidway() throws Exception {
+		try (DatabaseSession databaseSession = getBimServer().getDatabase().createSession(OperationType.READ_ONLY)) {
+			PackageMetaData packageMetaData = databaseSession.getMetaDataManager().getPackageMetaData("ifc2x3tc1");
+			ParallelQueryObjectProvider parallelQueryObjectProvider = new ParallelQueryObjectProvider(databaseSession, getBimServer(), createQuery(packageMetaData), roids, packageMetaData, NR_THREADS, true, executorService);
+			for (int i = 0; i < 10; i++) {
+				assertNotNull(parallelQueryObjectProvider.next());
+			}
+			parallelQueryObjectProvider.close();
+			
+			// The workers are blocked on full queues or still reading, they have to stop without anyone reading the rest of the results
+			executorService.shutdown();
+			assertTrue("Workers did not stop after close", executorService.awaitTermination(30, TimeUnit.SECONDS));
+		}
+		
+		// The sessions of the partitions are closed, so the database can still be used
+		try (DatabaseSession databaseSession = getBimServer().getDatabase().createSession(OperationType.READ_ONLY)) {
+			PackageMetaData packageMetaData = databaseSession.getMetaDataManager().getPackageMetaData("ifc2x3tc1");
+			assertTrue(readOids(new QueryObjectProvider(databaseSession, getBimServer(), createQuery(packageMetaData), roids, packageMetaData)).size() > 0);
+		}
+	}
+}
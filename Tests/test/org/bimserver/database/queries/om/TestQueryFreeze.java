@@ -0,0 +1,69 @@
+package org.bimserver.database.queries.om;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestQueryFreeze {
+
+	@Test
+	public void testFreeze() throws Exception {
+		Query query = new Query("test", null);
+		Include define = query.createDefine("define");
+		QueryPart queryPart = query.createQueryPart();
+		Include include = queryPart.createInclude();
+		Include nested = include.createInclude();
+		// Includes can refer to each other
+		nested.addIncludeReference(include, "include");
+		queryPart.addIncludeReference(define, "define");
+
+		query.freeze();
+		Assert.assertTrue(query.isFrozen());
+		Assert.assertTrue(define.isFrozen());
+		Assert.assertTrue(queryPart.isFrozen());
+		Assert.assertTrue(include.isFrozen());
+		Assert.assertTrue(nested.isFrozen());
+
+		assertFrozen(() -> query.createQueryPart());
+		assertFrozen(() -> query.setSpecialQueryType(SpecialQueryType.NONE));
+		assertFrozen(() -> queryPart.addOid(1));
+		assertFrozen(() -> queryPart.setIncludeAllFields(true));
+		assertFrozen(() -> include.createInclude());
+		assertFrozen(() -> nested.setExclude(true));
+		assertFrozen(() -> define.setIncludeAllFields(true));
+	}
+
+	@Test
+	public void testNotFrozen() throws Exception {
+		Query query = new Query("test", null);
+		QueryPart queryPart = query.createQueryPart();
+		queryPart.addOid(1);
+		Assert.assertFalse(query.isFrozen());
+		Assert.assertFalse(queryPart.isFrozen());
+	}
+
+	private void assertFrozen(Runnable modification) {
+		try {
+			modification.run();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.tests.database.KeyValueStoreSession;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSealedRevisionStore {
+	private static final int PID = 1;
+
+	private Path dataDir;
+	private Path sealedDir;
+	private BerkeleyKeyValueStore keyValueStore;
+	private KeyValueStoreSession databaseSession;
+	private EPackage ePackage;
+	private short cid;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("sealed");
+		sealedDir = dataDir.resolve("sealed");
+		keyValueStore = new BerkeleyKeyValueStore(dataDir, null);
+		databaseSession = new KeyValueStoreSession(keyValueStore);
+		ePackage = EcoreFactory.eINSTANCE.createEPackage();
+		ePackage.setName("test");
+		EClass wall = EcoreFactory.eINSTANCE.createEClass();
+		wall.setName("Wall");
+		ePackage.getEClassifiers().add(wall);
+		cid = databaseSession.getCid(wall);
+		keyValueStore.createTable("test_Wall", databaseSession, true);
+
+		store(1, 1);
+		store(1, 3);
+		store(2, 2);
+		store(3, 1);
+		// Deleted in revision 2
+		keyValueStore.store("test_Wall", createKey(3, 2), new byte[] { -1 }, databaseSession);
+		store(4, 3);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		keyValueStore.close();
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testSealAndUnseal() throws Exception {
+		SealedRevisionStore sealedRevisionStore = new SealedRevisionStore(sealedDir);
+		Assert.assertNull(sealedRevisionStore.get(PID, 2));
+
+		sealedRevisionStore.seal(databaseSession, PID, 2, ePackage);
+		Assert.assertTrue(sealedRevisionStore.isSealed(PID, 2));
+		Assert.assertFalse(sealedRevisionStore.isSealed(PID, 3));
+		checkRevision2(sealedRevisionStore.get(PID, 2));
+
+		// Found again after a restart
+		sealedRevisionStore.close();
+		sealedRevisionStore = new SealedRevisionStore(sealedDir);
+		checkRevision2(sealedRevisionStore.get(PID, 2));
+
+		sealedRevisionStore.unseal(PID, 2);
+		Assert.assertFalse(sealedRevisionStore.isSealed(PID, 2));
+		Assert.assertNull(sealedRevisionStore.get(PID, 2));
+		sealedRevisionStore.close();
+		Assert.assertNull(new SealedRevisionStore(sealedDir).get(PID, 2));
+
+		// Not sealed, nothing to do
+		sealedRevisionStore.unseal(PID, 2);
+	}
+
+	private void checkRevision2(SealedRevision sealedRevision) throws Exception {
+		Assert.assertNotNull(sealedRevision);
+		Assert.assertEquals(PID, sealedRevision.getPid());
+		Assert.assertEquals(2, sealedRevision.getRid());
+		Assert.assertTrue(sealedRevision.covers("test_Wall"));
+		Assert.assertFalse(sealedRevision.covers("other_Wall"));
+
+		// Only the version visible in revision 2 is kept, the deleted marker included, objects of later revisions are left out
+		Assert.assertEquals("1/1", value(sealedRevision.get("test_Wall", oid(1))));
+		Assert.assertEquals("2/2", value(sealedRevision.get("test_Wall", oid(2))));
+		Assert.assertArrayEquals(new byte[] { -1 }, sealedRevision.get("test_Wall", oid(3)).getValue());
+		Assert.assertNull(sealedRevision.get("test_Wall", oid(4)));
+
+		SearchingRecordIterator recordIterator = sealedRevision.getRecordIterator("test_Wall", ByteBuffer.allocate(4).putInt(PID).array());
+		Assert.assertArrayEquals(createKey(1, 1), recordIterator.next().getKey());
+		Assert.assertArrayEquals(createKey(2, 2), recordIterator.next().getKey());
+		Assert.assertArrayEquals(createKey(3, 2), recordIterator.next().getKey());
+		Assert.assertNull(recordIterator.next());
+	}
+
+	private void store(int nr, int rid) throws Exception {
+		keyValueStore.store("test_Wall", createKey(nr, rid), (nr + "/" + rid).getBytes(StandardCharsets.UTF_8), databaseSession);
+	}
+
+	private long oid(int nr) {
+		return ((long) nr << 16) | cid;
+	}
+
+	private byte[] createKey(int nr, int rid) {
+		ByteBuffer key = ByteBuffer.allocate(16);
+		key.putInt(PID);
+		key.putLong(oid(nr));
+		key.putInt(-rid);
+		return key.array();
+	}
+
+	private String value(Record record) {
+		return new String(record.getValue(), StandardCharsets.UTF_8);
+	}
+}
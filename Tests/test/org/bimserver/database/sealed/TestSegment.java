@@ -0,0 +1,113 @@
+package org.bimserver.database.sealed;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bimserver.database.sealed.SealedRevision.Segment;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSegment {
+	private static final int PID = 1;
+	private static final long[] OIDS = new long[] { 10, 20, 30, 40 };
+	private static final int[] RIDS = new int[] { 1, 3, 2, 1 };
+	private static final String[] VALUES = new String[] { "a", "bb", "", "d" };
+
+	private Segment segment;
+
+	@Before
+	public void setUp() {
+		int valuesLength = 0;
+		for (String value : VALUES) {
+			valuesLength += value.length();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4 + OIDS.length * 8 + OIDS.length * 4 + (OIDS.length + 1) * 4 + valuesLength);
+		buffer.putInt(OIDS.length);
+		for (long oid : OIDS) {
+			buffer.putLong(oid);
+		}
+		for (int rid : RIDS) {
+			buffer.putInt(rid);
+		}
+		int offset = 0;
+		for (String value : VALUES) {
+			buffer.putInt(offset);
+			offset += value.length();
+		}
+		buffer.putInt(offset);
+		for (String value : VALUES) {
+			buffer.put(value.getBytes(StandardCharsets.UTF_8));
+		}
+		segment = new Segment(buffer);
+	}
+
+	@Test
+	public void testLowerBound() {
+		Assert.assertEquals(0, segment.lowerBound(5, 0));
+		Assert.assertEquals(1, segment.lowerBound(20, 0));
+		Assert.assertEquals(2, segment.lowerBound(25, 0));
+		Assert.assertEquals(3, segment.lowerBound(40, 0));
+		Assert.assertEquals(4, segment.lowerBound(50, 0));
+		// Never before the given start
+		Assert.assertEquals(2, segment.lowerBound(20, 2));
+	}
+
+	@Test
+	public void testFind() {
+		// Too short to hold a pid or an oid
+		Assert.assertEquals(0, segment.find(PID, new byte[2], 0));
+		Assert.assertEquals(0, segment.find(PID, key(PID), 0));
+		// Other projects sort before or after all records
+		Assert.assertEquals(0, segment.find(PID, key(PID - 1), 0));
+		Assert.assertEquals(4, segment.find(PID, key(PID + 1), 0));
+
+		Assert.assertEquals(2, segment.find(PID, key(PID, 30), 0));
+		Assert.assertEquals(3, segment.find(PID, key(PID, 35), 0));
+		Assert.assertEquals(4, segment.find(PID, key(PID, 45), 0));
+
+		// The record of oid 20 is from revision 3, newer revisions sort first
+		Assert.assertEquals(1, segment.find(PID, key(PID, 20, 4), 0));
+		Assert.assertEquals(1, segment.find(PID, key(PID, 20, 3), 0));
+		Assert.assertEquals(2, segment.find(PID, key(PID, 20, 2), 0));
+	}
+
+	@Test
+	public void testGetRecord() {
+		for (int i = 0; i < OIDS.length; i++) {
+			SealedRecord record = segment.getRecord(PID, i);
+			Assert.assertArrayEquals(key(PID, OIDS[i], RIDS[i]), record.getKey());
+			Assert.assertEquals(VALUES[i], new String(record.getValue(), StandardCharsets.UTF_8));
+			Assert.assertEquals(VALUES[i].length(), record.getValueBuffer().remaining());
+		}
+	}
+
+	private byte[] key(int pid) {
+		return ByteBuffer.allocate(4).putInt(pid).array();
+	}
+
+	private byte[] key(int pid, long oid) {
+		return ByteBuffer.allocate(12).putInt(pid).putLong(oid).array();
+	}
+
+	private byte[] key(int pid, long oid, int rid) {
+		return ByteBuffer.allocate(16).putInt(pid).putLong(oid).putInt(-rid).array();
+	}
+}
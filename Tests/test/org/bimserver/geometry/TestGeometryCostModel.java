@@ -0,0 +1,101 @@
+package org.bimserver.geometry;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.junit.Test;
+
+public class TestGeometryCostModel {
+
+	private final EClass wall = createEClass("IfcWall");
+	private final EClass door = createEClass("IfcDoor");
+
+	private static EClass createEClass(String name) {
+		EClass eClass = EcoreFactory.eINSTANCE.createEClass();
+		eClass.setName(name);
+		return eClass;
+	}
+
+	private GeometryRunner createRunner(long sequence, long estimatedCost) {
+		GeometryRunner runner = new GeometryRunner(null, wall, null, null, null, null, null, null, null, null, false, null, new ReportJob(null, "IfcWall", 1), false, null, null);
+		runner.setEstimate(sequence, 1, estimatedCost);
+		return runner;
+	}
+
+	@Test
+	public void testDefaultEstimate() {
+		GeometryCostModel costModel = new GeometryCostModel();
+		long perItem = costModel.estimateBytes(wall, 1);
+		assertTrue(perItem > 0);
+		assertEquals(10 * perItem, costModel.estimateBytes(wall, 10));
+		// A product without counted items still costs something
+		assertEquals(perItem, costModel.estimateBytes(wall, 0));
+	}
+
+	@Test
+	public void testLearnsPerType() {
+		GeometryCostModel costModel = new GeometryCostModel();
+		long defaultPerItem = costModel.estimateBytes(door, 1);
+		costModel.record(wall, 10, 50000);
+		costModel.record(wall, 10, 30000);
+		assertEquals(4000, costModel.estimateBytes(wall, 1));
+		assertEquals(40000, costModel.estimateBytes(wall, 10));
+		assertEquals(defaultPerItem, costModel.estimateBytes(door, 1));
+	}
+
+	@Test
+	public void testCostOrdering() {
+		PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>(16, StreamingGeometryGenerator.JOB_ORDER);
+		queue.add(createRunner(1, 10));
+		queue.add(createRunner(2, 1000));
+		queue.add(createRunner(3, 500));
+		queue.add(createRunner(4, 1000));
+		queue.add(createRunner(5, 10));
+
+		// Most expensive first, equal costs in the order they were created
+		long[][] expected = new long[][]{{1000, 2}, {1000, 4}, {500, 3}, {10, 1}, {10, 5}};
+		for (long[] costAndSequence : expected) {
+			GeometryRunner runner = (GeometryRunner) queue.poll();
+			assertEquals(costAndSequence[0], runner.getEstimatedCost());
+			assertEquals(costAndSequence[1], runner.getSequence());
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testBatchCutAtByteLimit() {
+		GeometryCostModel costModel = new GeometryCostModel();
+		costModel.record(wall, 1, StreamingGeometryGenerator.MAX_BYTES_PER_BATCH / 4);
+		assertFalse(StreamingGeometryGenerator.isBatchFull(costModel, wall, 1, 3, 100));
+		assertTrue(StreamingGeometryGenerator.isBatchFull(costModel, wall, 1, 4, 100));
+		
+		// Other types still use the default estimate
+		assertFalse(StreamingGeometryGenerator.isBatchFull(costModel, door, 1, 4, 100));
+
+		// The number of products per batch still applies when the items are cheap
+		assertFalse(StreamingGeometryGenerator.isBatchFull(costModel, wall, 99, 1, 100));
+		assertTrue(StreamingGeometryGenerator.isBatchFull(costModel, wall, 100, 1, 100));
+	}
+}
@@ -0,0 +1,112 @@
+package org.bimserver.shared;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCompactValueList {
+	@Test
+	public void testLongs() {
+		CompactValueList list = new CompactValueList(CompactValueList.Kind.LONG, 0);
+		for (long i = 0; i < 10; i++) {
+			list.add(i);
+		}
+		list.set(3, null);
+		Assert.assertEquals(10, list.size());
+		Assert.assertNull(list.get(3));
+		Assert.assertEquals(4L, list.get(4));
+
+		// Nulls move along with the values
+		list.add(0, -1L);
+		Assert.assertNull(list.get(4));
+		Assert.assertEquals(-1L, list.get(0));
+		list.remove(0);
+		list.remove(0);
+		Assert.assertEquals(Arrays.asList(1L, 2L, null, 4L, 5L, 6L, 7L, 8L, 9L), list);
+
+		list.set(2, 3L);
+		Assert.assertEquals(3L, list.get(2));
+	}
+
+	@Test
+	public void testDoubles() {
+		CompactValueList list = new CompactValueList(CompactValueList.Kind.DOUBLE, 2);
+		list.add(1.5);
+		list.add(-0.0);
+		list.add(Double.NaN);
+		list.add(null);
+		Assert.assertEquals(Arrays.asList(1.5, -0.0, Double.NaN, null), list);
+		Assert.assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits((Double) list.get(1)));
+	}
+
+	@Test
+	public void testSwitchToObjects() {
+		CompactValueList list = new CompactValueList(CompactValueList.Kind.LONG, 0);
+		list.add(1L);
+		list.add(null);
+		list.add(3L);
+		// Not a Long, from here on the values are kept as objects
+		list.add("wrapped");
+		list.add(5L);
+		Assert.assertEquals(Arrays.asList(1L, null, 3L, "wrapped", 5L), list);
+		list.remove(1);
+		Assert.assertEquals(Arrays.asList(1L, 3L, "wrapped", 5L), list);
+	}
+
+	@Test
+	public void testClear() {
+		CompactValueList list = new CompactValueList(CompactValueList.Kind.LONG, 0);
+		list.add(null);
+		list.add(2L);
+		list.clear();
+		Assert.assertTrue(list.isEmpty());
+		list.add(7L);
+		Assert.assertEquals(7L, list.get(0));
+	}
+
+	@Test
+	public void testSameAsArrayList() {
+		List<Object> expected = new ArrayList<>();
+		CompactValueList list = new CompactValueList(CompactValueList.Kind.DOUBLE, 0);
+		for (int i = 0; i < 100; i++) {
+			Double value = i % 7 == 0 ? null : i * 0.5;
+			expected.add(value);
+			list.add(value);
+		}
+		for (int i = 0; i < 30; i++) {
+			int index = (i * 13) % expected.size();
+			expected.remove(index);
+			list.remove(index);
+			expected.add(index / 2, (double) -i);
+			list.add(index / 2, (double) -i);
+		}
+		Assert.assertEquals(expected, list);
+		Assert.assertEquals(expected.hashCode(), list.hashCode());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds() {
+		CompactValueList list = new CompactValueList(CompactValueList.Kind.LONG, 4);
+		list.get(0);
+	}
+}
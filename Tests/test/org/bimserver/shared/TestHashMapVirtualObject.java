@@ -0,0 +1,145 @@
+package org.bimserver.shared;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHashMapVirtualObject {
+	private EClass wallClass;
+	private EAttribute name;
+	private EAttribute coordinates;
+	private EReference openings;
+
+	@Before
+	public void setUp() {
+		EPackage ePackage = EcoreFactory.eINSTANCE.createEPackage();
+		ePackage.setName("test");
+		wallClass = createWallClass();
+		ePackage.getEClassifiers().add(wallClass);
+		name = (EAttribute) wallClass.getEStructuralFeature("Name");
+		coordinates = (EAttribute) wallClass.getEStructuralFeature("Coordinates");
+		openings = (EReference) wallClass.getEStructuralFeature("Openings");
+	}
+
+	@Test
+	public void testNullIsNotUnset() {
+		HashMapVirtualObject wall = create();
+		Assert.assertFalse(wall.eIsSet(name));
+		Assert.assertNull(wall.eGet(name));
+
+		wall.setAttribute(name, null);
+		Assert.assertTrue(wall.eIsSet(name));
+		Assert.assertNull(wall.eGet(name));
+		Assert.assertFalse(wall.has("Name"));
+
+		wall.setAttribute(name, "wall");
+		Assert.assertEquals("wall", wall.get("Name"));
+		Assert.assertTrue(wall.has("Name"));
+
+		wall.eUnset(name);
+		Assert.assertFalse(wall.eIsSet(name));
+		Assert.assertNull(wall.eGet(name));
+	}
+
+	@Test
+	public void testLists() {
+		HashMapVirtualObject wall = create();
+		wall.addListItem(coordinates, 1.0);
+		wall.addListItem(coordinates, 2.0);
+		wall.setListItem(coordinates, 3, 4.0);
+		Assert.assertEquals(Arrays.asList(1.0, 2.0, null, 4.0), wall.eGet(coordinates));
+		Assert.assertTrue(wall.eGet(coordinates) instanceof CompactValueList);
+
+		wall.setListItemReference(openings, 1, wallClass, 20L, -1);
+		wall.setListItemReference(openings, 0, wallClass, 10L, -1);
+		List<?> list = (List<?>) wall.eGet(openings);
+		Assert.assertEquals(Arrays.asList(10L, 20L), list);
+	}
+
+	@Test
+	public void testFeatureOfOtherClass() {
+		// A feature with the same name, but of another instance of the class
+		EAttribute otherName = (EAttribute) createWallClass().getEStructuralFeature("Name");
+		HashMapVirtualObject wall = create();
+		wall.setAttribute(otherName, "other");
+		Assert.assertTrue(wall.eIsSet(otherName));
+		Assert.assertEquals("other", wall.eGet(otherName));
+		Assert.assertFalse(wall.eIsSet(name));
+
+		wall.eUnset(otherName);
+		Assert.assertFalse(wall.eIsSet(otherName));
+	}
+
+	@Test
+	public void testUseForSerialization() {
+		HashMapVirtualObject wall = create();
+		// Attributes are always serialized, references only when asked for
+		Assert.assertTrue(wall.useFeatureForSerialization(name));
+		Assert.assertFalse(wall.useFeatureForSerialization(openings));
+		Assert.assertFalse(wall.useFeatureForSerialization(openings, 0));
+
+		wall.addUseForSerialization(openings, 1);
+		Assert.assertTrue(wall.useFeatureForSerialization(openings));
+		Assert.assertFalse(wall.useFeatureForSerialization(openings, 0));
+		Assert.assertTrue(wall.useFeatureForSerialization(openings, 1));
+
+		wall.addUseForSerialization(openings);
+		Assert.assertTrue(wall.useFeatureForSerialization(openings, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUseForSerializationOfOtherClass() {
+		create().addUseForSerialization(createWallClass().getEStructuralFeature("Openings"));
+	}
+
+	private HashMapVirtualObject create() {
+		return new HashMapVirtualObject(null, wallClass, 1, UUID.randomUUID());
+	}
+
+	private EClass createWallClass() {
+		EClass eClass = EcoreFactory.eINSTANCE.createEClass();
+		eClass.setName("Wall");
+		EAttribute nameAttribute = EcoreFactory.eINSTANCE.createEAttribute();
+		nameAttribute.setName("Name");
+		nameAttribute.setEType(EcorePackage.eINSTANCE.getEString());
+		eClass.getEStructuralFeatures().add(nameAttribute);
+		EAttribute coordinatesAttribute = EcoreFactory.eINSTANCE.createEAttribute();
+		coordinatesAttribute.setName("Coordinates");
+		coordinatesAttribute.setEType(EcorePackage.eINSTANCE.getEDouble());
+		coordinatesAttribute.setUpperBound(-1);
+		eClass.getEStructuralFeatures().add(coordinatesAttribute);
+		EReference openingsReference = EcoreFactory.eINSTANCE.createEReference();
+		openingsReference.setName("Openings");
+		openingsReference.setEType(eClass);
+		openingsReference.setUpperBound(-1);
+		eClass.getEStructuralFeatures().add(openingsReference);
+		return eClass;
+	}
+}
@@ -0,0 +1,110 @@
+package org.bimserver.shared.json;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.activation.DataHandler;
+
+import org.bimserver.interfaces.objects.SDownloadResult;
+import org.bimserver.interfaces.objects.SUserType;
+import org.bimserver.shared.meta.SClass;
+import org.bimserver.shared.meta.SField;
+import org.bimserver.utils.InputStreamDataSource;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+public class TestStreamingJsonConverter {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private final StreamingJsonConverter streamingJsonConverter = new StreamingJsonConverter();
+	private final JsonConverter jsonConverter = new JsonConverter(null);
+
+	@BeforeClass
+	public static void beforeClass() {
+		// Normally done by the SServicesMap of the server
+		SClass sClass = new SClass(null, SDownloadResult.class, () -> new SDownloadResult());
+		sClass.addField(new SField("projectName", new SClass(null, String.class, null), null));
+		sClass.addField(new SField("revisionNr", new SClass(null, Integer.class, null), null));
+		sClass.addField(new SField("file", new SClass(null, DataHandler.class, () -> null), null));
+	}
+
+	private String toJson(Object object) throws IOException {
+		StringWriter out = new StringWriter();
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+			streamingJsonConverter.toJson(object, generator);
+		}
+		return out.toString();
+	}
+
+	private SDownloadResult createDownloadResult(byte[] data) {
+		SDownloadResult downloadResult = new SDownloadResult();
+		downloadResult.setProjectName("project");
+		downloadResult.setRevisionNr(3);
+		downloadResult.setFile(new DataHandler(new InputStreamDataSource(new ByteArrayInputStream(data))));
+		return downloadResult;
+	}
+
+	@Test
+	public void testSameAsJsonConverter() throws IOException {
+		UUID uuid = UUID.randomUUID();
+		for (Object object : new Object[]{null, true, "text \"quoted\"", 5L, 3, 1.5d, 2.5f, new Date(1234), uuid, SUserType.ADMIN, new byte[]{0, 1, 2, (byte) 255}, Arrays.asList(1, "a", null, Collections.emptyList())}) {
+			assertEquals(String.valueOf(object), jsonConverter.toJson(object).toString(), toJson(object));
+		}
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		assertEquals(jsonConverter.toJson(createDownloadResult(data)).toString(), toJson(createDownloadResult(data)));
+	}
+
+	@Test
+	public void testContainsDataHandler() {
+		assertFalse(streamingJsonConverter.containsDataHandler(null));
+		assertFalse(streamingJsonConverter.containsDataHandler(Arrays.asList("a", 1L, new Date(), new byte[0])));
+		SDownloadResult downloadResult = new SDownloadResult();
+		assertFalse(streamingJsonConverter.containsDataHandler(downloadResult));
+		downloadResult = createDownloadResult(new byte[]{1});
+		assertTrue(streamingJsonConverter.containsDataHandler(downloadResult));
+		assertTrue(streamingJsonConverter.containsDataHandler(Arrays.asList("a", Collections.singletonList(downloadResult))));
+	}
+
+	@Test
+	public void testUnsupportedTypeFoundBeforeWriting() {
+		try {
+			streamingJsonConverter.containsDataHandler(Arrays.asList("a", createDownloadResult(new byte[]{1}), new Object()));
+			fail("Unsupported type not found");
+		} catch (UnsupportedOperationException e) {
+			assertEquals(Object.class.getName(), e.getMessage());
+		}
+	}
+}
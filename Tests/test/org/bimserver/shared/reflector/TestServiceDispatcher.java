@@ -0,0 +1,138 @@
+package org.bimserver.shared.reflector;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bimserver.shared.InterfaceList;
+import org.bimserver.shared.interfaces.PublicInterface;
+import org.bimserver.shared.meta.SMethod;
+import org.bimserver.shared.meta.SParameter;
+import org.bimserver.shared.meta.SService;
+import org.bimserver.shared.meta.SServicesMap;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestServiceDispatcher {
+	private static SServicesMap servicesMap;
+
+	@BeforeClass
+	public static void beforeClass() {
+		servicesMap = InterfaceList.createSServicesMap();
+		servicesMap.setReflectorFactory(new RealtimeReflectorFactoryBuilder(servicesMap).newReflectorFactory());
+	}
+
+	/**
+	 * Every method of every service should end up at the interface method with the same name, with the given arguments in the right order
+	 */
+	@Test
+	public void testAllMethods() throws Exception {
+		for (SService sService : servicesMap.list()) {
+			Assert.assertNotNull(sService.getName(), sService.getDispatcher());
+			for (SMethod sMethod : sService.getMethods()) {
+				KeyValuePair[] arguments = createArguments(sMethod);
+				Object[] called = new Object[2];
+				PublicInterface service = createService(sService.getInterfaceClass(), called);
+				Object result = sMethod.invoke(sService.getInterfaceClass(), service, arguments);
+				Assert.assertEquals(sMethod.getName(), called[0]);
+				Object[] expected = new Object[arguments.length];
+				for (int i = 0; i < arguments.length; i++) {
+					expected[i] = arguments[i].getValue();
+				}
+				Assert.assertArrayEquals(sMethod.getName(), expected, (Object[]) called[1]);
+				if (sMethod.getReturnType().isVoid()) {
+					Assert.assertNull(result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The dispatcher and a reflector, which finds the method by name, should call the same method
+	 */
+	@Test
+	public void testSameAsReflector() throws Exception {
+		SService sService = servicesMap.getBySimpleName("AuthInterface");
+		SMethod login = sService.getSMethod("login");
+		KeyValuePair[] arguments = createArguments(login);
+
+		Object[] dispatched = new Object[2];
+		Object dispatchedResult = sService.getDispatcher().invoke(createService(sService.getInterfaceClass(), dispatched), login.getIndex(), arguments);
+		Object[] reflected = new Object[2];
+		Reflector reflector = servicesMap.getReflectorFactory().createReflector(sService.getInterfaceClass(), createService(sService.getInterfaceClass(), reflected));
+		Object reflectedResult = reflector.callMethod(sService.getInterfaceClass().getName(), "login", login.getReturnType().getInstanceClass(), arguments);
+
+		Assert.assertEquals("login", dispatched[0]);
+		Assert.assertEquals(reflected[0], dispatched[0]);
+		Assert.assertArrayEquals((Object[]) reflected[1], (Object[]) dispatched[1]);
+		Assert.assertEquals(reflectedResult, dispatchedResult);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownIndex() throws Exception {
+		SService sService = servicesMap.getBySimpleName("AuthInterface");
+		sService.getDispatcher().invoke(createService(sService.getInterfaceClass(), new Object[2]), sService.getMethods().size(), new KeyValuePair[0]);
+	}
+
+	/**
+	 * Strings, numbers and booleans get a value that is unique for the parameter, other parameters are null
+	 */
+	private KeyValuePair[] createArguments(SMethod sMethod) {
+		List<SParameter> parameters = sMethod.getParameters();
+		KeyValuePair[] arguments = new KeyValuePair[parameters.size()];
+		for (int i = 0; i < parameters.size(); i++) {
+			SParameter sParameter = parameters.get(i);
+			Class<?> type = sParameter.getType().getInstanceClass();
+			Object value = null;
+			if (type == String.class) {
+				value = sParameter.getName() + i;
+			} else if (type == Long.class || type == long.class) {
+				value = Long.valueOf(i + 100);
+			} else if (type == Integer.class || type == int.class) {
+				value = Integer.valueOf(i + 100);
+			} else if (type == Boolean.class || type == boolean.class) {
+				value = Boolean.valueOf(i % 2 == 0);
+			}
+			arguments[i] = new KeyValuePair(sParameter.getName(), value);
+		}
+		return arguments;
+	}
+
+	/**
+	 * @param called Gets the name of the called method and its arguments
+	 */
+	private PublicInterface createService(Class<? extends PublicInterface> interfaceClass, Object[] called) {
+		return (PublicInterface) Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class<?>[] { interfaceClass }, (Object proxy, Method method, Object[] args) -> {
+			called[0] = method.getName();
+			called[1] = args == null ? new Object[0] : Arrays.copyOf(args, args.length);
+			Class<?> returnType = method.getReturnType();
+			if (returnType == String.class) {
+				return method.getName();
+			} else if (returnType.isPrimitive() && returnType != void.class) {
+				// The default value of the primitive type
+				return Array.get(Array.newInstance(returnType, 1), 0);
+			}
+			return null;
+		});
+	}
+}
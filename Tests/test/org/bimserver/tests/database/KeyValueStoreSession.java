@@ -0,0 +1,76 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.KeyValueStore;
+import org.bimserver.database.OperationType;
+import org.eclipse.emf.ecore.EClass;
+
+/**
+ * A session that only has a key value store, for testing the parts of the database layer that only read and write their own tables, cids are handed out on first use
+ */
+public class KeyValueStoreSession extends DatabaseSession {
+	private final KeyValueStore keyValueStore;
+	private final Map<EClass, Short> cids = new HashMap<>();
+	private final Map<Short, EClass> eClasses = new HashMap<>();
+
+	public KeyValueStoreSession(KeyValueStore keyValueStore) {
+		super(null, null, OperationType.POSSIBLY_WRITE);
+		this.keyValueStore = keyValueStore;
+	}
+
+	@Override
+	public KeyValueStore getKeyValueStore() {
+		return keyValueStore;
+	}
+
+	@Override
+	public short getCid(EClass eClass) throws BimserverDatabaseException {
+		Short cid = cids.get(eClass);
+		if (cid == null) {
+			cid = (short) (cids.size() + 1);
+			cids.put(eClass, cid);
+			eClasses.put(cid, eClass);
+		}
+		return cid;
+	}
+
+	@Override
+	public short getCidOfEClass(EClass eClass) {
+		try {
+			return getCid(eClass);
+		} catch (BimserverDatabaseException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public EClass getEClass(short cid) throws BimserverDatabaseException {
+		return eClasses.get(cid);
+	}
+
+	@Override
+	public EClass getEClassForOid(long oid) throws BimserverDatabaseException {
+		return getEClass((short) oid);
+	}
+}
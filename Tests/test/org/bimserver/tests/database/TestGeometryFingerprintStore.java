@@ -0,0 +1,94 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.Database;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.geometry.ContentDigest;
+import org.bimserver.geometry.GeometryFingerprintStore;
+import org.bimserver.shared.QueryContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestGeometryFingerprintStore {
+	private static final int PID = 1;
+	private static final String GLOBAL_ID = "2O2Fr$t4X7Zf8NOew3FLOH";
+
+	private Path dataDir;
+	private BerkeleyKeyValueStore keyValueStore;
+	private KeyValueStoreSession databaseSession;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("fingerprints");
+		keyValueStore = new BerkeleyKeyValueStore(dataDir, null);
+		databaseSession = new KeyValueStoreSession(keyValueStore);
+		keyValueStore.createTable(Database.GEOMETRY_FINGERPRINT_TABLE, databaseSession, true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		keyValueStore.close();
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testOnlyPreviousRevision() throws Exception {
+		ContentDigest fingerprint = ContentDigest.of("wall".getBytes(StandardCharsets.UTF_8));
+		store(PID, 1).put(GLOBAL_ID, fingerprint, 100);
+
+		GeometryFingerprintStore.Entry entry = store(PID, 2).get(GLOBAL_ID);
+		Assert.assertNotNull(entry);
+		Assert.assertEquals(fingerprint, entry.getFingerprint());
+		Assert.assertEquals(100, entry.getGeometryInfoOid());
+		Assert.assertEquals(1001, entry.getRoid());
+
+		// Not the revision this one is based on
+		Assert.assertNull(store(PID, 3).get(GLOBAL_ID));
+		// Another project with the same GlobalId
+		Assert.assertNull(store(PID + 1, 2).get(GLOBAL_ID));
+		// An earlier revision that is regenerated
+		Assert.assertNull(store(PID, 1).get(GLOBAL_ID));
+	}
+
+	@Test
+	public void testRemovePrevious() throws Exception {
+		ContentDigest fingerprint = ContentDigest.of("wall".getBytes(StandardCharsets.UTF_8));
+		store(PID, 1).put(GLOBAL_ID, fingerprint, 100);
+		store(PID + 1, 1).put(GLOBAL_ID, fingerprint, 200);
+
+		GeometryFingerprintStore second = store(PID, 2);
+		second.put(GLOBAL_ID, fingerprint, 300);
+		second.removePrevious();
+
+		Assert.assertNull(store(PID, 2).get(GLOBAL_ID));
+		Assert.assertEquals(300, store(PID, 3).get(GLOBAL_ID).getGeometryInfoOid());
+		Assert.assertEquals(200, store(PID + 1, 2).get(GLOBAL_ID).getGeometryInfoOid());
+	}
+
+	private GeometryFingerprintStore store(int pid, int rid) {
+		return new GeometryFingerprintStore(databaseSession, new QueryContext(null, null, pid, rid, 1000 + rid, 2000 + rid, -1));
+	}
+}
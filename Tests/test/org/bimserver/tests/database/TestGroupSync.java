@@ -0,0 +1,163 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.BimserverDatabaseException;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.database.berkeley.DatabaseInitException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sleepycat.je.DatabaseException;
+
+public class TestGroupSync {
+	private static final int SESSIONS = 8;
+	private static final String TABLE_NAME = "test_Wall";
+
+	private Path dataDir;
+	private SlowKeyValueStore keyValueStore;
+	private ExecutorService executorService;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("groupsync");
+		keyValueStore = new SlowKeyValueStore(dataDir);
+		keyValueStore.createTable(TABLE_NAME, new KeyValueStoreSession(keyValueStore), true);
+		executorService = Executors.newFixedThreadPool(SESSIONS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executorService.shutdownNow();
+		keyValueStore.close();
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testConcurrentSessionsShareSyncs() throws Exception {
+		List<Future<Void>> futures = commitConcurrently();
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+		// The first sync is running while the other sessions ask for one, they all share the second
+		Assert.assertTrue("syncs: " + keyValueStore.syncs.get(), keyValueStore.syncs.get() < SESSIONS);
+		KeyValueStoreSession databaseSession = new KeyValueStoreSession(keyValueStore);
+		for (int i = 0; i < SESSIONS; i++) {
+			Assert.assertArrayEquals(new byte[] { (byte) i }, keyValueStore.get(TABLE_NAME, createKey(i), databaseSession));
+		}
+	}
+
+	@Test
+	public void testFailedSyncIsRetried() throws Exception {
+		keyValueStore.failNextSync = true;
+		List<Future<Void>> futures = commitConcurrently();
+		int failed = 0;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof BimserverDatabaseException);
+				failed++;
+			}
+		}
+		// Only the session that did the failing sync fails, the sessions that were waiting for it are covered by a sync that succeeded
+		Assert.assertEquals(1, failed);
+		Assert.assertTrue(keyValueStore.syncs.get() >= 2);
+	}
+
+	@Test
+	public void testFailedSyncDoesNotCoverLaterCalls() throws Exception {
+		keyValueStore.failNextSync = true;
+		try {
+			keyValueStore.groupSync();
+			Assert.fail("Sync failure not thrown");
+		} catch (BimserverDatabaseException e) {
+			// Expected
+		}
+		keyValueStore.groupSync();
+		Assert.assertEquals(2, keyValueStore.syncs.get());
+	}
+
+	private List<Future<Void>> commitConcurrently() {
+		CyclicBarrier barrier = new CyclicBarrier(SESSIONS);
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < SESSIONS; i++) {
+			int nr = i;
+			futures.add(executorService.submit(() -> {
+				KeyValueStoreSession databaseSession = new KeyValueStoreSession(keyValueStore);
+				keyValueStore.store(TABLE_NAME, createKey(nr), new byte[] { (byte) nr }, databaseSession);
+				barrier.await();
+				keyValueStore.groupSync();
+				return null;
+			}));
+		}
+		return futures;
+	}
+
+	private byte[] createKey(int nr) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putInt(1);
+		buffer.putLong(nr);
+		buffer.putInt(-1);
+		return buffer.array();
+	}
+
+	/**
+	 * Takes a while to sync so concurrent callers pile up, and can be told to fail a sync
+	 */
+	private static class SlowKeyValueStore extends BerkeleyKeyValueStore {
+		private final AtomicInteger syncs = new AtomicInteger();
+		private volatile boolean failNextSync;
+
+		public SlowKeyValueStore(Path dataDir) throws DatabaseInitException {
+			super(dataDir, null);
+		}
+
+		@Override
+		protected void syncEnvironment() throws DatabaseException {
+			syncs.incrementAndGet();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (failNextSync) {
+				failNextSync = false;
+				throw new DatabaseException("Simulated sync failure") {
+					private static final long serialVersionUID = 1L;
+				};
+			}
+			super.syncEnvironment();
+		}
+	}
+}
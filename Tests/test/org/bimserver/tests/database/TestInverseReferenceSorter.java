@@ -0,0 +1,118 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.actions.InverseReferenceSorter;
+import org.bimserver.database.actions.InverseReferenceSorter.InverseReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInverseReferenceSorter {
+	private Path tmpDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tmpDir = Files.createTempDirectory("inverses");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(tmpDir.toFile());
+	}
+
+	@Test
+	public void testInMemory() throws Exception {
+		try (InverseReferenceSorter sorter = new InverseReferenceSorter(tmpDir, 1000)) {
+			List<InverseReference> added = addRandom(sorter, 500);
+			sorter.finish();
+			Assert.assertEquals(0, sorter.getNrRuns());
+			assertSorted(sorter, added);
+		}
+	}
+
+	@Test
+	public void testMergeRuns() throws Exception {
+		try (InverseReferenceSorter sorter = new InverseReferenceSorter(tmpDir, 100)) {
+			List<InverseReference> added = addRandom(sorter, 1050);
+			sorter.finish();
+			Assert.assertEquals(11, sorter.getNrRuns());
+			assertSorted(sorter, added);
+		}
+		// Runs are removed when the sorter is closed
+		try (Stream<Path> files = Files.list(tmpDir)) {
+			Assert.assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	public void testGroupedPerClass() throws Exception {
+		try (InverseReferenceSorter sorter = new InverseReferenceSorter(tmpDir, 2)) {
+			// Oids of class 2 are smaller than those of class 1, still class 1 comes first
+			sorter.add((5L << 16) | 1, 10, 100);
+			sorter.add((1L << 16) | 2, 10, 101);
+			sorter.add((3L << 16) | 1, 11, 102);
+			sorter.add((3L << 16) | 1, 10, 103);
+			sorter.add((2L << 16) | 2, 10, 104);
+			sorter.finish();
+			long[][] expected = new long[][] {
+				{(3L << 16) | 1, 10, 103},
+				{(3L << 16) | 1, 11, 102},
+				{(5L << 16) | 1, 10, 100},
+				{(1L << 16) | 2, 10, 101},
+				{(2L << 16) | 2, 10, 104}
+			};
+			for (long[] tuple : expected) {
+				InverseReference inverseReference = sorter.next();
+				Assert.assertEquals(tuple[0], inverseReference.getTargetOid());
+				Assert.assertEquals(tuple[1], inverseReference.getFeatureId());
+				Assert.assertEquals(tuple[2], inverseReference.getSourceOid());
+			}
+			Assert.assertNull(sorter.next());
+		}
+	}
+
+	private List<InverseReference> addRandom(InverseReferenceSorter sorter, int count) throws Exception {
+		Random random = new Random(count);
+		List<InverseReference> added = new ArrayList<>();
+		for (int i=0; i<count; i++) {
+			InverseReference inverseReference = new InverseReference(((long) random.nextInt(200) << 16) | random.nextInt(5), random.nextInt(3), random.nextInt(100000));
+			sorter.add(inverseReference.getTargetOid(), inverseReference.getFeatureId(), inverseReference.getSourceOid());
+			added.add(inverseReference);
+		}
+		added.sort(null);
+		return added;
+	}
+
+	private void assertSorted(InverseReferenceSorter sorter, List<InverseReference> expected) throws Exception {
+		for (InverseReference inverseReference : expected) {
+			InverseReference next = sorter.next();
+			Assert.assertEquals(0, inverseReference.compareTo(next));
+		}
+		Assert.assertNull(sorter.next());
+	}
+}
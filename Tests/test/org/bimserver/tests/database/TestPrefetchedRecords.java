@@ -0,0 +1,136 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.Record;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.database.queries.PrefetchedRecords;
+import org.bimserver.shared.QueryContext;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPrefetchedRecords {
+	private static final int PID = 1;
+
+	private Path dataDir;
+	private BerkeleyKeyValueStore keyValueStore;
+	private KeyValueStoreSession databaseSession;
+	private short cid;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("prefetch");
+		keyValueStore = new BerkeleyKeyValueStore(dataDir, null);
+		databaseSession = new KeyValueStoreSession(keyValueStore);
+		EPackage ePackage = EcoreFactory.eINSTANCE.createEPackage();
+		ePackage.setName("test");
+		EClass wall = EcoreFactory.eINSTANCE.createEClass();
+		wall.setName("Wall");
+		ePackage.getEClassifiers().add(wall);
+		cid = databaseSession.getCid(wall);
+		keyValueStore.createTable("test_Wall", databaseSession, true);
+
+		for (int i=1; i<=200; i++) {
+			store(i, 1);
+		}
+		store(6, 2);
+		store(6, 3);
+		store(7, 3);
+		// Deleted in revision 2
+		keyValueStore.store("test_Wall", createKey(8, 2), new byte[] { -1 }, databaseSession);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		keyValueStore.close();
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testNewestVisibleVersion() throws Exception {
+		PrefetchedRecords prefetchedRecords = new PrefetchedRecords();
+		QueryContext queryContext = new QueryContext(databaseSession, null, PID, 2, 2, 2, -1);
+		// Unsorted, with duplicates, sparse and missing oids
+		List<Long> oids = Arrays.asList(oid(150), oid(6), oid(5), oid(6), oid(7), oid(8), oid(300), oid(190));
+		List<Long> added = prefetchedRecords.prefetch(databaseSession, queryContext, oids);
+		Assert.assertEquals(7, added.size());
+
+		Assert.assertEquals("5/1", value(prefetchedRecords.take(oid(5))));
+		Assert.assertEquals("6/2", value(prefetchedRecords.take(oid(6))));
+		Assert.assertEquals("7/1", value(prefetchedRecords.take(oid(7))));
+		Assert.assertArrayEquals(new byte[] { -1 }, prefetchedRecords.take(oid(8)).getValue());
+		Assert.assertEquals("150/1", value(prefetchedRecords.take(oid(150))));
+		Assert.assertEquals("190/1", value(prefetchedRecords.take(oid(190))));
+
+		// Known not to exist
+		Assert.assertTrue(prefetchedRecords.contains(oid(300), queryContext));
+		Assert.assertNull(prefetchedRecords.take(oid(300)));
+
+		// Handed out once
+		Assert.assertFalse(prefetchedRecords.contains(oid(5), queryContext));
+	}
+
+	@Test
+	public void testEvict() throws Exception {
+		PrefetchedRecords prefetchedRecords = new PrefetchedRecords();
+		QueryContext queryContext = new QueryContext(databaseSession, null, PID, 3, 3, 3, -1);
+		List<Long> added = prefetchedRecords.prefetch(databaseSession, queryContext, Arrays.asList(oid(1), oid(2), oid(3)));
+		Assert.assertEquals("2/1", value(prefetchedRecords.take(oid(2))));
+
+		// Already prefetched, so not added again
+		Assert.assertEquals(Arrays.asList(oid(4), oid(5)), prefetchedRecords.prefetch(databaseSession, queryContext, Arrays.asList(oid(3), oid(4), oid(5))));
+
+		prefetchedRecords.evict(added);
+		Assert.assertFalse(prefetchedRecords.contains(oid(1), queryContext));
+		Assert.assertFalse(prefetchedRecords.contains(oid(3), queryContext));
+		Assert.assertTrue(prefetchedRecords.contains(oid(4), queryContext));
+	}
+
+	private void store(int nr, int rid) throws Exception {
+		keyValueStore.store("test_Wall", createKey(nr, rid), (nr + "/" + rid).getBytes(StandardCharsets.UTF_8), databaseSession);
+	}
+
+	private long oid(int nr) {
+		return ((long) nr << 16) | cid;
+	}
+
+	private byte[] createKey(int nr, int rid) {
+		ByteBuffer key = ByteBuffer.allocate(16);
+		key.putInt(PID);
+		key.putLong(oid(nr));
+		key.putInt(-rid);
+		return key.array();
+	}
+
+	private String value(Record record) {
+		return new String(record.getValue(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,149 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.Record;
+import org.bimserver.database.SearchingRecordIterator;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.database.berkeley.ValueCompression;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRecordIterators {
+	private static final int PID = 1;
+	private static final byte[] DELETED = new byte[] { -1 };
+	// Long and repetitive enough to be deflated in compressed tables
+	private static final String LONG_VALUE = "abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz";
+
+	private Path dataDir;
+	private BerkeleyKeyValueStore keyValueStore;
+	private KeyValueStoreSession databaseSession;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("iterators");
+		keyValueStore = new BerkeleyKeyValueStore(dataDir, null);
+		databaseSession = new KeyValueStoreSession(keyValueStore);
+		keyValueStore.setTableCompression(ValueCompression.DEFLATE, ValueCompression.NONE);
+		// Only tables of the models are compressed
+		fill("test_Wall");
+		fill("ifc2x3tc1_IfcWall");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		keyValueStore.close();
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testPartialValues() throws Exception {
+		checkPartialValues("test_Wall");
+	}
+
+	@Test
+	public void testPartialValuesCompressed() throws Exception {
+		checkPartialValues("ifc2x3tc1_IfcWall");
+	}
+
+	@Test
+	public void testLazyValues() throws Exception {
+		byte[] prefix = ByteBuffer.allocate(4).putInt(PID).array();
+		SearchingRecordIterator recordIterator = keyValueStore.getLazyRecordIterator("ifc2x3tc1_IfcWall", prefix, prefix, databaseSession);
+		try {
+			Record first = recordIterator.next();
+			Assert.assertArrayEquals(createKey(1), first.getKey());
+			Assert.assertEquals(LONG_VALUE, new String(first.getValue(), StandardCharsets.UTF_8));
+
+			// Never asked for its value
+			Record second = recordIterator.next();
+			Assert.assertArrayEquals(createKey(2), second.getKey());
+
+			Record third = recordIterator.next();
+			Assert.assertArrayEquals(createKey(3), third.getKey());
+			Assert.assertArrayEquals(DELETED, third.getValue());
+			try {
+				second.getValue();
+				Assert.fail();
+			} catch (IllegalStateException e) {
+				// The cursor has moved on
+			}
+			// Values that have been read stay available
+			Assert.assertEquals(LONG_VALUE, new String(first.getValue(), StandardCharsets.UTF_8));
+
+			Record seeked = recordIterator.next(createKey(2));
+			Assert.assertArrayEquals(createKey(2), seeked.getKey());
+			Assert.assertEquals("ab", new String(seeked.getValue(), StandardCharsets.UTF_8));
+			Assert.assertArrayEquals(createKey(3), recordIterator.next().getKey());
+			Assert.assertNull(recordIterator.next());
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	private void checkPartialValues(String tableName) throws Exception {
+		byte[] prefix = ByteBuffer.allocate(4).putInt(PID).array();
+		SearchingRecordIterator recordIterator = keyValueStore.getRecordIterator(tableName, prefix, prefix, databaseSession, 2, 3);
+		try {
+			Record record = recordIterator.next();
+			Assert.assertArrayEquals(createKey(1), record.getKey());
+			Assert.assertEquals("cde", new String(record.getValue(), StandardCharsets.UTF_8));
+			// Shorter values are returned as far as they go
+			record = recordIterator.next();
+			Assert.assertEquals("", new String(record.getValue(), StandardCharsets.UTF_8));
+			record = recordIterator.next();
+			Assert.assertArrayEquals(new byte[0], record.getValue());
+			Assert.assertNull(recordIterator.next());
+		} finally {
+			recordIterator.close();
+		}
+
+		// The first byte is enough to recognize deleted records
+		recordIterator = keyValueStore.getRecordIterator(tableName, prefix, prefix, databaseSession, 0, 1);
+		try {
+			Assert.assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), recordIterator.next().getValue());
+			Assert.assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), recordIterator.next().getValue());
+			Assert.assertArrayEquals(DELETED, recordIterator.next().getValue());
+		} finally {
+			recordIterator.close();
+		}
+	}
+
+	private void fill(String tableName) throws Exception {
+		keyValueStore.createTable(tableName, databaseSession, true);
+		keyValueStore.store(tableName, createKey(1), LONG_VALUE.getBytes(StandardCharsets.UTF_8), databaseSession);
+		keyValueStore.store(tableName, createKey(2), "ab".getBytes(StandardCharsets.UTF_8), databaseSession);
+		keyValueStore.store(tableName, createKey(3), DELETED, databaseSession);
+	}
+
+	private byte[] createKey(long oid) {
+		ByteBuffer key = ByteBuffer.allocate(16);
+		key.putInt(PID);
+		key.putLong(oid);
+		key.putInt(-1);
+		return key.array();
+	}
+}
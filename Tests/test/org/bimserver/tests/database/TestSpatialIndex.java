@@ -0,0 +1,148 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.Database;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.geometry.spatialindex.SpatialIndex;
+import org.bimserver.geometry.spatialindex.SpatialIndexBuilder;
+import org.bimserver.geometry.spatialindex.SpatialIndexEntry;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSpatialIndex {
+	private static final long CROID = 1;
+
+	private Path dataDir;
+	private BerkeleyKeyValueStore keyValueStore;
+	private KeyValueStoreSession databaseSession;
+	private EClass wall;
+	private EClass slab;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("spatialindex");
+		keyValueStore = new BerkeleyKeyValueStore(dataDir, null);
+		databaseSession = new KeyValueStoreSession(keyValueStore);
+		keyValueStore.createTable(Database.SPATIAL_INDEX_TABLE, databaseSession, false);
+		wall = EcoreFactory.eINSTANCE.createEClass();
+		wall.setName("Wall");
+		slab = EcoreFactory.eINSTANCE.createEClass();
+		slab.setName("Slab");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		keyValueStore.close();
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		SpatialIndexBuilder builder = new SpatialIndexBuilder();
+		// Enough walls for more than one level of nodes
+		for (int i=0; i<1000; i++) {
+			builder.add(wall, 1000 + i, i, 0, 0, i + 0.5, 1, 1, 0.1f);
+		}
+		builder.add(slab, 5000, 0, 0, 0, 10, 10, 1, 0.2f);
+		builder.build(databaseSession, CROID);
+
+		SpatialIndex wallIndex = SpatialIndex.open(databaseSession, CROID, wall);
+		Assert.assertEquals(1000, wallIndex.getNrEntries());
+		List<SpatialIndexEntry> result = wallIndex.search(entry -> entry.getMaxX() >= 100 && entry.getMinX() <= 109);
+		Assert.assertEquals(10, result.size());
+		Assert.assertEquals(1100, result.get(0).getId());
+		Assert.assertEquals(1109, result.get(9).getId());
+
+		Assert.assertEquals(Collections.singletonList(5000L), ids(SpatialIndex.open(databaseSession, CROID, slab).search(entry -> true)));
+	}
+
+	@Test
+	public void testRegenerateWithoutType() throws Exception {
+		SpatialIndexBuilder builder = new SpatialIndexBuilder();
+		builder.add(wall, 1, 0, 0, 0, 1, 1, 1, 0.1f);
+		builder.add(slab, 2, 0, 0, 0, 10, 10, 1, 0.2f);
+		builder.build(databaseSession, CROID);
+
+		SpatialIndexBuilder regenerated = new SpatialIndexBuilder();
+		regenerated.add(wall, 1, 5, 5, 5, 6, 6, 6, 0.1f);
+		regenerated.build(databaseSession, CROID);
+
+		List<SpatialIndexEntry> walls = SpatialIndex.open(databaseSession, CROID, wall).search(entry -> true);
+		Assert.assertEquals(1, walls.size());
+		Assert.assertEquals(5, walls.get(0).getMinX(), 0);
+
+		// The slabs of the first generation should not be returned
+		SpatialIndex slabIndex = SpatialIndex.open(databaseSession, CROID, slab);
+		Assert.assertNotNull(slabIndex);
+		Assert.assertTrue(slabIndex.search(entry -> true).isEmpty());
+	}
+
+	@Test
+	public void testIncompleteIndexNotUsed() throws Exception {
+		SpatialIndexBuilder builder = new SpatialIndexBuilder();
+		builder.add(wall, 1, 0, 0, 0, 1, 1, 1, 0.1f);
+		builder.build(databaseSession, CROID);
+
+		// What a build that did not finish leaves behind
+		keyValueStore.delete(Database.SPATIAL_INDEX_TABLE, SpatialIndex.createHeaderKey(CROID), databaseSession);
+
+		Assert.assertFalse(SpatialIndex.isComplete(databaseSession, CROID));
+		Assert.assertNull(SpatialIndex.open(databaseSession, CROID, wall));
+		Assert.assertFalse(new SpatialIndexBuilder().addFrom(databaseSession, CROID, Collections.emptySet()));
+	}
+
+	@Test
+	public void testAddFrom() throws Exception {
+		SpatialIndexBuilder builder = new SpatialIndexBuilder();
+		builder.add(wall, 1, 0, 0, 0, 1, 1, 1, 0.1f);
+		builder.add(wall, 2, 2, 0, 0, 3, 1, 1, 0.1f);
+		builder.add(slab, 3, 0, 0, 0, 10, 10, 1, 0.2f);
+		builder.build(databaseSession, CROID);
+
+		SpatialIndexBuilder next = new SpatialIndexBuilder();
+		Assert.assertTrue(next.addFrom(databaseSession, CROID, Collections.singleton(2L)));
+		next.add(wall, 4, 4, 0, 0, 5, 1, 1, 0.1f);
+		next.build(databaseSession, CROID + 1);
+
+		Assert.assertEquals(Arrays.asList(1L, 4L), ids(SpatialIndex.open(databaseSession, CROID + 1, wall).search(entry -> true)));
+		Assert.assertEquals(Collections.singletonList(3L), ids(SpatialIndex.open(databaseSession, CROID + 1, slab).search(entry -> true)));
+
+		Assert.assertFalse(new SpatialIndexBuilder().addFrom(databaseSession, CROID + 2, Collections.emptySet()));
+	}
+
+	private List<Long> ids(List<SpatialIndexEntry> entries) {
+		List<Long> ids = new ArrayList<>();
+		for (SpatialIndexEntry entry : entries) {
+			ids.add(entry.getId());
+		}
+		return ids;
+	}
+}
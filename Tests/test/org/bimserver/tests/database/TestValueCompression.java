@@ -0,0 +1,138 @@
+package org.bimserver.tests.database;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.bimserver.database.berkeley.BerkeleyKeyValueStore;
+import org.bimserver.database.berkeley.ValueCompression;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The compression of a table is stored with the database, these tests reopen the store to check that values (and trained dictionaries) are read back correctly
+ */
+public class TestValueCompression {
+	private static final String TABLE_NAME = "ifc2x3tc1_IfcWall";
+	private static final byte[] DELETED = new byte[] { -1 };
+	// More than the 10000 values converted per transaction
+	private static final int NR_VALUES = 12000;
+
+	private Path dataDir;
+	private BerkeleyKeyValueStore keyValueStore;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = Files.createTempDirectory("compression");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (keyValueStore != null) {
+			keyValueStore.close();
+		}
+		FileUtils.deleteDirectory(dataDir.toFile());
+	}
+
+	@Test
+	public void testExistingTableIsConverted() throws Exception {
+		open(ValueCompression.NONE);
+		keyValueStore.createTable(TABLE_NAME, new KeyValueStoreSession(keyValueStore), true);
+		fill();
+		keyValueStore.close();
+
+		open(ValueCompression.DEFLATE);
+		keyValueStore.openTable(new KeyValueStoreSession(keyValueStore), TABLE_NAME, true);
+		check();
+		// New values are written with the codec as well
+		KeyValueStoreSession databaseSession = new KeyValueStoreSession(keyValueStore);
+		keyValueStore.store(TABLE_NAME, createKey(NR_VALUES + 1), createValue(NR_VALUES + 1), databaseSession);
+		Assert.assertArrayEquals(createValue(NR_VALUES + 1), keyValueStore.get(TABLE_NAME, createKey(NR_VALUES + 1), databaseSession));
+		keyValueStore.close();
+
+		// The compression stays with the table, whatever is configured. Values without header would not decode with the codec, and the last value would not decode without it
+		open(ValueCompression.NONE);
+		keyValueStore.openTable(new KeyValueStoreSession(keyValueStore), TABLE_NAME, true);
+		check();
+		Assert.assertArrayEquals(createValue(NR_VALUES + 1), keyValueStore.get(TABLE_NAME, createKey(NR_VALUES + 1), new KeyValueStoreSession(keyValueStore)));
+	}
+
+	@Test
+	public void testDictionaryIsPersisted() throws Exception {
+		open(ValueCompression.DEFLATE_DICTIONARY);
+		keyValueStore.createTable(TABLE_NAME, new KeyValueStoreSession(keyValueStore), true);
+		fill();
+		check();
+		keyValueStore.close();
+
+		open(ValueCompression.NONE);
+		keyValueStore.openTable(new KeyValueStoreSession(keyValueStore), TABLE_NAME, true);
+		check();
+	}
+
+	@Test
+	public void testUncompressedTablesStayRaw() throws Exception {
+		open(ValueCompression.DEFLATE);
+		// Only the tables of the models are compressed
+		keyValueStore.createTable("test_Wall", new KeyValueStoreSession(keyValueStore), true);
+		KeyValueStoreSession databaseSession = new KeyValueStoreSession(keyValueStore);
+		keyValueStore.store("test_Wall", createKey(1), createValue(1), databaseSession);
+		keyValueStore.close();
+
+		open(ValueCompression.NONE);
+		keyValueStore.openTable(new KeyValueStoreSession(keyValueStore), "test_Wall", true);
+		Assert.assertArrayEquals(createValue(1), keyValueStore.get("test_Wall", createKey(1), new KeyValueStoreSession(keyValueStore)));
+	}
+
+	private void open(ValueCompression modelTableCompression) throws Exception {
+		keyValueStore = new BerkeleyKeyValueStore(dataDir, null);
+		keyValueStore.setTableCompression(modelTableCompression, ValueCompression.NONE);
+	}
+
+	private void fill() throws Exception {
+		KeyValueStoreSession databaseSession = new KeyValueStoreSession(keyValueStore);
+		for (int i = 1; i <= NR_VALUES; i++) {
+			keyValueStore.store(TABLE_NAME, createKey(i), i % 100 == 0 ? DELETED : createValue(i), databaseSession);
+		}
+	}
+
+	private void check() throws Exception {
+		KeyValueStoreSession databaseSession = new KeyValueStoreSession(keyValueStore);
+		for (int i = 1; i <= NR_VALUES; i++) {
+			Assert.assertArrayEquals(i % 100 == 0 ? DELETED : createValue(i), keyValueStore.get(TABLE_NAME, createKey(i), databaseSession));
+		}
+	}
+
+	private byte[] createValue(int nr) {
+		return ("IfcWallStandardCase " + nr + " Basic Wall:Generic - 200mm:" + (nr * 31) + " IfcWallStandardCase").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private byte[] createKey(int nr) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putInt(1);
+		buffer.putLong(nr);
+		buffer.putInt(-1);
+		return buffer.array();
+	}
+}
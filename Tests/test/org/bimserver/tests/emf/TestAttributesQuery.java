@@ -0,0 +1,127 @@
+package org.bimserver.tests.emf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.database.queries.om.JsonQueryObjectModelConverter;
+import org.bimserver.database.queries.om.QueryException;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.models.ifc2x3tc1.IfcWall;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.test.TestWithEmbeddedServer;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Query parts with "attributes" only read those attributes, unless the same objects can also be reached by an include or by another query part that needs more
+ */
+public class TestAttributesQuery extends TestWithEmbeddedServer {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	@Test
+	public void test() throws Exception {
+		BimServerClientInterface bimServerClient = getFactory().create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+		SProject project = bimServerClient.getServiceInterface().addProject("test" + Math.random(), "ifc2x3tc1");
+		SDeserializerPluginConfiguration deserializer = bimServerClient.getServiceInterface().getSuggestedDeserializerForExtension("ifc", project.getOid());
+		bimServerClient.checkinSync(project.getOid(), "test", deserializer.getOid(), false, new URL("https://github.com/opensourceBIM/TestFiles/raw/master/TestData/data/AC11-Institute-Var-2-IFC.ifc"));
+		project = bimServerClient.getServiceInterface().getProjectByPoid(project.getOid());
+
+		IfcModelInterface model = bimServerClient.getModel(project, project.getLastRevisionId(), true, false);
+		Map<Long, IfcWall> walls = new HashMap<>();
+		for (IfcWall ifcWall : model.getAllWithSubTypes(IfcWall.class)) {
+			walls.put(ifcWall.getOid(), ifcWall);
+		}
+		assertFalse(walls.isEmpty());
+
+		// Only the names
+		IfcModelInterface names = bimServerClient.getModel(project, project.getLastRevisionId(), false, false);
+		names.query(createWallsQuery(), true);
+		assertEquals(walls.keySet(), oids(names));
+		for (IfcWall ifcWall : names.getAllWithSubTypes(IfcWall.class)) {
+			assertEquals(walls.get(ifcWall.getOid()).getName(), ifcWall.getName());
+			assertNull(ifcWall.getGlobalId());
+		}
+
+		// The walls are also reached by an include, which needs all attributes
+		ObjectNode query = OBJECT_MAPPER.createObjectNode();
+		query.withArray("queries").add(createWallsQuery());
+		ObjectNode containedQuery = query.withArray("queries").addObject();
+		containedQuery.put("type", "IfcRelContainedInSpatialStructure");
+		ObjectNode include = containedQuery.putObject("include");
+		include.put("type", "IfcRelContainedInSpatialStructure");
+		include.put("field", "RelatedElements");
+		IfcModelInterface overlapping = bimServerClient.getModel(project, project.getLastRevisionId(), false, false);
+		overlapping.query(query, true);
+		assertEquals(walls.keySet(), oids(overlapping));
+		for (IfcWall ifcWall : overlapping.getAllWithSubTypes(IfcWall.class)) {
+			IfcWall expected = walls.get(ifcWall.getOid());
+			assertEquals(expected.getName(), ifcWall.getName());
+			assertEquals(expected.getGlobalId(), ifcWall.getGlobalId());
+		}
+
+		// Names are checked against the queried types
+		JsonQueryObjectModelConverter converter = new JsonQueryObjectModelConverter(model.getPackageMetaData());
+		ObjectNode unknown = createWallsQuery();
+		unknown.withArray("attributes").add("Unknown");
+		assertQueryException(converter, unknown);
+		ObjectNode reference = createWallsQuery();
+		reference.withArray("attributes").add("ContainedInStructure");
+		assertQueryException(converter, reference);
+	}
+
+	private ObjectNode createWallsQuery() {
+		ObjectNode query = OBJECT_MAPPER.createObjectNode();
+		ObjectNode type = query.putObject("type");
+		type.put("name", "IfcWall");
+		type.put("includeAllSubTypes", true);
+		query.withArray("attributes").add("Name");
+		return query;
+	}
+
+	private Set<Long> oids(IfcModelInterface model) {
+		Set<Long> result = new HashSet<>();
+		for (IfcWall ifcWall : model.getAllWithSubTypes(IfcWall.class)) {
+			result.add(ifcWall.getOid());
+		}
+		return result;
+	}
+
+	private void assertQueryException(JsonQueryObjectModelConverter converter, ObjectNode query) {
+		try {
+			converter.parseJson("test", query);
+			fail("Expected a QueryException for " + query);
+		} catch (QueryException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.bimserver.tests.emf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.models.ifc2x3tc1.IfcClassificationReference;
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+import org.bimserver.models.ifc2x3tc1.IfcRelAssociatesClassification;
+import org.bimserver.models.ifc2x3tc1.IfcRoot;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.test.TestWithEmbeddedServer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Classification queries are answered from the classification index of the revision, the results should be the same as when the relations of the classification
+ * references with the given codes are followed
+ */
+public class TestClassificationsQuery extends TestWithEmbeddedServer {
+
+	@Test
+	public void test() throws Exception {
+		BimServerClientInterface bimServerClient = getFactory().create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+		SProject project = bimServerClient.getServiceInterface().addProject("test" + Math.random(), "ifc2x3tc1");
+		SDeserializerPluginConfiguration deserializer = bimServerClient.getServiceInterface().getSuggestedDeserializerForExtension("ifc", project.getOid());
+		bimServerClient.checkinSync(project.getOid(), "test", deserializer.getOid(), false, new URL("https://github.com/opensourceBIM/TestFiles/raw/master/TestData/data/AC11-Institute-Var-2-IFC.ifc"));
+		project = bimServerClient.getServiceInterface().getProjectByPoid(project.getOid());
+
+		IfcModelInterface model = bimServerClient.getModel(project, project.getLastRevisionId(), true, false);
+
+		Map<String, Set<Long>> productsPerCode = new HashMap<>();
+		for (IfcRelAssociatesClassification ifcRelAssociatesClassification : model.getAllWithSubTypes(IfcRelAssociatesClassification.class)) {
+			if (ifcRelAssociatesClassification.getRelatingClassification() instanceof IfcClassificationReference) {
+				String code = ((IfcClassificationReference) ifcRelAssociatesClassification.getRelatingClassification()).getItemReference();
+				if (code != null) {
+					Set<Long> products = productsPerCode.computeIfAbsent(code, k -> new HashSet<>());
+					for (IfcRoot ifcRoot : ifcRelAssociatesClassification.getRelatedObjects()) {
+						if (ifcRoot instanceof IfcProduct) {
+							products.add(ifcRoot.getOid());
+						}
+					}
+				}
+			}
+		}
+		Assume.assumeFalse("No classification references in the test file", productsPerCode.isEmpty());
+
+		// Two codes, the products with either one of them are expected
+		Set<Long> expected = new HashSet<>();
+		ObjectNode query = new ObjectMapper().createObjectNode();
+		ObjectNode type = query.putObject("type");
+		type.put("name", "IfcProduct");
+		type.put("includeAllSubTypes", true);
+		int nrCodes = 0;
+		for (String code : productsPerCode.keySet()) {
+			if (nrCodes++ == 2) {
+				break;
+			}
+			query.withArray("classifications").add(code);
+			expected.addAll(productsPerCode.get(code));
+		}
+
+		IfcModelInterface result = bimServerClient.getModel(project, project.getLastRevisionId(), false, false);
+		result.query(query, true);
+		Set<Long> found = new HashSet<>();
+		for (IfcProduct ifcProduct : result.getAllWithSubTypes(IfcProduct.class)) {
+			found.add(ifcProduct.getOid());
+		}
+		assertEquals(expected, found);
+	}
+}
@@ -0,0 +1,89 @@
+package org.bimserver.tests.emf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.database.DatabaseSession;
+import org.bimserver.database.ObjectIdentifier;
+import org.bimserver.database.OldQuery;
+import org.bimserver.database.OperationType;
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.models.ifc2x3tc1.IfcRoot;
+import org.bimserver.models.store.ConcreteRevision;
+import org.bimserver.models.store.Revision;
+import org.bimserver.models.store.StorePackage;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.test.TestWithEmbeddedServer;
+import org.junit.Test;
+
+/**
+ * The tables of a new database have versioned record layouts, the names have to be found behind the layout version and the unset bitmap
+ */
+public class TestOidsOfName extends TestWithEmbeddedServer {
+
+	@Test
+	public void test() throws Exception {
+		BimServerClientInterface bimServerClient = getFactory().create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+		SProject project = bimServerClient.getServiceInterface().addProject("test" + Math.random(), "ifc2x3tc1");
+		SDeserializerPluginConfiguration deserializer = bimServerClient.getServiceInterface().getSuggestedDeserializerForExtension("ifc", project.getOid());
+		bimServerClient.checkinSync(project.getOid(), "test", deserializer.getOid(), false, new URL("https://github.com/opensourceBIM/TestFiles/raw/master/TestData/data/AC11-Institute-Var-2-IFC.ifc"));
+		project = bimServerClient.getServiceInterface().getProjectByPoid(project.getOid());
+
+		// The most used name is looked up
+		IfcModelInterface model = bimServerClient.getModel(project, project.getLastRevisionId(), true, false);
+		Map<String, Set<Long>> oidsPerName = new HashMap<>();
+		for (IfcRoot ifcRoot : model.getAllWithSubTypes(IfcRoot.class)) {
+			if (ifcRoot.getName() != null) {
+				oidsPerName.computeIfAbsent(ifcRoot.getName(), k -> new HashSet<>()).add(ifcRoot.getOid());
+			}
+		}
+		String name = null;
+		for (String candidate : oidsPerName.keySet()) {
+			if (name == null || oidsPerName.get(candidate).size() > oidsPerName.get(name).size()) {
+				name = candidate;
+			}
+		}
+		assertNotNull("No names in the test file", name);
+
+		try (DatabaseSession databaseSession = getBimServer().getDatabase().createSession(OperationType.READ_ONLY)) {
+			PackageMetaData packageMetaData = databaseSession.getMetaDataManager().getPackageMetaData("ifc2x3tc1");
+			assertTrue(databaseSession.getRecordLayouts().isVersioned(packageMetaData.getEClass("IfcWall")));
+
+			Revision revision = databaseSession.get(StorePackage.eINSTANCE.getRevision(), project.getLastRevisionId(), OldQuery.getDefault());
+			ConcreteRevision concreteRevision = revision.getConcreteRevisions().get(0);
+			Set<Long> found = new HashSet<>();
+			for (ObjectIdentifier objectIdentifier : databaseSession.getOidsOfName("ifc2x3tc1", name, concreteRevision.getProject().getId(), concreteRevision.getId())) {
+				found.add(objectIdentifier.getOid());
+			}
+			assertEquals(oidsPerName.get(name), found);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package org.bimserver.tests.emf;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bimserver.emf.IfcModelInterface;
+import org.bimserver.interfaces.objects.SDeserializerPluginConfiguration;
+import org.bimserver.interfaces.objects.SProject;
+import org.bimserver.models.ifc2x3tc1.IfcLabel;
+import org.bimserver.models.ifc2x3tc1.IfcProduct;
+import org.bimserver.models.ifc2x3tc1.IfcProperty;
+import org.bimserver.models.ifc2x3tc1.IfcPropertySet;
+import org.bimserver.models.ifc2x3tc1.IfcPropertySetDefinition;
+import org.bimserver.models.ifc2x3tc1.IfcPropertySingleValue;
+import org.bimserver.models.ifc2x3tc1.IfcRelDefines;
+import org.bimserver.models.ifc2x3tc1.IfcRelDefinesByProperties;
+import org.bimserver.models.ifc2x3tc1.IfcRelDefinesByType;
+import org.bimserver.models.ifc2x3tc1.IfcTypeObject;
+import org.bimserver.plugins.services.BimServerClientInterface;
+import org.bimserver.shared.UsernamePasswordAuthenticationInfo;
+import org.bimserver.test.TestWithEmbeddedServer;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Property queries are answered from the property set index of the revision, the results should be the same as when the properties are evaluated per product
+ * by following IsDefinedBy
+ */
+public class TestPropertiesQuery extends TestWithEmbeddedServer {
+
+	@Test
+	public void test() throws Exception {
+		BimServerClientInterface bimServerClient = getFactory().create(new UsernamePasswordAuthenticationInfo("admin@bimserver.org", "admin"));
+		SProject project = bimServerClient.getServiceInterface().addProject("test" + Math.random(), "ifc2x3tc1");
+		SDeserializerPluginConfiguration deserializer = bimServerClient.getServiceInterface().getSuggestedDeserializerForExtension("ifc", project.getOid());
+		bimServerClient.checkinSync(project.getOid(), "test", deserializer.getOid(), false, new URL("https://github.com/opensourceBIM/TestFiles/raw/master/TestData/data/AC11-Institute-Var-2-IFC.ifc"));
+		project = bimServerClient.getServiceInterface().getProjectByPoid(project.getOid());
+
+		IfcModelInterface model = bimServerClient.getModel(project, project.getLastRevisionId(), true, false);
+
+		// The most used label property is queried
+		Map<List<String>, Set<Long>> productsPerProperty = new HashMap<>();
+		for (IfcProduct ifcProduct : model.getAllWithSubTypes(IfcProduct.class)) {
+			for (List<String> property : getLabelProperties(ifcProduct)) {
+				productsPerProperty.computeIfAbsent(property, k -> new HashSet<>()).add(ifcProduct.getOid());
+			}
+		}
+		List<String> queried = null;
+		for (List<String> property : productsPerProperty.keySet()) {
+			if (queried == null || productsPerProperty.get(property).size() > productsPerProperty.get(queried).size()) {
+				queried = property;
+			}
+		}
+		assertNotNull("No label properties in the test file", queried);
+
+		ObjectNode query = new ObjectMapper().createObjectNode();
+		ObjectNode type = query.putObject("type");
+		type.put("name", "IfcProduct");
+		type.put("includeAllSubTypes", true);
+		query.putObject("properties").putObject(queried.get(0)).put(queried.get(1), queried.get(2));
+
+		IfcModelInterface result = bimServerClient.getModel(project, project.getLastRevisionId(), false, false);
+		result.query(query, true);
+		Set<Long> found = new HashSet<>();
+		for (IfcProduct ifcProduct : result.getAllWithSubTypes(IfcProduct.class)) {
+			found.add(ifcProduct.getOid());
+		}
+		assertEquals(productsPerProperty.get(queried), found);
+	}
+
+	/**
+	 * @return All (property set name, property name, value) of the IfcLabel single values of the given product, the way they used to be evaluated
+	 */
+	private Set<List<String>> getLabelProperties(IfcProduct ifcProduct) {
+		Set<List<String>> result = new HashSet<>();
+		for (IfcRelDefines ifcRelDefines : ifcProduct.getIsDefinedBy()) {
+			if (ifcRelDefines instanceof IfcRelDefinesByProperties) {
+				addLabelProperties(((IfcRelDefinesByProperties) ifcRelDefines).getRelatingPropertyDefinition(), result);
+			} else if (ifcRelDefines instanceof IfcRelDefinesByType) {
+				IfcTypeObject ifcTypeObject = ((IfcRelDefinesByType) ifcRelDefines).getRelatingType();
+				if (ifcTypeObject != null) {
+					for (IfcPropertySetDefinition ifcPropertySetDefinition : ifcTypeObject.getHasPropertySets()) {
+						addLabelProperties(ifcPropertySetDefinition, result);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private void addLabelProperties(IfcPropertySetDefinition ifcPropertySetDefinition, Set<List<String>> result) {
+		if (ifcPropertySetDefinition instanceof IfcPropertySet) {
+			IfcPropertySet ifcPropertySet = (IfcPropertySet) ifcPropertySetDefinition;
+			for (IfcProperty ifcProperty : ifcPropertySet.getHasProperties()) {
+				if (ifcProperty instanceof IfcPropertySingleValue && ((IfcPropertySingleValue) ifcProperty).getNominalValue() instanceof IfcLabel) {
+					String value = ((IfcLabel) ((IfcPropertySingleValue) ifcProperty).getNominalValue()).getWrappedValue();
+					if (ifcPropertySet.getName() != null && ifcProperty.getName() != null && value != null) {
+						result.add(Arrays.asList(ifcPropertySet.getName(), ifcProperty.getName(), value));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.bimserver.tests.ifc;
+
+/******************************************************************************
+ * Copyright (C) 2009-2019  BIMserver.org
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see {@literal<http://www.gnu.org/licenses/>}.
+ *****************************************************************************/
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bimserver.emf.IdEObject;
+import org.bimserver.emf.IdEObjectImpl;
+import org.bimserver.emf.IdEObjectImpl.State;
+import org.bimserver.emf.PackageMetaData;
+import org.bimserver.emf.Schema;
+import org.bimserver.ifc.BasicIfcModel;
+import org.bimserver.ifc.IfcModel;
+import org.bimserver.ifc.OidObjectStore;
+import org.bimserver.shared.IncrementingOidProvider;
+import org.eclipse.emf.common.util.EList;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The branch actions reset the oids of a model before it gets new oids in the target project, the objects must still be found through their old keys
+ */
+public class TestResetOids {
+	private EClass wallClass;
+	private EClass windowClass;
+	private EReference openings;
+	private EAttribute name;
+	private IfcModel model;
+	private List<IdEObject> created = new ArrayList<>();
+	private int loads;
+
+	@Before
+	public void setUp() throws Exception {
+		EPackage ePackage = EcoreFactory.eINSTANCE.createEPackage();
+		ePackage.setName("test");
+		EClass rootClass = EcoreFactory.eINSTANCE.createEClass();
+		rootClass.setName("IfcRoot");
+		rootClass.getEStructuralFeatures().add(createStringAttribute("GlobalId"));
+		name = createStringAttribute("Name");
+		rootClass.getEStructuralFeatures().add(name);
+		wallClass = EcoreFactory.eINSTANCE.createEClass();
+		wallClass.setName("Wall");
+		wallClass.getESuperTypes().add(rootClass);
+		windowClass = EcoreFactory.eINSTANCE.createEClass();
+		windowClass.setName("Window");
+		windowClass.getESuperTypes().add(rootClass);
+		openings = EcoreFactory.eINSTANCE.createEReference();
+		openings.setName("Openings");
+		openings.setEType(windowClass);
+		openings.setUpperBound(-1);
+		wallClass.getEStructuralFeatures().add(openings);
+		ePackage.getEClassifiers().add(rootClass);
+		ePackage.getEClassifiers().add(wallClass);
+		ePackage.getEClassifiers().add(windowClass);
+
+		model = new BasicIfcModel(new PackageMetaData(ePackage, Schema.GEOMETRY, Paths.get(System.getProperty("java.io.tmpdir"))), null) {
+			@Override
+			public void load(IdEObject idEObject) {
+				loads++;
+			}
+		};
+		for (int i = 0; i < 10; i++) {
+			IdEObject wall = create(wallClass, 100 + i * 3);
+			getOpenings(wall).add(create(windowClass, 101 + i * 3));
+			getOpenings(wall).add(create(windowClass, 102 + i * 3));
+		}
+	}
+
+	@Test
+	public void testBranch() throws Exception {
+		model.resetOids();
+		for (IdEObject idEObject : created) {
+			Assert.assertEquals(-1, idEObject.getOid());
+			Assert.assertTrue(model.contains(idEObject));
+		}
+
+		model.fixOidsFlat(new IncrementingOidProvider(1000));
+		Assert.assertEquals(created.size(), model.size());
+		for (IdEObject idEObject : created) {
+			Assert.assertTrue(idEObject.getOid() >= 1000);
+			Assert.assertSame(idEObject, model.get(idEObject.getOid()));
+		}
+	}
+
+	@Test
+	public void testRemoveAfterReset() throws Exception {
+		model.resetOidsFlat();
+		IdEObject removed = created.get(0);
+		model.remove(removed);
+		Assert.assertFalse(model.contains(removed));
+		Assert.assertFalse(model.contains(100));
+		Assert.assertEquals(created.size() - 1, model.size());
+	}
+
+	@Test
+	public void testSharedObject() throws Exception {
+		// Objects can be in more than one store, each store keeps its own key
+		OidObjectStore other = new OidObjectStore();
+		IdEObject shared = created.get(0);
+		other.put(5, shared);
+		Assert.assertEquals(100, model.getObjects().getKey(shared));
+		Assert.assertEquals(5, other.getKey(shared));
+
+		other.removeKey(5);
+		Assert.assertEquals(-1, other.getKey(shared));
+		Assert.assertTrue(model.contains(shared));
+		Assert.assertEquals(100, model.getObjects().getKey(shared));
+	}
+
+	@Test
+	public void testPlaceholderIndexedWhenLoaded() throws Exception {
+		Assert.assertNull(model.getByName(wallClass, "wall"));
+
+		// Referenced objects are added as placeholders before they are loaded
+		IdEObjectImpl placeholder = new IdEObjectImpl();
+		placeholder.eSetClass(wallClass);
+		placeholder.setOid(500);
+		placeholder.setLoadingState(State.TO_BE_LOADED);
+		model.add(500, placeholder);
+		Assert.assertEquals(0, loads);
+
+		// The deserializers add them again once they have been loaded
+		placeholder.setLoadingState(State.LOADING);
+		placeholder.eSet(name, "wall");
+		placeholder.setLoadingState(State.LOADED);
+		model.add(500, placeholder);
+		Assert.assertSame(placeholder, model.getByName(wallClass, "wall"));
+		Assert.assertEquals(0, loads);
+	}
+
+	private EAttribute createStringAttribute(String attributeName) {
+		EAttribute eAttribute = EcoreFactory.eINSTANCE.createEAttribute();
+		eAttribute.setName(attributeName);
+		eAttribute.setEType(EcorePackage.eINSTANCE.getEString());
+		return eAttribute;
+	}
+
+	private IdEObject create(EClass eClass, long oid) throws Exception {
+		IdEObjectImpl idEObject = new IdEObjectImpl();
+		idEObject.eSetClass(eClass);
+		idEObject.setOid(oid);
+		model.add(oid, idEObject);
+		created.add(idEObject);
+		return idEObject;
+	}
+
+	@SuppressWarnings("unchecked")
+	private EList<IdEObject> getOpenings(IdEObject wall) {
+		return (EList<IdEObject>) wall.eGet(openings);
+	}
+}